@@ -0,0 +1,312 @@
+package com.perceptus.supers3t;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.streams.WriteStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Deletes keys in batches with DeleteObjects (POST ?delete), exposed as a
+ * {@link WriteStream} of keys. Keys written are grouped into batches of up
+ * to {@code batchSize}, and up to {@code maxConcurrentBatches} batches are
+ * in flight at once. Only a bounded number of batches are held: the stream
+ * reports {@link #writeQueueFull()} once the batches waiting for a slot
+ * reach the write queue size, so a {@link io.vertx.core.streams.Pump} will
+ * pause its source.
+ *
+ * Keys S3 refuses to delete are reported one by one to the error handler as
+ * they come back; a batch whose request fails outright reports each of its
+ * keys the same way, so no key goes unaccounted for. Call {@link #end()}
+ * once all keys are written; the completion handler gets the totals.
+ *
+ * All state is confined to the context the batch delete was created on;
+ * writes from elsewhere, and responses, are handed back to it.
+ */
+public class S3BatchDelete implements WriteStream<String> {
+    private static final Logger logger = LoggerFactory.getLogger(S3BatchDelete.class);
+
+    // S3 accepts at most this many keys per DeleteObjects request
+    public static final int MAX_BATCH_SIZE = 1000;
+    public static final int DEFAULT_MAX_CONCURRENT_BATCHES = 4;
+
+    private final S3Client client;
+    private final String bucket;
+    private final int batchSize;
+    private final int maxConcurrentBatches;
+    private final Context context;
+
+    // Batches cut but not yet sent, waiting for a free slot
+    private final ArrayDeque<List<String>> pending = new ArrayDeque<>();
+    private List<String> current;
+    private int inFlight;
+    private int maxQueuedBatches;
+    private long deleted;
+    private long failed;
+
+    // end() was called; the last batch is queued once it runs on the context
+    private boolean ended;
+    private boolean lastQueued;
+    private boolean finished;
+
+    private Handler<KeyError> errorHandler;
+    private Handler<Void> drainHandler;
+    private Handler<Throwable> exceptionHandler;
+    private Handler<AsyncResult<Result>> completionHandler;
+
+    /**
+     * A key that was not deleted, with S3's error code (e.g. "AccessDenied")
+     * and message.
+     */
+    public static class KeyError {
+        private final String key;
+        private final String code;
+        private final String message;
+
+        public KeyError(String key, String code, String message) {
+            this.key = key;
+            this.code = code;
+            this.message = message;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getCode() {
+            return code;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        @Override public String toString() {
+            return key + ": " + code + (message != null ? " (" + message + ")" : "");
+        }
+    }
+
+    /**
+     * Totals of a finished batch delete.
+     */
+    public static class Result {
+        private final long deleted;
+        private final long failed;
+
+        Result(long deleted, long failed) {
+            this.deleted = deleted;
+            this.failed = failed;
+        }
+
+        // Keys S3 reported deleted (including keys that did not exist)
+        public long getDeleted() {
+            return deleted;
+        }
+
+        // Keys reported to the error handler
+        public long getFailed() {
+            return failed;
+        }
+    }
+
+    public S3BatchDelete(S3Client client, String bucket) {
+        this(client, bucket, MAX_BATCH_SIZE, DEFAULT_MAX_CONCURRENT_BATCHES);
+    }
+
+    public S3BatchDelete(S3Client client,
+                         String bucket,
+                         int batchSize,
+                         int maxConcurrentBatches) {
+        if (batchSize < 1 || batchSize > MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("Batch size must be between 1 and " + MAX_BATCH_SIZE);
+        }
+        if (maxConcurrentBatches < 1) {
+            throw new IllegalArgumentException("At least one batch must be allowed in flight");
+        }
+        this.client = client;
+        this.bucket = bucket;
+        this.batchSize = batchSize;
+        this.maxConcurrentBatches = maxConcurrentBatches;
+        this.maxQueuedBatches = maxConcurrentBatches;
+        this.context = client.getVertx().getOrCreateContext();
+    }
+
+    // Called for each key that could not be deleted
+    public S3BatchDelete errorHandler(Handler<KeyError> handler) {
+        this.errorHandler = handler;
+        return this;
+    }
+
+    // Called once every batch has been answered, or the source failed
+    public S3BatchDelete completionHandler(Handler<AsyncResult<Result>> handler) {
+        this.completionHandler = handler;
+        return this;
+    }
+
+    // Called when a whole batch request fails (its keys are reported too)
+    @Override public S3BatchDelete exceptionHandler(Handler<Throwable> handler) {
+        this.exceptionHandler = handler;
+        return this;
+    }
+
+    @Override public S3BatchDelete write(String key) {
+        if (ended) {
+            throw new IllegalStateException("Batch delete already ended");
+        }
+        onContext(() -> {
+            if (finished) {
+                // Aborted; drop the key, the caller has been told
+                return;
+            }
+            if (current == null) {
+                current = new ArrayList<>(batchSize);
+            }
+            current.add(key);
+            if (current.size() == batchSize) {
+                pending.add(current);
+                current = null;
+            }
+            dispatch();
+        });
+        return this;
+    }
+
+    // Maximum number of full batches held waiting for a free slot
+    @Override public S3BatchDelete setWriteQueueMaxSize(int maxSize) {
+        this.maxQueuedBatches = Math.max(1, maxSize);
+        return this;
+    }
+
+    @Override public boolean writeQueueFull() {
+        return pending.size() >= maxQueuedBatches;
+    }
+
+    @Override public S3BatchDelete drainHandler(Handler<Void> handler) {
+        this.drainHandler = handler;
+        return this;
+    }
+
+    public void end() {
+        if (ended) {
+            return;
+        }
+        ended = true;
+        onContext(() -> {
+            if (current != null) {
+                pending.add(current);
+                current = null;
+            }
+            lastQueued = true;
+            dispatch();
+        });
+    }
+
+    public void end(String key) {
+        write(key);
+        end();
+    }
+
+    // Stop sending batches; the completion handler gets the cause.
+    // Batches already sent still run to completion on S3.
+    public void abort(Throwable cause) {
+        onContext(() -> {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            pending.clear();
+            current = null;
+            logger.warn("Batch delete in {} aborted: {}", bucket, cause.toString());
+            if (completionHandler != null) {
+                completionHandler.handle(Future.failedFuture(cause));
+            }
+        });
+    }
+
+    public String getBucket() {
+        return bucket;
+    }
+
+    // Totals so far
+    public long getDeleted() {
+        return deleted;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    // The context this batch delete runs on
+    Context getContext() {
+        return context;
+    }
+
+    private void dispatch() {
+        if (finished) {
+            return;
+        }
+        boolean wasFull = writeQueueFull();
+        while (inFlight < maxConcurrentBatches && !pending.isEmpty()) {
+            send(pending.poll());
+        }
+        if (wasFull && !writeQueueFull() && drainHandler != null) {
+            drainHandler.handle(null);
+        }
+        if (lastQueued && pending.isEmpty() && inFlight == 0 && !finished) {
+            finished = true;
+            if (completionHandler != null) {
+                completionHandler.handle(Future.succeededFuture(new Result(deleted, failed)));
+            }
+        }
+    }
+
+    private void send(List<String> keys) {
+        inFlight++;
+        client.deleteObjects(bucket, keys, result -> onContext(() -> {
+            inFlight--;
+            if (result.succeeded()) {
+                List<KeyError> errors = result.result();
+                deleted += keys.size() - errors.size();
+                for (KeyError error : errors) {
+                    reportError(error);
+                }
+            } else {
+                Throwable cause = result.cause();
+                logger.warn("Deleting {} keys from {} failed: {}",
+                            new Object[] { keys.size(), bucket, cause.toString() });
+                String code = cause instanceof S3Exception && ((S3Exception) cause).getErrorCode() != null
+                              ? ((S3Exception) cause).getErrorCode()
+                              : "RequestFailed";
+                for (String key : keys) {
+                    reportError(new KeyError(key, code, cause.getMessage()));
+                }
+                if (exceptionHandler != null) {
+                    exceptionHandler.handle(cause);
+                }
+            }
+            dispatch();
+        }));
+    }
+
+    private void reportError(KeyError error) {
+        failed++;
+        if (errorHandler != null) {
+            errorHandler.handle(error);
+        }
+    }
+
+    private void onContext(Runnable action) {
+        if (Vertx.currentContext() == context) {
+            action.run();
+        } else {
+            context.runOnContext(event -> action.run());
+        }
+    }
+}
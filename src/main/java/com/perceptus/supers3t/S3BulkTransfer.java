@@ -0,0 +1,504 @@
+package com.perceptus.supers3t;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.streams.ReadStream;
+import io.vertx.core.streams.WriteStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Puts or gets many objects with a bounded window of requests in flight.
+ * Items (an {@link Entry} to put, or a key to get) are written in as a
+ * {@link WriteStream}; each is sent as soon as the window has room, signed
+ * as it goes out while the requests before it are still on the wire. The
+ * {@link Outcome} of each comes back out as a {@link ReadStream}, in the
+ * order they finish or, with {@link #setOrdered}, the order written.
+ *
+ * An outcome holds its place in the window until it has been handed on, so
+ * pausing the outcomes (or a slow item at the head when ordered) stops new
+ * requests, and the write queue then fills to pause whatever pumps items
+ * in. Outcomes that arrive while no handler is set are counted but not
+ * kept. Call {@link #end()} once all items are written; the completion
+ * handler gets the totals and throughput.
+ *
+ * All state is confined to the context the transfer was created on;
+ * writes from elsewhere, and responses, are handed back to it.
+ */
+public class S3BulkTransfer<T> implements WriteStream<T>, ReadStream<S3BulkTransfer.Outcome> {
+    private static final Logger logger = LoggerFactory.getLogger(S3BulkTransfer.class);
+
+    public static final int DEFAULT_WINDOW = 32;
+
+    /**
+     * Sends one item, handing back its outcome.
+     */
+    interface Operation<T> {
+        void start(S3Client client, String bucket, T item, long index, Handler<Outcome> done);
+    }
+
+    static final Operation<Entry> PUT = (client, bucket, entry, index, done) ->
+            client.put(bucket, entry.getKey(), entry.getData(),
+                       response -> Outcome.read(entry.getKey(), index, entry.getData().length(), false, response, done),
+                       failure -> done.handle(new Outcome(entry.getKey(), index, failure)));
+
+    static final Operation<String> GET = (client, bucket, key, index, done) ->
+            client.get(bucket, key, null,
+                       response -> Outcome.read(key, index, 0, true, response, done),
+                       failure -> done.handle(new Outcome(key, index, failure)));
+
+    /**
+     * An object to put.
+     */
+    public static class Entry {
+        private final String key;
+        private final Buffer data;
+
+        public Entry(String key, Buffer data) {
+            this.key = key;
+            this.data = data;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public Buffer getData() {
+            return data;
+        }
+    }
+
+    /**
+     * How one item went: its status and ETag, and for a get the body, or
+     * why it failed. A non-2xx response fails with an {@link S3Exception}.
+     */
+    public static class Outcome {
+        private final String key;
+        private final long index;
+        private final int statusCode;
+        private final String etag;
+        private final Buffer data;
+        private final long bytes;
+        private final Throwable failure;
+
+        Outcome(String key, long index, int statusCode, String etag, Buffer data, long bytes) {
+            this.key = key;
+            this.index = index;
+            this.statusCode = statusCode;
+            this.etag = etag;
+            this.data = data;
+            this.bytes = bytes;
+            this.failure = null;
+        }
+
+        Outcome(String key, long index, Throwable failure) {
+            this.key = key;
+            this.index = index;
+            this.statusCode = failure instanceof S3Exception ? ((S3Exception) failure).getStatusCode() : 0;
+            this.etag = null;
+            this.data = null;
+            this.bytes = 0;
+            this.failure = failure;
+        }
+
+        // Reads the response through, then hands on what it came to
+        static void read(String key,
+                         long index,
+                         long sent,
+                         boolean keepBody,
+                         HttpClientResponse response,
+                         Handler<Outcome> done) {
+            response.exceptionHandler(failure -> done.handle(new Outcome(key, index, failure)));
+            response.bodyHandler(body -> {
+                int status = response.statusCode();
+                if (status / 100 != 2) {
+                    done.handle(new Outcome(key, index, S3Exception.fromResponse(status, body)));
+                } else if (keepBody) {
+                    done.handle(new Outcome(key, index, status, response.headers().get("ETag"), body, body.length()));
+                } else {
+                    done.handle(new Outcome(key, index, status, response.headers().get("ETag"), null, sent));
+                }
+            });
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        // Position among the items written, from 0
+        public long getIndex() {
+            return index;
+        }
+
+        public boolean succeeded() {
+            return failure == null;
+        }
+
+        // 0 if no response came back
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        // The object's body, for a get
+        public Buffer getData() {
+            return data;
+        }
+
+        // Body bytes sent or received
+        public long getBytes() {
+            return bytes;
+        }
+
+        public Throwable getFailure() {
+            return failure;
+        }
+
+        @Override public String toString() {
+            return key + ": " + (failure == null ? String.valueOf(statusCode) : failure.toString());
+        }
+    }
+
+    /**
+     * Totals of a finished transfer.
+     */
+    public static class Result {
+        private final long succeeded;
+        private final long failed;
+        private final long bytes;
+        private final long elapsed;
+
+        Result(long succeeded, long failed, long bytes, long elapsed) {
+            this.succeeded = succeeded;
+            this.failed = failed;
+            this.bytes = bytes;
+            this.elapsed = elapsed;
+        }
+
+        public long getSucceeded() {
+            return succeeded;
+        }
+
+        public long getFailed() {
+            return failed;
+        }
+
+        // Body bytes moved by the items that succeeded
+        public long getBytes() {
+            return bytes;
+        }
+
+        // ms from the first request to the last outcome
+        public long getElapsed() {
+            return elapsed;
+        }
+
+        public double getItemsPerSecond() {
+            return elapsed == 0 ? 0 : (succeeded + failed) * 1000.0 / elapsed;
+        }
+
+        public double getBytesPerSecond() {
+            return elapsed == 0 ? 0 : bytes * 1000.0 / elapsed;
+        }
+
+        @Override public String toString() {
+            return String.format("%d succeeded, %d failed, %d bytes in %d ms (%.1f/s, %.0f bytes/s)",
+                                 succeeded, failed, bytes, elapsed, getItemsPerSecond(), getBytesPerSecond());
+        }
+    }
+
+    // An item sent, waiting for its outcome
+    private static final class Slot {
+        private Outcome outcome;
+    }
+
+    private final S3Client client;
+    private final String bucket;
+    private final Operation<T> operation;
+    private final int window;
+    private final Context context;
+    private boolean ordered;
+    private int maxQueuedItems;
+
+    // Items written but not yet sent, waiting for room in the window
+    private final ArrayDeque<T> pending = new ArrayDeque<>();
+    // Items sent, oldest first (ordered only)
+    private final ArrayDeque<Slot> sent = new ArrayDeque<>();
+    // Outcomes waiting to be handed on
+    private final ArrayDeque<Outcome> ready = new ArrayDeque<>();
+    private long started;
+    private long delivered;
+    private long succeeded;
+    private long failed;
+    private long bytes;
+    private long startTime;
+
+    private boolean paused;
+    private boolean delivering;
+    // end() was called; the last item is queued once it runs on the context
+    private boolean ended;
+    private boolean lastQueued;
+    private boolean finished;
+
+    private Handler<Outcome> handler;
+    private Handler<Void> endHandler;
+    private Handler<Void> drainHandler;
+    private Handler<Throwable> exceptionHandler;
+    private Handler<AsyncResult<Result>> completionHandler;
+
+    S3BulkTransfer(S3Client client, String bucket, Operation<T> operation, int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("At least one request must be allowed in flight");
+        }
+        this.client = client;
+        this.bucket = bucket;
+        this.operation = operation;
+        this.window = window;
+        this.maxQueuedItems = window;
+        this.context = client.getVertx().getOrCreateContext();
+    }
+
+    // Hand outcomes on in the order items were written; set before writing
+    public S3BulkTransfer<T> setOrdered(boolean ordered) {
+        this.ordered = ordered;
+        return this;
+    }
+
+    // Called once every outcome has been handed on, or the transfer aborted
+    public S3BulkTransfer<T> completionHandler(Handler<AsyncResult<Result>> handler) {
+        this.completionHandler = handler;
+        return this;
+    }
+
+    // Called when the transfer is aborted; failed items are outcomes
+    @Override public S3BulkTransfer<T> exceptionHandler(Handler<Throwable> handler) {
+        this.exceptionHandler = handler;
+        return this;
+    }
+
+    // Writing
+    // -------
+
+    @Override public S3BulkTransfer<T> write(T item) {
+        if (ended) {
+            throw new IllegalStateException("Bulk transfer already ended");
+        }
+        onContext(() -> {
+            if (finished) {
+                // Aborted; drop the item, the caller has been told
+                return;
+            }
+            pending.add(item);
+            dispatch();
+        });
+        return this;
+    }
+
+    // Maximum number of items held waiting for room in the window
+    @Override public S3BulkTransfer<T> setWriteQueueMaxSize(int maxSize) {
+        this.maxQueuedItems = Math.max(1, maxSize);
+        return this;
+    }
+
+    @Override public boolean writeQueueFull() {
+        return pending.size() >= maxQueuedItems;
+    }
+
+    @Override public S3BulkTransfer<T> drainHandler(Handler<Void> handler) {
+        this.drainHandler = handler;
+        return this;
+    }
+
+    public void end() {
+        if (ended) {
+            return;
+        }
+        ended = true;
+        onContext(() -> {
+            lastQueued = true;
+            dispatch();
+        });
+    }
+
+    public void end(T item) {
+        write(item);
+        end();
+    }
+
+    // Writes everything from the iterator, as the write queue has room, then ends
+    void writeAll(Iterator<? extends T> items) {
+        context.runOnContext(new Handler<Void>() {
+            @Override public void handle(Void event) {
+                // Unset while writing, so draining can't re-enter the loop
+                drainHandler(null);
+                while (items.hasNext() && !writeQueueFull()) {
+                    write(items.next());
+                }
+                if (items.hasNext()) {
+                    drainHandler(this);
+                } else {
+                    end();
+                }
+            }
+        });
+    }
+
+    // Stop sending items; the completion handler gets the cause.
+    // Requests already sent still run to completion on S3.
+    public void abort(Throwable cause) {
+        onContext(() -> {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            pending.clear();
+            logger.warn("Bulk transfer in {} aborted: {}", bucket, cause.toString());
+            if (exceptionHandler != null) {
+                exceptionHandler.handle(cause);
+            }
+            if (completionHandler != null) {
+                completionHandler.handle(Future.failedFuture(cause));
+            }
+        });
+    }
+
+    // Reading
+    // -------
+
+    @Override public S3BulkTransfer<T> handler(Handler<Outcome> handler) {
+        this.handler = handler;
+        return this;
+    }
+
+    @Override public S3BulkTransfer<T> endHandler(Handler<Void> handler) {
+        this.endHandler = handler;
+        return this;
+    }
+
+    @Override public S3BulkTransfer<T> pause() {
+        paused = true;
+        return this;
+    }
+
+    @Override public S3BulkTransfer<T> resume() {
+        if (paused) {
+            paused = false;
+            onContext(this::dispatch);
+        }
+        return this;
+    }
+
+    public String getBucket() {
+        return bucket;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    // Items sent whose outcomes have not been handed on yet
+    public int getInFlight() {
+        return (int) (started - delivered);
+    }
+
+    // Totals so far
+    public long getSucceeded() {
+        return succeeded;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    private void dispatch() {
+        if (finished) {
+            return;
+        }
+        deliver();
+        boolean wasFull = writeQueueFull();
+        while (started - delivered < window && !pending.isEmpty()) {
+            send(pending.poll());
+        }
+        if (wasFull && !writeQueueFull() && drainHandler != null) {
+            drainHandler.handle(null);
+        }
+        if (lastQueued && pending.isEmpty() && started == delivered && !finished) {
+            finished = true;
+            Result result = new Result(succeeded, failed, bytes,
+                                       startTime == 0 ? 0 : (System.nanoTime() - startTime) / 1000000);
+            if (endHandler != null) {
+                endHandler.handle(null);
+            }
+            if (completionHandler != null) {
+                completionHandler.handle(Future.succeededFuture(result));
+            }
+        }
+    }
+
+    private void send(T item) {
+        if (startTime == 0) {
+            startTime = System.nanoTime();
+        }
+        Slot slot = new Slot();
+        if (ordered) {
+            sent.add(slot);
+        }
+        operation.start(client, bucket, item, started++, outcome -> onContext(() -> {
+            // A response can fail after its body has been read
+            if (slot.outcome != null) {
+                return;
+            }
+            slot.outcome = outcome;
+            if (outcome.succeeded()) {
+                succeeded++;
+                bytes += outcome.getBytes();
+            } else {
+                failed++;
+            }
+            if (!ordered) {
+                ready.add(outcome);
+            }
+            while (!sent.isEmpty() && sent.peek().outcome != null) {
+                ready.add(sent.poll().outcome);
+            }
+            dispatch();
+        }));
+    }
+
+    private void deliver() {
+        if (delivering) {
+            return;
+        }
+        delivering = true;
+        try {
+            while (!paused && !ready.isEmpty()) {
+                Outcome outcome = ready.poll();
+                delivered++;
+                if (handler != null) {
+                    handler.handle(outcome);
+                }
+            }
+        } finally {
+            delivering = false;
+        }
+    }
+
+    private void onContext(Runnable action) {
+        if (Vertx.currentContext() == context) {
+            action.run();
+        } else {
+            context.runOnContext(event -> action.run());
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.perceptus.supers3t;
+
+import io.vertx.core.buffer.Buffer;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.zip.Checksum;
+
+/**
+ * MD5 and CRC32C over Buffers as they go by, without copying them out of
+ * Netty first. CRC32C is the JDK's own (java.util.zip.CRC32C, which the JIT
+ * turns into the CPU's CRC instructions) when running on Java 9 or later,
+ * and a table-driven fallback on Java 8.
+ */
+final class S3Checksums {
+    static final String CRC32C_HEADER = "x-amz-checksum-crc32c";
+    // "x-amz-checksum-crc32c:" and eight base64 characters
+    static final int CRC32C_TRAILER_LENGTH = CRC32C_HEADER.length() + 1 + 8;
+
+    // Java 9+: new CRC32C() and Checksum.update(ByteBuffer); null on Java 8
+    private static final MethodHandle NEW_CRC32C;
+    private static final MethodHandle UPDATE_BUFFER;
+
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        MethodHandle newCrc32c = null;
+        MethodHandle updateBuffer = null;
+        try {
+            Class<?> crc32c = Class.forName("java.util.zip.CRC32C");
+            newCrc32c = lookup.findConstructor(crc32c, MethodType.methodType(void.class))
+                              .asType(MethodType.methodType(Checksum.class));
+            updateBuffer = lookup.findVirtual(Checksum.class, "update",
+                                              MethodType.methodType(void.class, ByteBuffer.class));
+        } catch (ReflectiveOperationException e) {
+            // Java 8
+        }
+        NEW_CRC32C = newCrc32c;
+        UPDATE_BUFFER = updateBuffer;
+    }
+
+    private S3Checksums() {
+    }
+
+    static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 unavailable", e);
+        }
+    }
+
+    static Checksum crc32c() {
+        if (NEW_CRC32C != null) {
+            try {
+                return (Checksum) NEW_CRC32C.invokeExact();
+            } catch (Throwable e) {
+                throw new IllegalStateException("CRC32C unavailable", e);
+            }
+        }
+        return new Crc32c();
+    }
+
+    static void update(MessageDigest digest, Buffer data) {
+        for (ByteBuffer nio : data.getByteBuf().nioBuffers()) {
+            digest.update(nio);
+        }
+    }
+
+    static void update(Checksum checksum, Buffer data) {
+        for (ByteBuffer nio : data.getByteBuf().nioBuffers()) {
+            if (nio.hasArray()) {
+                checksum.update(nio.array(), nio.arrayOffset() + nio.position(), nio.remaining());
+            } else if (UPDATE_BUFFER != null) {
+                try {
+                    UPDATE_BUFFER.invokeExact(checksum, nio);
+                } catch (Throwable e) {
+                    throw new IllegalStateException("Checksum update failed", e);
+                }
+            } else {
+                byte[] scratch = new byte[Math.min(nio.remaining(), 8192)];
+                while (nio.hasRemaining()) {
+                    int n = Math.min(scratch.length, nio.remaining());
+                    nio.get(scratch, 0, n);
+                    checksum.update(scratch, 0, n);
+                }
+            }
+        }
+    }
+
+    // Base64 of the digest, as in Content-MD5
+    static String base64(MessageDigest digest) {
+        return Base64.getEncoder().encodeToString(digest.digest());
+    }
+
+    // Base64 of the checksum's four big-endian bytes, as in x-amz-checksum-crc32c
+    static String base64(Checksum checksum) {
+        long value = checksum.getValue();
+        byte[] bytes = { (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value };
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+
+    static String base64Md5(Buffer data) {
+        MessageDigest digest = md5();
+        update(digest, data);
+        return base64(digest);
+    }
+
+    /**
+     * CRC32C (Castagnoli) a byte at a time, for JDKs without their own.
+     */
+    static final class Crc32c implements Checksum {
+        private static final int[] TABLE = new int[256];
+
+        static {
+            for (int n = 0; n < 256; n++) {
+                int c = n;
+                for (int k = 0; k < 8; k++) {
+                    c = (c & 1) != 0 ? (c >>> 1) ^ 0x82F63B78 : c >>> 1;
+                }
+                TABLE[n] = c;
+            }
+        }
+
+        private int crc = 0xFFFFFFFF;
+
+        @Override public void update(int b) {
+            crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xFF];
+        }
+
+        @Override public void update(byte[] b, int off, int len) {
+            int c = crc;
+            for (int i = off; i < off + len; i++) {
+                c = (c >>> 8) ^ TABLE[(c ^ b[i]) & 0xFF];
+            }
+            crc = c;
+        }
+
+        @Override public long getValue() {
+            return ~crc & 0xFFFFFFFFL;
+        }
+
+        @Override public void reset() {
+            crc = 0xFFFFFFFF;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.perceptus.supers3t;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.function.Supplier;
+
+/**
+ * Frames a body as aws-chunked with a signature per chunk
+ * (STREAMING-AWS4-HMAC-SHA256-PAYLOAD). Each chunk's signature chains off the
+ * previous one, starting from the request's seed signature.
+ * http://docs.aws.amazon.com/AmazonS3/latest/API/sigv4-streaming.html
+ *
+ * At most one chunk of data is held; full chunks are framed without copying
+ * the payload and handed to the output as they fill.
+ *
+ * With a trailer (STREAMING-AWS4-HMAC-SHA256-PAYLOAD-TRAILER), a checksum
+ * header worked out as the payload went by follows the last chunk, signed
+ * in turn.
+ */
+final class S3ChunkedPayloadEncoder {
+    static final String STREAMING_PAYLOAD = "STREAMING-AWS4-HMAC-SHA256-PAYLOAD";
+    static final String STREAMING_PAYLOAD_TRAILER = "STREAMING-AWS4-HMAC-SHA256-PAYLOAD-TRAILER";
+    // S3 rejects chunks (other than the last) under 8KB
+    static final int MIN_CHUNK_SIZE = 8 * 1024;
+    static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    private static final String CHUNK_ALGORITHM = "AWS4-HMAC-SHA256-PAYLOAD";
+    private static final String TRAILER_ALGORITHM = "AWS4-HMAC-SHA256-TRAILER";
+    private static final String TRAILER_SIGNATURE = "x-amz-trailer-signature:";
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final int SIGNATURE_LENGTH = 64;
+
+    private final Handler<Buffer> output;
+    private final int chunkSize;
+    // "name:value" once the payload is done, or null for no trailer
+    private final Supplier<String> trailer;
+    private final String amzDate;
+    private final String scope;
+    private final MessageDigest sha256;
+    private final Mac mac;
+    private final StringBuilder toSign = new StringBuilder(256);
+
+    private String previousSignature;
+    private Buffer pending;
+    private boolean ended;
+
+    S3ChunkedPayloadEncoder(S3V4Signer.SigningKey key,
+                            String amzDate,
+                            String seedSignature,
+                            int chunkSize,
+                            Supplier<String> trailer,
+                            Handler<Buffer> output) {
+        this.output = output;
+        this.chunkSize = chunkSize;
+        this.trailer = trailer;
+        this.amzDate = amzDate;
+        this.scope = key.scope;
+        this.previousSignature = seedSignature;
+        try {
+            this.sha256 = MessageDigest.getInstance("SHA-256");
+            this.mac = Mac.getInstance("HmacSHA256");
+            this.mac.init(new SecretKeySpec(key.key, "HmacSHA256"));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Failed to initialize chunk signing", e);
+        }
+    }
+
+    // Content-Length of the framed body for a given payload length
+    static long encodedLength(long decodedLength, int chunkSize) {
+        return encodedLength(decodedLength, chunkSize, -1);
+    }
+
+    // ...with a trailer line ("name:value") of this length, -1 for none
+    static long encodedLength(long decodedLength, int chunkSize, int trailerLength) {
+        long fullChunks = decodedLength / chunkSize;
+        int lastChunk = (int) (decodedLength % chunkSize);
+        long length = fullChunks * framedLength(chunkSize);
+        if (lastChunk > 0) {
+            length += framedLength(lastChunk);
+        }
+        if (trailerLength < 0) {
+            return length + framedLength(0);
+        }
+        // The last chunk header, then the trailer, its signature and a blank line
+        return length + framedLength(0) - CRLF.length
+               + trailerLength + CRLF.length
+               + TRAILER_SIGNATURE.length() + SIGNATURE_LENGTH + CRLF.length
+               + CRLF.length;
+    }
+
+    private static long framedLength(int size) {
+        return Integer.toHexString(size).length() + ";chunk-signature=".length() + SIGNATURE_LENGTH
+               + CRLF.length + size + CRLF.length;
+    }
+
+    void write(Buffer data) {
+        if (ended) {
+            throw new IllegalStateException("Payload already ended");
+        }
+        int offset = 0;
+        if (pending != null) {
+            int n = Math.min(chunkSize - pending.length(), data.length());
+            pending.appendBuffer(data, 0, n);
+            offset = n;
+            if (pending.length() < chunkSize) {
+                return;
+            }
+            emit(pending);
+            pending = null;
+        }
+        // Whole chunks go out as slices of the caller's buffer
+        while (data.length() - offset >= chunkSize) {
+            emit(data.slice(offset, offset + chunkSize));
+            offset += chunkSize;
+        }
+        if (offset < data.length()) {
+            pending = Buffer.buffer(chunkSize);
+            pending.appendBuffer(data, offset, data.length() - offset);
+        }
+    }
+
+    void end() {
+        if (ended) {
+            return;
+        }
+        ended = true;
+        if (pending != null && pending.length() > 0) {
+            emit(pending);
+        }
+        pending = null;
+        if (trailer == null) {
+            // The zero-length chunk terminates the payload
+            emit(Buffer.buffer());
+            return;
+        }
+        String signature = sign(Buffer.buffer());
+        String line = trailer.get();
+        String trailerSignature = signTrailer(signature, line);
+        output.handle(Buffer.buffer("0;chunk-signature=" + signature + "\r\n"
+                                    + line + "\r\n"
+                                    + TRAILER_SIGNATURE + trailerSignature + "\r\n"
+                                    + "\r\n", "US-ASCII"));
+    }
+
+    private String signTrailer(String previousSignature, String line) {
+        // The trailer is hashed with a bare newline, however it is sent
+        String trailerHash = S3V4Signer.hex(sha256.digest((line + "\n").getBytes(StandardCharsets.US_ASCII)));
+        toSign.setLength(0);
+        toSign.append(TRAILER_ALGORITHM).append('\n')
+              .append(amzDate).append('\n')
+              .append(scope).append('\n')
+              .append(previousSignature).append('\n')
+              .append(trailerHash);
+        return S3V4Signer.hex(mac.doFinal(toSign.toString().getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private void emit(Buffer chunk) {
+        String signature = sign(chunk);
+        previousSignature = signature;
+        byte[] header = (Integer.toHexString(chunk.length()) + ";chunk-signature=" + signature + "\r\n")
+                .getBytes(StandardCharsets.US_ASCII);
+        ByteBuf framed = Unpooled.wrappedBuffer(Unpooled.wrappedBuffer(header),
+                                                chunk.getByteBuf(),
+                                                Unpooled.wrappedBuffer(CRLF));
+        output.handle(Buffer.buffer(framed));
+    }
+
+    private String sign(Buffer chunk) {
+        for (ByteBuffer nio : chunk.getByteBuf().nioBuffers()) {
+            sha256.update(nio);
+        }
+        String chunkHash = S3V4Signer.hex(sha256.digest());
+
+        toSign.setLength(0);
+        toSign.append(CHUNK_ALGORITHM).append('\n')
+              .append(amzDate).append('\n')
+              .append(scope).append('\n')
+              .append(previousSignature).append('\n')
+              .append(S3V4Signer.EMPTY_PAYLOAD_HASH).append('\n')
+              .append(chunkHash);
+        return S3V4Signer.hex(mac.doFinal(toSign.toString().getBytes(StandardCharsets.US_ASCII)));
+    }
+}
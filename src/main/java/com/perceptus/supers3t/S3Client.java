@@ -1,18 +1,35 @@
 package com.perceptus.supers3t;
 
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
 import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
 import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.AsyncFile;
+import io.vertx.core.file.OpenOptions;
 import io.vertx.core.http.HttpClient;
-import io.vertx.core.http.HttpClientOptions;
 import io.vertx.core.http.HttpClientRequest;
 import io.vertx.core.http.HttpClientResponse;
 import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpMethod;
 import io.vertx.core.http.HttpServerFileUpload;
+import io.vertx.core.impl.Closeable;
+import io.vertx.core.impl.ContextImpl;
 import io.vertx.core.streams.Pump;
+import io.vertx.core.streams.ReadStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class S3Client {
     public static final String DEFAULT_ENDPOINT = "s3-us-west-1.amazonaws.com";
     private static final Logger logger = LoggerFactory.getLogger(S3Client.class);
@@ -23,39 +40,265 @@ public class S3Client {
     private final String awsSecretKey;
     private final String awsSessionToken;
 
+    private final S3ClientOptions options;
+    private S3Signer signer;
+
+    private final Vertx vertx;
     private final HttpClient client;
+    // With context affinity, one HttpClient per event-loop context, each
+    // dropped again by a hook when its context closes
+    private final ConcurrentHashMap<Context, HttpClient> contextClients = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Context, Closeable> contextHooks = new ConcurrentHashMap<>();
+
+    // Object cache for getCached; null (the default) for none
+    private volatile S3ObjectCache cache;
+
+    // Adaptive cap on requests in flight; null (the default) for none
+    private volatile S3ConcurrencyLimiter limiter;
+
+    // Request metrics; null (the default) records nothing
+    private volatile S3Metrics metrics;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    // Requests sent while the pool was fully busy, oldest first
+    private final ConcurrentLinkedQueue<S3RequestMetrics> poolWaiters = new ConcurrentLinkedQueue<>();
+
+    // Recent GET latencies for the hedge delay
+    private static final int HEDGE_MIN_SAMPLES = 20;
+    private static final int HEDGE_WINDOW = 10000;
+    private final S3Histogram getLatency = new S3Histogram();
+
+    // GETs in flight, for coalescing
+    private final S3SingleFlight singleFlight = new S3SingleFlight(this);
+
+    // Shared by the constructors that don't take a Vertx
+    private static Vertx sharedVertx;
 
     public S3Client() {
-        this(null, null);
+        this((String) null, (String) null);
     }
 
     public S3Client(String accessKey, String secretKey) {
-        this(Vertx.vertx(), accessKey, secretKey, null, DEFAULT_ENDPOINT);
+        this(sharedVertx(), accessKey, secretKey, null, DEFAULT_ENDPOINT);
     }
 
     public S3Client(String accessKey, String secretKey, String sessionToken, String endpoint) {
-        this(Vertx.vertx(), accessKey, secretKey, sessionToken, endpoint);
+        this(sharedVertx(), accessKey, secretKey, sessionToken, endpoint);
     }
 
 
     public S3Client(Vertx vertx, String accessKey, String secretKey, String sessionToken, String endpoint) {
-        awsAccessKey = accessKey;
-        awsSecretKey = secretKey;
-        awsSessionToken = sessionToken;
+        this(vertx, new S3ClientOptions().setCredentials(accessKey, secretKey, sessionToken)
+                                         .setEndpoint(endpoint));
+    }
 
-        this.client = vertx.createHttpClient(new HttpClientOptions().setDefaultHost(endpoint));
+    public S3Client(S3ClientOptions options) {
+        this(sharedVertx(), options);
+    }
+
+    public S3Client(Vertx vertx, S3ClientOptions options) {
+        this.options = new S3ClientOptions(options);
+        awsAccessKey = options.getAwsAccessKey();
+        awsSecretKey = options.getAwsSecretKey();
+        awsSessionToken = options.getAwsSessionToken();
+
+        if (options.isSignatureV4()) {
+            signer = new S3V4Signer(awsAccessKey,
+                                    awsSecretKey,
+                                    awsSessionToken,
+                                    options.getRegion(),
+                                    options.getHostHeader());
+        } else {
+            signer = new S3V2Signer(awsAccessKey, awsSecretKey, awsSessionToken);
+        }
+
+        this.vertx = vertx;
+        this.client = vertx.createHttpClient(this.options.toHttpClientOptions());
 
     }
 
     // Direct call (async)
     // -----------
 
+    // The calls below retry per the options' retry policy, re-signing each
+    // attempt; the overloads without an exception handler log failures.
+
     // GET (bucket, key) -> handler(Data)
     public void get(String bucket,
                     String key,
                     Handler<HttpClientResponse> handler) {
-        S3ClientRequest request = createGetRequest(bucket, key, handler);
-        request.end();
+        get(bucket, key, handler, failure -> logFailure("GET", bucket, key, failure));
+    }
+
+    public void get(String bucket,
+                    String key,
+                    Handler<HttpClientResponse> handler,
+                    Handler<Throwable> exceptionHandler) {
+        get(bucket, key, null, handler, exceptionHandler);
+    }
+
+    // GET (bucket, key, range) -> handler(Response)
+    // range is a Range header value, e.g. "bytes=0-1023"; null for it all.
+    // With coalescing on, joins any GET of the same range still in flight.
+    public void get(String bucket,
+                    String key,
+                    String range,
+                    Handler<HttpClientResponse> handler,
+                    Handler<Throwable> exceptionHandler) {
+        if (options.isCoalescing()) {
+            singleFlight.get(bucket, key, range, handler, exceptionHandler);
+        } else {
+            getObject(bucket, key, range, handler, exceptionHandler);
+        }
+    }
+
+    // The GET itself, never coalesced
+    void getObject(String bucket,
+                   String key,
+                   String range,
+                   Handler<HttpClientResponse> handler,
+                   Handler<Throwable> exceptionHandler) {
+        S3RetryingRequest request = new S3RetryingRequest(this, HttpMethod.GET, bucket, key);
+        if (range != null) {
+            request.prepare(attempt -> attempt.putHeader("Range", range));
+        }
+        request.hedge(options.isHedging()).send(handler, exceptionHandler);
+    }
+
+    // HEAD (bucket, key) -> handler(Response)
+    public void head(String bucket,
+                     String key,
+                     Handler<HttpClientResponse> handler) {
+        head(bucket, key, handler, failure -> logFailure("HEAD", bucket, key, failure));
+    }
+
+    public void head(String bucket,
+                     String key,
+                     Handler<HttpClientResponse> handler,
+                     Handler<Throwable> exceptionHandler) {
+        new S3RetryingRequest(this, HttpMethod.HEAD, bucket, key).send(handler, exceptionHandler);
+    }
+
+    // GET (bucket, key) through the object cache -> handler(body)
+    // Cached bodies are revalidated with If-None-Match (unless still within
+    // the cache's max age), so a 304 costs only headers. Without a cache this
+    // is a plain GET.
+    public void getCached(String bucket,
+                          String key,
+                          Handler<AsyncResult<Buffer>> handler) {
+        S3ObjectCache cache = this.cache;
+        S3ObjectCache.Cached cached = cache == null ? null : cache.lookup(bucket, key);
+        if (cached != null && cached.isFresh()) {
+            Buffer data = cache.data(bucket, key, cached.getEtag());
+            if (data != null) {
+                cache.recordHit();
+                handler.handle(Future.succeededFuture(data));
+                return;
+            }
+            cached = null;
+        }
+        String etag = cached == null ? null : cached.getEtag();
+        // A write from here on may land before the body is read
+        long since = cache == null ? 0 : cache.generation();
+
+        S3RetryingRequest request = new S3RetryingRequest(this, HttpMethod.GET, bucket, key);
+        if (etag != null) {
+            request.prepare(attempt -> attempt.putHeader("If-None-Match", etag));
+        }
+        request.hedge(options.isHedging()).send(response -> {
+            int status = response.statusCode();
+            if (status == 304 && etag != null) {
+                response.endHandler(event -> {
+                    Buffer data = cache.data(bucket, key, etag);
+                    if (data == null) {
+                        // Evicted in the meantime, fetch it in full
+                        getCached(bucket, key, handler);
+                        return;
+                    }
+                    cache.revalidated(bucket, key, etag);
+                    cache.recordHit();
+                    cache.recordRevalidation();
+                    handler.handle(Future.succeededFuture(data));
+                });
+                return;
+            }
+            response.exceptionHandler(e -> handler.handle(Future.failedFuture(e)));
+            response.bodyHandler(body -> {
+                if (status == 200) {
+                    if (cache != null) {
+                        cache.recordMiss();
+                        cache.put(bucket, key, response.headers().get("ETag"), body, since);
+                    }
+                    handler.handle(Future.succeededFuture(body));
+                } else {
+                    if (cache != null && status == 404) {
+                        cache.invalidate(bucket, key);
+                    }
+                    handler.handle(Future.failedFuture(S3Exception.fromResponse(status, body)));
+                }
+            });
+        }, e -> handler.handle(Future.failedFuture(e)));
+    }
+
+    // GET (bucket, key) in parallel byte ranges -> file, handler(length)
+    public void getRanged(String bucket,
+                          String key,
+                          String path,
+                          Handler<AsyncResult<Long>> handler) {
+        OpenOptions options = new OpenOptions().setWrite(true).setCreate(true).setTruncateExisting(true);
+        vertx.fileSystem().open(path, options, opened -> {
+            if (opened.failed()) {
+                handler.handle(Future.failedFuture(opened.cause()));
+                return;
+            }
+            AsyncFile file = opened.result();
+            createRangedDownload(bucket, key).start(file, result -> file.close(closed -> {
+                if (result.succeeded() && closed.failed()) {
+                    handler.handle(Future.failedFuture(closed.cause()));
+                } else {
+                    handler.handle(result);
+                }
+            }));
+        });
+    }
+
+    // GET (bucket, key) in parallel byte ranges -> sink, handler(length)
+    public void getRanged(String bucket,
+                          String key,
+                          S3RangedDownload.Sink sink,
+                          int partSize,
+                          int concurrency,
+                          Handler<AsyncResult<Long>> handler) {
+        createRangedDownload(bucket, key)
+                .setPartSize(partSize)
+                .setConcurrency(concurrency)
+                .start(sink, handler);
+    }
+
+    // create ranged download -> download Object (which you can configure)
+    public S3RangedDownload createRangedDownload(String bucket, String key) {
+        return new S3RangedDownload(this, bucket, key);
+    }
+
+    // HEAD (bucket, key) -> handler(random-access channel over the object)
+    // Reads block, so read the channel off the event loop.
+    public void openChannel(String bucket,
+                            String key,
+                            Handler<AsyncResult<S3SeekableChannel>> handler) {
+        head(bucket, key, response -> {
+            if (response.statusCode() != 200) {
+                handler.handle(Future.failedFuture(S3Exception.fromResponse(response.statusCode(), null)));
+                return;
+            }
+            String contentLength = response.headers().get("Content-Length");
+            if (contentLength == null) {
+                handler.handle(Future.failedFuture(
+                        new S3Exception("HEAD " + bucket + "/" + key + " returned no Content-Length")));
+                return;
+            }
+            handler.handle(Future.succeededFuture(new S3SeekableChannel(this, bucket, key,
+                                                                        Long.parseLong(contentLength),
+                                                                        response.headers().get("ETag"))));
+        }, e -> handler.handle(Future.failedFuture(e)));
     }
 
     // PUT (bucket, key, data) -> handler(Response)
@@ -63,32 +306,64 @@ public class S3Client {
                     String key,
                     Buffer data,
                     Handler<HttpClientResponse> handler) {
-        S3ClientRequest request = createPutRequest(bucket, key, handler);
-        request.end(data);
+        put(bucket, key, data, handler, failure -> logFailure("PUT", bucket, key, failure));
+    }
+
+    public void put(String bucket,
+                    String key,
+                    Buffer data,
+                    Handler<HttpClientResponse> handler,
+                    Handler<Throwable> exceptionHandler) {
+        S3RetryingRequest request = new S3RetryingRequest(this, HttpMethod.PUT, bucket, key);
+        S3Codec codec = options.getCodec();
+        if (codec != null) {
+            // Compressed once, not on every attempt
+            request.body(S3Codecs.encode(codec, data))
+                   .prepare(attempt -> attempt.putHeader("Content-Encoding", codec.getEncoding()));
+        } else {
+            request.body(data);
+        }
+        request.send(handler, exceptionHandler);
+    }
+
+    // PUT (bucket, key, local file) -> handler(Response)
+    // Streams the file from disk as the connection takes it, rather than
+    // reading it into memory first; each attempt reads it again.
+    public void putFile(String bucket,
+                        String key,
+                        String path,
+                        Handler<HttpClientResponse> handler) {
+        putFile(bucket, key, path, handler, failure -> logFailure("PUT", bucket, key, failure));
+    }
+
+    public void putFile(String bucket,
+                        String key,
+                        String path,
+                        Handler<HttpClientResponse> handler,
+                        Handler<Throwable> exceptionHandler) {
+        vertx.fileSystem().props(path, props -> {
+            if (props.failed()) {
+                exceptionHandler.handle(props.cause());
+                return;
+            }
+            new S3RetryingRequest(this, HttpMethod.PUT, bucket, key).file(path, props.result().size())
+                                                                     .send(handler, exceptionHandler);
+        });
     }
 
     /*
-     * uploads the file contents to S3.
+     * uploads the file contents to S3 as a multipart upload, so only a few
+     * parts are held at a time -> handler(ETag of the assembled object)
      */
     public void put(String bucket,
                     String key,
                     HttpServerFileUpload upload,
-                    Handler<HttpClientResponse> handler) {
+                    Handler<AsyncResult<String>> handler) {
         if (logger.isDebugEnabled()) {
             logger.debug("S3 request bucket: {}, key: {}", bucket, key);
         }
 
-        S3ClientRequest request = createPutRequest(bucket, key, handler);
-        Buffer buffer = Buffer.buffer();
-
-        upload.endHandler(event -> {
-            request.putHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(buffer.length()));
-            request.end(buffer);
-        });
-
-        upload.handler(data -> {
-            buffer.appendBuffer(data);
-        });
+        putMultipart(bucket, key, upload, handler);
     }
 
     /*
@@ -104,7 +379,8 @@ public class S3Client {
         }
 
         S3ClientRequest request = createPutRequest(bucket, key, handler);
-        request.putHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(fileSize));
+        // Signed chunk by chunk under V4, plain Content-Length otherwise
+        request.setStreamingPayload(fileSize);
         Buffer buffer = Buffer.buffer();
 
         upload.endHandler(event -> {
@@ -119,10 +395,563 @@ public class S3Client {
     public void delete(String bucket,
                        String key,
                        Handler<HttpClientResponse> handler) {
-        S3ClientRequest request = createDeleteRequest(bucket, key, handler);
+        delete(bucket, key, handler, failure -> logFailure("DELETE", bucket, key, failure));
+    }
+
+    public void delete(String bucket,
+                       String key,
+                       Handler<HttpClientResponse> handler,
+                       Handler<Throwable> exceptionHandler) {
+        new S3RetryingRequest(this, HttpMethod.DELETE, bucket, key).send(handler, exceptionHandler);
+    }
+
+    private static void logFailure(String method, String bucket, String key, Throwable failure) {
+        logger.warn("S3 {} {}/{} failed: {}", new Object[] { method, bucket, key, failure.toString() });
+    }
+
+    // Batch delete
+    // ------------
+
+    // Deletes keys with DeleteObjects, up to 1000 per request and several
+    // requests at once, pulling keys from the iterator only as batches free
+    // up -> errorHandler(each key not deleted), handler(totals)
+    public void deleteAll(String bucket,
+                          Iterable<String> keys,
+                          Handler<S3BatchDelete.KeyError> errorHandler,
+                          Handler<AsyncResult<S3BatchDelete.Result>> handler) {
+        S3BatchDelete delete = createBatchDelete(bucket);
+        delete.errorHandler(errorHandler).completionHandler(handler);
+        Iterator<String> iterator = keys.iterator();
+        delete.getContext().runOnContext(new Handler<Void>() {
+            @Override public void handle(Void event) {
+                // Unset while writing, so draining can't re-enter the loop
+                delete.drainHandler(null);
+                while (iterator.hasNext() && !delete.writeQueueFull()) {
+                    delete.write(iterator.next());
+                }
+                if (iterator.hasNext()) {
+                    delete.drainHandler(this);
+                } else {
+                    delete.end();
+                }
+            }
+        });
+    }
+
+    // As above, with keys pumped from a stream
+    public void deleteAll(String bucket,
+                          ReadStream<String> keys,
+                          Handler<S3BatchDelete.KeyError> errorHandler,
+                          Handler<AsyncResult<S3BatchDelete.Result>> handler) {
+        S3BatchDelete delete = createBatchDelete(bucket);
+        delete.errorHandler(errorHandler).completionHandler(handler);
+        keys.exceptionHandler(delete::abort);
+        keys.endHandler(event -> delete.end());
+        Pump.pump(keys, delete).start();
+    }
+
+    // create batch delete -> WriteStream of keys (which you can pump into)
+    public S3BatchDelete createBatchDelete(String bucket) {
+        return new S3BatchDelete(this, bucket);
+    }
+
+    public S3BatchDelete createBatchDelete(String bucket, int batchSize, int maxConcurrentBatches) {
+        return new S3BatchDelete(this, bucket, batchSize, maxConcurrentBatches);
+    }
+
+    // POST ?delete with up to 1000 keys -> handler(keys S3 did not delete)
+    public void deleteObjects(String bucket,
+                              List<String> keys,
+                              Handler<AsyncResult<List<S3BatchDelete.KeyError>>> handler) {
+        if (keys.size() > S3BatchDelete.MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("At most " + S3BatchDelete.MAX_BATCH_SIZE + " keys per request");
+        }
+        // Quiet: the response lists only the keys that failed
+        StringBuilder xml = new StringBuilder(64 + keys.size() * 64);
+        xml.append("<Delete><Quiet>true</Quiet>");
+        for (String key : keys) {
+            xml.append("<Object><Key>").append(S3Xml.escape(key)).append("</Key></Object>");
+        }
+        xml.append("</Delete>");
+        Buffer body = Buffer.buffer(xml.toString(), "UTF-8");
+
+        S3ObjectCache cache = this.cache;
+        if (cache != null) {
+            for (String key : keys) {
+                cache.invalidate(bucket, key);
+            }
+        }
+
+        // S3 insists on a Content-MD5 for this one; V2 signs it from here
+        String md5 = S3Checksums.base64Md5(body);
+        S3RetryingRequest request = new S3RetryingRequest(this, HttpMethod.POST, bucket, "").subResource("delete")
+                                                                                          .body(body);
+        request.prepare(attempt -> {
+            attempt.setContentMd5(md5);
+            attempt.putHeader("Content-MD5", md5);
+            attempt.putHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(body.length()));
+        });
+        request.send(response -> {
+            response.bodyHandler(result -> {
+                String text = result.toString("UTF-8");
+                if (response.statusCode() != 200 || !text.contains("<DeleteResult")) {
+                    handler.handle(Future.failedFuture(S3Exception.fromResponse(response.statusCode(), result)));
+                    return;
+                }
+                List<S3BatchDelete.KeyError> errors = new ArrayList<>();
+                for (String error : S3Xml.elements(text, "Error")) {
+                    errors.add(new S3BatchDelete.KeyError(S3Xml.elementText(error, "Key"),
+                                                          S3Xml.elementText(error, "Code"),
+                                                          S3Xml.elementText(error, "Message")));
+                }
+                handler.handle(Future.succeededFuture(errors));
+            });
+        }, e -> handler.handle(Future.failedFuture(e)));
+    }
+
+    // Bulk transfer
+    // -------------
+
+    // PUTs every entry, up to a window of requests at once, pulling entries
+    // from the iterator only as the window has room
+    // -> outcomeHandler(each entry, as it finishes), handler(totals)
+    public void putAll(String bucket,
+                       Iterable<S3BulkTransfer.Entry> entries,
+                       Handler<S3BulkTransfer.Outcome> outcomeHandler,
+                       Handler<AsyncResult<S3BulkTransfer.Result>> handler) {
+        S3BulkTransfer<S3BulkTransfer.Entry> transfer = createBulkPut(bucket);
+        transfer.handler(outcomeHandler).completionHandler(handler);
+        transfer.writeAll(entries.iterator());
+    }
+
+    // As above, with entries pumped from a stream
+    public void putAll(String bucket,
+                       ReadStream<S3BulkTransfer.Entry> entries,
+                       Handler<S3BulkTransfer.Outcome> outcomeHandler,
+                       Handler<AsyncResult<S3BulkTransfer.Result>> handler) {
+        S3BulkTransfer<S3BulkTransfer.Entry> transfer = createBulkPut(bucket);
+        transfer.handler(outcomeHandler).completionHandler(handler);
+        pumpAll(entries, transfer);
+    }
+
+    // GETs every key, up to a window of requests at once
+    // -> outcomeHandler(each key with its body, as it finishes), handler(totals)
+    public void getAll(String bucket,
+                       Iterable<String> keys,
+                       Handler<S3BulkTransfer.Outcome> outcomeHandler,
+                       Handler<AsyncResult<S3BulkTransfer.Result>> handler) {
+        S3BulkTransfer<String> transfer = createBulkGet(bucket);
+        transfer.handler(outcomeHandler).completionHandler(handler);
+        transfer.writeAll(keys.iterator());
+    }
+
+    // As above, with keys pumped from a stream
+    public void getAll(String bucket,
+                       ReadStream<String> keys,
+                       Handler<S3BulkTransfer.Outcome> outcomeHandler,
+                       Handler<AsyncResult<S3BulkTransfer.Result>> handler) {
+        S3BulkTransfer<String> transfer = createBulkGet(bucket);
+        transfer.handler(outcomeHandler).completionHandler(handler);
+        pumpAll(keys, transfer);
+    }
+
+    private static <T> void pumpAll(ReadStream<T> items, S3BulkTransfer<T> transfer) {
+        items.exceptionHandler(transfer::abort);
+        items.endHandler(event -> transfer.end());
+        Pump.pump(items, transfer).start();
+    }
+
+    // create bulk put/get -> WriteStream of entries/keys in, ReadStream of
+    // outcomes out (which you can configure, e.g. to keep them in order)
+    public S3BulkTransfer<S3BulkTransfer.Entry> createBulkPut(String bucket) {
+        return createBulkPut(bucket, S3BulkTransfer.DEFAULT_WINDOW);
+    }
+
+    public S3BulkTransfer<S3BulkTransfer.Entry> createBulkPut(String bucket, int window) {
+        return new S3BulkTransfer<>(this, bucket, S3BulkTransfer.PUT, window);
+    }
+
+    public S3BulkTransfer<String> createBulkGet(String bucket) {
+        return createBulkGet(bucket, S3BulkTransfer.DEFAULT_WINDOW);
+    }
+
+    public S3BulkTransfer<String> createBulkGet(String bucket, int window) {
+        return new S3BulkTransfer<>(this, bucket, S3BulkTransfer.GET, window);
+    }
+
+    // Listing
+    // -------
+
+    // ListObjectsV2 -> stream of objects (and, with a delimiter, common
+    // prefixes), fetched a page at a time as the stream is read. prefix and
+    // delimiter may be null.
+    public S3ListStream list(String bucket, String prefix, String delimiter) {
+        return new S3ListStream(this, bucket, prefix, delimiter);
+    }
+
+    // GET ?list-type=2 for one page -> handler(raw XML page)
+    void listPage(String bucket,
+                  String prefix,
+                  String delimiter,
+                  String continuationToken,
+                  int maxKeys,
+                  Handler<AsyncResult<Buffer>> handler) {
+        StringBuilder query = new StringBuilder(64);
+        query.append("list-type=2&max-keys=").append(maxKeys);
+        appendQueryParam(query, "prefix", prefix);
+        appendQueryParam(query, "delimiter", delimiter);
+        appendQueryParam(query, "continuation-token", continuationToken);
+        new S3RetryingRequest(this, HttpMethod.GET, bucket, "").query(query.toString()).send(response -> {
+            response.bodyHandler(body -> {
+                if (response.statusCode() == 200) {
+                    handler.handle(Future.succeededFuture(body));
+                } else {
+                    handler.handle(Future.failedFuture(S3Exception.fromResponse(response.statusCode(), body)));
+                }
+            });
+        }, e -> handler.handle(Future.failedFuture(e)));
+    }
+
+    private static void appendQueryParam(StringBuilder query, String name, String value) {
+        if (value != null && !value.isEmpty()) {
+            query.append('&').append(name).append('=');
+            S3V4Signer.uriEncode(query, value, true);
+        }
+    }
+
+    // Multipart upload
+    // ----------------
+
+    // Streams source into a multipart upload, cutting it into parts and
+    // sending several at once -> handler(ETag of the assembled object)
+    public void putMultipart(String bucket,
+                             String key,
+                             ReadStream<Buffer> source,
+                             Handler<AsyncResult<String>> handler) {
+        putMultipart(bucket,
+                     key,
+                     source,
+                     S3MultipartUpload.DEFAULT_PART_SIZE,
+                     S3MultipartUpload.DEFAULT_MAX_CONCURRENT_PARTS,
+                     handler);
+    }
+
+    public void putMultipart(String bucket,
+                             String key,
+                             ReadStream<Buffer> source,
+                             int partSize,
+                             int maxConcurrentParts,
+                             Handler<AsyncResult<String>> handler) {
+        S3MultipartUpload upload = createMultipartUpload(bucket, key, partSize, maxConcurrentParts);
+        upload.completionHandler(handler);
+        source.exceptionHandler(upload::abort);
+        source.endHandler(event -> upload.end());
+        Pump.pump(source, upload).start();
+    }
+
+    // Uploads a local file as a multipart upload
+    public void putMultipart(String bucket,
+                             String key,
+                             String path,
+                             int partSize,
+                             int maxConcurrentParts,
+                             Handler<AsyncResult<String>> handler) {
+        vertx.fileSystem().open(path, new OpenOptions().setRead(true).setWrite(false), opened -> {
+            if (opened.failed()) {
+                handler.handle(Future.failedFuture(opened.cause()));
+                return;
+            }
+            putMultipart(bucket, key, opened.result(), partSize, maxConcurrentParts, result -> {
+                opened.result().close();
+                handler.handle(result);
+            });
+        });
+    }
+
+    // create multipart upload -> WriteStream (which you can pump into)
+    public S3MultipartUpload createMultipartUpload(String bucket, String key) {
+        return new S3MultipartUpload(this, bucket, key).setCodec(options.getCodec());
+    }
+
+    public S3MultipartUpload createMultipartUpload(String bucket,
+                                                   String key,
+                                                   int partSize,
+                                                   int maxConcurrentParts) {
+        return new S3MultipartUpload(this, bucket, key, partSize, maxConcurrentParts).setCodec(options.getCodec());
+    }
+
+    // POST ?uploads -> handler(uploadId)
+    public void initiateMultipartUpload(String bucket,
+                                        String key,
+                                        Handler<AsyncResult<String>> handler) {
+        initiateMultipartUpload(bucket, key, null, handler);
+    }
+
+    // As above, with headers (Content-Type, x-amz-meta-*...) for the object
+    public void initiateMultipartUpload(String bucket,
+                                        String key,
+                                        Map<String, String> headers,
+                                        Handler<AsyncResult<String>> handler) {
+        S3ClientRequest request = createRequest(HttpMethod.POST, bucket, key, "uploads", response -> {
+            response.bodyHandler(body -> {
+                String uploadId = S3Xml.elementText(body, "UploadId");
+                if (response.statusCode() != 200 || uploadId == null) {
+                    handler.handle(Future.failedFuture(S3Exception.fromResponse(response.statusCode(), body)));
+                } else {
+                    handler.handle(Future.succeededFuture(uploadId));
+                }
+            });
+        });
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                request.putHeader(header.getKey(), header.getValue());
+                if (header.getKey().equalsIgnoreCase("Content-Type")) {
+                    // Signed from here, not the headers
+                    request.setContentType(header.getValue());
+                }
+            }
+        }
+        request.exceptionHandler(e -> handler.handle(Future.failedFuture(e)));
+        request.end();
+    }
+
+    // PUT ?partNumber&uploadId -> handler(ETag of the part)
+    public void uploadPart(String bucket,
+                           String key,
+                           String uploadId,
+                           int partNumber,
+                           Buffer data,
+                           Handler<AsyncResult<String>> handler) {
+        S3RetryingRequest request = new S3RetryingRequest(this, HttpMethod.PUT, bucket, key);
+        request.subResource("partNumber=" + partNumber + "&uploadId=" + uploadId).body(data).send(response -> {
+            String etag = response.headers().get("ETag");
+            if (response.statusCode() == 200 && etag != null) {
+                // The body is empty, but it must still be consumed
+                response.endHandler(event -> handler.handle(Future.succeededFuture(etag)));
+            } else {
+                response.bodyHandler(body -> handler.handle(Future.failedFuture(
+                        S3Exception.fromResponse(response.statusCode(), body))));
+            }
+        }, e -> handler.handle(Future.failedFuture(e)));
+    }
+
+    // PUT ?partNumber&uploadId copying bytes first..last of another object
+    // -> handler(ETag of the part)
+    // sourceEtag, unless null, must still match the source.
+    public void uploadPartCopy(String bucket,
+                               String key,
+                               String uploadId,
+                               int partNumber,
+                               String sourceBucket,
+                               String sourceKey,
+                               String sourceEtag,
+                               long first,
+                               long last,
+                               Handler<AsyncResult<String>> handler) {
+        String source = copySource(sourceBucket, sourceKey);
+        S3RetryingRequest request = new S3RetryingRequest(this, HttpMethod.PUT, bucket, key);
+        request.subResource("partNumber=" + partNumber + "&uploadId=" + uploadId).prepare(attempt -> {
+            attempt.putHeader("x-amz-copy-source", source);
+            if (last >= first) {
+                attempt.putHeader("x-amz-copy-source-range", "bytes=" + first + "-" + last);
+            }
+            if (sourceEtag != null) {
+                attempt.putHeader("x-amz-copy-source-if-match", sourceEtag);
+            }
+            // Nothing is uploaded, so there is nothing to checksum
+            attempt.setComputeChecksums(false, false);
+        });
+        request.send(response -> response.bodyHandler(body -> {
+            // S3 may answer 200 and still report an error in the body
+            String etag = S3Xml.elementText(body, "ETag");
+            if (response.statusCode() != 200 || S3Xml.isError(body) || etag == null) {
+                handler.handle(Future.failedFuture(S3Exception.fromResponse(response.statusCode(), body)));
+            } else {
+                handler.handle(Future.succeededFuture(etag));
+            }
+        }), e -> handler.handle(Future.failedFuture(e)));
+    }
+
+    // POST ?uploadId with the part list -> handler(ETag of the object)
+    // etags holds the ETag of part n at index n - 1
+    public void completeMultipartUpload(String bucket,
+                                        String key,
+                                        String uploadId,
+                                        List<String> etags,
+                                        Handler<AsyncResult<String>> handler) {
+        StringBuilder xml = new StringBuilder(64 + etags.size() * 96);
+        xml.append("<CompleteMultipartUpload>");
+        for (int i = 0; i < etags.size(); i++) {
+            xml.append("<Part><PartNumber>")
+               .append(i + 1)
+               .append("</PartNumber><ETag>")
+               .append(S3Xml.escape(etags.get(i)))
+               .append("</ETag></Part>");
+        }
+        xml.append("</CompleteMultipartUpload>");
+
+        S3ClientRequest request = createRequest(HttpMethod.POST, bucket, key, "uploadId=" + uploadId, response -> {
+            response.bodyHandler(body -> {
+                // S3 may answer 200 and still report an error in the body
+                String etag = S3Xml.elementText(body, "ETag");
+                if (response.statusCode() != 200 || S3Xml.isError(body)) {
+                    handler.handle(Future.failedFuture(S3Exception.fromResponse(response.statusCode(), body)));
+                } else {
+                    handler.handle(Future.succeededFuture(etag));
+                }
+            });
+        });
+        request.exceptionHandler(e -> handler.handle(Future.failedFuture(e)));
+        request.end(Buffer.buffer(xml.toString()));
+    }
+
+    // DELETE ?uploadId -> handler()
+    public void abortMultipartUpload(String bucket,
+                                     String key,
+                                     String uploadId,
+                                     Handler<AsyncResult<Void>> handler) {
+        S3ClientRequest request = createRequest(HttpMethod.DELETE, bucket, key, "uploadId=" + uploadId, response -> {
+            response.bodyHandler(body -> {
+                if (response.statusCode() == 204 || response.statusCode() == 200) {
+                    handler.handle(Future.succeededFuture());
+                } else {
+                    handler.handle(Future.failedFuture(S3Exception.fromResponse(response.statusCode(), body)));
+                }
+            });
+        });
+        request.exceptionHandler(e -> handler.handle(Future.failedFuture(e)));
         request.end();
     }
 
+    // Server-side copy
+    // ----------------
+
+    // Copies (sourceBucket, sourceKey) to (bucket, key) within S3, without
+    // the bytes passing through us -> handler(ETag of the copy)
+    // The source is HEADed first: up to the options' multipart copy
+    // threshold it is one CopyObject, above it a multipart copy of parallel
+    // ranges. Either way the copy fails if the source changes meanwhile.
+    public void copy(String sourceBucket,
+                     String sourceKey,
+                     String bucket,
+                     String key,
+                     Handler<AsyncResult<String>> handler) {
+        head(sourceBucket, sourceKey, response -> {
+            if (response.statusCode() != 200) {
+                handler.handle(Future.failedFuture(S3Exception.fromResponse(response.statusCode(), null)));
+                return;
+            }
+            String contentLength = response.headers().get("Content-Length");
+            if (contentLength == null) {
+                handler.handle(Future.failedFuture(
+                        new S3Exception("HEAD " + sourceBucket + "/" + sourceKey + " returned no Content-Length")));
+                return;
+            }
+            long length = Long.parseLong(contentLength);
+            String etag = response.headers().get("ETag");
+            if (length <= options.getMultipartCopyThreshold()) {
+                copyObject(sourceBucket, sourceKey, etag, bucket, key, handler);
+            } else {
+                createMultipartCopy(sourceBucket, sourceKey, bucket, key)
+                        .start(length, etag, S3MultipartCopy.copiedHeaders(response.headers()), handler);
+            }
+        }, e -> handler.handle(Future.failedFuture(e)));
+    }
+
+    // PUT with x-amz-copy-source -> handler(ETag of the copy)
+    // One request, for sources up to 5GB; S3 copies the metadata along.
+    public void copyObject(String sourceBucket,
+                           String sourceKey,
+                           String bucket,
+                           String key,
+                           Handler<AsyncResult<String>> handler) {
+        copyObject(sourceBucket, sourceKey, null, bucket, key, handler);
+    }
+
+    void copyObject(String sourceBucket,
+                    String sourceKey,
+                    String sourceEtag,
+                    String bucket,
+                    String key,
+                    Handler<AsyncResult<String>> handler) {
+        String source = copySource(sourceBucket, sourceKey);
+        S3RetryingRequest request = new S3RetryingRequest(this, HttpMethod.PUT, bucket, key);
+        request.prepare(attempt -> {
+            attempt.putHeader("x-amz-copy-source", source);
+            if (sourceEtag != null) {
+                attempt.putHeader("x-amz-copy-source-if-match", sourceEtag);
+            }
+            attempt.setComputeChecksums(false, false);
+        });
+        request.send(response -> response.bodyHandler(body -> {
+            // As with completing a multipart upload, a 200 may still be an error
+            String etag = S3Xml.elementText(body, "ETag");
+            if (response.statusCode() != 200 || S3Xml.isError(body) || etag == null) {
+                handler.handle(Future.failedFuture(S3Exception.fromResponse(response.statusCode(), body)));
+            } else {
+                handler.handle(Future.succeededFuture(etag));
+            }
+        }), e -> handler.handle(Future.failedFuture(e)));
+    }
+
+    // create multipart copy -> copy Object (which you can configure)
+    public S3MultipartCopy createMultipartCopy(String sourceBucket, String sourceKey, String bucket, String key) {
+        return new S3MultipartCopy(this, sourceBucket, sourceKey, bucket, key);
+    }
+
+    // x-amz-copy-source for an object: its bucket and URI-encoded key
+    private static String copySource(String bucket, String key) {
+        StringBuilder source = new StringBuilder(bucket.length() + key.length() + 16);
+        source.append('/').append(bucket).append('/');
+        S3V4Signer.uriEncode(source, key, false);
+        return source.toString();
+    }
+
+    // Packs of small objects
+    // ----------------------
+
+    // create pack writer -> pack Object (which you can add entries to)
+    public S3PackWriter createPackWriter(String bucket, String key) {
+        return createPackWriter(bucket,
+                                key,
+                                S3MultipartUpload.DEFAULT_PART_SIZE,
+                                S3MultipartUpload.DEFAULT_MAX_CONCURRENT_PARTS);
+    }
+
+    public S3PackWriter createPackWriter(String bucket, String key, int partSize, int maxConcurrentParts) {
+        return new S3PackWriter(this, bucket, key, partSize, maxConcurrentParts);
+    }
+
+    // GET (bucket, key.idx) -> handler(reader of the pack's entries)
+    // The index is read through the object cache, if one is set, so opening
+    // a pack again costs a revalidation rather than the whole index.
+    public void openPack(String bucket,
+                         String key,
+                         Handler<AsyncResult<S3PackReader>> handler) {
+        getCached(bucket, key + S3PackWriter.INDEX_SUFFIX, result -> {
+            if (result.failed()) {
+                handler.handle(Future.failedFuture(result.cause()));
+                return;
+            }
+            S3PackIndex index;
+            try {
+                index = S3PackIndex.decode(result.result());
+            } catch (S3Exception e) {
+                handler.handle(Future.failedFuture(e));
+                return;
+            }
+            handler.handle(Future.succeededFuture(new S3PackReader(this, bucket, key, index)));
+        });
+    }
+
+    // Write-behind
+    // ------------
+
+    // create write-behind spool in directory -> spool Object (start it, then put)
+    public S3WriteBehind createWriteBehind(String directory) {
+        return new S3WriteBehind(this, directory);
+    }
+
     // Create requests which can be customized
     // ---------------------------------------
 
@@ -131,15 +960,8 @@ public class S3Client {
     createPutRequest(String bucket,
                      String key,
                      Handler<HttpClientResponse> handler) {
-        HttpClientRequest httpRequest = client.put("/" + bucket + "/" + key,
-                handler);
-        return new S3ClientRequest("PUT",
-                bucket,
-                key,
-                httpRequest,
-                awsAccessKey,
-                awsSecretKey,
-                awsSessionToken);
+        HttpClientRequest httpRequest = httpClient().put("/" + bucket + "/" + key);
+        return newRequest("PUT", bucket, key, null, httpRequest, handler);
     }
 
     // create GET -> request Object
@@ -147,15 +969,17 @@ public class S3Client {
     createGetRequest(String bucket,
                      String key,
                      Handler<HttpClientResponse> handler) {
-        HttpClientRequest httpRequest = client.get("/" + bucket + "/" + key,
-                handler);
-        return new S3ClientRequest("GET",
-                bucket,
-                key,
-                httpRequest,
-                awsAccessKey,
-                awsSecretKey,
-                awsSessionToken);
+        HttpClientRequest httpRequest = httpClient().get("/" + bucket + "/" + key);
+        return newRequest("GET", bucket, key, null, httpRequest, handler);
+    }
+
+    // create HEAD -> request Object
+    public S3ClientRequest
+    createHeadRequest(String bucket,
+                      String key,
+                      Handler<HttpClientResponse> handler) {
+        HttpClientRequest httpRequest = httpClient().head("/" + bucket + "/" + key);
+        return newRequest("HEAD", bucket, key, null, httpRequest, handler);
     }
 
     // create DELETE -> request Object
@@ -163,19 +987,389 @@ public class S3Client {
     createDeleteRequest(String bucket,
                         String key,
                         Handler<HttpClientResponse> handler) {
-        HttpClientRequest httpRequest = client.delete("/" + bucket + "/" + key,
-                handler);
-        return new S3ClientRequest("DELETE",
+        HttpClientRequest httpRequest = httpClient().delete("/" + bucket + "/" + key);
+        return newRequest("DELETE", bucket, key, null, httpRequest, handler);
+    }
+
+    // create any method, optionally against a sub-resource -> request Object
+    public S3ClientRequest
+    createRequest(HttpMethod method,
+                  String bucket,
+                  String key,
+                  String subResource,
+                  Handler<HttpClientResponse> handler) {
+        return createRequest(method, bucket, key, subResource, null, handler);
+    }
+
+    // as above, with other query parameters (percent-encoded, e.g.
+    // "prefix=logs%2F&max-keys=100") that are not sub-resources
+    public S3ClientRequest
+    createRequest(HttpMethod method,
+                  String bucket,
+                  String key,
+                  String subResource,
+                  String query,
+                  Handler<HttpClientResponse> handler) {
+        String uri = "/" + bucket + "/" + key;
+        if (subResource != null) {
+            uri += "?" + subResource;
+        }
+        if (query != null && !query.isEmpty()) {
+            uri += (subResource != null ? "&" : "?") + query;
+        }
+        HttpClientRequest httpRequest = httpClient().request(method, uri);
+        S3ClientRequest request = newRequest(method.name(), bucket, key, subResource, httpRequest, handler);
+        request.setQuery(query);
+        return request;
+    }
+
+    private S3ClientRequest newRequest(String method,
+                                       String bucket,
+                                       String key,
+                                       String subResource,
+                                       HttpClientRequest httpRequest,
+                                       Handler<HttpClientResponse> handler) {
+        S3ClientRequest request = new S3ClientRequest(method,
                 bucket,
                 key,
                 httpRequest,
                 awsAccessKey,
                 awsSecretKey,
                 awsSessionToken);
+        request.setSigner(signer);
+        request.setSubResource(subResource);
+        if (!"GET".equals(method) && !"HEAD".equals(method)) {
+            // About to change (or remove) the object, and again once it has:
+            // a GET answered in between may have read it as it was, and
+            // GETs from then on mustn't join one sent before
+            invalidate(bucket, key);
+            Handler<HttpClientResponse> written = handler;
+            if (written != null) {
+                handler = response -> {
+                    invalidate(bucket, key);
+                    written.handle(response);
+                };
+            }
+        }
+        String operation = operationName(method, key, subResource);
+        if (options.isContentMd5() && ("PutObject".equals(operation) || "UploadPart".equals(operation))) {
+            // CRC32C only where S3 takes it without being told at upload creation
+            request.setComputeChecksums(true, options.isChecksumCrc32c() && "PutObject".equals(operation));
+        } else if (options.isChecksumCrc32c() && "PutObject".equals(operation)) {
+            request.setComputeChecksums(false, true);
+        }
+        if (options.isVerifyChecksums() && "GetObject".equals(operation)) {
+            request.setVerifyChecksums(true);
+        }
+        if (options.isDecompress() && "GetObject".equals(operation)) {
+            request.setDecompress(true);
+        }
+        if (metrics != null) {
+            request.trackMetrics(this, new S3RequestMetrics(operation, bucket));
+        }
+        S3ConcurrencyLimiter limiter = this.limiter;
+        if (limiter != null) {
+            request.limitConcurrency(limiter.limit(bucket, key));
+        }
+        request.handler(handler);
+        return request;
+    }
+
+    private void invalidate(String bucket, String key) {
+        S3ObjectCache cache = this.cache;
+        if (cache != null) {
+            cache.invalidate(bucket, key);
+        }
+        singleFlight.forget(bucket, key);
+    }
+
+    // S3 API name of a request, for metrics
+    static String operationName(String method, String key, String subResource) {
+        if (subResource != null) {
+            if (subResource.startsWith("uploads")) {
+                return "CreateMultipartUpload";
+            }
+            if (subResource.contains("partNumber=")) {
+                return "UploadPart";
+            }
+            if (subResource.startsWith("uploadId=")) {
+                return "POST".equals(method) ? "CompleteMultipartUpload" : "AbortMultipartUpload";
+            }
+            if (subResource.equals("delete")) {
+                return "DeleteObjects";
+            }
+        }
+        boolean bucketLevel = key == null || key.isEmpty();
+        switch (method) {
+            case "GET":
+                return bucketLevel ? "ListObjectsV2" : "GetObject";
+            case "HEAD":
+                return bucketLevel ? "HeadBucket" : "HeadObject";
+            case "PUT":
+                return "PutObject";
+            case "DELETE":
+                return "DeleteObject";
+            default:
+                return method + (bucketLevel ? "Bucket" : "Object");
+        }
+    }
+
+    // Signing
+    // -------
+
+    // Switch to AWS Signature Version 4, with the region implied by the endpoint
+    public void useSignatureV4() {
+        useSignatureV4(options.getRegion());
+    }
+
+    public void useSignatureV4(String region) {
+        setSigner(new S3V4Signer(awsAccessKey, awsSecretKey, awsSessionToken, region, options.getHostHeader()));
+    }
+
+    // Signer applied to every request this client creates
+    public void setSigner(S3Signer signer) {
+        this.signer = signer;
+    }
+
+    public S3Signer getSigner() {
+        return signer;
+    }
+
+    // method (bucket, key) -> URL anyone can use for expiresIn seconds
+    public String presign(HttpMethod method, String bucket, String key, long expiresIn) {
+        return createPresigner().setExpiry(expiresIn).presign(method, bucket, key);
+    }
+
+    // create presigner -> URL builder (which you can configure, then share)
+    public S3Presigner createPresigner() {
+        return new S3Presigner(this);
+    }
+
+    // Caching
+    // -------
+
+    // Cache for getCached; writes and deletes through this client evict
+    // what they touch. null (the default) to go without.
+    public void setCache(S3ObjectCache cache) {
+        this.cache = cache;
+    }
+
+    public S3ObjectCache getCache() {
+        return cache;
+    }
+
+    // Concurrency
+    // -----------
+
+    // Holds back requests created from now on whenever their bucket (or
+    // prefix) has as many in flight as the limiter allows, adapting the
+    // limit to SlowDown responses; null (the default) to send everything
+    // at once
+    public void setConcurrencyLimiter(S3ConcurrencyLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    public S3ConcurrencyLimiter getConcurrencyLimiter() {
+        return limiter;
+    }
+
+    // Metrics
+    // -------
+
+    // Records every request this client creates from now on; null to stop
+    public void setMetrics(S3Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public S3Metrics getMetrics() {
+        return metrics;
+    }
+
+    // Requests sent and not yet answered (only counted while metrics are on)
+    public int getInFlightRequests() {
+        return inFlight.get();
+    }
+
+    void requestSent(S3RequestMetrics request) {
+        request.setInFlight(true);
+        int capacity = options.getMaxPoolSize() * Math.max(1, contextClients.size());
+        if (inFlight.incrementAndGet() > capacity) {
+            // Every connection is busy; Vert.x queues it until one is freed
+            request.setWaiting(true);
+            poolWaiters.add(request);
+        }
+    }
+
+    void requestFinished(S3RequestMetrics request) {
+        if (request.isInFlight()) {
+            request.setInFlight(false);
+            inFlight.decrementAndGet();
+            if (request.isWaiting()) {
+                // Failed before it ever got a connection
+                request.setWaiting(false);
+                poolWaiters.remove(request);
+            } else {
+                // Its connection goes to the longest waiter
+                S3RequestMetrics next = poolWaiters.poll();
+                if (next != null) {
+                    next.setWaiting(false);
+                    next.setPoolWait(System.nanoTime() - next.getSentAt());
+                }
+            }
+        }
+        S3Metrics sink = metrics;
+        if (sink != null) {
+            sink.requestCompleted(request);
+        }
+    }
+
+    void requestRetried(String operation, String bucket) {
+        S3Metrics sink = metrics;
+        if (sink != null) {
+            sink.requestRetried(operation, bucket);
+        }
+    }
+
+    void requestHedged(String operation, String bucket) {
+        S3Metrics sink = metrics;
+        if (sink != null) {
+            sink.requestHedged(operation, bucket);
+        }
+    }
+
+    void requestCoalesced(String operation, String bucket) {
+        S3Metrics sink = metrics;
+        if (sink != null) {
+            sink.requestCoalesced(operation, bucket);
+        }
+    }
+
+    // Hedging
+    // -------
+
+    // Time to response headers of recent GETs, for the hedge delay
+    void recordGetLatency(long nanos) {
+        if (getLatency.getCount() >= HEDGE_WINDOW) {
+            // Start over now and then, so the estimate follows S3's mood
+            getLatency.reset();
+        }
+        getLatency.record(nanos);
+    }
+
+    // Milliseconds a GET may take before it is hedged: the recent p95, but
+    // never under the configured delay
+    long hedgeDelay() {
+        long floor = Math.max(1, options.getHedgeDelay());
+        if (getLatency.getCount() < HEDGE_MIN_SAMPLES) {
+            return floor;
+        }
+        return Math.max(floor, TimeUnit.NANOSECONDS.toMillis(getLatency.getValueAtPercentile(95)));
+    }
+
+    // Connection pool
+    // ---------------
+
+    // Opens up to n pooled connections ahead of time (each a cheap HEAD /),
+    // so the first burst of real requests doesn't pay for TCP/TLS setup.
+    // Keep n at or below the max pool size. Vert.x 3.0 closes a connection
+    // when its response ends unless a request is waiting for it, so the
+    // burst must be sent while the warm-up is under way, not once it's done.
+    public void warmUp(int connections, Handler<AsyncResult<Void>> handler) {
+        if (connections <= 0) {
+            handler.handle(Future.succeededFuture());
+            return;
+        }
+        int[] remaining = { connections };
+        Throwable[] failure = { null };
+        Handler<Throwable> done = error -> {
+            if (error != null && failure[0] == null) {
+                failure[0] = error;
+            }
+            if (--remaining[0] == 0) {
+                handler.handle(failure[0] == null
+                               ? Future.succeededFuture()
+                               : Future.failedFuture(failure[0]));
+            }
+        };
+        for (int i = 0; i < connections; i++) {
+            // Any response will do, it just has to go over a fresh connection
+            HttpClientRequest request = httpClient().head("/", response -> response.endHandler(event -> done.handle(null)));
+            request.exceptionHandler(done::handle);
+            request.end();
+        }
+    }
+
+    // The Vertx instance used by clients created without one; created on
+    // first use and shared by all of them, so each client doesn't bring up
+    // its own event loops and thread pools
+    public static synchronized Vertx sharedVertx() {
+        if (sharedVertx == null) {
+            sharedVertx = Vertx.vertx();
+        }
+        return sharedVertx;
+    }
+
+    // The HttpClient for the calling context. With context affinity each
+    // event loop gets its own client (and pool), created on that loop, so
+    // verticles never cross threads or contend on one pool. Callers outside
+    // any context of this client's Vertx use the default client.
+    HttpClient httpClient() {
+        if (!options.isContextAffinity()) {
+            return client;
+        }
+        Context context = Vertx.currentContext();
+        if (context == null || context.owner() != vertx || !context.isEventLoopContext()) {
+            return client;
+        }
+        HttpClient contextClient = contextClients.get(context);
+        if (contextClient == null) {
+            contextClient = vertx.createHttpClient(options.toHttpClientOptions());
+            HttpClient existing = contextClients.putIfAbsent(context, contextClient);
+            if (existing != null) {
+                contextClient.close();
+                contextClient = existing;
+            } else {
+                forgetOnClose(context, contextClient);
+            }
+        }
+        return contextClient;
+    }
+
+    // Undeploying a verticle closes its context, and Vert.x closes the
+    // HttpClient created on it; the entry goes too, so the map doesn't keep
+    // every context it has seen (or count their pools), nor hand out a
+    // closed client
+    private void forgetOnClose(Context context, HttpClient contextClient) {
+        if (!(context instanceof ContextImpl)) {
+            return;
+        }
+        Closeable hook = done -> {
+            contextHooks.remove(context);
+            contextClients.remove(context, contextClient);
+            done.handle(Future.succeededFuture());
+        };
+        contextHooks.put(context, hook);
+        ((ContextImpl) context).addCloseHook(hook);
+    }
+
+    public S3ClientOptions getOptions() {
+        return options;
+    }
+
+    public Vertx getVertx() {
+        return vertx;
     }
 
     public void close() {
         this.client.close();
+        for (HttpClient contextClient : contextClients.values()) {
+            contextClient.close();
+        }
+        contextClients.clear();
+        for (Map.Entry<Context, Closeable> hook : contextHooks.entrySet()) {
+            ((ContextImpl) hook.getKey()).removeCloseHook(hook.getValue());
+        }
+        contextHooks.clear();
     }
 
 }
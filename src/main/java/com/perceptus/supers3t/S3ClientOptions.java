@@ -0,0 +1,484 @@
+package com.perceptus.supers3t;
+
+import io.vertx.core.http.HttpClientOptions;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Settings for an {@link S3Client}: where it connects, how it signs, how it
+ * retries, and how its connection pool behaves. Setters are fluent:
+ *
+ * <pre>
+ * new S3ClientOptions().setCredentials(accessKey, secretKey)
+ *                      .setSsl(true)
+ *                      .setMaxPoolSize(64)
+ *                      .setIdleTimeout(30);
+ * </pre>
+ *
+ * Anything not covered here can be tuned on the underlying options returned
+ * by {@link #getHttpClientOptions()}.
+ */
+public class S3ClientOptions {
+    public static final int DEFAULT_PORT = 80;
+    public static final int DEFAULT_SSL_PORT = 443;
+    public static final long DEFAULT_REQUEST_TIMEOUT = 30000; // ms
+    public static final long DEFAULT_HEDGE_DELAY = 50; // ms
+    public static final long DEFAULT_COALESCING_MAX_SIZE = 8 * 1024 * 1024;
+
+    private String endpoint = S3Client.DEFAULT_ENDPOINT;
+    private int port = -1;
+
+    private String awsAccessKey;
+    private String awsSecretKey;
+    private String awsSessionToken;
+
+    private boolean signatureV4;
+    private String region;
+
+    private boolean contextAffinity;
+
+    private S3RetryPolicy retryPolicy = new S3RetryPolicy();
+    private final Map<String, S3RetryPolicy> operationRetryPolicies = new HashMap<>();
+    private long requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+    private boolean hedging;
+    private long hedgeDelay = DEFAULT_HEDGE_DELAY;
+    private boolean coalescing;
+    private long coalescingMaxSize = DEFAULT_COALESCING_MAX_SIZE;
+
+    private boolean contentMd5;
+    private boolean checksumCrc32c;
+    private boolean verifyChecksums;
+
+    private long multipartCopyThreshold = S3MultipartCopy.MAX_COPY_SIZE;
+
+    private S3Codec codec;
+    private boolean decompress;
+
+    private final HttpClientOptions httpClientOptions;
+
+    public S3ClientOptions() {
+        this.httpClientOptions = new HttpClientOptions();
+    }
+
+    public S3ClientOptions(S3ClientOptions other) {
+        this.endpoint = other.endpoint;
+        this.port = other.port;
+        this.awsAccessKey = other.awsAccessKey;
+        this.awsSecretKey = other.awsSecretKey;
+        this.awsSessionToken = other.awsSessionToken;
+        this.signatureV4 = other.signatureV4;
+        this.region = other.region;
+        this.contextAffinity = other.contextAffinity;
+        this.retryPolicy = other.retryPolicy;
+        this.operationRetryPolicies.putAll(other.operationRetryPolicies);
+        this.requestTimeout = other.requestTimeout;
+        this.hedging = other.hedging;
+        this.hedgeDelay = other.hedgeDelay;
+        this.coalescing = other.coalescing;
+        this.coalescingMaxSize = other.coalescingMaxSize;
+        this.contentMd5 = other.contentMd5;
+        this.checksumCrc32c = other.checksumCrc32c;
+        this.verifyChecksums = other.verifyChecksums;
+        this.multipartCopyThreshold = other.multipartCopyThreshold;
+        this.codec = other.codec;
+        this.decompress = other.decompress;
+        this.httpClientOptions = new HttpClientOptions(other.httpClientOptions);
+    }
+
+    // Endpoint & credentials
+    // ----------------------
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    public S3ClientOptions setEndpoint(String endpoint) {
+        this.endpoint = endpoint;
+        return this;
+    }
+
+    // Port to connect to; 80, or 443 with SSL, unless set
+    public int getPort() {
+        if (port > 0) {
+            return port;
+        }
+        return isSsl() ? DEFAULT_SSL_PORT : DEFAULT_PORT;
+    }
+
+    public S3ClientOptions setPort(int port) {
+        this.port = port;
+        return this;
+    }
+
+    // Host header value, with the port only when it isn't the default
+    public String getHostHeader() {
+        int actualPort = getPort();
+        if ((isSsl() && actualPort == DEFAULT_SSL_PORT) || (!isSsl() && actualPort == DEFAULT_PORT)) {
+            return endpoint;
+        }
+        return endpoint + ":" + actualPort;
+    }
+
+    public S3ClientOptions setCredentials(String accessKey, String secretKey) {
+        return setCredentials(accessKey, secretKey, null);
+    }
+
+    public S3ClientOptions setCredentials(String accessKey, String secretKey, String sessionToken) {
+        this.awsAccessKey = accessKey;
+        this.awsSecretKey = secretKey;
+        this.awsSessionToken = sessionToken;
+        return this;
+    }
+
+    public String getAwsAccessKey() {
+        return awsAccessKey;
+    }
+
+    public String getAwsSecretKey() {
+        return awsSecretKey;
+    }
+
+    public String getAwsSessionToken() {
+        return awsSessionToken;
+    }
+
+    // Signing
+    // -------
+
+    public boolean isSignatureV4() {
+        return signatureV4;
+    }
+
+    public S3ClientOptions setSignatureV4(boolean signatureV4) {
+        this.signatureV4 = signatureV4;
+        return this;
+    }
+
+    // Region for V4 signing; derived from the endpoint unless set
+    public String getRegion() {
+        return region != null ? region : S3V4Signer.regionForEndpoint(endpoint);
+    }
+
+    public S3ClientOptions setRegion(String region) {
+        this.region = region;
+        return this;
+    }
+
+    // Retries & timeouts
+    // ------------------
+
+    // Policy for every operation without one of its own
+    public S3RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    public S3ClientOptions setRetryPolicy(S3RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    // Policy for one operation, by its S3 API name (GetObject, PutObject,
+    // UploadPart, DeleteObjects...); null to fall back to the default
+    public S3ClientOptions setRetryPolicy(String operation, S3RetryPolicy retryPolicy) {
+        if (retryPolicy == null) {
+            operationRetryPolicies.remove(operation);
+        } else {
+            operationRetryPolicies.put(operation, retryPolicy);
+        }
+        return this;
+    }
+
+    public S3RetryPolicy getRetryPolicy(String operation) {
+        S3RetryPolicy policy = operationRetryPolicies.get(operation);
+        return policy != null ? policy : retryPolicy;
+    }
+
+    public long getRequestTimeout() {
+        return requestTimeout;
+    }
+
+    // Milliseconds to wait for response headers before an attempt counts as
+    // failed (and is retried); 0 waits forever. It counts from when the
+    // request is ended, once its body has been handed to the connection, so
+    // time spent producing a streamed body doesn't count. Requests built
+    // with the create*Request methods are left to the caller.
+    public S3ClientOptions setRequestTimeout(long requestTimeout) {
+        this.requestTimeout = requestTimeout;
+        return this;
+    }
+
+    public boolean isHedging() {
+        return hedging;
+    }
+
+    // Send a second copy of any GET that hasn't answered within the client's
+    // recent p95 GET latency (but no sooner than the hedge delay), and keep
+    // whichever answers first. Trades a few percent more requests for a much
+    // shorter tail; the slower copy's body is read and dropped, so this
+    // suits small objects.
+    public S3ClientOptions setHedging(boolean hedging) {
+        this.hedging = hedging;
+        return this;
+    }
+
+    public long getHedgeDelay() {
+        return hedgeDelay;
+    }
+
+    // Milliseconds; the floor for the hedge delay, and the delay used until
+    // enough GETs have been seen to estimate a p95
+    public S3ClientOptions setHedgeDelay(long hedgeDelay) {
+        this.hedgeDelay = hedgeDelay;
+        return this;
+    }
+
+    public boolean isCoalescing() {
+        return coalescing;
+    }
+
+    // Have concurrent GETs of the same object (and range) share one request:
+    // a GET made while another for the same thing is still being read gets
+    // that response too, including the part of the body already received.
+    // Every caller sees the same body buffers, which must not be modified.
+    public S3ClientOptions setCoalescing(boolean coalescing) {
+        this.coalescing = coalescing;
+        return this;
+    }
+
+    public long getCoalescingMaxSize() {
+        return coalescingMaxSize;
+    }
+
+    // Largest body (by Content-Length) shared between coalesced GETs, which
+    // is held until the response ends. The first caller reads a larger one
+    // (or one of unknown length) alone, and GETs that joined it are sent
+    // again on their own.
+    public S3ClientOptions setCoalescingMaxSize(long coalescingMaxSize) {
+        this.coalescingMaxSize = coalescingMaxSize;
+        return this;
+    }
+
+    // Checksums
+    // ---------
+
+    public boolean isContentMd5() {
+        return contentMd5;
+    }
+
+    // Work out the MD5 of every object and part uploaded as it is sent, see
+    // S3ClientRequest.setComputeChecksums
+    public S3ClientOptions setContentMd5(boolean contentMd5) {
+        this.contentMd5 = contentMd5;
+        return this;
+    }
+
+    public boolean isChecksumCrc32c() {
+        return checksumCrc32c;
+    }
+
+    // Also send a CRC32C (x-amz-checksum-crc32c) with every single-part upload
+    public S3ClientOptions setChecksumCrc32c(boolean checksumCrc32c) {
+        this.checksumCrc32c = checksumCrc32c;
+        return this;
+    }
+
+    public boolean isVerifyChecksums() {
+        return verifyChecksums;
+    }
+
+    // Check GET bodies against S3's checksum (or MD5 ETag) as they arrive
+    public S3ClientOptions setVerifyChecksums(boolean verifyChecksums) {
+        this.verifyChecksums = verifyChecksums;
+        return this;
+    }
+
+    // Compression
+    // -----------
+
+    public S3Codec getCodec() {
+        return codec;
+    }
+
+    // Compress what put and multipart uploads send with this codec (e.g.
+    // S3Codecs.GZIP), recorded as the object's Content-Encoding; null (the
+    // default) to store bodies as given. putFile sends files as they are.
+    public S3ClientOptions setCodec(S3Codec codec) {
+        this.codec = codec;
+        return this;
+    }
+
+    public boolean isDecompress() {
+        return decompress;
+    }
+
+    // Decode GET bodies stored with a Content-Encoding S3Codecs knows
+    public S3ClientOptions setDecompress(boolean decompress) {
+        this.decompress = decompress;
+        return this;
+    }
+
+    // Copies
+    // ------
+
+    public long getMultipartCopyThreshold() {
+        return multipartCopyThreshold;
+    }
+
+    // S3Client.copy copies sources larger than this as a multipart copy, see
+    // S3MultipartCopy; no more than the 5GB a single CopyObject allows
+    public S3ClientOptions setMultipartCopyThreshold(long multipartCopyThreshold) {
+        if (multipartCopyThreshold < 0 || multipartCopyThreshold > S3MultipartCopy.MAX_COPY_SIZE) {
+            throw new IllegalArgumentException("Multipart copy threshold must be between 0 and "
+                                               + S3MultipartCopy.MAX_COPY_SIZE + " bytes");
+        }
+        this.multipartCopyThreshold = multipartCopyThreshold;
+        return this;
+    }
+
+    // Connection pool
+    // ---------------
+
+    public int getMaxPoolSize() {
+        return httpClientOptions.getMaxPoolSize();
+    }
+
+    // Connections kept per host; requests beyond this queue for a connection
+    public S3ClientOptions setMaxPoolSize(int maxPoolSize) {
+        httpClientOptions.setMaxPoolSize(maxPoolSize);
+        return this;
+    }
+
+    public boolean isContextAffinity() {
+        return contextAffinity;
+    }
+
+    // Keep one HttpClient (and pool of maxPoolSize) per event-loop context,
+    // and route each call to the one owned by the calling context
+    public S3ClientOptions setContextAffinity(boolean contextAffinity) {
+        this.contextAffinity = contextAffinity;
+        return this;
+    }
+
+    public boolean isKeepAlive() {
+        return httpClientOptions.isKeepAlive();
+    }
+
+    public S3ClientOptions setKeepAlive(boolean keepAlive) {
+        httpClientOptions.setKeepAlive(keepAlive);
+        return this;
+    }
+
+    public boolean isPipelining() {
+        return httpClientOptions.isPipelining();
+    }
+
+    public S3ClientOptions setPipelining(boolean pipelining) {
+        httpClientOptions.setPipelining(pipelining);
+        return this;
+    }
+
+    public int getIdleTimeout() {
+        return httpClientOptions.getIdleTimeout();
+    }
+
+    // Pooled connections idle for this many seconds are closed (0 = never)
+    public S3ClientOptions setIdleTimeout(int idleTimeout) {
+        httpClientOptions.setIdleTimeout(idleTimeout);
+        return this;
+    }
+
+    public int getConnectTimeout() {
+        return httpClientOptions.getConnectTimeout();
+    }
+
+    // Milliseconds
+    public S3ClientOptions setConnectTimeout(int connectTimeout) {
+        httpClientOptions.setConnectTimeout(connectTimeout);
+        return this;
+    }
+
+    // TCP
+    // ---
+
+    public boolean isTcpNoDelay() {
+        return httpClientOptions.isTcpNoDelay();
+    }
+
+    public S3ClientOptions setTcpNoDelay(boolean tcpNoDelay) {
+        httpClientOptions.setTcpNoDelay(tcpNoDelay);
+        return this;
+    }
+
+    public boolean isTcpKeepAlive() {
+        return httpClientOptions.isTcpKeepAlive();
+    }
+
+    public S3ClientOptions setTcpKeepAlive(boolean tcpKeepAlive) {
+        httpClientOptions.setTcpKeepAlive(tcpKeepAlive);
+        return this;
+    }
+
+    public int getSendBufferSize() {
+        return httpClientOptions.getSendBufferSize();
+    }
+
+    public S3ClientOptions setSendBufferSize(int sendBufferSize) {
+        httpClientOptions.setSendBufferSize(sendBufferSize);
+        return this;
+    }
+
+    public int getReceiveBufferSize() {
+        return httpClientOptions.getReceiveBufferSize();
+    }
+
+    public S3ClientOptions setReceiveBufferSize(int receiveBufferSize) {
+        httpClientOptions.setReceiveBufferSize(receiveBufferSize);
+        return this;
+    }
+
+    public boolean isUsePooledBuffers() {
+        return httpClientOptions.isUsePooledBuffers();
+    }
+
+    // Use Netty's pooled allocator for connection buffers
+    public S3ClientOptions setUsePooledBuffers(boolean usePooledBuffers) {
+        httpClientOptions.setUsePooledBuffers(usePooledBuffers);
+        return this;
+    }
+
+    // SSL
+    // ---
+
+    public boolean isSsl() {
+        return httpClientOptions.isSsl();
+    }
+
+    public S3ClientOptions setSsl(boolean ssl) {
+        httpClientOptions.setSsl(ssl);
+        return this;
+    }
+
+    public boolean isTrustAll() {
+        return httpClientOptions.isTrustAll();
+    }
+
+    // Only for S3-compatible test servers with self-signed certificates
+    public S3ClientOptions setTrustAll(boolean trustAll) {
+        httpClientOptions.setTrustAll(trustAll);
+        return this;
+    }
+
+    // The Vert.x client options these settings map onto, for anything else
+    public HttpClientOptions getHttpClientOptions() {
+        return httpClientOptions;
+    }
+
+    // Options for the HttpClient of a client built from these settings
+    HttpClientOptions toHttpClientOptions() {
+        HttpClientOptions options = new HttpClientOptions(httpClientOptions);
+        options.setDefaultHost(endpoint);
+        options.setDefaultPort(getPort());
+        return options;
+    }
+}
@@ -1,27 +1,20 @@
 package com.perceptus.supers3t;
 
+import io.vertx.core.Context;
 import io.vertx.core.Handler;
 import io.vertx.core.MultiMap;
+import io.vertx.core.Vertx;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.http.HttpClientRequest;
 import io.vertx.core.http.HttpClientResponse;
 import io.vertx.core.http.HttpMethod;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.text.SimpleDateFormat;
-import java.util.Base64;
-import java.util.Date;
-import java.util.StringJoiner;
 
-public class S3ClientRequest implements HttpClientRequest {
-    private static final SimpleDateFormat dateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz");
-    private static final Logger logger = LoggerFactory.getLogger(S3ClientRequest.class);
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Checksum;
 
+public class S3ClientRequest implements HttpClientRequest {
     private final HttpClientRequest request;
 
     // These are actually set when the request is created, but we need to know
@@ -29,13 +22,63 @@ public class S3ClientRequest implements HttpClientRequest {
     private final String bucket;
     private final String key;
 
+    // Sub-resource query (e.g. "uploads", "partNumber=1&uploadId=...")
+    // which S3 expects as part of the canonicalized resource
+    private String subResource;
+    // Other (already percent-encoded) query parameters, e.g. "prefix=a%2Fb",
+    // which V2 leaves out of the signature and V4 signs along with the rest
+    private String query;
+
     // These are totally optional
     private String contentMd5;
     private String contentType;
+    // Hex SHA-256 of the body for SigV4, or null to send it unsigned
+    private String payloadHash;
     // Used for authentication(which may be optional depending on the bucket)
     private String awsAccessKey;
     private String awsSecretKey;
     private String awsSessionToken;
+    private S3Signer signer;
+    // Headers are signed once, right before anything goes on the wire
+    private boolean signed;
+
+    // Streaming (aws-chunked) payload; -1 when the body is sent as-is
+    private long streamingContentLength = -1;
+    private int streamingChunkSize = S3ChunkedPayloadEncoder.DEFAULT_CHUNK_SIZE;
+    private S3ChunkedPayloadEncoder chunkEncoder;
+
+    // Checksums of the body, worked out as it is written; null when off
+    private MessageDigest md5;
+    private Checksum crc32c;
+    // The whole body came at once, so they went out as headers
+    private boolean checksumHeaders;
+    // Check the response body against the checksum S3 sends with it
+    private boolean verifyChecksums;
+
+    // Codes the body as it is written; null to send it as given
+    private S3Codec.Transform encoder;
+    // Decode a response body whose Content-Encoding is a registered codec
+    private boolean decompress;
+
+    // Set when the client records metrics
+    private S3Client client;
+    private S3RequestMetrics metrics;
+    // Set when the client limits concurrency; the permit once granted
+    private S3ConcurrencyLimiter.Limit limit;
+    private S3ConcurrencyLimiter.Permit permit;
+    // Writes and the end, held back in order while the limit has no room;
+    // null once nothing is, or ever was, waiting. Guarded by this.
+    private List<Runnable> held;
+    private Handler<Void> drainHandler;
+    private boolean ended;
+    private boolean tracked;
+    private Handler<Throwable> exceptionHandler;
+    // Armed as the request is ended, once the limit has let it go and the
+    // body has been handed to the connection, so neither time spent queued
+    // nor time spent writing the body counts against it
+    private long timeout;
+    // Failed while still queued: the permit, once granted, goes straight back
+    private boolean failed;
 
     public S3ClientRequest(String method,
                            String bucket,
@@ -80,18 +123,112 @@ public class S3ClientRequest implements HttpClientRequest {
 
     @Override
     public HttpClientRequest handler(Handler<HttpClientResponse> handler) {
-        return request.handler(handler);
+        if (handler == null) {
+            return request.handler(null);
+        }
+        request.handler(response -> respond(response, handler));
+        return this;
+    }
+
+    private void respond(HttpClientResponse response, Handler<HttpClientResponse> handler) {
+        if (metrics != null) {
+            metrics.firstByte(response.statusCode(), System.nanoTime());
+        }
+        if (permit != null) {
+            permit.responded(response.statusCode());
+        }
+        if (md5 != null && !checksumHeaders && !etagMatches(response)) {
+            // Read it to the end all the same, giving back the connection
+            new S3ClientResponse(response, this);
+            if (exceptionHandler != null) {
+                exceptionHandler.handle(new S3Exception(response.statusCode(), "BadDigest",
+                                                        "ETag " + response.getHeader("ETag")
+                                                        + " does not match the MD5 of the body sent"));
+            }
+            return;
+        }
+        S3Codec decoder = decompress && response.statusCode() == 200
+                          ? S3Codecs.forEncoding(response.getHeader("Content-Encoding"))
+                          : null;
+        if (!tracked && !verifyChecksums && decoder == null) {
+            handler.handle(response);
+            return;
+        }
+        S3ClientResponse wrapped = new S3ClientResponse(response, this);
+        if (decoder != null) {
+            wrapped.decode(decoder.decoder());
+        }
+        if (verifyChecksums && response.statusCode() == 200) {
+            String crc = response.getHeader(S3Checksums.CRC32C_HEADER);
+            String etag = plainEtag(response);
+            if (crc != null && !isComposite(crc)) {
+                wrapped.verify(S3Checksums.crc32c(), crc);
+            } else if (etag != null) {
+                wrapped.verify(S3Checksums.md5(), etag);
+            }
+        }
+        handler.handle(wrapped);
+    }
+
+    // Single-part objects not under SSE-KMS or SSE-C have the MD5 of their
+    // body as ETag
+    private boolean etagMatches(HttpClientResponse response) {
+        int status = response.statusCode();
+        String etag = plainEtag(response);
+        if (status < 200 || status >= 300 || etag == null) {
+            return true;
+        }
+        return etag.equalsIgnoreCase(S3V4Signer.hex(md5.digest()));
     }
 
+    // The ETag without quotes when it is a plain MD5, null otherwise
+    private static String plainEtag(HttpClientResponse response) {
+        String etag = response.getHeader("ETag");
+        if (etag == null || isEncryptedEtag(response)) {
+            return null;
+        }
+        if (etag.length() == 34 && etag.charAt(0) == '"' && etag.charAt(33) == '"') {
+            etag = etag.substring(1, 33);
+        }
+        return etag.length() == 32 && etag.indexOf('-') < 0 ? etag : null;
+    }
+
+    // Under SSE-KMS (aws:kms, aws:kms:dsse) and SSE-C the ETag is no MD5
+    private static boolean isEncryptedEtag(HttpClientResponse response) {
+        String encryption = response.getHeader("x-amz-server-side-encryption");
+        return (encryption != null && encryption.startsWith("aws:kms"))
+               || response.getHeader("x-amz-server-side-encryption-customer-algorithm") != null;
+    }
+
+    // A multipart object's checksum of its parts' checksums, e.g. "...==-3",
+    // which says nothing about the body as a whole
+    private static boolean isComposite(String checksum) {
+        int dash = checksum.lastIndexOf('-');
+        return dash > 0 && dash < checksum.length() - 1;
+    }
+
+    // Full while writes are held back, so a Pump waits for the limit
+    // instead of piling the body up in memory
     @Override public boolean writeQueueFull() {
+        synchronized (this) {
+            if (held != null) {
+                return true;
+            }
+        }
         return request.writeQueueFull();
     }
 
     @Override public HttpClientRequest drainHandler(Handler<Void> handler) {
-        return request.drainHandler(handler);
+        drainHandler = handler;
+        request.drainHandler(handler);
+        return this;
     }
 
     @Override public HttpClientRequest exceptionHandler(Handler<Throwable> handler) {
+        exceptionHandler = handler;
+        if (tracked) {
+            return this;
+        }
         return request.exceptionHandler(handler);
     }
 
@@ -142,21 +279,43 @@ public class S3ClientRequest implements HttpClientRequest {
         return request.putHeader(name, values);
     }
 
+    // Counts from when the request is ended, after the last of its body
     @Override
     public HttpClientRequest setTimeout(long timeoutMs) {
-        return request.setTimeout(timeoutMs);
+        timeout = timeoutMs;
+        return this;
     }
 
     @Override public HttpClientRequest write(Buffer chunk) {
-        return request.write(chunk);
+        if (!hold(() -> writeNow(chunk))) {
+            writeNow(chunk);
+        }
+        return this;
+    }
+
+    private void writeNow(Buffer chunk) {
+        // Writing sends the head, so it must be signed by now
+        initAuthenticationHeader();
+        if (encoder != null) {
+            chunk = encoder.write(chunk);
+        }
+        if (metrics != null) {
+            metrics.addBytesSent(chunk.length());
+        }
+        updateChecksums(chunk);
+        if (chunkEncoder != null) {
+            chunkEncoder.write(chunk);
+        } else {
+            request.write(chunk);
+        }
     }
 
     @Override public HttpClientRequest write(String chunk) {
-        return request.write(chunk);
+        return write(Buffer.buffer(chunk));
     }
 
     @Override public HttpClientRequest write(String chunk, String enc) {
-        return request.write(chunk, enc);
+        return write(Buffer.buffer(chunk, enc));
     }
 
     @Override public HttpClientRequest continueHandler(Handler<Void> handler) {
@@ -164,91 +323,390 @@ public class S3ClientRequest implements HttpClientRequest {
     }
 
     @Override public HttpClientRequest sendHead() {
+        if (!hold(this::sendHeadNow)) {
+            sendHeadNow();
+        }
+        return this;
+    }
+
+    private void sendHeadNow() {
         // Generate authentication header
         initAuthenticationHeader();
         // Send the header
-        return request.sendHead();
+        request.sendHead();
     }
 
     @Override public void end(String chunk) {
-        // Generate authentication header
-        initAuthenticationHeader();
-        request.end(chunk);
+        end(Buffer.buffer(chunk));
     }
 
     @Override public void end(String chunk, String enc) {
-        // Generate authentication header
-        initAuthenticationHeader();
-        request.end(chunk, enc);
+        end(Buffer.buffer(chunk, enc));
     }
 
     @Override public void end(Buffer chunk) {
+        if (!hold(() -> endNow(chunk))) {
+            endNow(chunk);
+        }
+    }
+
+    private void endNow(Buffer chunk) {
+        ended = true;
+        if (encoder != null) {
+            // Whatever the encoder held back goes out last
+            Buffer coded = encoder.write(chunk).appendBuffer(encoder.end());
+            encoder = null;
+            endNow(coded);
+            return;
+        }
+        if (!signed) {
+            // The whole body, so S3 can check it from headers
+            checksumHeaders(chunk);
+        } else {
+            updateChecksums(chunk);
+        }
         // Generate authentication header
         initAuthenticationHeader();
-        request.end(chunk);
+        if (metrics != null) {
+            metrics.addBytesSent(chunk.length());
+        }
+        if (chunkEncoder != null) {
+            chunkEncoder.write(chunk);
+            chunkEncoder.end();
+            armTimeout();
+            request.end();
+        } else if (chunk.length() > 0 && (request.isChunked() || request.headers().contains("Content-Length"))) {
+            request.write(chunk);
+            armTimeout();
+            request.end();
+        } else {
+            // Vert.x works out Content-Length from the chunk as it ends
+            armTimeout();
+            request.end(chunk);
+        }
     }
 
     @Override public void end() {
+        if (!hold(this::endNow)) {
+            endNow();
+        }
+    }
+
+    private void endNow() {
+        if (encoder != null) {
+            endNow(Buffer.buffer());
+            return;
+        }
+        ended = true;
+        if (!signed) {
+            checksumHeaders(Buffer.buffer());
+        }
         // Generate authentication header
         initAuthenticationHeader();
+        if (chunkEncoder != null) {
+            chunkEncoder.end();
+        }
+        armTimeout();
         request.end();
     }
 
+    private void armTimeout() {
+        if (timeout > 0) {
+            request.setTimeout(timeout);
+        }
+    }
+
     protected void initAuthenticationHeader() {
+        if (signed) {
+            return;
+        }
+        signed = true;
         if (isAuthenticated()) {
             // Calculate the signature
-            // http://docs.amazonwebservices.com/AmazonS3/latest/dev/RESTAuthentication.html#ConstructingTheAuthenticationHeader
-
-            // Date should look like Thu, 17 Nov 2005 18:49:58 GMT, and must be
-            // within 15 min of S3 server time.
-            // contentMd5 and type are optional
-
-            // We can't risk letting our date get clobbered and being
-            // inconsistent
-            String xamzdate = currentDateString();
-            headers().add("X-Amz-Date", xamzdate);
-            if (!isSessionTokenBlank()) {
-                headers().add("X-Amz-Security-Token", awsSessionToken);
-            }
+            getSigner().sign(this);
+        }
+        // Otherwise not needed
+
+        if (isStreamingPayload() && chunkEncoder == null) {
+            // The signer can't frame chunks (e.g. V2), send the body as-is
+            request.putHeader("Content-Length", String.valueOf(streamingContentLength));
+        }
 
-            final StringJoiner canonicalizedAmzHeadersBuilder = new StringJoiner("\n", "", "\n");
-            canonicalizedAmzHeadersBuilder.add("x-amz-date:" + xamzdate);
+        // Signed means about to go out, which is when the clock starts
+        if (metrics != null) {
+            metrics.sent(System.nanoTime());
+            client.requestSent(metrics);
+        }
+    }
 
-            if (!isSessionTokenBlank()) {
-                canonicalizedAmzHeadersBuilder.add("x-amz-security-token:" + awsSessionToken);
+    // Checksums
+    // ---------
+
+    /**
+     * Works out the body's MD5, and optionally its CRC32C, in the same pass
+     * that sends it. A body handed whole to end(Buffer) gets Content-MD5 and
+     * x-amz-checksum-crc32c headers, for S3 to check on arrival. A body
+     * written in pieces is sent before its checksums are known: its CRC32C
+     * follows it as an aws-chunked trailer when it is streamed under V4
+     * ({@link #setStreamingPayload}), and its MD5 is checked against the
+     * ETag S3 answers with, failing the request if they differ. Objects
+     * stored under SSE-KMS or SSE-C have an ETag that isn't an MD5, so
+     * those answers go unchecked.
+     */
+    public void setComputeChecksums(boolean md5, boolean crc32c) {
+        if (signed) {
+            throw new IllegalStateException("Request already signed");
+        }
+        this.md5 = md5 ? S3Checksums.md5() : null;
+        this.crc32c = crc32c ? S3Checksums.crc32c() : null;
+    }
+
+    /**
+     * Asks S3 for the object's stored checksum and checks the body against
+     * it as it arrives, or against the ETag when that is a plain MD5 (not
+     * under SSE-KMS or SSE-C). Composite checksums of a multipart object's
+     * parts can't be checked against the body and are skipped. The
+     * response's exception handler gets an S3Exception (BadDigest) in place
+     * of its end if they don't match. Only full (200) responses are checked.
+     */
+    public void setVerifyChecksums(boolean verifyChecksums) {
+        this.verifyChecksums = verifyChecksums;
+        if (verifyChecksums) {
+            request.putHeader("x-amz-checksum-mode", "ENABLED");
+        } else {
+            request.headers().remove("x-amz-checksum-mode");
+        }
+    }
+
+    private void updateChecksums(Buffer chunk) {
+        if (md5 != null) {
+            S3Checksums.update(md5, chunk);
+        }
+        if (crc32c != null) {
+            S3Checksums.update(crc32c, chunk);
+        }
+    }
+
+    private void checksumHeaders(Buffer body) {
+        if (md5 == null && crc32c == null) {
+            return;
+        }
+        updateChecksums(body);
+        checksumHeaders = true;
+        if (md5 != null) {
+            contentMd5 = S3Checksums.base64(md5);
+            request.putHeader("Content-MD5", contentMd5);
+        }
+        if (crc32c != null) {
+            request.putHeader(S3Checksums.CRC32C_HEADER, S3Checksums.base64(crc32c));
+        }
+    }
+
+    // Whether the CRC32C still has to go out, as a trailer
+    boolean hasTrailingChecksum() {
+        return crc32c != null && !checksumHeaders;
+    }
+
+    // The trailer line, once the whole body has been written
+    String checksumTrailer() {
+        return S3Checksums.CRC32C_HEADER + ":" + S3Checksums.base64(crc32c);
+    }
+
+    // Compression
+    // -----------
+
+    /**
+     * Codes the body with codec as it is written, and sends the codec's name
+     * as Content-Encoding, which S3 stores with the object. A body handed
+     * whole to end(Buffer) is coded in one go, so its length is known; one
+     * written in pieces has no length up front, so it must be sent chunked
+     * (which S3 itself does not take: stream to S3 through a multipart
+     * upload instead). Checksums cover the coded bytes, as stored.
+     */
+    public void setCodec(S3Codec codec) {
+        if (signed) {
+            throw new IllegalStateException("Request already signed");
+        }
+        if (isStreamingPayload()) {
+            throw new IllegalStateException("A streaming payload's length must be known up front");
+        }
+        this.encoder = codec == null ? null : codec.encoder();
+        if (codec == null) {
+            request.headers().remove("Content-Encoding");
+        } else {
+            request.putHeader("Content-Encoding", codec.getEncoding());
+        }
+    }
+
+    /**
+     * Decodes a full (200) response body whose Content-Encoding names a codec
+     * registered with {@link S3Codecs}, as it arrives. Headers are left as
+     * S3 sent them, so Content-Length is still the coded length.
+     */
+    public void setDecompress(boolean decompress) {
+        this.decompress = decompress;
+    }
+
+    // Metrics
+    // -------
+
+    // Records this request's metrics on behalf of client; call before
+    // setting any handlers
+    void trackMetrics(S3Client client, S3RequestMetrics metrics) {
+        this.client = client;
+        this.metrics = metrics;
+        track();
+    }
+
+    // Counts this request against limit; call before setting any handlers
+    void limitConcurrency(S3ConcurrencyLimiter.Limit limit) {
+        this.limit = limit;
+        track();
+    }
+
+    // From here on the end of the response, or a failure, is watched for
+    private void track() {
+        if (tracked) {
+            return;
+        }
+        tracked = true;
+        request.exceptionHandler(failure -> {
+            failed = true;
+            finished(failure);
+            if (exceptionHandler != null) {
+                exceptionHandler.handle(failure);
             }
-            String canonicalizedAmzHeaders = canonicalizedAmzHeadersBuilder.toString();
-            String canonicalizedResource = "/" + bucket + "/" + key;
-
-            String toSign = method
-                            + "\n"
-                            + contentMd5
-                            + "\n"
-                            + contentType
-                            + "\n\n" // Skipping the date, we'll use the x-amz
-                                     // date instead
-                            + canonicalizedAmzHeaders
-                            + canonicalizedResource;
-
-            String signature;
-            try {
-                signature = b64SignHmacSha1(awsSecretKey, toSign);
-            } catch (InvalidKeyException | NoSuchAlgorithmException e) {
-                signature = "ERRORSIGNATURE";
-                // This will totally fail,
-                // but downstream users can handle it
-                logger.error("Failed to sign S3 request due to " + e);
+        });
+    }
+
+    // Runs send once the limit has room, back on the calling context
+    private void admit(Runnable send) {
+        Context context = Vertx.currentContext();
+        limit.acquire(granted -> {
+            Runnable admitted = () -> {
+                if (failed) {
+                    // Nothing left to send; let the next one in
+                    granted.release();
+                    return;
+                }
+                permit = granted;
+                send.run();
+            };
+            if (context == null || context == Vertx.currentContext()) {
+                admitted.run();
+            } else {
+                context.runOnContext(event -> admitted.run());
             }
-            String authorization = "AWS" + " " + awsAccessKey + ":" + signature;
+        });
+    }
 
-            // Put that nasty auth string in the headers and let vert.x deal
-            headers().add("Authorization", authorization);
+    // Holds op back, behind anything already held, while the request waits
+    // for room under the limit; false if it may run now
+    private boolean hold(Runnable op) {
+        synchronized (this) {
+            if (held != null) {
+                held.add(op);
+                return true;
+            }
+            if (limit == null || permit != null) {
+                return false;
+            }
+            held = new ArrayList<>();
+            held.add(op);
         }
-        // Otherwise not needed
+        admit(this::sendHeld);
+        return true;
+    }
+
+    // Once admitted: runs what was held back, including anything held while
+    // doing so, then lets a waiting Pump carry on
+    private void sendHeld() {
+        while (true) {
+            List<Runnable> ops;
+            synchronized (this) {
+                ops = held;
+                if (ops.isEmpty()) {
+                    held = null;
+                    break;
+                }
+                held = new ArrayList<>();
+            }
+            for (Runnable op : ops) {
+                op.run();
+            }
+        }
+        Handler<Void> drain = drainHandler;
+        if (drain != null && !ended && !request.writeQueueFull()) {
+            drain.handle(null);
+        }
+    }
+
+    // Runs ready once the request may be sent: right away without a limit,
+    // otherwise once the limit has room. Lets a caller hold off on producing
+    // a body it is going to write before ending.
+    void whenAdmitted(Runnable ready) {
+        if (limit != null && permit == null) {
+            admit(ready);
+        } else {
+            ready.run();
+        }
+    }
+
+    // null unless the client records metrics
+    public S3RequestMetrics getMetrics() {
+        return metrics;
+    }
+
+    void finished(Throwable failure) {
+        if (metrics != null && metrics.finish(failure, System.nanoTime())) {
+            client.requestFinished(metrics);
+        }
+        if (permit != null) {
+            permit.release();
+        }
+    }
+
+    /**
+     * Streams the body as aws-chunked, signing each chunk as it is written
+     * (STREAMING-AWS4-HMAC-SHA256-PAYLOAD) when the client signs with V4.
+     * The payload length must still be known; Content-Length is derived
+     * from it.
+     */
+    public void setStreamingPayload(long decodedContentLength) {
+        setStreamingPayload(decodedContentLength, S3ChunkedPayloadEncoder.DEFAULT_CHUNK_SIZE);
+    }
+
+    public void setStreamingPayload(long decodedContentLength, int chunkSize) {
+        if (signed) {
+            throw new IllegalStateException("Request already signed");
+        }
+        if (chunkSize < S3ChunkedPayloadEncoder.MIN_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Chunk size must be at least "
+                                               + S3ChunkedPayloadEncoder.MIN_CHUNK_SIZE + " bytes");
+        }
+        this.streamingContentLength = decodedContentLength;
+        this.streamingChunkSize = chunkSize;
     }
 
-    private boolean isSessionTokenBlank() {
-        return awsSessionToken == null || awsSessionToken.trim().length() == 0;
+    public boolean isStreamingPayload() {
+        return streamingContentLength >= 0;
+    }
+
+    public long getStreamingContentLength() {
+        return streamingContentLength;
+    }
+
+    public int getStreamingChunkSize() {
+        return streamingChunkSize;
+    }
+
+    void setChunkEncoder(S3ChunkedPayloadEncoder chunkEncoder) {
+        this.chunkEncoder = chunkEncoder;
+    }
+
+    // Framed chunks from the encoder go straight to the wire
+    void writeEncoded(Buffer framed) {
+        request.write(framed);
     }
 
     public boolean isAuthenticated() {
@@ -257,16 +715,55 @@ public class S3ClientRequest implements HttpClientRequest {
 
     public void setAwsAccessKey(String awsAccessKey) {
         this.awsAccessKey = awsAccessKey;
+        this.signer = null;
     }
 
     public void setAwsSecretKey(String awsSecretKey) {
         this.awsSecretKey = awsSecretKey;
+        this.signer = null;
+    }
+
+    // Requests built by S3Client share the client's signer; standalone ones
+    // build their own from the credentials
+    public S3Signer getSigner() {
+        if (signer == null) {
+            signer = new S3V2Signer(awsAccessKey, awsSecretKey, awsSessionToken);
+        }
+        return signer;
+    }
+
+    public void setSigner(S3Signer signer) {
+        this.signer = signer;
     }
 
     public String getMethod() {
         return method;
     }
 
+    public String getBucket() {
+        return bucket;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getSubResource() {
+        return subResource;
+    }
+
+    public void setSubResource(String subResource) {
+        this.subResource = subResource;
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    public void setQuery(String query) {
+        this.query = query;
+    }
+
     public String getContentMd5() {
         return contentMd5;
     }
@@ -275,25 +772,20 @@ public class S3ClientRequest implements HttpClientRequest {
         this.contentMd5 = contentMd5;
     }
 
-    public String getContentType() {
-        return contentType;
+    public String getPayloadHash() {
+        return payloadHash;
     }
 
-    public void setContentType(String contentType) {
-        this.contentType = contentType;
+    // Precomputed payload hash (SigV4), see S3V4Signer.hashPayload
+    public void setPayloadHash(String payloadHash) {
+        this.payloadHash = payloadHash;
     }
 
-    private static String
-            b64SignHmacSha1(String awsSecretKey, String canonicalString) throws NoSuchAlgorithmException,
-                                                                        InvalidKeyException {
-        SecretKeySpec signingKey = new SecretKeySpec(awsSecretKey.getBytes(),
-                                                     "HmacSHA1");
-        Mac mac = Mac.getInstance("HmacSHA1");
-        mac.init(signingKey);
-        return new String(Base64.getEncoder().encode(mac.doFinal(canonicalString.getBytes())));
+    public String getContentType() {
+        return contentType;
     }
 
-    private static String currentDateString() {
-        return dateFormat.format(new Date());
+    public void setContentType(String contentType) {
+        this.contentType = contentType;
     }
 }
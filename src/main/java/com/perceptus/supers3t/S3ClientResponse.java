@@ -0,0 +1,209 @@
+package com.perceptus.supers3t;
+
+import io.vertx.core.Handler;
+import io.vertx.core.MultiMap;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.net.NetSocket;
+
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.zip.Checksum;
+
+/**
+ * Response of a request whose metrics are being recorded (or whose place
+ * under a concurrency limit must be given back): counts body bytes and tells
+ * the request when the body has been read or the connection failed,
+ * whichever handlers the caller sets (or doesn't). Can also check the body
+ * against a checksum as it arrives, failing the response if it is off, and
+ * decode it (the checksum is of the coded bytes, as stored).
+ */
+class S3ClientResponse implements HttpClientResponse {
+    private final HttpClientResponse response;
+    private final S3ClientRequest request;
+
+    private Handler<Buffer> dataHandler;
+    private Handler<Void> endHandler;
+    private Handler<Throwable> exceptionHandler;
+    private Buffer body;
+    private Handler<Buffer> bodyHandler;
+
+    // What the body is checked against, if anything: MD5 (hex) or CRC32C (base64)
+    private MessageDigest md5;
+    private Checksum crc32c;
+    private String expected;
+    private S3Codec.Transform decoder;
+    private boolean failed;
+
+    S3ClientResponse(HttpClientResponse response, S3ClientRequest request) {
+        this.response = response;
+        this.request = request;
+        // Installed up front, so the end of the response is seen even if the
+        // caller never looks at the body
+        response.handler(this::handleData);
+        response.endHandler(this::handleEnd);
+        response.exceptionHandler(this::handleException);
+    }
+
+    // Checks the body against the hex MD5 S3 sent
+    void verify(MessageDigest md5, String expected) {
+        this.md5 = md5;
+        this.expected = expected;
+    }
+
+    // Hands on the body decoded
+    void decode(S3Codec.Transform decoder) {
+        this.decoder = decoder;
+    }
+
+    // Checks the body against the base64 CRC32C S3 sent
+    void verify(Checksum crc32c, String expected) {
+        this.crc32c = crc32c;
+        this.expected = expected;
+    }
+
+    private void handleData(Buffer data) {
+        if (request.getMetrics() != null) {
+            request.getMetrics().addBytesReceived(data.length());
+        }
+        if (md5 != null) {
+            S3Checksums.update(md5, data);
+        } else if (crc32c != null) {
+            S3Checksums.update(crc32c, data);
+        }
+        if (failed) {
+            return;
+        }
+        if (decoder != null) {
+            try {
+                data = decoder.write(data);
+            } catch (RuntimeException e) {
+                handleException(e);
+                return;
+            }
+        }
+        deliver(data);
+    }
+
+    private void deliver(Buffer data) {
+        if (decoder != null && data.length() == 0) {
+            // Held back by the decoder for now
+            return;
+        }
+        if (body != null) {
+            body.appendBuffer(data);
+        }
+        if (dataHandler != null) {
+            dataHandler.handle(data);
+        }
+    }
+
+    private void handleEnd(Void event) {
+        if (failed) {
+            return;
+        }
+        String actual = md5 != null ? S3V4Signer.hex(md5.digest())
+                        : crc32c != null ? S3Checksums.base64(crc32c)
+                        : null;
+        boolean matches = md5 != null ? actual.equalsIgnoreCase(expected) : actual == null || actual.equals(expected);
+        if (!matches) {
+            handleException(new S3Exception(statusCode(), "BadDigest",
+                                            "Body checksum " + actual + " does not match " + expected));
+            return;
+        }
+        if (decoder != null) {
+            try {
+                deliver(decoder.end());
+            } catch (RuntimeException e) {
+                handleException(e);
+                return;
+            }
+        }
+        request.finished(null);
+        if (bodyHandler != null) {
+            bodyHandler.handle(body);
+        }
+        if (endHandler != null) {
+            endHandler.handle(event);
+        }
+    }
+
+    private void handleException(Throwable failure) {
+        if (decoder != null) {
+            if (failed) {
+                return;
+            }
+            // Undecodable; the rest of the body is read and dropped
+            failed = true;
+        }
+        request.finished(failure);
+        if (exceptionHandler != null) {
+            exceptionHandler.handle(failure);
+        }
+    }
+
+    @Override public HttpClientResponse handler(Handler<Buffer> handler) {
+        this.dataHandler = handler;
+        return this;
+    }
+
+    @Override public HttpClientResponse endHandler(Handler<Void> handler) {
+        this.endHandler = handler;
+        return this;
+    }
+
+    @Override public HttpClientResponse exceptionHandler(Handler<Throwable> handler) {
+        this.exceptionHandler = handler;
+        return this;
+    }
+
+    @Override public HttpClientResponse bodyHandler(Handler<Buffer> handler) {
+        if (body == null) {
+            body = Buffer.buffer();
+        }
+        this.bodyHandler = handler;
+        return this;
+    }
+
+    @Override public HttpClientResponse pause() {
+        response.pause();
+        return this;
+    }
+
+    @Override public HttpClientResponse resume() {
+        response.resume();
+        return this;
+    }
+
+    @Override public int statusCode() {
+        return response.statusCode();
+    }
+
+    @Override public String statusMessage() {
+        return response.statusMessage();
+    }
+
+    @Override public MultiMap headers() {
+        return response.headers();
+    }
+
+    @Override public String getHeader(String headerName) {
+        return response.getHeader(headerName);
+    }
+
+    @Override public String getTrailer(String trailerName) {
+        return response.getTrailer(trailerName);
+    }
+
+    @Override public MultiMap trailers() {
+        return response.trailers();
+    }
+
+    @Override public List<String> cookies() {
+        return response.cookies();
+    }
+
+    @Override public NetSocket netSocket() {
+        return response.netSocket();
+    }
+}
@@ -0,0 +1,29 @@
+package com.perceptus.supers3t;
+
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * A content coding (gzip, deflate, or one plugged in such as zstd) applied
+ * to bodies as they stream. Objects are stored coded, with the codec's name
+ * as their Content-Encoding, and decoded on the way back by whichever codec
+ * {@link S3Codecs} has registered under that name.
+ */
+public interface S3Codec {
+    /**
+     * Codes a body one chunk at a time. Each chunk may come back as more,
+     * less or nothing at all; whatever is held back comes out of
+     * {@link #end()}. Bad input fails with an {@link S3Exception}.
+     */
+    interface Transform {
+        Buffer write(Buffer chunk);
+
+        Buffer end();
+    }
+
+    // The Content-Encoding token, e.g. "gzip"
+    String getEncoding();
+
+    Transform encoder();
+
+    Transform decoder();
+}
@@ -0,0 +1,60 @@
+package com.perceptus.supers3t;
+
+import io.vertx.core.buffer.Buffer;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+
+/**
+ * The built-in codecs, and the registry responses are decoded from. gzip
+ * and deflate are registered from the start; others (e.g. a zstd binding)
+ * can be added with {@link #register}.
+ */
+public final class S3Codecs {
+    public static final S3Codec GZIP = gzip(Deflater.DEFAULT_COMPRESSION);
+    public static final S3Codec DEFLATE = deflate(Deflater.DEFAULT_COMPRESSION);
+
+    private static final ConcurrentHashMap<String, S3Codec> codecs = new ConcurrentHashMap<>();
+
+    static {
+        register(GZIP);
+        register(DEFLATE);
+    }
+
+    private S3Codecs() {
+    }
+
+    // level as for java.util.zip.Deflater, 1 (fastest) to 9 (smallest)
+    public static S3Codec gzip(int level) {
+        return new S3DeflateCodec(true, level);
+    }
+
+    public static S3Codec deflate(int level) {
+        return new S3DeflateCodec(false, level);
+    }
+
+    // Decodes responses with this Content-Encoding from now on
+    public static void register(S3Codec codec) {
+        codecs.put(codec.getEncoding().toLowerCase(Locale.ROOT), codec);
+    }
+
+    // The codec for a Content-Encoding, or null if none is registered
+    public static S3Codec forEncoding(String encoding) {
+        if (encoding == null) {
+            return null;
+        }
+        return codecs.get(encoding.trim().toLowerCase(Locale.ROOT));
+    }
+
+    // A whole body coded in one go
+    public static Buffer encode(S3Codec codec, Buffer data) {
+        S3Codec.Transform encoder = codec.encoder();
+        return encoder.write(data).appendBuffer(encoder.end());
+    }
+
+    public static Buffer decode(S3Codec codec, Buffer data) {
+        S3Codec.Transform decoder = codec.decoder();
+        return decoder.write(data).appendBuffer(decoder.end());
+    }
+}
@@ -0,0 +1,259 @@
+package com.perceptus.supers3t;
+
+import io.vertx.core.Handler;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Adaptive cap on requests in flight, per bucket (or per bucket and top-level
+ * prefix, S3's unit of partitioning), for {@link S3Client#setConcurrencyLimiter}.
+ *
+ * Limits follow AIMD: every response that comes back while the limit is in
+ * use raises it by 1/limit, so by about one per round of requests, and a
+ * 503 SlowDown cuts it by the backoff ratio, at most once per recent
+ * latency so one burst of throttling counts once. Optionally, responses much
+ * slower than the fastest seen lately count as a milder congestion signal.
+ *
+ * Requests over the limit wait in a queue and are sent, on the context that
+ * sent them, as earlier ones finish; nothing blocks. Requests that write
+ * their body before ending wait the same way: what they write is held
+ * back, and their write queue reads as full so a Pump pauses, until they
+ * are let through.
+ */
+public class S3ConcurrencyLimiter {
+    public static final int DEFAULT_INITIAL_LIMIT = 32;
+    public static final int DEFAULT_MIN_LIMIT = 1;
+    public static final int DEFAULT_MAX_LIMIT = 512;
+    public static final double DEFAULT_BACKOFF_RATIO = 0.5;
+    // Applied on slow responses when a latency tolerance is set
+    private static final double LATENCY_BACKOFF_RATIO = 0.9;
+    // Decreases are at least this far apart, whatever the latency
+    private static final long MIN_DECREASE_INTERVAL = 100_000_000L; // ns
+    // The fastest latency seen is forgotten after this many samples
+    private static final int LATENCY_WINDOW = 1000;
+
+    private final int initialLimit;
+    private final int minLimit;
+    private final int maxLimit;
+    private volatile double backoffRatio = DEFAULT_BACKOFF_RATIO;
+    private volatile double latencyTolerance; // 0 for off
+    private volatile boolean perPrefix;
+
+    private final ConcurrentHashMap<String, Limit> limits = new ConcurrentHashMap<>();
+
+    public S3ConcurrencyLimiter() {
+        this(DEFAULT_INITIAL_LIMIT, DEFAULT_MIN_LIMIT, DEFAULT_MAX_LIMIT);
+    }
+
+    public S3ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit < 1 || initialLimit < minLimit || maxLimit < initialLimit) {
+            throw new IllegalArgumentException("Limits must satisfy 1 <= min <= initial <= max");
+        }
+        this.initialLimit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+    }
+
+    // Share of the limit kept after a SlowDown
+    public S3ConcurrencyLimiter setBackoffRatio(double backoffRatio) {
+        if (backoffRatio <= 0 || backoffRatio >= 1) {
+            throw new IllegalArgumentException("Backoff ratio must be between 0 and 1");
+        }
+        this.backoffRatio = backoffRatio;
+        return this;
+    }
+
+    // Back off a little when time to response headers exceeds this multiple
+    // of the fastest seen lately (e.g. 3.0); 0 (the default) reacts to
+    // throttling only. Suits workloads of similarly sized objects.
+    public S3ConcurrencyLimiter setLatencyTolerance(double latencyTolerance) {
+        this.latencyTolerance = latencyTolerance;
+        return this;
+    }
+
+    // Keep a limit per bucket and top-level prefix ("logs/" in logs/2015/a)
+    // rather than per bucket
+    public S3ConcurrencyLimiter setPerPrefix(boolean perPrefix) {
+        this.perPrefix = perPrefix;
+        return this;
+    }
+
+    // The limit a request to bucket/key counts against
+    public Limit limit(String bucket, String key) {
+        String name = bucket + '/';
+        if (perPrefix && key != null) {
+            int slash = key.indexOf('/');
+            if (slash >= 0) {
+                name += key.substring(0, slash + 1);
+            }
+        }
+        Limit limit = limits.get(name);
+        if (limit == null) {
+            limit = limits.computeIfAbsent(name, Limit::new);
+        }
+        return limit;
+    }
+
+    public Map<String, Limit> getLimits() {
+        return limits;
+    }
+
+    // Requests queued across all limits
+    public int getQueueDepth() {
+        int depth = 0;
+        for (Limit limit : limits.values()) {
+            depth += limit.getQueueDepth();
+        }
+        return depth;
+    }
+
+    /**
+     * One adaptive limit and its queue.
+     */
+    public class Limit {
+        private final String name;
+        // Guarded by this
+        private double limit = initialLimit;
+        private int inFlight;
+        private final ArrayDeque<Handler<Permit>> queue = new ArrayDeque<>();
+        private long lastDecrease;
+        private long minLatency = Long.MAX_VALUE;
+        private int samples;
+        private long throttles;
+
+        Limit(String name) {
+            this.name = name;
+        }
+
+        // bucket/ or bucket/prefix/
+        public String getName() {
+            return name;
+        }
+
+        public synchronized int getLimit() {
+            return (int) limit;
+        }
+
+        public synchronized int getInFlight() {
+            return inFlight;
+        }
+
+        public synchronized int getQueueDepth() {
+            return queue.size();
+        }
+
+        // SlowDown responses seen
+        public synchronized long getThrottles() {
+            return throttles;
+        }
+
+        // Calls granted with a permit once the request may go, right away if
+        // there is room
+        void acquire(Handler<Permit> granted) {
+            synchronized (this) {
+                if (inFlight >= (int) limit || !queue.isEmpty()) {
+                    queue.add(granted);
+                    return;
+                }
+                inFlight++;
+            }
+            granted.handle(new Permit(this));
+        }
+
+        void release(int statusCode, long latency) {
+            List<Handler<Permit>> granted = null;
+            synchronized (this) {
+                boolean saturated = inFlight >= (int) limit;
+                inFlight--;
+                adjust(statusCode, latency, saturated);
+                while (!queue.isEmpty() && inFlight < (int) limit) {
+                    if (granted == null) {
+                        granted = new ArrayList<>(2);
+                    }
+                    granted.add(queue.poll());
+                    inFlight++;
+                }
+            }
+            if (granted != null) {
+                for (Handler<Permit> handler : granted) {
+                    handler.handle(new Permit(this));
+                }
+            }
+        }
+
+        // Holding the lock
+        private void adjust(int statusCode, long latency, boolean saturated) {
+            long now = System.nanoTime();
+            if (statusCode == 503) {
+                throttles++;
+                decrease(backoffRatio, now);
+                return;
+            }
+            if (statusCode == 0 || latency <= 0) {
+                // No response: says nothing about S3's mood
+                return;
+            }
+            if (++samples >= LATENCY_WINDOW) {
+                samples = 0;
+                minLatency = Long.MAX_VALUE;
+            }
+            minLatency = Math.min(minLatency, latency);
+            double tolerance = latencyTolerance;
+            if (tolerance > 0 && latency > minLatency * tolerance) {
+                decrease(LATENCY_BACKOFF_RATIO, now);
+            } else if (saturated) {
+                // Only grow a limit that is actually being used
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+        }
+
+        private void decrease(double ratio, long now) {
+            long interval = Math.max(MIN_DECREASE_INTERVAL, minLatency == Long.MAX_VALUE ? 0 : minLatency);
+            if (now - lastDecrease < interval) {
+                return;
+            }
+            lastDecrease = now;
+            limit = Math.max(minLimit, limit * ratio);
+        }
+
+        @Override public String toString() {
+            return name + " " + getInFlight() + "/" + getLimit() + " (" + getQueueDepth() + " queued)";
+        }
+    }
+
+    /**
+     * A request's place within a limit, given back once it is answered.
+     */
+    public static class Permit {
+        private final Limit limit;
+        private final long grantedAt = System.nanoTime();
+        private int statusCode;
+        private long latency;
+        private boolean released;
+
+        Permit(Limit limit) {
+            this.limit = limit;
+        }
+
+        // Response headers arrived
+        void responded(int statusCode) {
+            this.statusCode = statusCode;
+            this.latency = System.nanoTime() - grantedAt;
+        }
+
+        // Once only; later calls are ignored
+        void release() {
+            synchronized (this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+            }
+            limit.release(statusCode, latency);
+        }
+    }
+}
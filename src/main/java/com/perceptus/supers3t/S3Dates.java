@@ -0,0 +1,59 @@
+package com.perceptus.supers3t;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * Date strings used when signing, formatted at most once per second and
+ * shared by all threads. The formatters are immutable, and each cached value
+ * is published as a single immutable holder, so readers never see a torn or
+ * half-formatted date.
+ */
+final class S3Dates {
+    private static final DateTimeFormatter HTTP_DATE =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US)
+                             .withZone(ZoneOffset.UTC);
+    private static final DateTimeFormatter AMZ_DATE =
+            DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'", Locale.US)
+                             .withZone(ZoneOffset.UTC);
+
+    private static volatile CachedDate httpDate = new CachedDate(-1, null);
+    private static volatile CachedDate amzDate = new CachedDate(-1, null);
+
+    private S3Dates() {
+    }
+
+    // e.g. Thu, 17 Nov 2005 18:49:58 GMT
+    static String httpDate() {
+        long second = System.currentTimeMillis() / 1000;
+        CachedDate cached = httpDate;
+        if (cached.second != second) {
+            cached = new CachedDate(second, HTTP_DATE.format(Instant.ofEpochSecond(second)));
+            httpDate = cached;
+        }
+        return cached.value;
+    }
+
+    // ISO 8601 basic format used by SigV4, e.g. 20130524T000000Z
+    static String amzDate() {
+        long second = System.currentTimeMillis() / 1000;
+        CachedDate cached = amzDate;
+        if (cached.second != second) {
+            cached = new CachedDate(second, AMZ_DATE.format(Instant.ofEpochSecond(second)));
+            amzDate = cached;
+        }
+        return cached.value;
+    }
+
+    private static final class CachedDate {
+        final long second;
+        final String value;
+
+        CachedDate(long second, String value) {
+            this.second = second;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,361 @@
+package com.perceptus.supers3t;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.buffer.Buffer;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * gzip (RFC 1952) and deflate (zlib, RFC 1950) on java.util.zip, a chunk at
+ * a time. Input is handed to zlib straight from Netty's buffers, direct ones
+ * included, where the JDK allows it (Java 11 and later), and output is
+ * written straight into the Buffer handed back, without a scratch array in
+ * between. The gzip decoder takes concatenated members, as gzip does.
+ */
+final class S3DeflateCodec implements S3Codec {
+    // Output grows by this much at a time
+    private static final int OUTPUT_STEP = 16 * 1024;
+    // Direct input is copied out through this much at a time on Java 8
+    private static final int COPY_SIZE = 16 * 1024;
+
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+    private static final byte[] GZIP_HEADER = {
+            0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff
+    };
+
+    // Java 11+: Deflater.setInput(ByteBuffer), Inflater.setInput(ByteBuffer);
+    // null on Java 8
+    private static final MethodHandle DEFLATER_INPUT;
+    private static final MethodHandle INFLATER_INPUT;
+
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        MethodHandle deflaterInput = null;
+        MethodHandle inflaterInput = null;
+        try {
+            MethodType type = MethodType.methodType(void.class, ByteBuffer.class);
+            deflaterInput = lookup.findVirtual(Deflater.class, "setInput", type);
+            inflaterInput = lookup.findVirtual(Inflater.class, "setInput", type);
+        } catch (ReflectiveOperationException e) {
+            // Java 8
+        }
+        DEFLATER_INPUT = deflaterInput;
+        INFLATER_INPUT = inflaterInput;
+    }
+
+    private final boolean gzip;
+    private final int level;
+
+    S3DeflateCodec(boolean gzip, int level) {
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < 0 || level > 9)) {
+            throw new IllegalArgumentException("Compression level must be between 0 and 9");
+        }
+        this.gzip = gzip;
+        this.level = level;
+    }
+
+    @Override public String getEncoding() {
+        return gzip ? "gzip" : "deflate";
+    }
+
+    @Override public Transform encoder() {
+        return new Encoder();
+    }
+
+    @Override public Transform decoder() {
+        return gzip ? new GzipDecoder() : new ZlibDecoder();
+    }
+
+    private final class Encoder implements Transform {
+        private final Deflater deflater = new Deflater(level, gzip);
+        private final CRC32 crc = new CRC32();
+        private byte[] copy;
+        private boolean started;
+        private boolean ended;
+
+        @Override public Buffer write(Buffer chunk) {
+            if (ended) {
+                throw new IllegalStateException("Encoder already ended");
+            }
+            ByteBuf out = Unpooled.buffer(Math.max(64, chunk.length() / 2));
+            if (!started) {
+                started = true;
+                if (gzip) {
+                    out.writeBytes(GZIP_HEADER);
+                }
+            }
+            for (ByteBuffer nio : chunk.getByteBuf().nioBuffers()) {
+                if (gzip) {
+                    crc.update(nio.duplicate());
+                }
+                if (nio.hasArray()) {
+                    deflater.setInput(nio.array(), nio.arrayOffset() + nio.position(), nio.remaining());
+                    drain(out);
+                } else if (DEFLATER_INPUT != null) {
+                    setInput(DEFLATER_INPUT, deflater, nio);
+                    drain(out);
+                } else {
+                    if (copy == null) {
+                        copy = new byte[COPY_SIZE];
+                    }
+                    ByteBuffer remaining = nio.duplicate();
+                    while (remaining.hasRemaining()) {
+                        int n = Math.min(copy.length, remaining.remaining());
+                        remaining.get(copy, 0, n);
+                        deflater.setInput(copy, 0, n);
+                        drain(out);
+                    }
+                }
+            }
+            return Buffer.buffer(out);
+        }
+
+        // Runs zlib until it has taken all of the input
+        private void drain(ByteBuf out) {
+            while (!deflater.needsInput()) {
+                deflate(out);
+            }
+        }
+
+        private void deflate(ByteBuf out) {
+            out.ensureWritable(OUTPUT_STEP);
+            int n = deflater.deflate(out.array(), out.arrayOffset() + out.writerIndex(), out.writableBytes());
+            out.writerIndex(out.writerIndex() + n);
+        }
+
+        @Override public Buffer end() {
+            if (ended) {
+                return Buffer.buffer();
+            }
+            ByteBuf out = Unpooled.buffer(OUTPUT_STEP);
+            if (!started && gzip) {
+                out.writeBytes(GZIP_HEADER);
+            }
+            ended = true;
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflate(out);
+            }
+            if (gzip) {
+                out.writeInt(Integer.reverseBytes((int) crc.getValue()));
+                out.writeInt(Integer.reverseBytes((int) deflater.getBytesRead()));
+            }
+            deflater.end();
+            return Buffer.buffer(out);
+        }
+    }
+
+    // zlib-wrapped deflate: one stream, its Adler-32 checked by the Inflater
+    private static final class ZlibDecoder implements Transform {
+        private final Inflater inflater = new Inflater();
+        private final Input input = new Input();
+
+        @Override public Buffer write(Buffer chunk) {
+            ByteBuf out = Unpooled.buffer(Math.max(64, chunk.length() * 4));
+            input.feed(chunk, inflater, out, null);
+            if (inflater.finished() && input.remaining(inflater) > 0) {
+                throw new S3Exception("Unexpected data after the end of the deflate stream");
+            }
+            return Buffer.buffer(out);
+        }
+
+        @Override public Buffer end() {
+            boolean complete = inflater.finished();
+            inflater.end();
+            if (!complete) {
+                throw new S3Exception("Deflate stream ended early");
+            }
+            return Buffer.buffer();
+        }
+    }
+
+    // gzip: a header, raw deflate and a CRC-32/length trailer, repeated for
+    // each member
+    private static final class GzipDecoder implements Transform {
+        private static final int HEADER = 0;
+        private static final int BODY = 1;
+        private static final int TRAILER = 2;
+
+        private final Inflater inflater = new Inflater(true);
+        private final CRC32 crc = new CRC32();
+        private final Input input = new Input();
+        private int state = HEADER;
+        // Header or trailer bytes split across chunks
+        private Buffer carry;
+        private int members;
+
+        @Override public Buffer write(Buffer chunk) {
+            ByteBuf out = Unpooled.buffer(Math.max(64, chunk.length() * 4));
+            Buffer data = chunk;
+            if (carry != null) {
+                data = carry.appendBuffer(chunk);
+                carry = null;
+            }
+            int position = 0;
+            while (position < data.length()) {
+                if (state == HEADER) {
+                    int length = headerLength(data, position);
+                    if (length < 0) {
+                        carry = data.getBuffer(position, data.length());
+                        break;
+                    }
+                    position += length;
+                    inflater.reset();
+                    crc.reset();
+                    state = BODY;
+                } else if (state == BODY) {
+                    Buffer rest = position == 0 ? data : data.slice(position, data.length());
+                    int fed = rest.length();
+                    input.feed(rest, inflater, out, crc);
+                    int left = input.remaining(inflater);
+                    position += fed - left;
+                    if (inflater.finished()) {
+                        state = TRAILER;
+                    }
+                } else {
+                    if (data.length() - position < 8) {
+                        carry = data.getBuffer(position, data.length());
+                        break;
+                    }
+                    // Both little-endian
+                    if (Integer.reverseBytes(data.getInt(position)) != (int) crc.getValue()
+                        || Integer.reverseBytes(data.getInt(position + 4)) != (int) inflater.getBytesWritten()) {
+                        throw new S3Exception("gzip member " + (members + 1) + " failed its CRC check");
+                    }
+                    position += 8;
+                    members++;
+                    state = HEADER;
+                }
+            }
+            return Buffer.buffer(out);
+        }
+
+        // Length of the member header at position, -1 if not all there yet
+        private int headerLength(Buffer data, int position) {
+            int available = data.length() - position;
+            if (available < 10) {
+                return -1;
+            }
+            if (data.getByte(position) != GZIP_HEADER[0] || data.getByte(position + 1) != GZIP_HEADER[1]) {
+                throw new S3Exception("Not in gzip format");
+            }
+            if (data.getByte(position + 2) != Deflater.DEFLATED) {
+                throw new S3Exception("Unsupported gzip compression method");
+            }
+            int flags = data.getByte(position + 3);
+            int length = 10;
+            if ((flags & FEXTRA) != 0) {
+                if (available < length + 2) {
+                    return -1;
+                }
+                length += 2 + (Short.reverseBytes(data.getShort(position + length)) & 0xffff);
+            }
+            for (int field : new int[] { FNAME, FCOMMENT }) {
+                if ((flags & field) != 0) {
+                    do {
+                        if (length >= available) {
+                            return -1;
+                        }
+                    } while (data.getByte(position + length++) != 0);
+                }
+            }
+            if ((flags & FHCRC) != 0) {
+                length += 2;
+            }
+            return length <= available ? length : -1;
+        }
+
+        @Override public Buffer end() {
+            boolean complete = state == HEADER && carry == null && members > 0;
+            inflater.end();
+            if (!complete) {
+                throw new S3Exception("gzip stream ended early");
+            }
+            return Buffer.buffer();
+        }
+    }
+
+    // Feeds a chunk to an Inflater and collects what comes out
+    private static final class Input {
+        private byte[] copy;
+        // Input copied out on Java 8 and not yet taken, past the current copy
+        private int pending;
+
+        void feed(Buffer chunk, Inflater inflater, ByteBuf out, CRC32 crc) {
+            pending = 0;
+            ByteBuffer[] nios = chunk.getByteBuf().nioBuffers();
+            for (int i = 0; i < nios.length && !inflater.finished(); i++) {
+                ByteBuffer nio = nios[i];
+                if (nio.hasArray()) {
+                    inflater.setInput(nio.array(), nio.arrayOffset() + nio.position(), nio.remaining());
+                    inflate(inflater, out, crc);
+                } else if (INFLATER_INPUT != null) {
+                    setInput(INFLATER_INPUT, inflater, nio);
+                    inflate(inflater, out, crc);
+                } else {
+                    if (copy == null) {
+                        copy = new byte[COPY_SIZE];
+                    }
+                    ByteBuffer remaining = nio.duplicate();
+                    while (remaining.hasRemaining() && !inflater.finished()) {
+                        int n = Math.min(copy.length, remaining.remaining());
+                        remaining.get(copy, 0, n);
+                        inflater.setInput(copy, 0, n);
+                        inflate(inflater, out, crc);
+                    }
+                    pending += remaining.remaining();
+                }
+                if (inflater.finished()) {
+                    for (int j = i + 1; j < nios.length; j++) {
+                        pending += nios[j].remaining();
+                    }
+                }
+            }
+        }
+
+        // Bytes of the last chunk the Inflater did not take
+        int remaining(Inflater inflater) {
+            return inflater.getRemaining() + pending;
+        }
+
+        private static void inflate(Inflater inflater, ByteBuf out, CRC32 crc) {
+            try {
+                while (true) {
+                    out.ensureWritable(OUTPUT_STEP);
+                    int start = out.arrayOffset() + out.writerIndex();
+                    int n = inflater.inflate(out.array(), start, out.writableBytes());
+                    if (crc != null) {
+                        crc.update(out.array(), start, n);
+                    }
+                    out.writerIndex(out.writerIndex() + n);
+                    if (n == 0 && (inflater.needsInput() || inflater.finished() || inflater.needsDictionary())) {
+                        return;
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new S3Exception("Corrupt " + (crc != null ? "gzip" : "deflate") + " data: " + e.getMessage());
+            }
+        }
+    }
+
+    private static void setInput(MethodHandle setInput, Object zlib, ByteBuffer nio) {
+        try {
+            setInput.invoke(zlib, nio);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.perceptus.supers3t;
+
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * Failure reported by S3 (or by the transport underneath a composite
+ * operation). Carries the HTTP status and, when S3 sent one, the error code
+ * from the XML error document (e.g. "NoSuchUpload", "SlowDown").
+ */
+public class S3Exception extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode;
+    private final String errorCode;
+
+    public S3Exception(String message) {
+        this(0, null, message);
+    }
+
+    public S3Exception(int statusCode, String errorCode, String message) {
+        super(message);
+        this.statusCode = statusCode;
+        this.errorCode = errorCode;
+    }
+
+    public S3Exception(String message, Throwable cause) {
+        super(message, cause);
+        this.statusCode = 0;
+        this.errorCode = null;
+    }
+
+    // Builds an exception from an S3 error response body (which may be empty,
+    // e.g. for HEAD requests)
+    public static S3Exception fromResponse(int statusCode, Buffer body) {
+        String code = body == null ? null : S3Xml.elementText(body, "Code");
+        String message = body == null ? null : S3Xml.elementText(body, "Message");
+        return new S3Exception(statusCode,
+                               code,
+                               "S3 returned " + statusCode
+                               + (code != null ? " " + code : "")
+                               + (message != null ? ": " + message : ""));
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public String getErrorCode() {
+        return errorCode;
+    }
+}
@@ -0,0 +1,61 @@
+package com.perceptus.supers3t;
+
+/**
+ * One entry of a listing: an object, or (when listing with a delimiter) a
+ * common prefix that rolls up the keys beneath it, which has only a key.
+ */
+public class S3ListEntry {
+    private final String key;
+    private final long size;
+    private final String etag;
+    private final long lastModified;
+    private final String storageClass;
+    private final boolean prefix;
+
+    S3ListEntry(String key, long size, String etag, long lastModified, String storageClass) {
+        this(key, size, etag, lastModified, storageClass, false);
+    }
+
+    private S3ListEntry(String key, long size, String etag, long lastModified, String storageClass, boolean prefix) {
+        this.key = key;
+        this.size = size;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.storageClass = storageClass;
+        this.prefix = prefix;
+    }
+
+    static S3ListEntry commonPrefix(String prefix) {
+        return new S3ListEntry(prefix, 0, null, 0, null, true);
+    }
+
+    // The object key, or the common prefix (ending with the delimiter)
+    public String getKey() {
+        return key;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    // Epoch ms
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public String getStorageClass() {
+        return storageClass;
+    }
+
+    public boolean isPrefix() {
+        return prefix;
+    }
+
+    @Override public String toString() {
+        return prefix ? key : key + " (" + size + " bytes)";
+    }
+}
@@ -0,0 +1,301 @@
+package com.perceptus.supers3t;
+
+import io.netty.buffer.ByteBufInputStream;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.ReadStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+
+/**
+ * A ListObjectsV2 listing as a {@link ReadStream} of {@link S3ListEntry}.
+ * Pages are fetched as the stream is read, and each page is pulled apart
+ * with StAX one entry at a time as the handler asks for more, so nothing
+ * but the raw page is ever held.
+ *
+ * While the handler works through one page the next is already being
+ * fetched, so at most two pages are in memory whatever the bucket's size.
+ * Pausing stops further page requests (the one fetched ahead still lands)
+ * and resuming picks up where it left off. Fetching starts once a handler is
+ * set.
+ *
+ * All state is confined to the context the stream was created on;
+ * responses are handed back to it.
+ */
+public class S3ListStream implements ReadStream<S3ListEntry> {
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+
+    private static final XMLInputFactory XML = XMLInputFactory.newFactory();
+
+    static {
+        // Listings never need either, and both are attack surface
+        XML.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XML.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    private final S3Client client;
+    private final String bucket;
+    private final String prefix;
+    private final String delimiter;
+    private final Context context;
+    private int pageSize = DEFAULT_PAGE_SIZE;
+
+    // The page being read, and the one fetched ahead of it
+    private XMLStreamReader page;
+    private Buffer prefetched;
+    // Token for the page after the last one fetched
+    private String continuationToken;
+    private boolean more = true;
+    private boolean fetching;
+    private boolean paused;
+    private boolean draining;
+    private boolean ended;
+    private long pages;
+
+    private Handler<S3ListEntry> handler;
+    private Handler<Void> endHandler;
+    private Handler<Throwable> exceptionHandler;
+
+    public S3ListStream(S3Client client, String bucket, String prefix, String delimiter) {
+        this.client = client;
+        this.bucket = bucket;
+        this.prefix = prefix;
+        this.delimiter = delimiter;
+        this.context = client.getVertx().getOrCreateContext();
+    }
+
+    // Keys per page (max-keys), at most 1000; set before reading
+    public S3ListStream setPageSize(int pageSize) {
+        if (pageSize < 1 || pageSize > 1000) {
+            throw new IllegalArgumentException("Page size must be between 1 and 1000");
+        }
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    @Override public S3ListStream handler(Handler<S3ListEntry> handler) {
+        this.handler = handler;
+        if (handler != null) {
+            onContext(this::drain);
+        }
+        return this;
+    }
+
+    @Override public S3ListStream pause() {
+        paused = true;
+        return this;
+    }
+
+    @Override public S3ListStream resume() {
+        if (paused) {
+            paused = false;
+            onContext(this::drain);
+        }
+        return this;
+    }
+
+    @Override public S3ListStream endHandler(Handler<Void> handler) {
+        this.endHandler = handler;
+        return this;
+    }
+
+    @Override public S3ListStream exceptionHandler(Handler<Throwable> handler) {
+        this.exceptionHandler = handler;
+        return this;
+    }
+
+    public String getBucket() {
+        return bucket;
+    }
+
+    // Pages fetched so far
+    public long getPages() {
+        return pages;
+    }
+
+    // Hands out entries until paused or out of pages, fetching the page
+    // after each one as it is opened
+    private void drain() {
+        if (draining) {
+            // A handler resumed us from inside the loop below
+            return;
+        }
+        draining = true;
+        try {
+            while (!paused && handler != null && !ended) {
+                if (page == null) {
+                    if (prefetched == null) {
+                        if (!more && !fetching) {
+                            end();
+                        }
+                        break;
+                    }
+                    page = XML.createXMLStreamReader(new ByteBufInputStream(prefetched.getByteBuf()), "UTF-8");
+                    prefetched = null;
+                    if (more && !fetching) {
+                        // The next page comes in while this one is read
+                        fetch();
+                    }
+                }
+                S3ListEntry entry = nextEntry(page);
+                if (entry == null) {
+                    page.close();
+                    page = null;
+                    continue;
+                }
+                handler.handle(entry);
+            }
+        } catch (XMLStreamException | RuntimeException e) {
+            fail(e);
+        } finally {
+            draining = false;
+        }
+        if (!paused && !fetching && more && prefetched == null && !ended && handler != null) {
+            fetch();
+        }
+    }
+
+    private void fetch() {
+        fetching = true;
+        client.listPage(bucket, prefix, delimiter, continuationToken, pageSize, result -> onContext(() -> fetched(result)));
+    }
+
+    private void fetched(AsyncResult<Buffer> result) {
+        fetching = false;
+        if (ended) {
+            return;
+        }
+        if (result.failed()) {
+            fail(result.cause());
+            return;
+        }
+        Buffer body = result.result();
+        pages++;
+        // The token is needed before the page is read, to fetch ahead, so
+        // it is picked out of the raw page rather than left for the parser
+        continuationToken = S3Xml.elementText(body, "NextContinuationToken");
+        more = "true".equals(S3Xml.elementText(body, "IsTruncated")) && continuationToken != null;
+        prefetched = body;
+        drain();
+    }
+
+    // The next <Contents> or <CommonPrefixes> on the page, or null at its end
+    private static S3ListEntry nextEntry(XMLStreamReader reader) throws XMLStreamException {
+        while (reader.hasNext()) {
+            if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+            switch (reader.getLocalName()) {
+                case "Contents":
+                    return readObject(reader);
+                case "CommonPrefixes":
+                    return readCommonPrefix(reader);
+                default:
+                    break;
+            }
+        }
+        return null;
+    }
+
+    private static S3ListEntry readObject(XMLStreamReader reader) throws XMLStreamException {
+        String key = null;
+        String etag = null;
+        String storageClass = null;
+        long size = 0;
+        long lastModified = 0;
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            switch (reader.getLocalName()) {
+                case "Key":
+                    key = reader.getElementText();
+                    break;
+                case "ETag":
+                    etag = reader.getElementText();
+                    break;
+                case "Size":
+                    size = Long.parseLong(reader.getElementText().trim());
+                    break;
+                case "LastModified":
+                    lastModified = parseDate(reader.getElementText());
+                    break;
+                case "StorageClass":
+                    storageClass = reader.getElementText();
+                    break;
+                default:
+                    // e.g. <Owner>, with children of its own
+                    skipElement(reader);
+            }
+        }
+        return new S3ListEntry(key, size, etag, lastModified, storageClass);
+    }
+
+    private static S3ListEntry readCommonPrefix(XMLStreamReader reader) throws XMLStreamException {
+        String prefix = null;
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if ("Prefix".equals(reader.getLocalName())) {
+                prefix = reader.getElementText();
+            } else {
+                skipElement(reader);
+            }
+        }
+        return S3ListEntry.commonPrefix(prefix);
+    }
+
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    private static long parseDate(String text) {
+        try {
+            return Instant.parse(text.trim()).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return 0;
+        }
+    }
+
+    private void end() {
+        ended = true;
+        if (endHandler != null) {
+            endHandler.handle(null);
+        }
+    }
+
+    private void fail(Throwable cause) {
+        ended = true;
+        prefetched = null;
+        if (page != null) {
+            try {
+                page.close();
+            } catch (XMLStreamException ignored) {
+                // Nothing held beyond the buffer
+            }
+            page = null;
+        }
+        if (exceptionHandler != null) {
+            exceptionHandler.handle(cause);
+        }
+    }
+
+    private void onContext(Runnable action) {
+        if (Vertx.currentContext() == context) {
+            action.run();
+        } else {
+            context.runOnContext(event -> action.run());
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.perceptus.supers3t;
+
+/**
+ * Receives what an {@link S3Client} does, one call per request. Calls come
+ * from event loops, so implementations must be thread-safe and quick.
+ * {@link S3MetricsRegistry} is the stock implementation.
+ */
+public interface S3Metrics {
+    // A request's response was read, or the request failed
+    void requestCompleted(S3RequestMetrics request);
+
+    // A request is being sent again after a failure
+    void requestRetried(String operation, String bucket);
+
+    // A second copy of a slow GET is being sent, see S3ClientOptions.setHedging
+    default void requestHedged(String operation, String bucket) {
+    }
+
+    // A GET joined one already in flight for the same object instead of
+    // being sent, see S3ClientOptions.setCoalescing
+    default void requestCoalesced(String operation, String bucket) {
+    }
+}
@@ -0,0 +1,196 @@
+package com.perceptus.supers3t;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Aggregates request metrics per operation and bucket: latency, time to
+ * first byte and pool wait histograms, bytes each way, and counts of
+ * requests, failures, retries, hedges, coalesced GETs and status codes. Recording touches only
+ * atomic counters, cheap enough to leave on.
+ *
+ * Read it through {@link #snapshot()}, or have snapshots published on the
+ * event bus with {@link #publish}.
+ */
+public class S3MetricsRegistry implements S3Metrics {
+    private final ConcurrentHashMap<String, OperationMetrics> operations = new ConcurrentHashMap<>();
+
+    /**
+     * Everything recorded for one operation on one bucket.
+     */
+    public static class OperationMetrics {
+        private final String operation;
+        private final String bucket;
+        private final S3Histogram latency = new S3Histogram();
+        private final S3Histogram timeToFirstByte = new S3Histogram();
+        private final S3Histogram poolWait = new S3Histogram();
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder retries = new LongAdder();
+        private final LongAdder hedges = new LongAdder();
+        private final LongAdder coalesced = new LongAdder();
+        private final LongAdder bytesSent = new LongAdder();
+        private final LongAdder bytesReceived = new LongAdder();
+        private final ConcurrentHashMap<Integer, LongAdder> statusCodes = new ConcurrentHashMap<>();
+
+        OperationMetrics(String operation, String bucket) {
+            this.operation = operation;
+            this.bucket = bucket;
+        }
+
+        void record(S3RequestMetrics request) {
+            requests.increment();
+            if (request.getFailure() != null) {
+                failures.increment();
+            } else {
+                statusCodes.computeIfAbsent(request.getStatusCode(), s -> new LongAdder()).increment();
+            }
+            latency.record(request.getDuration());
+            if (request.getTimeToFirstByte() >= 0) {
+                timeToFirstByte.record(request.getTimeToFirstByte());
+            }
+            poolWait.record(request.getPoolWait());
+            bytesSent.add(request.getBytesSent());
+            bytesReceived.add(request.getBytesReceived());
+        }
+
+        public String getOperation() {
+            return operation;
+        }
+
+        public String getBucket() {
+            return bucket;
+        }
+
+        public S3Histogram getLatency() {
+            return latency;
+        }
+
+        public S3Histogram getTimeToFirstByte() {
+            return timeToFirstByte;
+        }
+
+        public S3Histogram getPoolWait() {
+            return poolWait;
+        }
+
+        public long getRequests() {
+            return requests.sum();
+        }
+
+        // Requests that got no response at all
+        public long getFailures() {
+            return failures.sum();
+        }
+
+        public long getRetries() {
+            return retries.sum();
+        }
+
+        // Hedge requests sent for slow GETs
+        public long getHedges() {
+            return hedges.sum();
+        }
+
+        // GETs served by a request already in flight instead of their own
+        public long getCoalesced() {
+            return coalesced.sum();
+        }
+
+        public long getBytesSent() {
+            return bytesSent.sum();
+        }
+
+        public long getBytesReceived() {
+            return bytesReceived.sum();
+        }
+
+        public long getStatusCount(int statusCode) {
+            LongAdder count = statusCodes.get(statusCode);
+            return count == null ? 0 : count.sum();
+        }
+
+        public JsonObject toJson() {
+            JsonObject codes = new JsonObject();
+            for (Map.Entry<Integer, LongAdder> code : statusCodes.entrySet()) {
+                codes.put(String.valueOf(code.getKey()), code.getValue().sum());
+            }
+            return new JsonObject().put("operation", operation)
+                                   .put("bucket", bucket)
+                                   .put("requests", getRequests())
+                                   .put("failures", getFailures())
+                                   .put("retries", getRetries())
+                                   .put("hedges", getHedges())
+                                   .put("coalesced", getCoalesced())
+                                   .put("bytesSent", getBytesSent())
+                                   .put("bytesReceived", getBytesReceived())
+                                   .put("statusCodes", codes)
+                                   .put("latency", histogramJson(latency))
+                                   .put("timeToFirstByte", histogramJson(timeToFirstByte))
+                                   .put("poolWait", histogramJson(poolWait));
+        }
+    }
+
+    @Override public void requestCompleted(S3RequestMetrics request) {
+        operation(request.getOperation(), request.getBucket()).record(request);
+    }
+
+    @Override public void requestRetried(String operation, String bucket) {
+        operation(operation, bucket).retries.increment();
+    }
+
+    @Override public void requestHedged(String operation, String bucket) {
+        operation(operation, bucket).hedges.increment();
+    }
+
+    @Override public void requestCoalesced(String operation, String bucket) {
+        operation(operation, bucket).coalesced.increment();
+    }
+
+    public OperationMetrics operation(String operation, String bucket) {
+        String key = operation + ' ' + bucket;
+        OperationMetrics metrics = operations.get(key);
+        if (metrics == null) {
+            metrics = operations.computeIfAbsent(key, k -> new OperationMetrics(operation, bucket));
+        }
+        return metrics;
+    }
+
+    public Iterable<OperationMetrics> getOperations() {
+        return operations.values();
+    }
+
+    // {"operations": [{operation, bucket, requests, ..., latency: {...}}, ...]}
+    public JsonObject snapshot() {
+        JsonArray list = new JsonArray();
+        for (OperationMetrics metrics : operations.values()) {
+            list.add(metrics.toJson());
+        }
+        return new JsonObject().put("timestamp", System.currentTimeMillis()).put("operations", list);
+    }
+
+    // Publishes a snapshot to address every period ms -> timer id
+    public long publish(Vertx vertx, String address, long period) {
+        return vertx.setPeriodic(period, timer -> vertx.eventBus().publish(address, snapshot()));
+    }
+
+    public void reset() {
+        operations.clear();
+    }
+
+    // Microseconds, which read better than nanoseconds on a dashboard
+    private static JsonObject histogramJson(S3Histogram histogram) {
+        return new JsonObject().put("count", histogram.getCount())
+                               .put("meanUs", histogram.getMean() / 1000)
+                               .put("p50Us", histogram.getValueAtPercentile(50) / 1000)
+                               .put("p90Us", histogram.getValueAtPercentile(90) / 1000)
+                               .put("p99Us", histogram.getValueAtPercentile(99) / 1000)
+                               .put("p999Us", histogram.getValueAtPercentile(99.9) / 1000)
+                               .put("maxUs", histogram.getMax() / 1000);
+    }
+}
@@ -0,0 +1,276 @@
+package com.perceptus.supers3t;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Copies an object within S3 as a multipart upload whose parts are
+ * UploadPartCopy ranges of the source, so no bytes pass through us. This is
+ * the only way to copy objects over 5GB, and for large ones it is faster
+ * than a single CopyObject, since up to {@code concurrency} ranges are
+ * copied at once.
+ *
+ * The source is HEADed first for its length, ETag and headers; every range
+ * is copied with the ETag in x-amz-copy-source-if-match, so a source
+ * replaced part way through fails the copy rather than mixing versions. The
+ * destination gets the source's Content-Type and user metadata, as a
+ * CopyObject would. Any failure aborts the upload on S3.
+ *
+ * All state is confined to the context the copy was started on; responses
+ * are handed back to it.
+ */
+public class S3MultipartCopy {
+    private static final Logger logger = LoggerFactory.getLogger(S3MultipartCopy.class);
+
+    // S3 copies at most this much in one CopyObject or UploadPartCopy
+    public static final long MAX_COPY_SIZE = 5L * 1024 * 1024 * 1024;
+    public static final long DEFAULT_PART_SIZE = 256L * 1024 * 1024;
+    public static final int DEFAULT_CONCURRENCY = 8;
+
+    private final S3Client client;
+    private final String sourceBucket;
+    private final String sourceKey;
+    private final String bucket;
+    private final String key;
+
+    private long partSize = DEFAULT_PART_SIZE;
+    private int concurrency = DEFAULT_CONCURRENCY;
+
+    private Context context;
+    private Handler<AsyncResult<String>> handler;
+    private long length;
+    private String etag;
+    private long actualPartSize;
+    private String[] etags;
+    private String uploadId;
+    private int nextPart;
+    private int inFlight;
+    private int copied;
+    private boolean finished;
+
+    public S3MultipartCopy(S3Client client, String sourceBucket, String sourceKey, String bucket, String key) {
+        this.client = client;
+        this.sourceBucket = sourceBucket;
+        this.sourceKey = sourceKey;
+        this.bucket = bucket;
+        this.key = key;
+    }
+
+    // Raised as needed to stay within 10000 parts
+    public S3MultipartCopy setPartSize(long partSize) {
+        if (partSize < S3MultipartUpload.MIN_PART_SIZE || partSize > MAX_COPY_SIZE) {
+            throw new IllegalArgumentException("Part size must be between " + S3MultipartUpload.MIN_PART_SIZE
+                                               + " and " + MAX_COPY_SIZE + " bytes");
+        }
+        this.partSize = partSize;
+        return this;
+    }
+
+    public S3MultipartCopy setConcurrency(int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("At least one part must be allowed in flight");
+        }
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    // HEAD the source, then copy it -> handler(ETag of the new object)
+    public void start(Handler<AsyncResult<String>> handler) {
+        begin(handler);
+        client.head(sourceBucket, sourceKey, response -> {
+            if (response.statusCode() != 200) {
+                onContext(() -> fail(S3Exception.fromResponse(response.statusCode(), null)));
+                return;
+            }
+            String contentLength = response.headers().get("Content-Length");
+            if (contentLength == null) {
+                onContext(() -> fail(new S3Exception("HEAD " + sourceBucket + "/" + sourceKey
+                                                     + " returned no Content-Length")));
+                return;
+            }
+            Map<String, String> headers = copiedHeaders(response.headers());
+            long size = Long.parseLong(contentLength);
+            String sourceEtag = response.headers().get("ETag");
+            onContext(() -> initiate(size, sourceEtag, headers));
+        }, e -> onContext(() -> fail(e)));
+    }
+
+    // As above, for a source already HEADed; see S3Client#copy
+    void start(long length, String etag, Map<String, String> headers, Handler<AsyncResult<String>> handler) {
+        begin(handler);
+        onContext(() -> initiate(length, etag, headers));
+    }
+
+    private void begin(Handler<AsyncResult<String>> handler) {
+        if (this.handler != null) {
+            throw new IllegalStateException("Copy already started");
+        }
+        this.handler = handler;
+        this.context = client.getVertx().getOrCreateContext();
+    }
+
+    // The headers of a HEAD response that describe the object itself
+    static Map<String, String> copiedHeaders(Iterable<Map.Entry<String, String>> headers) {
+        Map<String, String> copied = new LinkedHashMap<>();
+        for (Map.Entry<String, String> header : headers) {
+            String name = header.getKey().toLowerCase();
+            if (name.startsWith("x-amz-meta-")
+                || name.equals("content-type")
+                || name.equals("content-encoding")
+                || name.equals("content-disposition")
+                || name.equals("content-language")
+                || name.equals("cache-control")
+                || name.equals("expires")) {
+                copied.put(header.getKey(), header.getValue());
+            }
+        }
+        return copied;
+    }
+
+    private void initiate(long length, String etag, Map<String, String> headers) {
+        this.length = length;
+        this.etag = etag;
+        if (length == 0) {
+            // An empty source has no range to copy a part from
+            copyEmpty();
+            return;
+        }
+        actualPartSize = Math.max(partSize, (length + S3MultipartUpload.MAX_PARTS - 1) / S3MultipartUpload.MAX_PARTS);
+        etags = new String[(int) ((length + actualPartSize - 1) / actualPartSize)];
+
+        client.initiateMultipartUpload(bucket, key, headers, result -> onContext(() -> {
+            if (result.failed()) {
+                fail(result.cause());
+                return;
+            }
+            uploadId = result.result();
+            if (finished) {
+                // Aborted while we were waiting
+                abortOnServer();
+                return;
+            }
+            dispatch();
+        }));
+    }
+
+    // One CopyObject, which carries the metadata over as the parts would
+    private void copyEmpty() {
+        etags = new String[0];
+        client.copyObject(sourceBucket, sourceKey, etag, bucket, key, result -> onContext(() -> {
+            if (finished) {
+                // Aborted while we were waiting
+                return;
+            }
+            finished = true;
+            if (result.failed()) {
+                logger.warn("Copy of {}/{} to {}/{} failed: {}",
+                            new Object[] { sourceBucket, sourceKey, bucket, key, result.cause().toString() });
+            }
+            handler.handle(result);
+        }));
+    }
+
+    private void dispatch() {
+        if (finished) {
+            return;
+        }
+        while (inFlight < concurrency && nextPart < etags.length) {
+            copyPart(nextPart++);
+        }
+        if (copied == etags.length) {
+            complete();
+        }
+    }
+
+    private void copyPart(int index) {
+        long first = index * actualPartSize;
+        long last = Math.min(length, first + actualPartSize) - 1;
+        inFlight++;
+        client.uploadPartCopy(bucket, key, uploadId, index + 1, sourceBucket, sourceKey, etag,
+                              first, last, result -> onContext(() -> {
+            if (finished || etags[index] != null) {
+                return;
+            }
+            inFlight--;
+            if (result.failed()) {
+                fail(result.cause());
+                return;
+            }
+            etags[index] = result.result();
+            copied++;
+            dispatch();
+        }));
+    }
+
+    private void complete() {
+        finished = true;
+        client.completeMultipartUpload(bucket, key, uploadId, Arrays.asList(etags), result -> onContext(() -> {
+            if (result.failed()) {
+                logger.warn("Multipart copy of {}/{} to {}/{} failed: {}",
+                            new Object[] { sourceBucket, sourceKey, bucket, key, result.cause().toString() });
+                abortOnServer();
+            }
+            handler.handle(result);
+        }));
+    }
+
+    // Stops copying parts and aborts the upload
+    public void abort() {
+        onContext(() -> fail(new S3Exception("Multipart copy aborted by caller")));
+    }
+
+    private void fail(Throwable cause) {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        logger.warn("Multipart copy of {}/{} to {}/{} failed: {}",
+                    new Object[] { sourceBucket, sourceKey, bucket, key, cause.toString() });
+        abortOnServer();
+        handler.handle(Future.failedFuture(cause));
+    }
+
+    private void abortOnServer() {
+        if (uploadId == null) {
+            // Not initiated yet, the initiate callback aborts it
+            return;
+        }
+        client.abortMultipartUpload(bucket, key, uploadId, result -> {
+            if (result.failed()) {
+                logger.warn("Failed to abort multipart copy {} to {}/{}: {}",
+                            new Object[] { uploadId, bucket, key, result.cause().toString() });
+            }
+        });
+    }
+
+    private void onContext(Runnable action) {
+        if (Vertx.currentContext() == context) {
+            action.run();
+        } else {
+            context.runOnContext(event -> action.run());
+        }
+    }
+
+    public String getUploadId() {
+        return uploadId;
+    }
+
+    // Parts the copy is split into, once the source has been HEADed
+    public int getParts() {
+        return etags == null ? 0 : etags.length;
+    }
+
+    // Parts copied so far
+    public int getCopiedParts() {
+        return copied;
+    }
+}
@@ -0,0 +1,351 @@
+package com.perceptus.supers3t;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.WriteStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A multipart upload exposed as a {@link WriteStream}. Bytes written are cut
+ * into parts of {@code partSize}, and up to {@code maxConcurrentParts} parts
+ * are uploaded at once. Only a bounded number of part buffers are held: the
+ * stream reports {@link #writeQueueFull()} once the parts waiting for a slot
+ * reach the write queue size, so a {@link io.vertx.core.streams.Pump} will
+ * pause its source.
+ *
+ * Call {@link #end()} once all data is written; the completion handler gets
+ * the ETag of the assembled object. Any failure aborts the upload on S3.
+ *
+ * With a codec, bytes are compressed as they are written and the coded
+ * stream is what gets cut into parts, so its length need never be known.
+ *
+ * All state is confined to the context of the first write (or end);
+ * writes from elsewhere, and responses, are handed back to it.
+ */
+public class S3MultipartUpload implements WriteStream<Buffer> {
+    private static final Logger logger = LoggerFactory.getLogger(S3MultipartUpload.class);
+
+    // S3 rejects non-final parts smaller than 5MB
+    public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+    public static final int DEFAULT_PART_SIZE = 8 * 1024 * 1024;
+    public static final int DEFAULT_MAX_CONCURRENT_PARTS = 4;
+    // S3 allows at most this many parts per upload
+    public static final int MAX_PARTS = 10000;
+
+    private final S3Client client;
+    private final String bucket;
+    private final String key;
+    private final int partSize;
+    private final int maxConcurrentParts;
+
+    // Parts cut but not yet sent, waiting for an upload id or a free slot
+    private final ArrayDeque<Part> pending = new ArrayDeque<>();
+    private final List<String> etags = new ArrayList<>();
+    private Buffer current;
+    private S3Codec codec;
+    private S3Codec.Transform encoder;
+    private int nextPartNumber = 1;
+    private int inFlight;
+    private int maxQueuedParts;
+
+    private Context context;
+    private String uploadId;
+    private boolean initiating;
+    // end() was called; the last part is queued once it runs on the context
+    private boolean ended;
+    private boolean lastQueued;
+    private boolean finished;
+
+    private Handler<Void> drainHandler;
+    private Handler<Throwable> exceptionHandler;
+    private Handler<AsyncResult<String>> completionHandler;
+
+    public S3MultipartUpload(S3Client client, String bucket, String key) {
+        this(client, bucket, key, DEFAULT_PART_SIZE, DEFAULT_MAX_CONCURRENT_PARTS);
+    }
+
+    public S3MultipartUpload(S3Client client,
+                             String bucket,
+                             String key,
+                             int partSize,
+                             int maxConcurrentParts) {
+        if (partSize < MIN_PART_SIZE) {
+            throw new IllegalArgumentException("Part size must be at least " + MIN_PART_SIZE + " bytes");
+        }
+        if (maxConcurrentParts < 1) {
+            throw new IllegalArgumentException("At least one part must be allowed in flight");
+        }
+        this.client = client;
+        this.bucket = bucket;
+        this.key = key;
+        this.partSize = partSize;
+        this.maxConcurrentParts = maxConcurrentParts;
+        this.maxQueuedParts = maxConcurrentParts;
+    }
+
+    // Compress with codec (null for none) as data is written; set before writing
+    public S3MultipartUpload setCodec(S3Codec codec) {
+        if (nextPartNumber > 1 || current != null) {
+            throw new IllegalStateException("Upload already started");
+        }
+        this.codec = codec;
+        this.encoder = codec == null ? null : codec.encoder();
+        return this;
+    }
+
+    // Called once the object is assembled (ETag) or the upload failed
+    public S3MultipartUpload completionHandler(Handler<AsyncResult<String>> handler) {
+        this.completionHandler = handler;
+        return this;
+    }
+
+    @Override public S3MultipartUpload exceptionHandler(Handler<Throwable> handler) {
+        this.exceptionHandler = handler;
+        return this;
+    }
+
+    @Override public S3MultipartUpload write(Buffer data) {
+        if (ended) {
+            throw new IllegalStateException("Upload already ended");
+        }
+        onContext(() -> {
+            if (finished) {
+                // Already failed; drop the data, the caller has been told
+                return;
+            }
+            append(encoder == null ? data : encoder.write(data));
+            dispatch();
+        });
+        return this;
+    }
+
+    // Cuts (already coded) bytes into parts
+    private void append(Buffer data) {
+        int offset = 0;
+        while (offset < data.length()) {
+            if (current == null) {
+                current = Buffer.buffer(partSize);
+            }
+            int n = Math.min(partSize - current.length(), data.length() - offset);
+            current.appendBuffer(data, offset, n);
+            offset += n;
+            if (current.length() == partSize) {
+                queuePart(current);
+                current = null;
+            }
+        }
+    }
+
+    // Maximum number of parts held in memory waiting for a free upload slot
+    @Override public S3MultipartUpload setWriteQueueMaxSize(int maxSize) {
+        this.maxQueuedParts = Math.max(1, maxSize);
+        return this;
+    }
+
+    @Override public boolean writeQueueFull() {
+        return pending.size() >= maxQueuedParts;
+    }
+
+    @Override public S3MultipartUpload drainHandler(Handler<Void> handler) {
+        this.drainHandler = handler;
+        return this;
+    }
+
+    public void end() {
+        if (ended) {
+            return;
+        }
+        ended = true;
+        onContext(() -> {
+            if (finished) {
+                return;
+            }
+            if (encoder != null) {
+                append(encoder.end());
+            }
+            // The last part may be short; an empty object still needs one part
+            if (!finished && (current != null || nextPartNumber == 1)) {
+                queuePart(current == null ? Buffer.buffer() : current);
+                current = null;
+            }
+            lastQueued = true;
+            dispatch();
+        });
+    }
+
+    public void end(Buffer data) {
+        write(data);
+        end();
+    }
+
+    // Abort the upload and discard any buffered parts
+    public void abort() {
+        abort(new S3Exception("Multipart upload aborted by caller"));
+    }
+
+    // Abort as above, failing the upload with cause (e.g. the source's error)
+    public void abort(Throwable cause) {
+        onContext(() -> fail(cause));
+    }
+
+    public String getUploadId() {
+        return uploadId;
+    }
+
+    public String getBucket() {
+        return bucket;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    private void queuePart(Buffer data) {
+        if (nextPartNumber > MAX_PARTS) {
+            fail(new S3Exception("Object exceeds " + MAX_PARTS + " parts of " + partSize + " bytes"));
+            return;
+        }
+        pending.add(new Part(nextPartNumber++, data));
+    }
+
+    private void dispatch() {
+        if (finished) {
+            return;
+        }
+        if (uploadId == null) {
+            if (!initiating && !pending.isEmpty()) {
+                initiate();
+            }
+            return;
+        }
+
+        boolean wasFull = writeQueueFull();
+        while (inFlight < maxConcurrentParts && !pending.isEmpty()) {
+            uploadPart(pending.poll());
+        }
+        if (wasFull && !writeQueueFull() && drainHandler != null) {
+            drainHandler.handle(null);
+        }
+
+        if (lastQueued && pending.isEmpty() && inFlight == 0) {
+            complete();
+        }
+    }
+
+    private void initiate() {
+        initiating = true;
+        Map<String, String> headers = codec == null
+                                      ? null
+                                      : Collections.singletonMap("Content-Encoding", codec.getEncoding());
+        client.initiateMultipartUpload(bucket, key, headers, result -> onContext(() -> {
+            initiating = false;
+            if (result.failed()) {
+                fail(result.cause());
+                return;
+            }
+            uploadId = result.result();
+            if (finished) {
+                // Failed or aborted while we were waiting
+                client.abortMultipartUpload(bucket, key, uploadId, ignored -> {
+                });
+                return;
+            }
+            dispatch();
+        }));
+    }
+
+    private void uploadPart(Part part) {
+        inFlight++;
+        client.uploadPart(bucket, key, uploadId, part.number, part.data, result -> onContext(() -> {
+            inFlight--;
+            if (finished) {
+                return;
+            }
+            if (result.failed()) {
+                fail(result.cause());
+                return;
+            }
+            while (etags.size() < part.number) {
+                etags.add(null);
+            }
+            etags.set(part.number - 1, result.result());
+            dispatch();
+        }));
+    }
+
+    private void complete() {
+        finished = true;
+        client.completeMultipartUpload(bucket, key, uploadId, etags, result -> onContext(() -> {
+            if (result.failed()) {
+                abortOnServer();
+            }
+            notifyCompletion(result);
+        }));
+    }
+
+    private void fail(Throwable cause) {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        pending.clear();
+        current = null;
+        logger.warn("Multipart upload of {}/{} failed: {}", new Object[] { bucket, key, cause.toString() });
+        abortOnServer();
+        if (exceptionHandler != null) {
+            exceptionHandler.handle(cause);
+        }
+        notifyCompletion(Future.failedFuture(cause));
+    }
+
+    private void abortOnServer() {
+        if (uploadId == null) {
+            // Not initiated yet, the initiate callback aborts it
+            return;
+        }
+        client.abortMultipartUpload(bucket, key, uploadId, result -> {
+            if (result.failed()) {
+                logger.warn("Failed to abort multipart upload {} of {}/{}: {}",
+                            new Object[] { uploadId, bucket, key, result.cause().toString() });
+            }
+        });
+    }
+
+    private void notifyCompletion(AsyncResult<String> result) {
+        if (completionHandler != null) {
+            completionHandler.handle(result);
+        }
+    }
+
+    private void onContext(Runnable action) {
+        if (context == null) {
+            context = client.getVertx().getOrCreateContext();
+        }
+        if (Vertx.currentContext() == context) {
+            action.run();
+        } else {
+            context.runOnContext(event -> action.run());
+        }
+    }
+
+    private static final class Part {
+        final int number;
+        final Buffer data;
+
+        Part(int number, Buffer data) {
+            this.number = number;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package com.perceptus.supers3t;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.buffer.Buffer;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size-bounded LRU cache of object bodies, for {@link S3Client#getCached}.
+ * Bodies live in direct (off-heap) memory, so a large cache adds nothing
+ * for the GC to scan; each entry keeps the object's ETag so it can be
+ * revalidated with If-None-Match, where a 304 costs only headers.
+ *
+ * Entries younger than the max age (0 by default) are served without asking
+ * S3 at all. The cache is thread-safe and may be shared by several clients.
+ */
+public class S3ObjectCache {
+    public static final long DEFAULT_CAPACITY = 64 * 1024 * 1024;
+    // Keys whose last invalidation is remembered, see put(..., since)
+    private static final int REMEMBERED_INVALIDATIONS = 1024;
+
+    private final long capacity;
+    private final long maxEntrySize;
+    private volatile long maxAge; // ms
+
+    // Access-ordered, so iteration starts at the least recently used
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long size;
+
+    // Bumped by every invalidation. The most recent invalidations are kept
+    // by key, and older ones folded into forgotten, so a body fetched from
+    // before the object was written can be told apart and kept out.
+    private long generation;
+    private long forgotten;
+    private final LinkedHashMap<String, Long> invalidations = new LinkedHashMap<String, Long>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            if (size() <= REMEMBERED_INVALIDATIONS) {
+                return false;
+            }
+            forgotten = eldest.getValue();
+            return true;
+        }
+    };
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * A cached body as handed out: a heap copy, safe to keep.
+     */
+    public static class Cached {
+        private final String etag;
+        private final Buffer data;
+        private final boolean fresh;
+
+        Cached(String etag, Buffer data, boolean fresh) {
+            this.etag = etag;
+            this.data = data;
+            this.fresh = fresh;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public Buffer getData() {
+            return data;
+        }
+
+        // Young enough to serve without revalidating
+        public boolean isFresh() {
+            return fresh;
+        }
+    }
+
+    private static class Entry {
+        final String etag;
+        final ByteBuf data;
+        volatile long validatedAt;
+
+        Entry(String etag, ByteBuf data, long validatedAt) {
+            this.etag = etag;
+            this.data = data;
+            this.validatedAt = validatedAt;
+        }
+    }
+
+    public S3ObjectCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public S3ObjectCache(long capacity) {
+        // No single object may take more than an eighth of the cache
+        this(capacity, capacity / 8);
+    }
+
+    public S3ObjectCache(long capacity, long maxEntrySize) {
+        this.capacity = capacity;
+        this.maxEntrySize = Math.min(maxEntrySize, capacity);
+    }
+
+    // Serve entries validated less than maxAge ms ago without a request
+    public S3ObjectCache setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+        return this;
+    }
+
+    public long getMaxAge() {
+        return maxAge;
+    }
+
+    // Lookup
+    // ------
+
+    // null on a miss
+    public Cached get(String bucket, String key) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(cacheKey(bucket, key));
+            if (entry == null) {
+                return null;
+            }
+            entry.data.retain();
+        }
+        return new Cached(entry.etag, copy(entry.data), isFresh(entry));
+    }
+
+    // ETag and freshness only, without copying the body (data is null)
+    Cached lookup(String bucket, String key) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(cacheKey(bucket, key));
+        }
+        return entry == null ? null : new Cached(entry.etag, null, isFresh(entry));
+    }
+
+    // A copy of the body if the entry still has this ETag, otherwise null
+    Buffer data(String bucket, String key, String etag) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(cacheKey(bucket, key));
+            if (entry == null || !entry.etag.equals(etag)) {
+                return null;
+            }
+            entry.data.retain();
+        }
+        return copy(entry.data);
+    }
+
+    // Copied out of a body retained under the lock, which keeps eviction
+    // from freeing the direct memory while readers copy side by side
+    private static Buffer copy(ByteBuf data) {
+        try {
+            return Buffer.buffer(Unpooled.copiedBuffer(data));
+        } finally {
+            data.release();
+        }
+    }
+
+    private boolean isFresh(Entry entry) {
+        long maxAge = this.maxAge;
+        return maxAge > 0 && System.currentTimeMillis() - entry.validatedAt < maxAge;
+    }
+
+    // S3 confirmed the entry with this ETag is current
+    void revalidated(String bucket, String key, String etag) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(cacheKey(bucket, key));
+        }
+        if (entry != null && entry.etag.equals(etag)) {
+            entry.validatedAt = System.currentTimeMillis();
+        }
+    }
+
+    // Storage
+    // -------
+
+    public void put(String bucket, String key, String etag, Buffer data) {
+        put(bucket, key, etag, data, Long.MAX_VALUE);
+    }
+
+    // The generation to pass to put for a body about to be fetched
+    synchronized long generation() {
+        return generation;
+    }
+
+    // Stores a body fetched since the given generation, unless the object
+    // has been invalidated since, when the body may predate a write
+    void put(String bucket, String key, String etag, Buffer data, long since) {
+        if (etag == null || data.length() > maxEntrySize) {
+            invalidate(bucket, key);
+            return;
+        }
+        ByteBuf direct = Unpooled.directBuffer(data.length(), data.length());
+        ByteBuf source = data.getByteBuf();
+        direct.writeBytes(source, source.readerIndex(), source.readableBytes());
+        Entry entry = new Entry(etag, direct, System.currentTimeMillis());
+        String cacheKey = cacheKey(bucket, key);
+        synchronized (this) {
+            Long invalidated = invalidations.get(cacheKey);
+            if ((invalidated == null ? forgotten : invalidated) > since) {
+                direct.release();
+                return;
+            }
+            Entry previous = entries.put(cacheKey, entry);
+            if (previous != null) {
+                size -= previous.data.capacity();
+                previous.data.release();
+            }
+            size += direct.capacity();
+            evictToCapacity();
+        }
+    }
+
+    public void invalidate(String bucket, String key) {
+        String cacheKey = cacheKey(bucket, key);
+        synchronized (this) {
+            // Moved to the end, so the eldest is always the oldest
+            invalidations.remove(cacheKey);
+            invalidations.put(cacheKey, ++generation);
+            Entry entry = entries.remove(cacheKey);
+            if (entry != null) {
+                size -= entry.data.capacity();
+                entry.data.release();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        for (Entry entry : entries.values()) {
+            entry.data.release();
+        }
+        entries.clear();
+        size = 0;
+    }
+
+    private void evictToCapacity() {
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (size > capacity && eldest.hasNext()) {
+            Entry entry = eldest.next();
+            eldest.remove();
+            size -= entry.data.capacity();
+            entry.data.release();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private static String cacheKey(String bucket, String key) {
+        return bucket + '/' + key;
+    }
+
+    // Statistics
+    // ----------
+
+    void recordHit() {
+        hits.incrementAndGet();
+    }
+
+    void recordRevalidation() {
+        revalidations.incrementAndGet();
+    }
+
+    void recordMiss() {
+        misses.incrementAndGet();
+    }
+
+    // Served from the cache, with or without a 304 round trip
+    public long getHits() {
+        return hits.get();
+    }
+
+    // Hits that needed a 304 from S3
+    public long getRevalidations() {
+        return revalidations.get();
+    }
+
+    // Fetched in full: not cached, or changed on S3
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public double getHitRatio() {
+        long hits = this.hits.get();
+        long total = hits + misses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    // Bytes of direct memory held
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public Map<String, Long> getStatistics() {
+        Map<String, Long> statistics = new LinkedHashMap<>();
+        statistics.put("hits", getHits());
+        statistics.put("revalidations", getRevalidations());
+        statistics.put("misses", getMisses());
+        statistics.put("evictions", getEvictions());
+        statistics.put("entries", (long) getEntryCount());
+        statistics.put("size", getSize());
+        return statistics;
+    }
+}
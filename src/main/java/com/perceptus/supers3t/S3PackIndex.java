@@ -0,0 +1,163 @@
+package com.perceptus.supers3t;
+
+import io.vertx.core.buffer.Buffer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Where each entry of a pack lies: its offset and length within the pack
+ * object, by name. Names are held sorted in plain arrays and looked up by
+ * binary search, so an index of a million entries costs little more than
+ * the names themselves.
+ *
+ * Stored next to the pack as {@code <key>.idx} in a compact binary form:
+ * "S3PK", a version byte, the pack's length and ETag, the entry count, then
+ * for each entry in name order the number of leading bytes its name shares
+ * with the one before, the rest of the name, its offset and its length. All
+ * numbers are big-endian.
+ */
+public final class S3PackIndex {
+    private static final byte[] MAGIC = { 'S', '3', 'P', 'K' };
+    private static final int VERSION = 1;
+
+    private final String etag;
+    private final long packLength;
+    private final String[] names;
+    private final long[] offsets;
+    private final int[] lengths;
+
+    // names sorted, offsets and lengths in the same order
+    private S3PackIndex(String etag, long packLength, String[] names, long[] offsets, int[] lengths) {
+        this.etag = etag;
+        this.packLength = packLength;
+        this.names = names;
+        this.offsets = offsets;
+        this.lengths = lengths;
+    }
+
+    // Entries as written, in any order
+    static S3PackIndex of(String etag, long packLength, List<String> names, long[] offsets, int[] lengths) {
+        Integer[] order = new Integer[names.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparing(names::get));
+        String[] sortedNames = new String[order.length];
+        long[] sortedOffsets = new long[order.length];
+        int[] sortedLengths = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            sortedNames[i] = names.get(order[i]);
+            sortedOffsets[i] = offsets[order[i]];
+            sortedLengths[i] = lengths[order[i]];
+        }
+        return new S3PackIndex(etag, packLength, sortedNames, sortedOffsets, sortedLengths);
+    }
+
+    // Position of name among the entries, or a negative number if absent
+    public int find(String name) {
+        return Arrays.binarySearch(names, name);
+    }
+
+    public boolean contains(String name) {
+        return find(name) >= 0;
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    public String getName(int entry) {
+        return names[entry];
+    }
+
+    public long getOffset(int entry) {
+        return offsets[entry];
+    }
+
+    public int getLength(int entry) {
+        return lengths[entry];
+    }
+
+    // ETag of the pack object the offsets refer to
+    public String getEtag() {
+        return etag;
+    }
+
+    public long getPackLength() {
+        return packLength;
+    }
+
+    public Buffer encode() {
+        Buffer out = Buffer.buffer(32 + names.length * 24);
+        out.appendBytes(MAGIC).appendByte((byte) VERSION).appendLong(packLength);
+        byte[] etagBytes = (etag == null ? "" : etag).getBytes(StandardCharsets.UTF_8);
+        out.appendShort((short) etagBytes.length).appendBytes(etagBytes);
+        out.appendInt(names.length);
+        byte[] previous = new byte[0];
+        for (int i = 0; i < names.length; i++) {
+            byte[] name = names[i].getBytes(StandardCharsets.UTF_8);
+            int shared = 0;
+            int limit = Math.min(Math.min(previous.length, name.length), 0xffff);
+            while (shared < limit && previous[shared] == name[shared]) {
+                shared++;
+            }
+            out.appendShort((short) shared)
+               .appendShort((short) (name.length - shared))
+               .appendBytes(name, shared, name.length - shared)
+               .appendLong(offsets[i])
+               .appendInt(lengths[i]);
+            previous = name;
+        }
+        return out;
+    }
+
+    public static S3PackIndex decode(Buffer data) {
+        try {
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (data.getByte(i) != MAGIC[i]) {
+                    throw new S3Exception("Not a pack index");
+                }
+            }
+            if (data.getByte(4) != VERSION) {
+                throw new S3Exception("Unsupported pack index version " + data.getByte(4));
+            }
+            int position = 5;
+            long packLength = data.getLong(position);
+            position += 8;
+            int etagLength = data.getShort(position) & 0xffff;
+            position += 2;
+            String etag = etagLength == 0 ? null : new String(data.getBytes(position, position + etagLength),
+                                                              StandardCharsets.UTF_8);
+            position += etagLength;
+            int count = data.getInt(position);
+            position += 4;
+
+            String[] names = new String[count];
+            long[] offsets = new long[count];
+            int[] lengths = new int[count];
+            byte[] previous = new byte[0];
+            for (int i = 0; i < count; i++) {
+                int shared = data.getShort(position) & 0xffff;
+                int rest = data.getShort(position + 2) & 0xffff;
+                position += 4;
+                byte[] name = Arrays.copyOf(previous, shared + rest);
+                data.getByteBuf().getBytes(position, name, shared, rest);
+                position += rest;
+                names[i] = new String(name, StandardCharsets.UTF_8);
+                offsets[i] = data.getLong(position);
+                lengths[i] = data.getInt(position + 8);
+                position += 12;
+                if (offsets[i] < 0 || lengths[i] < 0 || offsets[i] + lengths[i] > packLength) {
+                    throw new S3Exception("Pack index entry " + names[i] + " lies outside the pack");
+                }
+                previous = name;
+            }
+            return new S3PackIndex(etag, packLength, names, offsets, lengths);
+        } catch (IndexOutOfBoundsException e) {
+            throw new S3Exception("Pack index is truncated");
+        }
+    }
+}
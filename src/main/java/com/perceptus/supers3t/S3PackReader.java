@@ -0,0 +1,237 @@
+package com.perceptus.supers3t;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpMethod;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads entries of a pack written by {@link S3PackWriter}, each with one
+ * ranged GET of the pack. The index is loaded once, when the reader is
+ * opened (see S3Client#openPack), and kept for as long as the reader is.
+ *
+ * {@link #getAll} looks up many entries at once, sending one GET for each
+ * run of entries that lie within {@code mergeGap} bytes of each other (and
+ * within {@code maxRange} in all), so entries written together are read
+ * together. Every GET carries the pack's ETag from the index in If-Match: a
+ * pack rewritten since the index was read fails with PreconditionFailed
+ * rather than returning the wrong bytes.
+ */
+public class S3PackReader {
+    public static final int DEFAULT_MERGE_GAP = 64 * 1024;
+    public static final int DEFAULT_MAX_RANGE = 8 * 1024 * 1024;
+
+    private final S3Client client;
+    private final String bucket;
+    private final String key;
+    private final S3PackIndex index;
+
+    private int mergeGap = DEFAULT_MERGE_GAP;
+    private int maxRange = DEFAULT_MAX_RANGE;
+    private final AtomicLong requests = new AtomicLong();
+
+    public S3PackReader(S3Client client, String bucket, String key, S3PackIndex index) {
+        this.client = client;
+        this.bucket = bucket;
+        this.key = key;
+        this.index = index;
+    }
+
+    // Largest run of unwanted bytes fetched to join two wanted entries
+    public S3PackReader setMergeGap(int mergeGap) {
+        this.mergeGap = Math.max(0, mergeGap);
+        return this;
+    }
+
+    // Longest range fetched for a run of entries; larger entries go alone
+    public S3PackReader setMaxRange(int maxRange) {
+        if (maxRange < 1) {
+            throw new IllegalArgumentException("Range must be at least one byte");
+        }
+        this.maxRange = maxRange;
+        return this;
+    }
+
+    // GET one entry -> handler(body); NoSuchKey if the pack lacks it
+    public void get(String name, Handler<AsyncResult<Buffer>> handler) {
+        int entry = index.find(name);
+        if (entry < 0) {
+            handler.handle(Future.failedFuture(noSuchEntry(name)));
+            return;
+        }
+        long offset = index.getOffset(entry);
+        int length = index.getLength(entry);
+        if (length == 0) {
+            handler.handle(Future.succeededFuture(Buffer.buffer()));
+            return;
+        }
+        fetch(offset, offset + length, handler);
+    }
+
+    // GET many entries -> handler(bodies by name), in as few requests as
+    // their layout allows. Names the pack lacks are left out of the result.
+    public void getAll(Collection<String> names, Handler<AsyncResult<Map<String, Buffer>>> handler) {
+        List<Integer> entries = new ArrayList<>(names.size());
+        for (String name : new LinkedHashSet<>(names)) {
+            int entry = index.find(name);
+            if (entry >= 0) {
+                entries.add(entry);
+            }
+        }
+        Map<String, Buffer> bodies = new HashMap<>();
+        if (entries.isEmpty()) {
+            handler.handle(Future.succeededFuture(bodies));
+            return;
+        }
+        entries.sort((a, b) -> Long.compare(index.getOffset(a), index.getOffset(b)));
+
+        List<int[]> runs = new ArrayList<>();
+        int runStart = 0;
+        long start = index.getOffset(entries.get(0));
+        long end = start + index.getLength(entries.get(0));
+        for (int i = 1; i < entries.size(); i++) {
+            long offset = index.getOffset(entries.get(i));
+            long entryEnd = offset + index.getLength(entries.get(i));
+            if (offset - end <= mergeGap && Math.max(end, entryEnd) - start <= maxRange) {
+                end = Math.max(end, entryEnd);
+                continue;
+            }
+            runs.add(new int[] { runStart, i });
+            runStart = i;
+            start = offset;
+            end = entryEnd;
+        }
+        runs.add(new int[] { runStart, entries.size() });
+
+        Context context = client.getVertx().getOrCreateContext();
+        Batch batch = new Batch(context, runs.size(), bodies, handler);
+        for (int[] run : runs) {
+            List<Integer> members = entries.subList(run[0], run[1]);
+            long runOffset = index.getOffset(members.get(0));
+            long runEnd = runOffset;
+            for (int entry : members) {
+                runEnd = Math.max(runEnd, index.getOffset(entry) + index.getLength(entry));
+            }
+            if (runEnd == runOffset) {
+                // Only empty entries
+                batch.done(members, runOffset, Buffer.buffer(), null);
+                continue;
+            }
+            long from = runOffset;
+            fetch(runOffset, runEnd, result -> batch.done(members, from, result.result(), result.cause()));
+        }
+    }
+
+    // Ranged GET of bytes start..end-1 of the pack. Vert.x may report a
+    // connection closing after the response it carried, so only the first
+    // outcome is passed on.
+    private void fetch(long start, long end, Handler<AsyncResult<Buffer>> outcome) {
+        AtomicBoolean answered = new AtomicBoolean();
+        Handler<AsyncResult<Buffer>> handler = result -> {
+            if (answered.compareAndSet(false, true)) {
+                outcome.handle(result);
+            }
+        };
+        requests.incrementAndGet();
+        String range = "bytes=" + start + "-" + (end - 1);
+        String etag = index.getEtag();
+        S3RetryingRequest request = new S3RetryingRequest(client, HttpMethod.GET, bucket, key);
+        request.prepare(attempt -> {
+            attempt.putHeader("Range", range);
+            if (etag != null) {
+                attempt.putHeader("If-Match", etag);
+            }
+        });
+        request.send(response -> {
+            response.exceptionHandler(e -> handler.handle(Future.failedFuture(e)));
+            response.bodyHandler(body -> {
+                int status = response.statusCode();
+                if (status != 206 && !(status == 200 && start == 0 && end == index.getPackLength())) {
+                    handler.handle(Future.failedFuture(status == 200
+                                                       ? new S3Exception("Server does not support ranged GETs")
+                                                       : S3Exception.fromResponse(status, body)));
+                } else if (body.length() != end - start) {
+                    handler.handle(Future.failedFuture(
+                            new S3Exception("Range " + range + " returned " + body.length() + " bytes")));
+                } else {
+                    handler.handle(Future.succeededFuture(body));
+                }
+            });
+        }, e -> handler.handle(Future.failedFuture(e)));
+    }
+
+    private S3Exception noSuchEntry(String name) {
+        return new S3Exception(404, "NoSuchKey", "Pack " + bucket + "/" + key + " has no entry " + name);
+    }
+
+    public String getBucket() {
+        return bucket;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public S3PackIndex getIndex() {
+        return index;
+    }
+
+    // Ranged GETs sent so far
+    public long getRequests() {
+        return requests.get();
+    }
+
+    // The runs of one getAll, gathered on the context that called it
+    private final class Batch {
+        private final Context context;
+        private final Map<String, Buffer> bodies;
+        private final Handler<AsyncResult<Map<String, Buffer>>> handler;
+        private int outstanding;
+        private boolean finished;
+
+        Batch(Context context,
+              int runs,
+              Map<String, Buffer> bodies,
+              Handler<AsyncResult<Map<String, Buffer>>> handler) {
+            this.context = context;
+            this.outstanding = runs;
+            this.bodies = bodies;
+            this.handler = handler;
+        }
+
+        void done(List<Integer> members, long from, Buffer body, Throwable cause) {
+            if (Vertx.currentContext() != context) {
+                context.runOnContext(event -> done(members, from, body, cause));
+                return;
+            }
+            if (finished) {
+                return;
+            }
+            if (cause != null) {
+                finished = true;
+                handler.handle(Future.failedFuture(cause));
+                return;
+            }
+            for (int entry : members) {
+                int offset = (int) (index.getOffset(entry) - from);
+                bodies.put(index.getName(entry), body.slice(offset, offset + index.getLength(entry)));
+            }
+            if (--outstanding == 0) {
+                finished = true;
+                handler.handle(Future.succeededFuture(bodies));
+            }
+        }
+    }
+}
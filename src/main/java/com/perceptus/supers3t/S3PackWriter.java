@@ -0,0 +1,134 @@
+package com.perceptus.supers3t;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpMethod;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Packs many small objects into one large one. Entries are appended back to
+ * back through a {@link S3MultipartUpload}, so the pack streams out as it
+ * grows and only a bounded number of parts is held in memory. Once ended,
+ * an {@link S3PackIndex} of every entry's offset and length is stored next
+ * to it as {@code <key>.idx}; {@link S3PackReader} then fetches entries with
+ * ranged GETs. Thousands of entries cost a handful of PUTs, rather than one
+ * each.
+ *
+ * Entries are stored as given: the client's codec is not applied, since
+ * offsets must point into the stored bytes. Compress entries before adding
+ * them if need be.
+ */
+public class S3PackWriter {
+    public static final String INDEX_SUFFIX = ".idx";
+    // Longest entry name in UTF-8, as for S3 keys
+    public static final int MAX_NAME_LENGTH = 1024;
+
+    private final S3Client client;
+    private final String bucket;
+    private final String key;
+    private final S3MultipartUpload upload;
+
+    private final Set<String> seen = new HashSet<>();
+    private final List<String> names = new ArrayList<>();
+    private long[] offsets = new long[64];
+    private int[] lengths = new int[64];
+    private long length;
+    private boolean ended;
+
+    public S3PackWriter(S3Client client, String bucket, String key, int partSize, int maxConcurrentParts) {
+        this.client = client;
+        this.bucket = bucket;
+        this.key = key;
+        this.upload = new S3MultipartUpload(client, bucket, key, partSize, maxConcurrentParts);
+    }
+
+    // Appends an entry; names must be unique within the pack
+    public S3PackWriter add(String name, Buffer data) {
+        if (ended) {
+            throw new IllegalStateException("Pack already ended");
+        }
+        if (name.getBytes(StandardCharsets.UTF_8).length > MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("Entry name longer than " + MAX_NAME_LENGTH + " bytes");
+        }
+        if (!seen.add(name)) {
+            throw new IllegalArgumentException("Duplicate entry " + name);
+        }
+        int entry = names.size();
+        if (entry == offsets.length) {
+            offsets = Arrays.copyOf(offsets, entry * 2);
+            lengths = Arrays.copyOf(lengths, entry * 2);
+        }
+        names.add(name);
+        offsets[entry] = length;
+        lengths[entry] = data.length();
+        length += data.length();
+        upload.write(data);
+        return this;
+    }
+
+    // As for a WriteStream: stop adding while full, until the drain handler
+    public boolean writeQueueFull() {
+        return upload.writeQueueFull();
+    }
+
+    public S3PackWriter drainHandler(Handler<Void> handler) {
+        upload.drainHandler(handler);
+        return this;
+    }
+
+    // Completes the pack, then stores its index -> handler(index)
+    public void end(Handler<AsyncResult<S3PackIndex>> handler) {
+        if (ended) {
+            throw new IllegalStateException("Pack already ended");
+        }
+        ended = true;
+        upload.completionHandler(result -> {
+            if (result.failed()) {
+                handler.handle(Future.failedFuture(result.cause()));
+                return;
+            }
+            S3PackIndex index = S3PackIndex.of(result.result(), length, names, offsets, lengths);
+            new S3RetryingRequest(client, HttpMethod.PUT, bucket, key + INDEX_SUFFIX)
+                    .body(index.encode())
+                    .send(response -> response.bodyHandler(body -> {
+                        if (response.statusCode() == 200) {
+                            handler.handle(Future.succeededFuture(index));
+                        } else {
+                            handler.handle(Future.failedFuture(S3Exception.fromResponse(response.statusCode(), body)));
+                        }
+                    }), e -> handler.handle(Future.failedFuture(e)));
+        });
+        upload.end();
+    }
+
+    // Abandons the pack; nothing is left on S3
+    public void abort() {
+        ended = true;
+        upload.abort();
+    }
+
+    public String getBucket() {
+        return bucket;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public int getEntries() {
+        return names.size();
+    }
+
+    // Bytes added so far
+    public long getLength() {
+        return length;
+    }
+}
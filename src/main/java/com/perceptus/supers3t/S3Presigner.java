@@ -0,0 +1,85 @@
+package com.perceptus.supers3t;
+
+import io.vertx.core.http.HttpMethod;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Builds presigned URLs, so a browser or other third party can GET, PUT or
+ * DELETE an object directly without the bytes passing through us. URLs are
+ * signed with the signer the client had when the presigner was made
+ * (query-string V2 or V4), which must be an {@link S3UrlSigner}, and expire
+ * after {@link #setExpiry} seconds.
+ *
+ * Headers put here are signed into every URL, and the request made with it
+ * must send them as given (e.g. a Content-Type for an upload). Configure a
+ * presigner before sharing it; presigning itself touches only per-thread
+ * signing state, so it may then be used from any number of threads at once.
+ */
+public class S3Presigner {
+    public static final long DEFAULT_EXPIRY = 3600; // s
+
+    private final S3UrlSigner signer;
+    private final String base;
+    private final SortedMap<String, String> headers = new TreeMap<>();
+    private long expiry = DEFAULT_EXPIRY;
+
+    public S3Presigner(S3Client client) {
+        S3Signer signer = client.getSigner();
+        if (!(signer instanceof S3UrlSigner)) {
+            throw new IllegalArgumentException(signer.getClass().getSimpleName() + " can't presign URLs");
+        }
+        this.signer = (S3UrlSigner) signer;
+        S3ClientOptions options = client.getOptions();
+        this.base = (options.isSsl() ? "https://" : "http://") + options.getHostHeader();
+    }
+
+    // Seconds each URL stays good for, from when it is made
+    public S3Presigner setExpiry(long expiry) {
+        if (expiry < 1) {
+            throw new IllegalArgumentException("Expiry must be at least a second");
+        }
+        this.expiry = expiry;
+        return this;
+    }
+
+    public long getExpiry() {
+        return expiry;
+    }
+
+    // A header the URL's request must carry, e.g. Content-Type
+    public S3Presigner putHeader(String name, String value) {
+        headers.put(name.toLowerCase(), value.trim());
+        return this;
+    }
+
+    // method (bucket, key) -> URL
+    public String presign(HttpMethod method, String bucket, String key) {
+        StringBuilder url = new StringBuilder(base.length() + bucket.length() + key.length() + 320);
+        appendUrl(url, method.name(), bucket, key);
+        return url.toString();
+    }
+
+    // method (bucket, each key) -> URLs in the same order, sharing one
+    // scratch buffer
+    public List<String> presignAll(HttpMethod method, String bucket, List<String> keys) {
+        String name = method.name();
+        List<String> urls = new ArrayList<>(keys.size());
+        StringBuilder url = new StringBuilder(base.length() + bucket.length() + 384);
+        for (String key : keys) {
+            url.setLength(0);
+            appendUrl(url, name, bucket, key);
+            urls.add(url.toString());
+        }
+        return urls;
+    }
+
+    private void appendUrl(StringBuilder url, String method, String bucket, String key) {
+        url.append(base).append('/').append(bucket).append('/');
+        S3V4Signer.uriEncode(url, key, false);
+        url.append('?').append(signer.presign(method, bucket, key, headers, expiry));
+    }
+}
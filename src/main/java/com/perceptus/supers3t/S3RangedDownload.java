@@ -0,0 +1,330 @@
+package com.perceptus.supers3t;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.AsyncFile;
+import io.vertx.core.http.HttpClientResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Downloads an object as several byte ranges fetched in parallel. The object
+ * is HEADed first for its length and ETag, then split into ranges of
+ * {@code partSize}; up to {@code concurrency} ranges are in flight at once and
+ * each chunk is written straight to its offset in the {@link Sink} as it
+ * arrives. A failed or stalled range is retried from the last byte written,
+ * without touching the other ranges, after the backoff of the client's
+ * GetObject {@link S3RetryPolicy}. A response that won't get better by asking
+ * again (412 once the object has changed, 403, 404...) fails the download,
+ * and so does running out of attempts; the other ranges are then dropped.
+ *
+ * All state is confined to the context the download was started on;
+ * responses and completed writes are handed back to it.
+ */
+public class S3RangedDownload {
+    private static final Logger logger = LoggerFactory.getLogger(S3RangedDownload.class);
+
+    public static final int DEFAULT_PART_SIZE = 8 * 1024 * 1024;
+    public static final int DEFAULT_CONCURRENCY = 4;
+    public static final long DEFAULT_RANGE_TIMEOUT = 30000; // ms
+
+    // Pause a range response while this many writes are outstanding on it
+    private static final int MAX_PENDING_WRITES = 4;
+
+    /**
+     * Destination for downloaded bytes; writes may arrive out of order.
+     */
+    public interface Sink {
+        void write(long position, Buffer data, Handler<AsyncResult<Void>> handler);
+    }
+
+    private final S3Client client;
+    private final String bucket;
+    private final String key;
+
+    private int partSize = DEFAULT_PART_SIZE;
+    private int concurrency = DEFAULT_CONCURRENCY;
+    private S3RetryPolicy policy;
+    private long rangeTimeout = DEFAULT_RANGE_TIMEOUT;
+
+    private Context context;
+    private Sink sink;
+    private Handler<AsyncResult<Long>> handler;
+    private String etag;
+    private long length;
+    private long nextOffset;
+    private final List<Range> inFlight = new ArrayList<>();
+    private boolean finished;
+
+    public S3RangedDownload(S3Client client, String bucket, String key) {
+        this.client = client;
+        this.bucket = bucket;
+        this.key = key;
+        this.policy = client.getOptions().getRetryPolicy("GetObject");
+    }
+
+    public S3RangedDownload setPartSize(int partSize) {
+        if (partSize <= 0) {
+            throw new IllegalArgumentException("Part size must be positive");
+        }
+        this.partSize = partSize;
+        return this;
+    }
+
+    public S3RangedDownload setConcurrency(int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("At least one range must be allowed in flight");
+        }
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    // Attempts and backoff for each range, the client's GetObject policy by default
+    public S3RangedDownload setRetryPolicy(S3RetryPolicy policy) {
+        this.policy = policy;
+        return this;
+    }
+
+    // A range with no response or data for this long is retried
+    public S3RangedDownload setRangeTimeout(long rangeTimeout) {
+        this.rangeTimeout = rangeTimeout;
+        return this;
+    }
+
+    // Writes into the file at each range's offset -> handler(object length)
+    public void start(AsyncFile file, Handler<AsyncResult<Long>> handler) {
+        start((position, data, written) -> file.write(data, position, written), handler);
+    }
+
+    public void start(Sink sink, Handler<AsyncResult<Long>> handler) {
+        if (this.sink != null) {
+            throw new IllegalStateException("Download already started");
+        }
+        this.sink = sink;
+        this.handler = handler;
+        this.context = client.getVertx().getOrCreateContext();
+
+        client.head(bucket, key, response -> onContext(() -> {
+            if (response.statusCode() != 200) {
+                fail(S3Exception.fromResponse(response.statusCode(), null));
+                return;
+            }
+            String contentLength = response.headers().get("Content-Length");
+            if (contentLength == null) {
+                fail(new S3Exception("HEAD " + bucket + "/" + key + " returned no Content-Length"));
+                return;
+            }
+            length = Long.parseLong(contentLength);
+            etag = response.headers().get("ETag");
+            dispatch();
+        }), e -> onContext(() -> fail(e)));
+    }
+
+    private void dispatch() {
+        if (finished) {
+            return;
+        }
+        while (inFlight.size() < concurrency && nextOffset < length) {
+            long start = nextOffset;
+            long end = Math.min(length, start + partSize);
+            nextOffset = end;
+            Range range = new Range(start, end);
+            inFlight.add(range);
+            fetch(range);
+        }
+        if (inFlight.isEmpty() && nextOffset >= length) {
+            finished = true;
+            handler.handle(Future.succeededFuture(length));
+        }
+    }
+
+    private void fetch(Range range) {
+        if (finished) {
+            return;
+        }
+        final long position = range.start + range.received;
+        final int attempt = range.attempts++;
+
+        // Handlers go on the response straight away, so no data is missed;
+        // what they do is handed to the context
+        S3ClientRequest request = client.createGetRequest(bucket, key, response -> {
+            int status = response.statusCode();
+            if (status == 200 && (position != 0 || range.end != length)) {
+                // The server ignored our Range header; the body is not this range
+                response.bodyHandler(body -> onContext(() -> {
+                    if (range.attempt == attempt) {
+                        fail(new S3Exception("Server does not support ranged GETs"));
+                    }
+                }));
+                return;
+            }
+            if (status != 206 && status != 200) {
+                response.bodyHandler(body -> onContext(() -> {
+                    S3Exception failure = S3Exception.fromResponse(status, body);
+                    if (policy.isRetryable(status)) {
+                        retry(range, attempt, failure);
+                    } else if (range.attempt == attempt) {
+                        // e.g. 412: the object changed since the HEAD, and
+                        // its ranges can't be stitched together
+                        fail(failure);
+                    }
+                }));
+                return;
+            }
+            receive(range, attempt, response);
+        });
+        range.attempt = attempt;
+        request.putHeader("Range", "bytes=" + position + "-" + (range.end - 1));
+        if (etag != null) {
+            // Don't stitch together ranges of two different versions
+            request.putHeader("If-Match", etag);
+        }
+        request.setTimeout(rangeTimeout);
+        request.exceptionHandler(e -> onContext(() -> retry(range, attempt, e)));
+        request.end();
+    }
+
+    private void receive(Range range, int attempt, HttpClientResponse response) {
+        onContext(() -> {
+            if (range.attempt == attempt) {
+                range.response = response;
+            }
+        });
+        response.exceptionHandler(e -> onContext(() -> retry(range, attempt, e)));
+        response.handler(data -> onContext(() -> received(range, attempt, response, data)));
+        response.endHandler(event -> onContext(() -> {
+            if (range.attempt != attempt) {
+                return;
+            }
+            if (range.start + range.received < range.end) {
+                // Connection cut short; pick up where we left off
+                retry(range, attempt, new S3Exception("Range ended early at byte "
+                                                      + (range.start + range.received)));
+                return;
+            }
+            range.responseEnded = true;
+            completeIfDone(range);
+        }));
+    }
+
+    private void received(Range range, int attempt, HttpClientResponse response, Buffer data) {
+        if (range.attempt != attempt || finished) {
+            return;
+        }
+        long position = range.start + range.received;
+        range.received += data.length();
+        range.pendingWrites++;
+        if (range.pendingWrites >= MAX_PENDING_WRITES) {
+            response.pause();
+        }
+        sink.write(position, data, written -> onContext(() -> {
+            range.pendingWrites--;
+            if (written.failed()) {
+                // Local failure, retrying the range won't help
+                fail(written.cause());
+                return;
+            }
+            if (range.attempt == attempt && range.pendingWrites == MAX_PENDING_WRITES - 1) {
+                response.resume();
+            }
+            completeIfDone(range);
+        }));
+    }
+
+    private void completeIfDone(Range range) {
+        if (range.responseEnded && range.pendingWrites == 0 && !range.done) {
+            range.done = true;
+            range.response = null;
+            inFlight.remove(range);
+            dispatch();
+        }
+    }
+
+    private void retry(Range range, int attempt, Throwable cause) {
+        // Vert.x reports a pooled connection closing to the last response it
+        // carried, even after that response has ended
+        if (finished || range.attempt != attempt || range.responseEnded) {
+            return;
+        }
+        // Invalidate callbacks still pending for the abandoned attempt
+        range.attempt = -1;
+        range.response = null;
+        if (range.attempts >= policy.getMaxAttempts() || !policy.isRetryable(cause)) {
+            fail(cause);
+            return;
+        }
+        long delay = policy.delay(range.attempts);
+        logger.debug("Retrying range {}-{} of {}/{} in {}ms after {}",
+                     new Object[] { range.start + range.received, range.end, bucket, key, delay, cause.toString() });
+        client.requestRetried("GetObject", bucket);
+        range.timer = client.getVertx().setTimer(delay, id -> onContext(() -> {
+            range.timer = -1;
+            fetch(range);
+        }));
+    }
+
+    private void fail(Throwable cause) {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        for (Range range : inFlight) {
+            cancel(range);
+        }
+        inFlight.clear();
+        handler.handle(Future.failedFuture(cause));
+    }
+
+    // Drops a range still under way. Vert.x can't close a pooled connection
+    // without leaking its slot in the pool, so a response already coming in
+    // is read to its end and thrown away rather than cut off.
+    private void cancel(Range range) {
+        range.attempt = -1;
+        if (range.timer >= 0) {
+            client.getVertx().cancelTimer(range.timer);
+            range.timer = -1;
+        }
+        HttpClientResponse response = range.response;
+        if (response != null) {
+            range.response = null;
+            response.handler(data -> {
+            });
+            response.resume();
+        }
+    }
+
+    private void onContext(Runnable action) {
+        if (Vertx.currentContext() == context) {
+            action.run();
+        } else {
+            context.runOnContext(event -> action.run());
+        }
+    }
+
+    private static final class Range {
+        final long start;
+        final long end;
+        long received;
+        int attempts;
+        int attempt;
+        int pendingWrites;
+        // The response of the current attempt once it has arrived, and the
+        // timer for the next attempt while one is waiting
+        HttpClientResponse response;
+        long timer = -1;
+        boolean responseEnded;
+        boolean done;
+
+        Range(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+}
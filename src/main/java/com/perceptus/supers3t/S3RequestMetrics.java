@@ -0,0 +1,137 @@
+package com.perceptus.supers3t;
+
+/**
+ * What one request did, handed to {@link S3Metrics#requestCompleted} once
+ * its response has been read (or the request failed). Times are in
+ * nanoseconds, measured from when the request was ended and so handed to
+ * the connection pool.
+ *
+ * The pool wait is an estimate: Vert.x doesn't say when a request gets its
+ * connection, so a request that starts while the pool is fully busy is
+ * assumed to wait for the next request on the same client to finish.
+ */
+public class S3RequestMetrics {
+    private final String operation;
+    private final String bucket;
+
+    private long sentAt;
+    private long poolWait;
+    private long timeToFirstByte = -1;
+    private long duration = -1;
+    private long bytesSent;
+    private long bytesReceived;
+    private int statusCode;
+    private Throwable failure;
+    // Set while this request is counted as in flight, and while it is
+    // queued for a connection
+    private volatile boolean inFlight;
+    private volatile boolean waiting;
+
+    S3RequestMetrics(String operation, String bucket) {
+        this.operation = operation;
+        this.bucket = bucket;
+    }
+
+    // S3 API name of the operation: GetObject, PutObject, UploadPart...
+    public String getOperation() {
+        return operation;
+    }
+
+    public String getBucket() {
+        return bucket;
+    }
+
+    // 0 if the request failed without a response
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    // Connection or protocol failure, if any
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    public boolean isSuccess() {
+        return failure == null && statusCode >= 200 && statusCode < 300;
+    }
+
+    public long getPoolWait() {
+        return poolWait;
+    }
+
+    // Until the response headers arrived; -1 if they never did
+    public long getTimeToFirstByte() {
+        return timeToFirstByte;
+    }
+
+    // Until the response body was read
+    public long getDuration() {
+        return duration;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    // Recording (package-private, driven by S3ClientRequest and S3Client)
+    // ---------
+
+    void sent(long now) {
+        sentAt = now;
+    }
+
+    boolean isSent() {
+        return sentAt != 0;
+    }
+
+    long getSentAt() {
+        return sentAt;
+    }
+
+    void setPoolWait(long poolWait) {
+        this.poolWait = poolWait;
+    }
+
+    void addBytesSent(long bytes) {
+        bytesSent += bytes;
+    }
+
+    void addBytesReceived(long bytes) {
+        bytesReceived += bytes;
+    }
+
+    void firstByte(int statusCode, long now) {
+        this.statusCode = statusCode;
+        this.timeToFirstByte = now - sentAt;
+    }
+
+    // true the first time only
+    boolean finish(Throwable failure, long now) {
+        if (duration >= 0) {
+            return false;
+        }
+        this.failure = failure;
+        this.duration = now - sentAt;
+        return true;
+    }
+
+    boolean isInFlight() {
+        return inFlight;
+    }
+
+    void setInFlight(boolean inFlight) {
+        this.inFlight = inFlight;
+    }
+
+    boolean isWaiting() {
+        return waiting;
+    }
+
+    void setWaiting(boolean waiting) {
+        this.waiting = waiting;
+    }
+}
@@ -0,0 +1,81 @@
+package com.perceptus.supers3t;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * When and how soon an {@link S3Client} sends a request again. Connection
+ * failures, timeouts and 500/502/503/504 responses (503 being S3's SlowDown)
+ * are retried up to {@code maxAttempts} attempts in all, each after a random
+ * delay of up to {@code baseDelay * 2^(attempt - 1)} ms, capped at
+ * {@code maxDelay} ("full jitter"), so clients backing off from the same
+ * throttling spread out instead of coming back together.
+ *
+ * Policies are immutable and set per operation through
+ * {@link S3ClientOptions#setRetryPolicy(String, S3RetryPolicy)}.
+ */
+public class S3RetryPolicy {
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final long DEFAULT_BASE_DELAY = 50; // ms
+    public static final long DEFAULT_MAX_DELAY = 2000; // ms
+
+    // Every request is sent exactly once
+    public static final S3RetryPolicy NONE = new S3RetryPolicy(1, 0, 0);
+
+    private final int maxAttempts;
+    private final long baseDelay;
+    private final long maxDelay;
+
+    public S3RetryPolicy() {
+        this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY);
+    }
+
+    public S3RetryPolicy(int maxAttempts, long baseDelay, long maxDelay) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("At least one attempt is needed");
+        }
+        this.maxAttempts = maxAttempts;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    // Attempts in all, the first included
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getBaseDelay() {
+        return baseDelay;
+    }
+
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    // Whether a response with this status is worth another attempt
+    public boolean isRetryable(int statusCode) {
+        switch (statusCode) {
+            case 500:
+            case 502:
+            case 503:
+            case 504:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Whether a request that failed this way (reset, timeout...) is worth
+    // another attempt
+    public boolean isRetryable(Throwable failure) {
+        return true;
+    }
+
+    // Milliseconds to wait before the attempt after this one (1-based), at least 1
+    public long delay(int attempt) {
+        long ceiling = baseDelay << Math.min(attempt - 1, 30);
+        if (ceiling <= 0 || ceiling > maxDelay) {
+            ceiling = maxDelay;
+        }
+        return 1 + (ceiling > 0 ? ThreadLocalRandom.current().nextLong(ceiling) : 0);
+    }
+}
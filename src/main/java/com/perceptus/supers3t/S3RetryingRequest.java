@@ -0,0 +1,325 @@
+package com.perceptus.supers3t;
+
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.AsyncFile;
+import io.vertx.core.file.OpenOptions;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.streams.Pump;
+
+/**
+ * One logical request, sent as many times as its {@link S3RetryPolicy}
+ * allows. Every attempt is a fresh {@link S3ClientRequest}, so it is signed
+ * (and dated) as it goes out. With hedging, a second copy of the first
+ * attempt goes out once it has taken longer than the client's hedge delay,
+ * and whichever answers first is handed on.
+ *
+ * The caller's handler gets the first response that isn't worth retrying,
+ * or the last one once attempts run out; the exception handler gets the
+ * last failure if no attempt got a response at all. Responses that are
+ * dropped are still read, so their connections go back to the pool.
+ */
+class S3RetryingRequest {
+    private final S3Client client;
+    private final HttpMethod method;
+    private final String bucket;
+    private final String key;
+    private String subResource;
+    private String query;
+    private Buffer body;
+    private String path;
+    private long length;
+    private Handler<S3ClientRequest> preparer;
+    private boolean hedge;
+
+    private String operation;
+    private S3RetryPolicy policy;
+    private Handler<HttpClientResponse> handler;
+    private Handler<Throwable> exceptionHandler;
+
+    // Guarded by this: responses, failures and timers arrive on any thread
+    private int attempt;
+    private int outstanding;
+    private boolean done;
+    private long hedgeTimer = -1;
+
+    S3RetryingRequest(S3Client client, HttpMethod method, String bucket, String key) {
+        this.client = client;
+        this.method = method;
+        this.bucket = bucket;
+        this.key = key;
+    }
+
+    S3RetryingRequest subResource(String subResource) {
+        this.subResource = subResource;
+        return this;
+    }
+
+    // Percent-encoded query parameters besides the sub-resource
+    S3RetryingRequest query(String query) {
+        this.query = query;
+        return this;
+    }
+
+    // Sent with every attempt
+    S3RetryingRequest body(Buffer body) {
+        this.body = body;
+        return this;
+    }
+
+    // Streamed from the file at path, of length bytes, with every attempt
+    S3RetryingRequest file(String path, long length) {
+        this.path = path;
+        this.length = length;
+        return this;
+    }
+
+    // Called on each attempt's request before it is sent, e.g. for headers
+    S3RetryingRequest prepare(Handler<S3ClientRequest> preparer) {
+        this.preparer = preparer;
+        return this;
+    }
+
+    S3RetryingRequest hedge(boolean hedge) {
+        this.hedge = hedge;
+        return this;
+    }
+
+    void send(Handler<HttpClientResponse> handler, Handler<Throwable> exceptionHandler) {
+        this.handler = handler;
+        this.exceptionHandler = exceptionHandler;
+        this.operation = S3Client.operationName(method.name(), key, subResource);
+        this.policy = client.getOptions().getRetryPolicy(operation);
+        synchronized (this) {
+            attempt = 1;
+        }
+        attempt();
+    }
+
+    private void attempt() {
+        sendCopy();
+        if (hedge) {
+            long delay = client.hedgeDelay();
+            long timer = client.getVertx().setTimer(delay, id -> hedgeNow());
+            synchronized (this) {
+                hedgeTimer = timer;
+            }
+        }
+    }
+
+    private void hedgeNow() {
+        synchronized (this) {
+            hedgeTimer = -1;
+            // Only while the first copy of this attempt is still out
+            if (done || outstanding != 1) {
+                return;
+            }
+        }
+        client.requestHedged(operation, bucket);
+        sendCopy();
+    }
+
+    private void sendCopy() {
+        Copy copy = new Copy(System.nanoTime());
+        synchronized (this) {
+            outstanding++;
+        }
+        S3ClientRequest request = client.createRequest(method, bucket, key, subResource, query, response -> responded(copy, response));
+        request.exceptionHandler(failure -> failed(copy, failure));
+        long timeout = client.getOptions().getRequestTimeout();
+        if (timeout > 0) {
+            request.setTimeout(timeout);
+        }
+        if (preparer != null) {
+            preparer.handle(request);
+        }
+        if (path != null) {
+            sendFile(copy, request);
+        } else if (body != null) {
+            request.end(body);
+        } else {
+            request.end();
+        }
+    }
+
+    // Opened afresh for each attempt and pumped in as the connection takes it.
+    // The copy holds on to it until it has been read to the end, or until
+    // the copy is answered, fails or is abandoned, if that happens sooner.
+    private void sendFile(Copy copy, S3ClientRequest request) {
+        request.putHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(length));
+        // Holding the file open only once the request may go
+        request.whenAdmitted(() -> {
+            OpenOptions options = new OpenOptions().setRead(true).setWrite(false);
+            client.getVertx().fileSystem().open(path, options, opened -> {
+                if (opened.failed()) {
+                    abandon(copy, opened.cause());
+                    return;
+                }
+                AsyncFile file = opened.result();
+                Pump pump = Pump.pump(file, request);
+                boolean open;
+                synchronized (this) {
+                    open = !copy.settled;
+                    if (open) {
+                        copy.file = file;
+                        copy.pump = pump;
+                    }
+                }
+                if (!open) {
+                    // Already over, e.g. failed while the file was opening
+                    file.close();
+                    return;
+                }
+                file.exceptionHandler(failure -> {
+                    closeFile(copy);
+                    abandon(copy, failure);
+                });
+                file.endHandler(event -> {
+                    closeFile(copy);
+                    request.end();
+                });
+                pump.start();
+            });
+        });
+    }
+
+    // Stops pumping the copy's file, if it has one open, and closes it
+    private void closeFile(Copy copy) {
+        AsyncFile file;
+        Pump pump;
+        synchronized (this) {
+            file = copy.file;
+            pump = copy.pump;
+            copy.file = null;
+            copy.pump = null;
+        }
+        if (file != null) {
+            pump.stop();
+            file.close();
+        }
+    }
+
+    private void responded(Copy copy, HttpClientResponse response) {
+        // S3 may answer (e.g. with an error) before it has read the whole body
+        closeFile(copy);
+        if (hedge) {
+            client.recordGetLatency(System.nanoTime() - copy.sentAt);
+        }
+        int status = response.statusCode();
+        boolean deliver;
+        boolean retry = false;
+        synchronized (this) {
+            if (copy.settled || done) {
+                copy.settled = true;
+                deliver = false;
+            } else {
+                copy.settled = true;
+                outstanding--;
+                boolean retryable = policy.isRetryable(status);
+                if (retryable && outstanding > 0) {
+                    // The other copy may yet do better
+                    deliver = false;
+                } else if (retryable && attempt < policy.getMaxAttempts()) {
+                    deliver = false;
+                    retry = true;
+                } else {
+                    deliver = true;
+                    finish();
+                }
+            }
+        }
+        if (deliver) {
+            handler.handle(response);
+        } else {
+            // Read and drop it, so the connection is released
+            response.handler(data -> {
+            });
+            if (retry) {
+                retryLater();
+            }
+        }
+    }
+
+    private void failed(Copy copy, Throwable failure) {
+        closeFile(copy);
+        boolean retry = false;
+        boolean give = false;
+        synchronized (this) {
+            // Vert.x may report a connection closing after its response
+            if (copy.settled || done) {
+                return;
+            }
+            copy.settled = true;
+            outstanding--;
+            if (outstanding > 0) {
+                return;
+            }
+            if (attempt < policy.getMaxAttempts() && policy.isRetryable(failure)) {
+                retry = true;
+            } else {
+                give = true;
+                finish();
+            }
+        }
+        if (retry) {
+            retryLater();
+        } else if (give && exceptionHandler != null) {
+            exceptionHandler.handle(failure);
+        }
+    }
+
+    // A local failure, e.g. reading the file; trying again won't help
+    private void abandon(Copy copy, Throwable failure) {
+        closeFile(copy);
+        synchronized (this) {
+            if (copy.settled || done) {
+                return;
+            }
+            copy.settled = true;
+            outstanding--;
+            finish();
+        }
+        if (exceptionHandler != null) {
+            exceptionHandler.handle(failure);
+        }
+    }
+
+    // Holding the lock
+    private void finish() {
+        done = true;
+        if (hedgeTimer >= 0) {
+            client.getVertx().cancelTimer(hedgeTimer);
+            hedgeTimer = -1;
+        }
+    }
+
+    private void retryLater() {
+        long delay;
+        synchronized (this) {
+            if (hedgeTimer >= 0) {
+                client.getVertx().cancelTimer(hedgeTimer);
+                hedgeTimer = -1;
+            }
+            delay = policy.delay(attempt);
+            attempt++;
+        }
+        client.requestRetried(operation, bucket);
+        client.getVertx().setTimer(delay, id -> attempt());
+    }
+
+    // One copy of the request on the wire
+    private static final class Copy {
+        final long sentAt;
+        // Answered, failed, or dropped; guarded by the enclosing request
+        boolean settled;
+        // The file being pumped into this copy, while it is open
+        AsyncFile file;
+        Pump pump;
+
+        Copy(long sentAt) {
+            this.sentAt = sentAt;
+        }
+    }
+}
@@ -0,0 +1,386 @@
+package com.perceptus.supers3t;
+
+import io.vertx.core.Context;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpMethod;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Random-access reads of one object, for formats such as Parquet or ORC that
+ * read a footer and then jump between column chunks. The object is read in
+ * aligned blocks of {@code blockSize} through ranged GETs, and the most
+ * recently used {@code cacheBlocks} blocks are kept, so small reads near one
+ * another cost one request between them.
+ *
+ * Blocks needed together go out as one request: all the blocks one read
+ * spans, and the ranges given to {@link #prefetch}, where ranges only
+ * {@code mergeGap} blocks apart are joined with the blocks between. Once
+ * reads run sequentially the next {@code readAhead} blocks are fetched in
+ * the background, topped up as the reader gets to them. Every GET carries
+ * the object's ETag in If-Match, so blocks of two versions are never mixed.
+ *
+ * Like any channel, reads block, so this must not be read from an event
+ * loop; use it from a worker or your own thread. It is meant for one reader
+ * at a time.
+ */
+public class S3SeekableChannel implements SeekableByteChannel {
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+    public static final int DEFAULT_CACHE_BLOCKS = 32;
+    public static final int DEFAULT_READ_AHEAD = 4; // blocks
+    public static final int DEFAULT_MERGE_GAP = 1; // blocks
+    public static final long DEFAULT_TIMEOUT = 60000; // ms
+
+    private final S3Client client;
+    private final String bucket;
+    private final String key;
+    private final long size;
+    private final String etag;
+
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+    private int cacheBlocks = DEFAULT_CACHE_BLOCKS;
+    private int readAhead = DEFAULT_READ_AHEAD;
+    private int mergeGap = DEFAULT_MERGE_GAP;
+    private long timeout = DEFAULT_TIMEOUT;
+
+    // Guarded by this: filled in from the event loop. Least recently used
+    // first; blocks still being fetched count too.
+    private final LinkedHashMap<Long, CompletableFuture<Buffer>> blocks =
+            new LinkedHashMap<Long, CompletableFuture<Buffer>>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override protected boolean removeEldestEntry(Map.Entry<Long, CompletableFuture<Buffer>> eldest) {
+                    return size() > cacheBlocks;
+                }
+            };
+    private long requests;
+
+    private long position;
+    // Where the last read ended, to spot sequential reading
+    private long lastEnd = -1;
+    private boolean open = true;
+
+    // size and etag as a HEAD returned them; see S3Client#openChannel
+    public S3SeekableChannel(S3Client client, String bucket, String key, long size, String etag) {
+        this.client = client;
+        this.bucket = bucket;
+        this.key = key;
+        this.size = size;
+        this.etag = etag;
+    }
+
+    // Set these before reading
+
+    public S3SeekableChannel setBlockSize(int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Block size must be positive");
+        }
+        this.blockSize = blockSize;
+        return this;
+    }
+
+    public S3SeekableChannel setCacheBlocks(int cacheBlocks) {
+        if (cacheBlocks < 1) {
+            throw new IllegalArgumentException("At least one block must be cached");
+        }
+        this.cacheBlocks = cacheBlocks;
+        return this;
+    }
+
+    // Blocks fetched ahead of a sequential reader; 0 for none
+    public S3SeekableChannel setReadAhead(int readAhead) {
+        this.readAhead = Math.max(0, readAhead);
+        return this;
+    }
+
+    // Largest run of unwanted blocks fetched to join two wanted ranges
+    public S3SeekableChannel setMergeGap(int mergeGap) {
+        this.mergeGap = Math.max(0, mergeGap);
+        return this;
+    }
+
+    // Longest a read waits for its blocks, in ms
+    public S3SeekableChannel setTimeout(long timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
+    @Override public int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if (Context.isOnEventLoopThread()) {
+            throw new IllegalStateException("Reading an S3SeekableChannel would block the event loop");
+        }
+        if (position >= size) {
+            return -1;
+        }
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        // A short read rather than evicting blocks before they're copied
+        long length = Math.min(dst.remaining(), Math.min(size - position,
+                               (long) cacheBlocks * blockSize - position % blockSize));
+        long first = position / blockSize;
+        long last = (position + length - 1) / blockSize;
+
+        List<CompletableFuture<Buffer>> needed = new ArrayList<>((int) (last - first + 1));
+        synchronized (this) {
+            TreeSet<Long> wanted = new TreeSet<>();
+            for (long block = first; block <= last; block++) {
+                // Touched first, so fetching the rest can't evict them
+                blocks.get(block);
+                wanted.add(block);
+            }
+            fetch(wanted);
+            for (long block = first; block <= last; block++) {
+                needed.add(blocks.get(block));
+            }
+            if (position == lastEnd) {
+                readAhead(last);
+            }
+        }
+
+        long at = position;
+        for (int i = 0; i < needed.size(); i++) {
+            Buffer block = await(needed.get(i));
+            int offset = (int) (at - (first + i) * blockSize);
+            int n = (int) Math.min(block.length() - offset, position + length - at);
+            dst.put(block.getByteBuf().nioBuffer(offset, n));
+            at += n;
+        }
+        int read = (int) (at - position);
+        position = at;
+        lastEnd = at;
+        return read;
+    }
+
+    /**
+     * Starts fetching ranges that will be read soon, e.g. the column chunks
+     * a footer points to. Ranges that are near each other go out as one
+     * request.
+     */
+    public void prefetch(long[] positions, long[] lengths) throws IOException {
+        ensureOpen();
+        TreeSet<Long> wanted = new TreeSet<>();
+        for (int i = 0; i < positions.length; i++) {
+            long end = Math.min(size, positions[i] + lengths[i]);
+            for (long block = positions[i] / blockSize; block * blockSize < end; block++) {
+                wanted.add(block);
+            }
+        }
+        synchronized (this) {
+            fetch(wanted);
+        }
+    }
+
+    public void prefetch(long position, long length) throws IOException {
+        prefetch(new long[] { position }, new long[] { length });
+    }
+
+    // Keeps readAhead blocks past the last one read in hand, topping up
+    // once half of them have been used
+    private void readAhead(long last) {
+        long lastBlock = (size - 1) / blockSize;
+        int ahead = 0;
+        while (ahead < readAhead && last + ahead + 1 <= lastBlock && blocks.containsKey(last + ahead + 1)) {
+            ahead++;
+        }
+        if (ahead >= (readAhead + 1) / 2 || last == lastBlock) {
+            return;
+        }
+        TreeSet<Long> wanted = new TreeSet<>();
+        for (long block = last + 1; block <= Math.min(lastBlock, last + readAhead); block++) {
+            wanted.add(block);
+        }
+        fetch(wanted);
+    }
+
+    // Sends a request for each run of wanted blocks not already cached or
+    // on their way, joining runs across small gaps of blocks not cached
+    private void fetch(TreeSet<Long> wanted) {
+        long runStart = -1;
+        long runEnd = -1;
+        for (long block : wanted) {
+            if (blocks.containsKey(block)) {
+                continue;
+            }
+            if (runStart >= 0 && block - runEnd - 1 <= mergeGap && !anyCached(runEnd + 1, block - 1)) {
+                runEnd = block;
+                continue;
+            }
+            if (runStart >= 0) {
+                request(runStart, runEnd);
+            }
+            runStart = block;
+            runEnd = block;
+        }
+        if (runStart >= 0) {
+            request(runStart, runEnd);
+        }
+    }
+
+    private boolean anyCached(long from, long to) {
+        for (long block = from; block <= to; block++) {
+            if (blocks.containsKey(block)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // One ranged GET for blocks from..to, split into blocks as it lands
+    private void request(long from, long to) {
+        List<CompletableFuture<Buffer>> futures = new ArrayList<>((int) (to - from + 1));
+        for (long block = from; block <= to; block++) {
+            CompletableFuture<Buffer> future = new CompletableFuture<>();
+            blocks.put(block, future);
+            futures.add(future);
+        }
+        requests++;
+        long start = from * blockSize;
+        long end = Math.min(size, (to + 1) * blockSize);
+        String range = "bytes=" + start + "-" + (end - 1);
+
+        S3RetryingRequest request = new S3RetryingRequest(client, HttpMethod.GET, bucket, key);
+        request.prepare(attempt -> {
+            attempt.putHeader("Range", range);
+            if (etag != null) {
+                attempt.putHeader("If-Match", etag);
+            }
+        });
+        request.send(response -> {
+            response.exceptionHandler(e -> failed(from, futures, e));
+            response.bodyHandler(body -> {
+                int status = response.statusCode();
+                if (status != 206 && !(status == 200 && start == 0 && end == size)) {
+                    failed(from, futures, status == 200
+                                          ? new S3Exception("Server does not support ranged GETs")
+                                          : S3Exception.fromResponse(status, body));
+                    return;
+                }
+                if (body.length() != end - start) {
+                    failed(from, futures, new S3Exception("Range " + range + " returned " + body.length() + " bytes"));
+                    return;
+                }
+                if (futures.size() == 1) {
+                    futures.get(0).complete(body);
+                    return;
+                }
+                // Copied out, so a cached block doesn't pin the whole merged
+                // response after its neighbours are evicted
+                for (int i = 0; i < futures.size(); i++) {
+                    futures.get(i).complete(body.getBuffer(i * blockSize, Math.min(body.length(), (i + 1) * blockSize)));
+                }
+            });
+        }, e -> failed(from, futures, e));
+    }
+
+    // Drops the blocks so a later read tries again. Vert.x may report a
+    // connection closing after the response it carried, so blocks already
+    // handed over are kept.
+    private void failed(long from, List<CompletableFuture<Buffer>> futures, Throwable cause) {
+        synchronized (this) {
+            for (int i = 0; i < futures.size(); i++) {
+                if (!futures.get(i).isDone()) {
+                    blocks.remove(from + i, futures.get(i));
+                }
+            }
+        }
+        for (CompletableFuture<Buffer> future : futures) {
+            future.completeExceptionally(cause);
+        }
+    }
+
+    private Buffer await(CompletableFuture<Buffer> block) throws IOException {
+        try {
+            return block.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted reading " + bucket + "/" + key);
+        } catch (ExecutionException e) {
+            throw new IOException("Reading " + bucket + "/" + key + " failed", e.getCause());
+        } catch (TimeoutException e) {
+            throw new IOException("Timed out reading " + bucket + "/" + key);
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    @Override public long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override public S3SeekableChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position");
+        }
+        this.position = newPosition;
+        return this;
+    }
+
+    @Override public long size() throws IOException {
+        ensureOpen();
+        return size;
+    }
+
+    @Override public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override public boolean isOpen() {
+        return open;
+    }
+
+    // Requests already sent are left to finish
+    @Override public void close() {
+        open = false;
+        synchronized (this) {
+            blocks.clear();
+        }
+    }
+
+    public String getBucket() {
+        return bucket;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    // Ranged GETs sent so far
+    public synchronized long getRequests() {
+        return requests;
+    }
+
+    // Blocks cached or being fetched
+    public synchronized int getCachedBlocks() {
+        return blocks.size();
+    }
+}
@@ -0,0 +1,11 @@
+package com.perceptus.supers3t;
+
+/**
+ * Adds authentication to a request right before it is sent. Signers are
+ * shared by every request of a client and may be called from several event
+ * loops at once, so implementations must be thread-safe.
+ */
+public interface S3Signer {
+    void sign(S3ClientRequest request);
+
+}
@@ -0,0 +1,382 @@
+package com.perceptus.supers3t;
+
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.MultiMap;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.net.NetSocket;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Coalesces concurrent GETs of the same object (and range) into one request,
+ * for {@link S3ClientOptions#setCoalescing}. The first GET goes out; every GET
+ * of the same thing made before that response has ended joins it, and each
+ * caller is handed its own view of the one response.
+ *
+ * Body chunks are passed to every view as the same Buffer, not a copy, and
+ * are kept until the response ends, so a caller that joins late (or pauses)
+ * is first given what it missed. Views never pause the connection; a slow
+ * reader only falls behind. All views are driven from the context the shared
+ * response arrives on.
+ *
+ * Since the whole body is held, only responses whose Content-Length is
+ * within {@link S3ClientOptions#getCoalescingMaxSize} are shared. A larger
+ * one goes to the first caller alone, to read at its own pace, and the
+ * others send their own GETs.
+ *
+ * A write of the object through the same client ends sharing of any flight
+ * for it, so a GET made after the write never gets a body from before it.
+ */
+class S3SingleFlight {
+    private final S3Client client;
+    private final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<>();
+
+    S3SingleFlight(S3Client client) {
+        this.client = client;
+    }
+
+    void get(String bucket,
+             String key,
+             String range,
+             Handler<HttpClientResponse> handler,
+             Handler<Throwable> exceptionHandler) {
+        String id = range == null ? bucket + '/' + key : bucket + '/' + key + ' ' + range;
+        View view = new View(handler, exceptionHandler);
+        while (true) {
+            Flight flight = flights.get(id);
+            if (flight == null) {
+                Flight started = new Flight(id, bucket, key, range);
+                flight = flights.putIfAbsent(id, started);
+                if (flight == null) {
+                    started.join(view);
+                    client.getObject(bucket, key, range, started::respond, started::fail);
+                    return;
+                }
+            }
+            if (flight.join(view)) {
+                return;
+            }
+            // Ended as we got to it; it's gone from the map, so go again
+        }
+    }
+
+    // The object is being, or has been, written: GETs from here on start a
+    // flight of their own, while those already in one still share it
+    void forget(String bucket, String key) {
+        if (flights.isEmpty()) {
+            return;
+        }
+        flights.values().removeIf(flight -> flight.bucket.equals(bucket) && flight.key.equals(key));
+    }
+
+    /**
+     * One request and everyone waiting on it.
+     */
+    private final class Flight {
+        private final String id;
+        private final String bucket;
+        private final String key;
+        private final String range;
+        // Guarded by this
+        private final List<View> views = new ArrayList<>();
+        private final List<Buffer> chunks = new ArrayList<>();
+        private HttpClientResponse response;
+        private Context context;
+        private boolean ended;
+        // Too large to share; no one else joins
+        private boolean unshared;
+        private Throwable failure;
+        private Buffer body;
+
+        Flight(String id, String bucket, String key, String range) {
+            this.id = id;
+            this.bucket = bucket;
+            this.key = key;
+            this.range = range;
+        }
+
+        // false once the response has ended, failed or turned out too large
+        // to share, when it's too late
+        boolean join(View view) {
+            synchronized (this) {
+                if (ended || unshared || failure != null) {
+                    return false;
+                }
+                views.add(view);
+                view.flight = this;
+                if (response == null) {
+                    // Handed the response with everyone else
+                    return true;
+                }
+            }
+            client.requestCoalesced("GetObject", bucket);
+            context.runOnContext(event -> view.respond());
+            return true;
+        }
+
+        void respond(HttpClientResponse response) {
+            if (!shareable(response)) {
+                unshare(response);
+                return;
+            }
+            List<View> waiting;
+            synchronized (this) {
+                this.response = response;
+                this.context = Vertx.currentContext();
+                waiting = new ArrayList<>(views);
+            }
+            response.handler(this::received);
+            response.endHandler(this::ended);
+            response.exceptionHandler(this::fail);
+            for (int i = 1; i < waiting.size(); i++) {
+                client.requestCoalesced("GetObject", bucket);
+            }
+            for (View view : waiting) {
+                view.respond();
+            }
+        }
+
+        private boolean shareable(HttpClientResponse response) {
+            String contentLength = response.getHeader("Content-Length");
+            if (contentLength == null) {
+                return false;
+            }
+            try {
+                return Long.parseLong(contentLength.trim()) <= client.getOptions().getCoalescingMaxSize();
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+
+        // The first caller gets the response itself, with its own
+        // back-pressure; the rest go again, uncoalesced
+        private void unshare(HttpClientResponse response) {
+            List<View> waiting;
+            synchronized (this) {
+                unshared = true;
+                waiting = new ArrayList<>(views);
+            }
+            flights.remove(id, this);
+            waiting.get(0).handler.handle(response);
+            for (View view : waiting.subList(1, waiting.size())) {
+                client.getObject(bucket, key, range, view.handler, view.exceptionHandler);
+            }
+        }
+
+        private void received(Buffer data) {
+            synchronized (this) {
+                chunks.add(data);
+            }
+            drainAll();
+        }
+
+        private void ended(Void event) {
+            synchronized (this) {
+                ended = true;
+            }
+            flights.remove(id, this);
+            drainAll();
+        }
+
+        void fail(Throwable failure) {
+            List<View> waiting;
+            boolean responded;
+            synchronized (this) {
+                // Vert.x may report a connection closing after its response
+                if (ended || this.failure != null) {
+                    return;
+                }
+                this.failure = failure;
+                responded = response != null;
+                waiting = new ArrayList<>(views);
+            }
+            flights.remove(id, this);
+            for (View view : waiting) {
+                if (responded) {
+                    view.drain();
+                } else if (view.exceptionHandler != null) {
+                    view.exceptionHandler.handle(failure);
+                }
+            }
+        }
+
+        private void drainAll() {
+            List<View> reading;
+            synchronized (this) {
+                reading = new ArrayList<>(views);
+            }
+            for (View view : reading) {
+                view.drain();
+            }
+        }
+
+        synchronized Buffer chunk(int index) {
+            return index < chunks.size() ? chunks.get(index) : null;
+        }
+
+        synchronized boolean isEnded() {
+            return ended;
+        }
+
+        synchronized Throwable getFailure() {
+            return failure;
+        }
+
+        // The whole body, assembled once for all views that want it
+        synchronized Buffer body() {
+            if (body == null) {
+                if (chunks.size() == 1) {
+                    body = chunks.get(0);
+                } else {
+                    int length = 0;
+                    for (Buffer chunk : chunks) {
+                        length += chunk.length();
+                    }
+                    body = Buffer.buffer(length);
+                    for (Buffer chunk : chunks) {
+                        body.appendBuffer(chunk);
+                    }
+                }
+            }
+            return body;
+        }
+    }
+
+    /**
+     * One caller's view of a shared response. Only touched on the flight's
+     * context once the response has arrived.
+     */
+    private static final class View implements HttpClientResponse {
+        private final Handler<HttpClientResponse> handler;
+        private final Handler<Throwable> exceptionHandler;
+        private Flight flight;
+        private HttpClientResponse response;
+
+        private Handler<Buffer> dataHandler;
+        private Handler<Void> endHandler;
+        private Handler<Throwable> responseExceptionHandler;
+        private Handler<Buffer> bodyHandler;
+        private boolean paused;
+        // Next chunk to hand on
+        private int position;
+        private boolean done;
+
+        View(Handler<HttpClientResponse> handler, Handler<Throwable> exceptionHandler) {
+            this.handler = handler;
+            this.exceptionHandler = exceptionHandler;
+        }
+
+        void respond() {
+            synchronized (flight) {
+                response = flight.response;
+            }
+            handler.handle(this);
+            drain();
+        }
+
+        // Hands on whatever has arrived since last time, then the end
+        void drain() {
+            if (response == null || done) {
+                // Not handed the response yet; it will catch up then
+                return;
+            }
+            while (!paused) {
+                Buffer chunk = flight.chunk(position);
+                if (chunk == null) {
+                    break;
+                }
+                position++;
+                if (dataHandler != null) {
+                    dataHandler.handle(chunk);
+                }
+            }
+            if (paused || flight.chunk(position) != null) {
+                return;
+            }
+            if (flight.isEnded()) {
+                done = true;
+                if (bodyHandler != null) {
+                    bodyHandler.handle(flight.body());
+                }
+                if (endHandler != null) {
+                    endHandler.handle(null);
+                }
+            } else if (flight.getFailure() != null) {
+                done = true;
+                if (responseExceptionHandler != null) {
+                    responseExceptionHandler.handle(flight.getFailure());
+                }
+            }
+        }
+
+        @Override public HttpClientResponse handler(Handler<Buffer> handler) {
+            this.dataHandler = handler;
+            return this;
+        }
+
+        @Override public HttpClientResponse endHandler(Handler<Void> handler) {
+            this.endHandler = handler;
+            return this;
+        }
+
+        @Override public HttpClientResponse exceptionHandler(Handler<Throwable> handler) {
+            this.responseExceptionHandler = handler;
+            return this;
+        }
+
+        @Override public HttpClientResponse bodyHandler(Handler<Buffer> handler) {
+            this.bodyHandler = handler;
+            return this;
+        }
+
+        @Override public HttpClientResponse pause() {
+            paused = true;
+            return this;
+        }
+
+        @Override public HttpClientResponse resume() {
+            if (paused) {
+                paused = false;
+                flight.context.runOnContext(event -> drain());
+            }
+            return this;
+        }
+
+        @Override public int statusCode() {
+            return response.statusCode();
+        }
+
+        @Override public String statusMessage() {
+            return response.statusMessage();
+        }
+
+        @Override public MultiMap headers() {
+            return response.headers();
+        }
+
+        @Override public String getHeader(String headerName) {
+            return response.getHeader(headerName);
+        }
+
+        @Override public String getTrailer(String trailerName) {
+            return response.getTrailer(trailerName);
+        }
+
+        @Override public MultiMap trailers() {
+            return response.trailers();
+        }
+
+        @Override public List<String> cookies() {
+            return response.cookies();
+        }
+
+        @Override public NetSocket netSocket() {
+            throw new IllegalStateException("A coalesced response's connection is shared");
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.perceptus.supers3t;
+
+import java.util.SortedMap;
+
+/**
+ * A signer that can also sign a URL, for {@link S3Presigner}. Like signing,
+ * presigning may be called from several threads at once.
+ */
+public interface S3UrlSigner extends S3Signer {
+    /**
+     * Query-string authentication, for a request someone else (a browser,
+     * say) will make: the parameters to append to the object's URL, good
+     * for expiresIn seconds from now.
+     *
+     * @param key the object key, unencoded
+     * @param headers lowercase header names to values the request must be
+     *                sent with, all of which are signed; usually empty
+     */
+    String presign(String method,
+                   String bucket,
+                   String key,
+                   SortedMap<String, String> headers,
+                   long expiresIn);
+}
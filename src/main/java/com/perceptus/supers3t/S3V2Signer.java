@@ -0,0 +1,207 @@
+package com.perceptus.supers3t;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Legacy "AWS access:signature" HMAC-SHA1 signing.
+ * http://docs.amazonwebservices.com/AmazonS3/latest/dev/RESTAuthentication.html
+ *
+ * Each thread keeps its own keyed {@link Mac} and scratch buffers, so signing
+ * a request allocates little beyond the header strings themselves.
+ *
+ * Presigned URLs use the query-string form (AWSAccessKeyId, Expires and
+ * Signature parameters), where Expires takes the place of the date.
+ */
+public class S3V2Signer implements S3UrlSigner {
+    private static final Logger logger = LoggerFactory.getLogger(S3V2Signer.class);
+
+    private final String awsAccessKey;
+    private final String awsSecretKey;
+    private final String awsSessionToken;
+    private final String authorizationPrefix;
+
+    private final ThreadLocal<SigningState> state;
+
+    public S3V2Signer(String awsAccessKey, String awsSecretKey, String awsSessionToken) {
+        this.awsAccessKey = awsAccessKey;
+        this.awsSecretKey = awsSecretKey;
+        this.awsSessionToken = isBlank(awsSessionToken) ? null : awsSessionToken;
+        this.authorizationPrefix = "AWS " + awsAccessKey + ":";
+        this.state = ThreadLocal.withInitial(() -> new SigningState(awsSecretKey));
+    }
+
+    @Override public void sign(S3ClientRequest request) {
+        // Date should look like Thu, 17 Nov 2005 18:49:58 GMT, and must be
+        // within 15 min of S3 server time.
+        // contentMd5 and type are optional
+
+        // We can't risk letting our date get clobbered and being
+        // inconsistent
+        String xamzdate = S3Dates.httpDate();
+        request.headers().add("X-Amz-Date", xamzdate);
+        if (awsSessionToken != null) {
+            request.headers().add("X-Amz-Security-Token", awsSessionToken);
+        }
+
+        SigningState signingState = state.get();
+        StringBuilder toSign = signingState.builder;
+        toSign.setLength(0);
+        toSign.append(request.getMethod()).append('\n');
+        appendNonNull(toSign, request.getContentMd5()).append('\n');
+        appendNonNull(toSign, request.getContentType()).append('\n');
+        // Skipping the date, we'll use the x-amz date instead
+        toSign.append('\n');
+        // Every x-amz- header, the date among them, lowercased and sorted
+        TreeMap<String, String> amzHeaders = signingState.amzHeaders;
+        amzHeaders.clear();
+        for (Map.Entry<String, String> header : request.headers()) {
+            String name = header.getKey().toLowerCase();
+            if (name.startsWith("x-amz-")) {
+                amzHeaders.merge(name, header.getValue().trim(), (a, b) -> a + "," + b);
+            }
+        }
+        for (Map.Entry<String, String> header : amzHeaders.entrySet()) {
+            toSign.append(header.getKey()).append(':').append(header.getValue()).append('\n');
+        }
+        toSign.append('/').append(request.getBucket()).append('/').append(request.getKey());
+        if (request.getSubResource() != null) {
+            toSign.append('?').append(request.getSubResource());
+        }
+
+        String signature = signingState.sign(toSign);
+
+        // Put that nasty auth string in the headers and let vert.x deal
+        request.headers().add("Authorization", authorizationPrefix + signature);
+    }
+
+    // Expires stands in for the date, and the path is signed as it appears
+    // in the URL
+    @Override public String presign(String method,
+                                    String bucket,
+                                    String key,
+                                    SortedMap<String, String> headers,
+                                    long expiresIn) {
+        long expires = System.currentTimeMillis() / 1000 + expiresIn;
+        SigningState signingState = state.get();
+        StringBuilder toSign = signingState.builder;
+        toSign.setLength(0);
+        toSign.append(method).append('\n');
+        appendNonNull(toSign, headers.get("content-md5")).append('\n');
+        appendNonNull(toSign, headers.get("content-type")).append('\n');
+        toSign.append(expires).append('\n');
+        TreeMap<String, String> amzHeaders = signingState.amzHeaders;
+        amzHeaders.clear();
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (header.getKey().startsWith("x-amz-")) {
+                amzHeaders.put(header.getKey(), header.getValue());
+            }
+        }
+        if (awsSessionToken != null) {
+            amzHeaders.put("x-amz-security-token", awsSessionToken);
+        }
+        for (Map.Entry<String, String> header : amzHeaders.entrySet()) {
+            toSign.append(header.getKey()).append(':').append(header.getValue()).append('\n');
+        }
+        toSign.append('/').append(bucket).append('/');
+        S3V4Signer.uriEncode(toSign, key, false);
+
+        String signature = signingState.sign(toSign);
+
+        StringBuilder query = signingState.query;
+        query.setLength(0);
+        query.append("AWSAccessKeyId=");
+        S3V4Signer.uriEncode(query, awsAccessKey, true);
+        query.append("&Expires=").append(expires).append("&Signature=");
+        S3V4Signer.uriEncode(query, signature, true);
+        if (awsSessionToken != null) {
+            query.append("&x-amz-security-token=");
+            S3V4Signer.uriEncode(query, awsSessionToken, true);
+        }
+        return query.toString();
+    }
+
+    // Base64 HMAC-SHA1 of the string to sign
+    public String computeSignature(CharSequence stringToSign) {
+        return state.get().sign(stringToSign);
+    }
+
+    public String getAwsAccessKey() {
+        return awsAccessKey;
+    }
+
+    private static StringBuilder appendNonNull(StringBuilder builder, String value) {
+        return value == null ? builder : builder.append(value);
+    }
+
+    private static boolean isBlank(String value) {
+        return value == null || value.trim().length() == 0;
+    }
+
+    /**
+     * Per-thread signing scratch space: a keyed Mac plus buffers for the
+     * canonical string, reused from one request to the next.
+     */
+    private static final class SigningState {
+        final Mac mac;
+        final StringBuilder builder = new StringBuilder(256);
+        final StringBuilder query = new StringBuilder(256);
+        final TreeMap<String, String> amzHeaders = new TreeMap<>();
+        byte[] bytes = new byte[256];
+
+        SigningState(String awsSecretKey) {
+            Mac keyed;
+            try {
+                keyed = Mac.getInstance("HmacSHA1");
+                keyed.init(new SecretKeySpec(awsSecretKey.getBytes(StandardCharsets.UTF_8), "HmacSHA1"));
+            } catch (InvalidKeyException | NoSuchAlgorithmException e) {
+                // This will totally fail,
+                // but downstream users can handle it
+                logger.error("Failed to initialize S3 request signing due to " + e);
+                keyed = null;
+            }
+            this.mac = keyed;
+        }
+
+        String sign(CharSequence toSign) {
+            if (mac == null) {
+                return "ERRORSIGNATURE";
+            }
+            int length = encode(toSign);
+            mac.update(bytes, 0, length);
+            return Base64.getEncoder().encodeToString(mac.doFinal());
+        }
+
+        // UTF-8 encode into the reusable byte buffer; keys and headers are
+        // almost always ASCII, which takes the fast path
+        private int encode(CharSequence chars) {
+            int length = chars.length();
+            if (bytes.length < length) {
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            }
+            for (int i = 0; i < length; i++) {
+                char c = chars.charAt(i);
+                if (c >= 0x80) {
+                    byte[] encoded = chars.toString().getBytes(StandardCharsets.UTF_8);
+                    if (bytes.length < encoded.length) {
+                        bytes = new byte[encoded.length];
+                    }
+                    System.arraycopy(encoded, 0, bytes, 0, encoded.length);
+                    return encoded.length;
+                }
+                bytes[i] = (byte) c;
+            }
+            return length;
+        }
+    }
+}
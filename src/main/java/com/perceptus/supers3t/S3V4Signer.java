@@ -0,0 +1,569 @@
+package com.perceptus.supers3t;
+
+import io.vertx.core.buffer.Buffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * AWS Signature Version 4 (AWS4-HMAC-SHA256) signing.
+ * http://docs.aws.amazon.com/AmazonS3/latest/API/sig-v4-header-based-auth.html
+ *
+ * The signing key derived from the secret, date, region and service takes
+ * four chained HMACs; it is cached and only rebuilt when the UTC date rolls
+ * over. Each thread keeps its own digest, Mac and canonical-string buffers.
+ *
+ * Payloads are sent as UNSIGNED-PAYLOAD unless the request carries a
+ * precomputed hash ({@link S3ClientRequest#setPayloadHash(String)}), so large
+ * streaming PUTs never need a second pass over the body.
+ *
+ * Presigned URLs carry the same signature in X-Amz-* query parameters
+ * instead of headers, for up to a week.
+ */
+public class S3V4Signer implements S3UrlSigner {
+    private static final Logger logger = LoggerFactory.getLogger(S3V4Signer.class);
+
+    public static final String ALGORITHM = "AWS4-HMAC-SHA256";
+    public static final String UNSIGNED_PAYLOAD = "UNSIGNED-PAYLOAD";
+    public static final String EMPTY_PAYLOAD_HASH =
+            "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+    public static final String DEFAULT_REGION = "us-east-1";
+    // Longest a V4 presigned URL may last, in seconds (a week)
+    public static final long MAX_PRESIGN_EXPIRY = 7 * 24 * 3600;
+    private static final String SERVICE = "s3";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final String awsAccessKey;
+    private final String awsSecretKey;
+    private final String awsSessionToken;
+    private final String region;
+    private final String host;
+
+    private volatile SigningKey signingKey = new SigningKey(null, null, null);
+    private final ThreadLocal<SigningState> state = ThreadLocal.withInitial(SigningState::new);
+
+    public S3V4Signer(String awsAccessKey,
+                      String awsSecretKey,
+                      String awsSessionToken,
+                      String region,
+                      String host) {
+        this.awsAccessKey = awsAccessKey;
+        this.awsSecretKey = awsSecretKey;
+        this.awsSessionToken = awsSessionToken == null || awsSessionToken.trim().length() == 0
+                               ? null : awsSessionToken;
+        this.region = region;
+        this.host = host;
+    }
+
+    // Region implied by an S3 endpoint such as s3-us-west-1.amazonaws.com or
+    // s3.eu-central-1.amazonaws.com; us-east-1 for anything else
+    public static String regionForEndpoint(String endpoint) {
+        String host = endpoint.toLowerCase();
+        if (host.endsWith(".amazonaws.com")) {
+            String label = host.substring(0, host.length() - ".amazonaws.com".length());
+            if (label.startsWith("s3-") || label.startsWith("s3.")) {
+                String region = label.substring(3);
+                if (region.startsWith("external-")) {
+                    return DEFAULT_REGION;
+                }
+                return region;
+            }
+        }
+        return DEFAULT_REGION;
+    }
+
+    @Override public void sign(S3ClientRequest request) {
+        String amzDate = S3Dates.amzDate();
+        boolean streaming = request.isStreamingPayload();
+        String payloadHash;
+        boolean trailing = streaming && request.hasTrailingChecksum();
+        if (streaming) {
+            payloadHash = trailing ? S3ChunkedPayloadEncoder.STREAMING_PAYLOAD_TRAILER
+                                   : S3ChunkedPayloadEncoder.STREAMING_PAYLOAD;
+            long decodedLength = request.getStreamingContentLength();
+            request.headers().set("Content-Encoding", "aws-chunked");
+            request.headers().set("X-Amz-Decoded-Content-Length", String.valueOf(decodedLength));
+            if (trailing) {
+                request.headers().set("X-Amz-Trailer", S3Checksums.CRC32C_HEADER);
+            }
+            request.headers().set("Content-Length", String.valueOf(
+                    S3ChunkedPayloadEncoder.encodedLength(decodedLength,
+                                                          request.getStreamingChunkSize(),
+                                                          trailing ? S3Checksums.CRC32C_TRAILER_LENGTH : -1)));
+        } else {
+            payloadHash = request.getPayloadHash() == null ? UNSIGNED_PAYLOAD : request.getPayloadHash();
+        }
+
+        request.headers().set("Host", host);
+        request.headers().set("X-Amz-Date", amzDate);
+        request.headers().set("X-Amz-Content-Sha256", payloadHash);
+        if (awsSessionToken != null) {
+            request.headers().set("X-Amz-Security-Token", awsSessionToken);
+        }
+
+        SigningState signingState = state.get();
+        SortedMap<String, String> headers = signingState.headers;
+        headers.clear();
+        for (Map.Entry<String, String> header : request.headers()) {
+            String name = header.getKey().toLowerCase();
+            if (isSignedHeader(name)) {
+                String value = header.getValue().trim();
+                headers.merge(name, value, (a, b) -> a + "," + b);
+            }
+        }
+
+        String signedHeaders = signedHeaders(signingState, headers);
+        SigningKey key = signingKey(amzDate.substring(0, 8));
+        String signature = signature(signingState,
+                                     key,
+                                     request.getMethod(),
+                                     "/" + request.getBucket() + "/" + request.getKey(),
+                                     query(request),
+                                     headers,
+                                     signedHeaders,
+                                     payloadHash,
+                                     amzDate);
+        request.headers().set("Authorization", authorizationHeader(signingState, key, signedHeaders, signature));
+
+        if (streaming && key.key != null) {
+            // Chunk signatures chain off the one we just sent
+            request.setChunkEncoder(new S3ChunkedPayloadEncoder(key,
+                                                                amzDate,
+                                                                signature,
+                                                                request.getStreamingChunkSize(),
+                                                                trailing ? request::checksumTrailer : null,
+                                                                request::writeEncoded));
+        }
+    }
+
+    // Query-string authentication: the X-Amz-* parameters, already in
+    // canonical order, signed as they are with UNSIGNED-PAYLOAD
+    @Override public String presign(String method,
+                                    String bucket,
+                                    String key,
+                                    SortedMap<String, String> headers,
+                                    long expiresIn) {
+        if (expiresIn > MAX_PRESIGN_EXPIRY) {
+            throw new IllegalArgumentException("Presigned URLs expire within " + MAX_PRESIGN_EXPIRY + "s");
+        }
+        String amzDate = S3Dates.amzDate();
+        SigningState signingState = state.get();
+        SortedMap<String, String> signed = signingState.headers;
+        signed.clear();
+        signed.putAll(headers);
+        signed.put("host", host);
+        String signedHeaders = signedHeaders(signingState, signed);
+        SigningKey signingKey = signingKey(amzDate.substring(0, 8));
+
+        StringBuilder query = signingState.presign;
+        query.setLength(0);
+        query.append("X-Amz-Algorithm=").append(ALGORITHM).append("&X-Amz-Credential=");
+        uriEncode(query, awsAccessKey, true);
+        query.append("%2F");
+        uriEncode(query, signingKey.scope, true);
+        query.append("&X-Amz-Date=").append(amzDate).append("&X-Amz-Expires=").append(expiresIn);
+        if (awsSessionToken != null) {
+            query.append("&X-Amz-Security-Token=");
+            uriEncode(query, awsSessionToken, true);
+        }
+        query.append("&X-Amz-SignedHeaders=");
+        uriEncode(query, signedHeaders, true);
+
+        String signature = canonicalSignature(signingState,
+                                              signingKey,
+                                              method,
+                                              "/" + bucket + "/" + key,
+                                              query,
+                                              signed,
+                                              signedHeaders,
+                                              UNSIGNED_PAYLOAD,
+                                              amzDate);
+        return query.append("&X-Amz-Signature=").append(signature).toString();
+    }
+
+    // Sub-resource and plain query parameters, as sent
+    private static String query(S3ClientRequest request) {
+        String subResource = request.getSubResource();
+        String query = request.getQuery();
+        if (query == null || query.isEmpty()) {
+            return subResource;
+        }
+        return subResource == null || subResource.isEmpty() ? query : subResource + "&" + query;
+    }
+
+    /**
+     * Authorization header value for a request.
+     *
+     * @param path unencoded absolute path, e.g. /bucket/key
+     * @param query raw query string (may be null)
+     * @param headers lowercase header names to trimmed values, all of which are signed
+     */
+    public String authorization(String method,
+                                String path,
+                                String query,
+                                SortedMap<String, String> headers,
+                                String payloadHash,
+                                String amzDate) {
+        SigningState signingState = state.get();
+        String signedHeaders = signedHeaders(signingState, headers);
+        SigningKey key = signingKey(amzDate.substring(0, 8));
+        String signature = signature(signingState, key, method, path, query, headers, signedHeaders, payloadHash, amzDate);
+        return authorizationHeader(signingState, key, signedHeaders, signature);
+    }
+
+    /**
+     * A payload framed as aws-chunked, as a streaming request whose headers
+     * were signed with seedSignature would send it.
+     *
+     * @param chunkSize bytes of payload in each chunk but the last
+     * @param seedSignature the Signature of the request's Authorization header
+     */
+    public Buffer chunked(Buffer payload, int chunkSize, String seedSignature, String amzDate) {
+        Buffer encoded = Buffer.buffer();
+        S3ChunkedPayloadEncoder encoder = new S3ChunkedPayloadEncoder(signingKey(amzDate.substring(0, 8)),
+                                                                      amzDate,
+                                                                      seedSignature,
+                                                                      chunkSize,
+                                                                      null,
+                                                                      encoded::appendBuffer);
+        encoder.write(payload);
+        encoder.end();
+        return encoded;
+    }
+
+    private String authorizationHeader(SigningState signingState,
+                                       SigningKey key,
+                                       String signedHeaders,
+                                       String signature) {
+        StringBuilder authorization = signingState.scratch;
+        authorization.setLength(0);
+        authorization.append(ALGORITHM)
+                     .append(" Credential=").append(awsAccessKey).append('/').append(key.scope)
+                     .append(", SignedHeaders=").append(signedHeaders)
+                     .append(", Signature=").append(signature);
+        return authorization.toString();
+    }
+
+    // Hex SHA-256 of a buffered body, for the precomputed-payload-hash mode
+    public static String hashPayload(Buffer body) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return hex(digest.digest(body.getBytes()));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 unavailable", e);
+        }
+    }
+
+    public String getRegion() {
+        return region;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    String getAwsAccessKey() {
+        return awsAccessKey;
+    }
+
+    String getAwsSessionToken() {
+        return awsSessionToken;
+    }
+
+    String signature(SigningState signingState,
+                     SigningKey key,
+                     String method,
+                     String path,
+                     String query,
+                     SortedMap<String, String> headers,
+                     String signedHeaders,
+                     String payloadHash,
+                     String amzDate) {
+        StringBuilder canonicalQuery = signingState.query;
+        canonicalQuery.setLength(0);
+        appendCanonicalQuery(canonicalQuery, query);
+        return canonicalSignature(signingState, key, method, path, canonicalQuery,
+                                  headers, signedHeaders, payloadHash, amzDate);
+    }
+
+    // As above, with the query already canonical (encoded and sorted)
+    private String canonicalSignature(SigningState signingState,
+                                      SigningKey key,
+                                      String method,
+                                      String path,
+                                      CharSequence canonicalQuery,
+                                      SortedMap<String, String> headers,
+                                      String signedHeaders,
+                                      String payloadHash,
+                                      String amzDate) {
+        // Canonical request
+        StringBuilder canonical = signingState.canonical;
+        canonical.setLength(0);
+        canonical.append(method).append('\n');
+        uriEncode(canonical, path, false);
+        canonical.append('\n');
+        canonical.append(canonicalQuery);
+        canonical.append('\n');
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            canonical.append(header.getKey()).append(':').append(header.getValue()).append('\n');
+        }
+        canonical.append('\n').append(signedHeaders).append('\n').append(payloadHash);
+
+        // String to sign
+        StringBuilder toSign = signingState.toSign;
+        toSign.setLength(0);
+        toSign.append(ALGORITHM).append('\n')
+              .append(amzDate).append('\n')
+              .append(key.scope).append('\n')
+              .append(signingState.sha256Hex(canonical));
+
+        return signingState.hmacHex(key, toSign);
+    }
+
+    SigningKey signingKey(String date) {
+        SigningKey key = signingKey;
+        if (!date.equals(key.date)) {
+            // Once a day; racing threads derive the same key, last one wins
+            try {
+                byte[] secret = ("AWS4" + awsSecretKey).getBytes(StandardCharsets.UTF_8);
+                byte[] dateKey = hmac(secret, date);
+                byte[] regionKey = hmac(dateKey, region);
+                byte[] serviceKey = hmac(regionKey, SERVICE);
+                byte[] derived = hmac(serviceKey, "aws4_request");
+                key = new SigningKey(date, derived, date + "/" + region + "/" + SERVICE + "/aws4_request");
+            } catch (GeneralSecurityException e) {
+                // This will totally fail,
+                // but downstream users can handle it
+                logger.error("Failed to derive S3 signing key due to " + e);
+                key = new SigningKey(date, null, date + "/" + region + "/" + SERVICE + "/aws4_request");
+            }
+            signingKey = key;
+        }
+        return key;
+    }
+
+    private static boolean isSignedHeader(String name) {
+        // Leave out headers proxies or the HTTP stack may add or rewrite
+        switch (name) {
+            case "authorization":
+            case "connection":
+            case "content-length":
+            case "expect":
+            case "transfer-encoding":
+            case "user-agent":
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    private static String signedHeaders(SigningState signingState, SortedMap<String, String> headers) {
+        StringBuilder builder = signingState.scratch;
+        builder.setLength(0);
+        for (String name : headers.keySet()) {
+            if (builder.length() > 0) {
+                builder.append(';');
+            }
+            builder.append(name);
+        }
+        return builder.toString();
+    }
+
+    // Sorted, encoded name=value pairs; valueless sub-resources get "name=".
+    // Pairs already percent-encoded in the URI are decoded first, so they
+    // aren't encoded twice.
+    static void appendCanonicalQuery(StringBuilder builder, String query) {
+        if (query == null || query.isEmpty()) {
+            return;
+        }
+        TreeMap<String, String> params = new TreeMap<>();
+        for (String pair : query.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            int equals = pair.indexOf('=');
+            String name = equals < 0 ? pair : pair.substring(0, equals);
+            String value = equals < 0 ? "" : pair.substring(equals + 1);
+            StringBuilder encodedName = new StringBuilder();
+            uriEncode(encodedName, uriDecode(name), true);
+            StringBuilder encodedValue = new StringBuilder();
+            uriEncode(encodedValue, uriDecode(value), true);
+            params.put(encodedName.toString(), encodedValue.toString());
+        }
+        boolean first = true;
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            if (!first) {
+                builder.append('&');
+            }
+            first = false;
+            builder.append(param.getKey()).append('=').append(param.getValue());
+        }
+    }
+
+    // RFC 3986 encoding as S3 expects it; '/' is kept unless encodeSlash
+    static void uriEncode(StringBuilder builder, String value, boolean encodeSlash) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                || c == '-' || c == '_' || c == '.' || c == '~' || (c == '/' && !encodeSlash)) {
+                builder.append(c);
+            } else if (c < 0x80) {
+                appendPercent(builder, c);
+            } else {
+                int end = i + 1;
+                if (Character.isHighSurrogate(c) && end < value.length()) {
+                    end++;
+                }
+                for (byte b : value.substring(i, end).getBytes(StandardCharsets.UTF_8)) {
+                    appendPercent(builder, b & 0xff);
+                }
+                i = end - 1;
+            }
+        }
+    }
+
+    // Inverse of uriEncode ('+' is left alone)
+    static String uriDecode(String value) {
+        if (value.indexOf('%') < 0) {
+            return value;
+        }
+        StringBuilder decoded = new StringBuilder(value.length());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int i = 0;
+        while (i < value.length()) {
+            // Runs of %XX are UTF-8 bytes
+            while (i + 2 < value.length() && value.charAt(i) == '%'
+                   && Character.digit(value.charAt(i + 1), 16) >= 0
+                   && Character.digit(value.charAt(i + 2), 16) >= 0) {
+                bytes.write(Integer.parseInt(value.substring(i + 1, i + 3), 16));
+                i += 3;
+            }
+            if (bytes.size() > 0) {
+                decoded.append(new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+                bytes.reset();
+            }
+            if (i < value.length()) {
+                decoded.append(value.charAt(i++));
+            }
+        }
+        return decoded.toString();
+    }
+
+    private static void appendPercent(StringBuilder builder, int b) {
+        builder.append('%')
+               .append(Character.toUpperCase(HEX[b >> 4]))
+               .append(Character.toUpperCase(HEX[b & 0xf]));
+    }
+
+    static String hex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    private static byte[] hmac(byte[] key, String data) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Signing key for one UTC date, with its credential scope.
+     */
+    static final class SigningKey {
+        final String date;
+        final byte[] key;
+        final String scope;
+
+        SigningKey(String date, byte[] key, String scope) {
+            this.date = date;
+            this.key = key;
+            this.scope = scope;
+        }
+    }
+
+    /**
+     * Per-thread scratch space, reused from one request to the next.
+     */
+    static final class SigningState {
+        final SortedMap<String, String> headers = new TreeMap<>();
+        final StringBuilder canonical = new StringBuilder(512);
+        final StringBuilder toSign = new StringBuilder(256);
+        final StringBuilder scratch = new StringBuilder(256);
+        final StringBuilder query = new StringBuilder(256);
+        final StringBuilder presign = new StringBuilder(512);
+        final MessageDigest sha256;
+        final Mac mac;
+        // The signing key the Mac is currently initialized with
+        SigningKey macKey;
+        byte[] bytes = new byte[512];
+
+        SigningState() {
+            try {
+                sha256 = MessageDigest.getInstance("SHA-256");
+                mac = Mac.getInstance("HmacSHA256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 unavailable", e);
+            }
+        }
+
+        String sha256Hex(CharSequence chars) {
+            int length = encode(chars);
+            sha256.update(bytes, 0, length);
+            return hex(sha256.digest());
+        }
+
+        String hmacHex(SigningKey key, CharSequence chars) {
+            if (key.key == null) {
+                return "ERRORSIGNATURE";
+            }
+            if (macKey != key) {
+                try {
+                    mac.init(new SecretKeySpec(key.key, "HmacSHA256"));
+                } catch (GeneralSecurityException e) {
+                    logger.error("Failed to sign S3 request due to " + e);
+                    return "ERRORSIGNATURE";
+                }
+                macKey = key;
+            }
+            int length = encode(chars);
+            mac.update(bytes, 0, length);
+            return hex(mac.doFinal());
+        }
+
+        // UTF-8 encode into the reusable byte buffer (ASCII fast path)
+        private int encode(CharSequence chars) {
+            int length = chars.length();
+            if (bytes.length < length) {
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            }
+            for (int i = 0; i < length; i++) {
+                char c = chars.charAt(i);
+                if (c >= 0x80) {
+                    byte[] encoded = chars.toString().getBytes(StandardCharsets.UTF_8);
+                    if (bytes.length < encoded.length) {
+                        bytes = new byte[encoded.length];
+                    }
+                    System.arraycopy(encoded, 0, bytes, 0, encoded.length);
+                    return encoded.length;
+                }
+                bytes[i] = (byte) c;
+            }
+            return length;
+        }
+    }
+}
@@ -0,0 +1,705 @@
+package com.perceptus.supers3t;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.AsyncFile;
+import io.vertx.core.file.OpenOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Write-behind PUTs: {@link #put} answers once the object is in a local
+ * journal, and it is uploaded to S3 in the background. Request paths see the
+ * latency of the local disk, not of S3.
+ *
+ * The journal is a series of append-only segment files in one directory.
+ * Puts arriving while a journal write is under way go out together in the
+ * next write (and, with {@code sync}, the next fsync). A segment is deleted
+ * once every put in it has been uploaded or replaced by a later put of the
+ * same key, and every older segment has gone: a segment may hold the only
+ * record that a put in an older one was uploaded, so segments are deleted
+ * oldest first.
+ *
+ * Each put waits {@code flushDelay} ms before it is uploaded, and a later
+ * put of the same key in the meantime replaces it, so a key rewritten many
+ * times is uploaded once. Two uploads of one key are never in flight at
+ * once, so S3 ends up with the last write. At most {@code concurrency}
+ * uploads run at a time. Failed uploads are tried again after
+ * {@code retryDelay}; nothing is dropped.
+ *
+ * After a crash, {@link #start} replays the journal and uploads whatever had
+ * not been, so every put that was answered reaches S3 at least once. A
+ * record torn by the crash ends its segment.
+ *
+ * All state is confined to the context the spool was started on; puts from
+ * elsewhere are handed to it.
+ */
+public class S3WriteBehind {
+    private static final Logger logger = LoggerFactory.getLogger(S3WriteBehind.class);
+
+    public static final long DEFAULT_FLUSH_DELAY = 1000; // ms
+    public static final long DEFAULT_RETRY_DELAY = 5000; // ms
+    public static final int DEFAULT_CONCURRENCY = 16;
+    public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile("journal-(\\d+)\\.log");
+    private static final byte PUT = 1;
+    private static final byte DONE = 2;
+    // Length, type, sequence, bucket and key lengths, data length, CRC
+    private static final int RECORD_OVERHEAD = 4 + 1 + 8 + 2 + 2 + 4 + 4;
+
+    private final S3Client client;
+    private final Vertx vertx;
+    private final String directory;
+
+    private long flushDelay = DEFAULT_FLUSH_DELAY;
+    private long retryDelay = DEFAULT_RETRY_DELAY;
+    private int concurrency = DEFAULT_CONCURRENCY;
+    private long segmentSize = DEFAULT_SEGMENT_SIZE;
+    private boolean sync;
+
+    private Context context;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private Segment active;
+    // Records waiting for the journal write under way
+    private List<Record> queued = new ArrayList<>();
+    private boolean writing;
+    private long nextSeq = 1;
+
+    // Spooled puts not yet uploaded, by bucket and key, oldest first
+    private final LinkedHashMap<String, Entry> pending = new LinkedHashMap<>();
+    private final Map<String, Entry> inFlight = new HashMap<>();
+    private final List<Handler<AsyncResult<Void>>> flushHandlers = new ArrayList<>();
+    private long timerId = -1;
+    private long timerDue;
+    private boolean closing;
+    private boolean closed;
+
+    private Handler<Throwable> exceptionHandler;
+    private long spooled;
+    private long uploaded;
+    private long merged;
+
+    public S3WriteBehind(S3Client client, String directory) {
+        this.client = client;
+        this.vertx = client.getVertx();
+        this.directory = directory;
+    }
+
+    // Set these before starting
+
+    // How long a put waits for a later put of its key before it is uploaded
+    public S3WriteBehind setFlushDelay(long flushDelay) {
+        this.flushDelay = Math.max(0, flushDelay);
+        return this;
+    }
+
+    public S3WriteBehind setRetryDelay(long retryDelay) {
+        this.retryDelay = Math.max(1, retryDelay);
+        return this;
+    }
+
+    public S3WriteBehind setConcurrency(int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("At least one upload must be allowed in flight");
+        }
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    // A new segment is started once the current one reaches this size
+    public S3WriteBehind setSegmentSize(long segmentSize) {
+        if (segmentSize < 1) {
+            throw new IllegalArgumentException("Segment size must be positive");
+        }
+        this.segmentSize = segmentSize;
+        return this;
+    }
+
+    // fsync each journal write before answering the puts in it
+    public S3WriteBehind setSync(boolean sync) {
+        this.sync = sync;
+        return this;
+    }
+
+    // Failed uploads, each of which is tried again
+    public S3WriteBehind exceptionHandler(Handler<Throwable> handler) {
+        this.exceptionHandler = handler;
+        return this;
+    }
+
+    // Replays any journal left in the directory, then takes puts
+    public void start(Handler<AsyncResult<Void>> handler) {
+        if (context != null) {
+            throw new IllegalStateException("Write-behind already started");
+        }
+        context = vertx.getOrCreateContext();
+        onContext(() -> vertx.fileSystem().mkdirs(directory, made -> {
+            if (made.failed()) {
+                handler.handle(Future.failedFuture(made.cause()));
+                return;
+            }
+            vertx.fileSystem().readDir(directory, listed -> {
+                if (listed.failed()) {
+                    handler.handle(Future.failedFuture(listed.cause()));
+                    return;
+                }
+                TreeMap<Long, String> found = new TreeMap<>();
+                for (String path : listed.result()) {
+                    Matcher matcher = SEGMENT_NAME.matcher(new File(path).getName());
+                    if (matcher.matches()) {
+                        found.put(Long.parseLong(matcher.group(1)), path);
+                    }
+                }
+                replay(new ArrayList<>(found.entrySet()), 0, handler);
+            });
+        }));
+    }
+
+    // PUT (bucket, key, data) -> handler once it is in the journal
+    // Fails until the start handler has been called.
+    public void put(String bucket, String key, Buffer data, Handler<AsyncResult<Void>> handler) {
+        if (context == null) {
+            throw new IllegalStateException("Write-behind not started");
+        }
+        onContext(() -> {
+            if (closing) {
+                handler.handle(Future.failedFuture(new IllegalStateException("Write-behind closed")));
+                return;
+            }
+            if (active == null) {
+                handler.handle(Future.failedFuture(new IllegalStateException("Write-behind still starting")));
+                return;
+            }
+            Entry entry = new Entry(bucket, key, nextSeq++, data.length());
+            enqueue(new Record(record(PUT, entry, data), entry, handler));
+        });
+    }
+
+    // Uploads everything spooled so far without waiting out the flush
+    // delay -> handler once none is left
+    public void flush(Handler<AsyncResult<Void>> handler) {
+        onContext(() -> {
+            flushHandlers.add(handler);
+            dispatch();
+        });
+    }
+
+    // Stops taking puts, uploads what is spooled, then closes the journal
+    public void close(Handler<AsyncResult<Void>> handler) {
+        onContext(() -> {
+            closing = true;
+            flush(flushed -> {
+                closed = true;
+                if (timerId >= 0) {
+                    vertx.cancelTimer(timerId);
+                    timerId = -1;
+                }
+                active = null;
+                List<Segment> open = new ArrayList<>(segments.values());
+                int[] left = { open.size() };
+                if (open.isEmpty()) {
+                    handler.handle(flushed);
+                }
+                boolean delete = true;
+                for (Segment segment : open) {
+                    delete &= segment.refs == 0;
+                    retire(segment, delete, retired -> {
+                        if (--left[0] == 0) {
+                            handler.handle(flushed);
+                        }
+                    });
+                }
+            });
+        });
+    }
+
+    // Replay
+    // ------
+
+    private void replay(List<Map.Entry<Long, String>> found, int next, Handler<AsyncResult<Void>> handler) {
+        if (next == found.size()) {
+            recovered(found.isEmpty() ? 1 : found.get(found.size() - 1).getKey() + 1, handler);
+            return;
+        }
+        Segment segment = new Segment(found.get(next).getKey(), found.get(next).getValue());
+        vertx.fileSystem().readFile(segment.path, read -> {
+            if (read.failed()) {
+                handler.handle(Future.failedFuture(read.cause()));
+                return;
+            }
+            segments.put(segment.number, segment);
+            parse(segment, read.result());
+            replay(found, next + 1, handler);
+        });
+    }
+
+    // Rebuilds pending puts from a segment's records, up to any torn one
+    private void parse(Segment segment, Buffer data) {
+        int position = 0;
+        while (data.length() - position >= RECORD_OVERHEAD) {
+            int length = data.getInt(position);
+            if (length < RECORD_OVERHEAD - 8 || data.length() - position < length + 8) {
+                break;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(data.getBytes(position + 4, position + 4 + length));
+            if ((int) crc.getValue() != data.getInt(position + 4 + length)) {
+                break;
+            }
+            int at = position + 4;
+            byte type = data.getByte(at);
+            long seq = data.getLong(at + 1);
+            int bucketLength = data.getShort(at + 9) & 0xffff;
+            String bucket = data.getString(at + 11, at + 11 + bucketLength, "UTF-8");
+            at += 11 + bucketLength;
+            int keyLength = data.getShort(at) & 0xffff;
+            String key = data.getString(at + 2, at + 2 + keyLength, "UTF-8");
+            at += 2 + keyLength;
+            int dataLength = data.getInt(at);
+            at += 4;
+
+            nextSeq = Math.max(nextSeq, seq + 1);
+            String id = id(bucket, key);
+            if (type == PUT) {
+                Entry entry = new Entry(bucket, key, seq, dataLength);
+                entry.segment = segment;
+                entry.position = at;
+                pending.remove(id);
+                pending.put(id, entry);
+            } else if (type == DONE) {
+                Entry entry = pending.get(id);
+                if (entry != null && entry.seq == seq) {
+                    pending.remove(id);
+                }
+            }
+            position += length + 8;
+        }
+        segment.size = position;
+    }
+
+    private void recovered(long number, Handler<AsyncResult<Void>> handler) {
+        for (Entry entry : pending.values()) {
+            entry.segment.refs++;
+        }
+        if (!pending.isEmpty()) {
+            logger.info("Replaying {} puts spooled in {}", pending.size(), directory);
+        }
+        List<Segment> replayed = new ArrayList<>(segments.values());
+        openSegments(replayed, 0, opened -> {
+            if (opened.failed()) {
+                handler.handle(opened);
+                return;
+            }
+            // Fully uploaded before the crash
+            sweep();
+            openSegment(number, created -> {
+                if (created.failed()) {
+                    handler.handle(Future.failedFuture(created.cause()));
+                    return;
+                }
+                active = created.result();
+                dispatch();
+                handler.handle(Future.succeededFuture());
+            });
+        });
+    }
+
+    // Opens replayed segments still needed, for reading
+    private void openSegments(List<Segment> replayed, int next, Handler<AsyncResult<Void>> handler) {
+        if (next == replayed.size()) {
+            handler.handle(Future.succeededFuture());
+            return;
+        }
+        Segment segment = replayed.get(next);
+        if (segment.refs == 0) {
+            openSegments(replayed, next + 1, handler);
+            return;
+        }
+        vertx.fileSystem().open(segment.path, new OpenOptions().setRead(true).setWrite(false), opened -> {
+            if (opened.failed()) {
+                handler.handle(Future.failedFuture(opened.cause()));
+                return;
+            }
+            segment.file = opened.result();
+            openSegments(replayed, next + 1, handler);
+        });
+    }
+
+    // Journal
+    // -------
+
+    private void enqueue(Record record) {
+        queued.add(record);
+        writeJournal();
+    }
+
+    // Writes whatever is queued in one go, starting a new segment first if
+    // the current one is full
+    private void writeJournal() {
+        if (writing || queued.isEmpty() || active == null) {
+            return;
+        }
+        writing = true;
+        if (active.size >= segmentSize) {
+            openSegment(active.number + 1, created -> {
+                writing = false;
+                if (created.failed()) {
+                    failQueued(created.cause());
+                    return;
+                }
+                active = created.result();
+                sweep();
+                writeJournal();
+            });
+            return;
+        }
+
+        List<Record> batch = queued;
+        queued = new ArrayList<>();
+        Segment segment = active;
+        long start = segment.size;
+        Buffer data = Buffer.buffer();
+        for (Record record : batch) {
+            record.position = start + data.length();
+            data.appendBuffer(record.data);
+        }
+        segment.size += data.length();
+        segment.file.write(data, start, written -> {
+            if (written.succeeded() && sync) {
+                segment.file.flush(flushed -> journalled(segment, batch, flushed));
+            } else {
+                journalled(segment, batch, written);
+            }
+        });
+    }
+
+    private void journalled(Segment segment, List<Record> batch, AsyncResult<Void> result) {
+        writing = false;
+        if (result.failed()) {
+            logger.warn("Journal write to {} failed: {}", segment.path, result.cause().toString());
+            // Start afresh rather than append after a partial write
+            segment.size = Math.max(segment.size, segmentSize);
+        }
+        for (Record record : batch) {
+            if (record.entry != null) {
+                if (result.succeeded()) {
+                    spooled(record, segment);
+                } else {
+                    record.handler.handle(Future.failedFuture(result.cause()));
+                }
+            }
+        }
+        writeJournal();
+        dispatch();
+    }
+
+    private void spooled(Record record, Segment segment) {
+        Entry entry = record.entry;
+        entry.segment = segment;
+        entry.position = record.position + record.data.length() - 4 - entry.length;
+        entry.due = System.currentTimeMillis() + flushDelay;
+        segment.refs++;
+        spooled++;
+        String id = id(entry.bucket, entry.key);
+        Entry replaced = pending.remove(id);
+        if (replaced != null) {
+            merged++;
+            release(replaced);
+        }
+        pending.put(id, entry);
+        record.handler.handle(Future.succeededFuture());
+    }
+
+    private void failQueued(Throwable cause) {
+        List<Record> failed = queued;
+        queued = new ArrayList<>();
+        for (Record record : failed) {
+            if (record.handler != null) {
+                record.handler.handle(Future.failedFuture(cause));
+            }
+        }
+    }
+
+    private void openSegment(long number, Handler<AsyncResult<Segment>> handler) {
+        String path = new File(directory, "journal-" + number + ".log").getPath();
+        OpenOptions options = new OpenOptions().setRead(true).setWrite(true).setCreate(true)
+                                               .setTruncateExisting(true);
+        vertx.fileSystem().open(path, options, opened -> {
+            if (opened.failed()) {
+                handler.handle(Future.failedFuture(opened.cause()));
+                return;
+            }
+            Segment segment = new Segment(number, path);
+            segment.file = opened.result();
+            segments.put(number, segment);
+            handler.handle(Future.succeededFuture(segment));
+        });
+    }
+
+    // One put dealt with: its segment can go once nothing else needs it
+    private void release(Entry entry) {
+        if (--entry.segment.refs == 0) {
+            sweep();
+        }
+    }
+
+    // Deletes segments from the oldest while nothing in them is still to be
+    // uploaded. A newer segment can hold the DONE records of puts in an older
+    // one, so it must outlive every older segment, or a replay would upload
+    // those puts again over later writes.
+    private void sweep() {
+        while (!segments.isEmpty()) {
+            Segment oldest = segments.firstEntry().getValue();
+            if (oldest.refs > 0 || oldest == active) {
+                return;
+            }
+            retire(oldest, true, null);
+        }
+    }
+
+    // Closes a segment and deletes it if asked -> done (may be null)
+    private void retire(Segment segment, boolean delete, Handler<Void> done) {
+        segments.remove(segment.number);
+        Handler<AsyncResult<Void>> deleteFile = closed -> {
+            if (!delete) {
+                if (done != null) {
+                    done.handle(null);
+                }
+                return;
+            }
+            vertx.fileSystem().delete(segment.path, deleted -> {
+                if (deleted.failed()) {
+                    logger.warn("Failed to delete journal segment {}: {}", segment.path, deleted.cause().toString());
+                }
+                if (done != null) {
+                    done.handle(null);
+                }
+            });
+        };
+        if (segment.file != null) {
+            segment.file.close(deleteFile);
+        } else {
+            deleteFile.handle(Future.succeededFuture());
+        }
+    }
+
+    // Uploads
+    // -------
+
+    private void dispatch() {
+        if (closed) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        boolean draining = !flushHandlers.isEmpty();
+        long nextDue = Long.MAX_VALUE;
+        Iterator<Map.Entry<String, Entry>> it = pending.entrySet().iterator();
+        while (it.hasNext() && inFlight.size() < concurrency) {
+            Map.Entry<String, Entry> next = it.next();
+            Entry entry = next.getValue();
+            long due = draining ? entry.retryAt : Math.max(entry.due, entry.retryAt);
+            if (due > now) {
+                nextDue = Math.min(nextDue, due);
+                if (!draining && entry.retryAt == 0) {
+                    // Oldest first: the rest are due later still
+                    break;
+                }
+                continue;
+            }
+            if (inFlight.containsKey(next.getKey())) {
+                // The older upload of this key goes first
+                continue;
+            }
+            it.remove();
+            inFlight.put(next.getKey(), entry);
+            upload(next.getKey(), entry);
+        }
+        if (nextDue != Long.MAX_VALUE && (timerId < 0 || nextDue < timerDue)) {
+            if (timerId >= 0) {
+                vertx.cancelTimer(timerId);
+            }
+            timerDue = nextDue;
+            timerId = vertx.setTimer(Math.max(1, nextDue - now), fired -> {
+                timerId = -1;
+                dispatch();
+            });
+        }
+        if (draining && pending.isEmpty() && inFlight.isEmpty() && queued.isEmpty() && !writing) {
+            List<Handler<AsyncResult<Void>>> flushed = new ArrayList<>(flushHandlers);
+            flushHandlers.clear();
+            for (Handler<AsyncResult<Void>> handler : flushed) {
+                handler.handle(Future.succeededFuture());
+            }
+        }
+    }
+
+    private void upload(String id, Entry entry) {
+        // Vert.x may report a connection closing after the response it
+        // carried, so only the first outcome counts
+        AtomicBoolean answered = new AtomicBoolean();
+        Handler<AsyncResult<Void>> outcome = result -> {
+            if (answered.compareAndSet(false, true)) {
+                onContext(() -> uploaded(id, entry, result));
+            }
+        };
+        entry.segment.file.read(Buffer.buffer(entry.length), 0, entry.position, entry.length, read -> {
+            if (read.failed()) {
+                outcome.handle(Future.failedFuture(read.cause()));
+                return;
+            }
+            client.put(entry.bucket, entry.key, read.result(), response -> response.bodyHandler(body -> {
+                if (response.statusCode() == 200) {
+                    outcome.handle(Future.succeededFuture());
+                } else {
+                    outcome.handle(Future.failedFuture(S3Exception.fromResponse(response.statusCode(), body)));
+                }
+            }), e -> outcome.handle(Future.failedFuture(e)));
+        });
+    }
+
+    private void uploaded(String id, Entry entry, AsyncResult<Void> result) {
+        inFlight.remove(id);
+        if (result.succeeded()) {
+            uploaded++;
+            release(entry);
+            if (!closed) {
+                enqueue(new Record(record(DONE, entry, Buffer.buffer()), null, null));
+            }
+        } else {
+            logger.warn("Write-behind PUT of {}/{} failed, retrying in {}ms: {}",
+                        new Object[] { entry.bucket, entry.key, retryDelay, result.cause().toString() });
+            if (exceptionHandler != null) {
+                exceptionHandler.handle(result.cause());
+            }
+            if (pending.containsKey(id)) {
+                // Already replaced by a later put
+                release(entry);
+            } else {
+                entry.retryAt = System.currentTimeMillis() + retryDelay;
+                pending.put(id, entry);
+            }
+        }
+        dispatch();
+    }
+
+    private static Buffer record(byte type, Entry entry, Buffer data) {
+        byte[] bucket = entry.bucket.getBytes(StandardCharsets.UTF_8);
+        byte[] key = entry.key.getBytes(StandardCharsets.UTF_8);
+        int length = RECORD_OVERHEAD - 8 + bucket.length + key.length + data.length();
+        Buffer record = Buffer.buffer(length + 8);
+        record.appendInt(length)
+              .appendByte(type)
+              .appendLong(entry.seq)
+              .appendShort((short) bucket.length).appendBytes(bucket)
+              .appendShort((short) key.length).appendBytes(key)
+              .appendInt(data.length()).appendBuffer(data);
+        CRC32 crc = new CRC32();
+        crc.update(record.getBytes(4, record.length()));
+        return record.appendInt((int) crc.getValue());
+    }
+
+    private static String id(String bucket, String key) {
+        return bucket + "/" + key;
+    }
+
+    private void onContext(Runnable action) {
+        if (Vertx.currentContext() == context) {
+            action.run();
+        } else {
+            context.runOnContext(event -> action.run());
+        }
+    }
+
+    // Puts spooled and not yet uploaded, counting any in flight
+    public int getPending() {
+        return pending.size() + inFlight.size();
+    }
+
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    // Puts written to the journal
+    public long getSpooled() {
+        return spooled;
+    }
+
+    public long getUploaded() {
+        return uploaded;
+    }
+
+    // Puts replaced by a later put of the same key before being uploaded
+    public long getMerged() {
+        return merged;
+    }
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    private static final class Segment {
+        final long number;
+        final String path;
+        AsyncFile file;
+        long size;
+        // Puts in this segment still to be uploaded
+        int refs;
+
+        Segment(long number, String path) {
+            this.number = number;
+            this.path = path;
+        }
+    }
+
+    private static final class Entry {
+        final String bucket;
+        final String key;
+        final long seq;
+        final int length;
+        Segment segment;
+        // Where the data lies in the segment
+        long position;
+        long due;
+        long retryAt;
+
+        Entry(String bucket, String key, long seq, int length) {
+            this.bucket = bucket;
+            this.key = key;
+            this.seq = seq;
+            this.length = length;
+        }
+    }
+
+    private static final class Record {
+        final Buffer data;
+        // null for DONE records
+        final Entry entry;
+        final Handler<AsyncResult<Void>> handler;
+        long position;
+
+        Record(Buffer data, Entry entry, Handler<AsyncResult<Void>> handler) {
+            this.data = data;
+            this.entry = entry;
+            this.handler = handler;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.perceptus.supers3t;
+
+import io.vertx.core.buffer.Buffer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Minimal helpers for the small XML documents S3 exchanges on control
+ * operations (initiate/complete multipart, batch delete, errors). These
+ * documents are small and shallow, so a substring scan is all we need.
+ */
+final class S3Xml {
+    private S3Xml() {
+    }
+
+    // Text of the first <name>...</name> element, or null if absent
+    static String elementText(Buffer body, String name) {
+        return elementText(body.toString("UTF-8"), name);
+    }
+
+    static String elementText(String body, String name) {
+        String open = "<" + name + ">";
+        int start = body.indexOf(open);
+        if (start < 0) {
+            return null;
+        }
+        start += open.length();
+        int end = body.indexOf("</" + name + ">", start);
+        if (end < 0) {
+            return null;
+        }
+        return unescape(body.substring(start, end));
+    }
+
+    // Raw (still escaped) contents of every <name>...</name> element, in order
+    static List<String> elements(String body, String name) {
+        String open = "<" + name + ">";
+        String close = "</" + name + ">";
+        List<String> elements = new ArrayList<>();
+        int start = body.indexOf(open);
+        while (start >= 0) {
+            start += open.length();
+            int end = body.indexOf(close, start);
+            if (end < 0) {
+                break;
+            }
+            elements.add(body.substring(start, end));
+            start = body.indexOf(open, end + close.length());
+        }
+        return elements;
+    }
+
+    static boolean isError(Buffer body) {
+        return body.toString("UTF-8").contains("<Error>");
+    }
+
+    static String escape(String text) {
+        StringBuilder builder = new StringBuilder(text.length() + 16);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '<': builder.append("&lt;"); break;
+                case '>': builder.append("&gt;"); break;
+                case '&': builder.append("&amp;"); break;
+                case '"': builder.append("&quot;"); break;
+                case '\'': builder.append("&apos;"); break;
+                default: builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    static String unescape(String text) {
+        if (text.indexOf('&') < 0) {
+            return text;
+        }
+        return text.replace("&lt;", "<")
+                   .replace("&gt;", ">")
+                   .replace("&quot;", "\"")
+                   .replace("&apos;", "'")
+                   .replace("&#34;", "\"")
+                   .replace("&amp;", "&");
+    }
+}
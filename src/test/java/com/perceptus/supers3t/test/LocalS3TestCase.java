@@ -0,0 +1,64 @@
+package com.perceptus.supers3t.test;
+
+import com.perceptus.supers3t.S3Client;
+import com.perceptus.supers3t.S3ClientOptions;
+import com.perceptus.supers3t.S3RetryPolicy;
+import com.perceptus.supers3t.test.local.LocalS3Server;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Vertx;
+import org.junit.After;
+import org.junit.Before;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Base for tests run against a {@link LocalS3Server}. Each test gets its own
+ * Vertx, a server checking signatures, and a {@link S3Client} signing for it
+ * without retries, all closed again afterwards.
+ *
+ * @author spartango
+ */
+public abstract class LocalS3TestCase {
+    protected static final String ACCESS_KEY = "AKID";
+    protected static final String SECRET_KEY = "secret";
+
+    protected Vertx vertx;
+    protected LocalS3Server server;
+    protected S3Client client;
+
+    @Before
+    public void startServer() {
+        vertx = Vertx.vertx();
+        server = new LocalS3Server(vertx).addCredentials(ACCESS_KEY, SECRET_KEY).start();
+        client = createClient(options());
+    }
+
+    @After
+    public void stopServer() {
+        client.close();
+        server.close();
+        vertx.close();
+    }
+
+    /**
+     * @return options for a client of the local server, which tests may add to
+     */
+    protected S3ClientOptions options() {
+        return new S3ClientOptions().setEndpoint(server.getEndpoint())
+                                    .setPort(server.getPort())
+                                    .setCredentials(ACCESS_KEY, SECRET_KEY)
+                                    .setRetryPolicy(S3RetryPolicy.NONE);
+    }
+
+    protected S3Client createClient(S3ClientOptions options) {
+        return new S3Client(vertx, options);
+    }
+
+    protected static <T> void complete(CompletableFuture<T> future, AsyncResult<T> result) {
+        if (result.succeeded()) {
+            future.complete(result.result());
+        } else {
+            future.completeExceptionally(result.cause());
+        }
+    }
+}
@@ -0,0 +1,469 @@
+package com.perceptus.supers3t.test;
+
+import com.perceptus.supers3t.S3Client;
+import com.perceptus.supers3t.S3ClientOptions;
+import com.perceptus.supers3t.S3ClientRequest;
+import com.perceptus.supers3t.S3MultipartUpload;
+import com.perceptus.supers3t.S3Exception;
+import com.perceptus.supers3t.S3RetryPolicy;
+import com.perceptus.supers3t.test.local.DiskBackend;
+import com.perceptus.supers3t.test.local.LocalS3Object;
+import com.perceptus.supers3t.test.local.LocalS3Server;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerOptions;
+import io.vertx.core.streams.ReadStream;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link S3Client} end to end against a {@link LocalS3Server}, which
+ * checks the signatures the client sends.
+ *
+ * @author spartango
+ */
+public class TestLocalS3Server {
+    private static final String accessKey = "AKIDLOCALTEST";
+    private static final String secretKey = "local/secret+key";
+    private static final String bucket = "test-bucket";
+
+    private Vertx vertx;
+    private LocalS3Server server;
+    private S3Client client;
+
+    @Before
+    public void setUp() {
+        vertx = Vertx.vertx();
+        server = new LocalS3Server(vertx).addCredentials(accessKey, secretKey).start();
+        client = newClient(false, secretKey);
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+        server.close();
+        vertx.close();
+    }
+
+    private S3Client newClient(boolean signatureV4, String secret) {
+        return new S3Client(vertx, new S3ClientOptions().setEndpoint(server.getEndpoint())
+                                                        .setPort(server.getPort())
+                                                        .setCredentials(accessKey, secret)
+                                                        .setSignatureV4(signatureV4));
+    }
+
+    @Test
+    public void testRoundTripV2() throws Exception {
+        roundTrip(client);
+    }
+
+    @Test
+    public void testRoundTripV4() throws Exception {
+        S3Client v4 = newClient(true, secretKey);
+        try {
+            roundTrip(v4);
+        } finally {
+            v4.close();
+        }
+    }
+
+    @Test
+    public void testRoundTripOnDisk() throws Exception {
+        Path root = Files.createTempDirectory("local-s3");
+        LocalS3Server disk = new LocalS3Server(vertx, new DiskBackend(root)).start();
+        S3Client diskClient = new S3Client(vertx, new S3ClientOptions().setEndpoint(disk.getEndpoint())
+                                                                       .setPort(disk.getPort()));
+        try {
+            roundTrip(diskClient);
+        } finally {
+            diskClient.close();
+            disk.close();
+        }
+    }
+
+    private void roundTrip(S3Client client) throws Exception {
+        Buffer data = randomBuffer(10000);
+        Assert.assertEquals(200, put(client, "dir/object-1", data).status);
+
+        Response got = get(client, "dir/object-1");
+        Assert.assertEquals(200, got.status);
+        Assert.assertEquals(data, got.body);
+
+        CompletableFuture<Integer> deleted = new CompletableFuture<>();
+        client.delete(bucket, "dir/object-1", response -> deleted.complete(response.statusCode()));
+        Assert.assertEquals(204, (int) await(deleted));
+        Assert.assertEquals(404, get(client, "dir/object-1").status);
+    }
+
+    @Test
+    public void testWrongSecretRejected() throws Exception {
+        S3Client intruder = newClient(false, "not-the-secret");
+        try {
+            Response response = put(intruder, "key", Buffer.buffer("data"));
+            Assert.assertEquals(403, response.status);
+            Assert.assertTrue(response.body.toString().contains("SignatureDoesNotMatch"));
+        } finally {
+            intruder.close();
+        }
+        Assert.assertNull(server.getBackend().get(bucket, "key"));
+    }
+
+    @Test
+    public void testRangedDownload() throws Exception {
+        Buffer data = randomBuffer(1000000);
+        put(client, "ranged", data);
+
+        Buffer received = Buffer.buffer(new byte[data.length()]);
+        CompletableFuture<Long> length = new CompletableFuture<>();
+        client.getRanged(bucket, "ranged", (position, chunk, written) -> {
+            received.setBuffer((int) position, chunk);
+            written.handle(io.vertx.core.Future.succeededFuture());
+        }, 64 * 1024, 4, result -> complete(length, result));
+
+        Assert.assertEquals(data.length(), (long) await(length));
+        Assert.assertEquals(data, received);
+        Assert.assertEquals(16, server.getRequestCount("GetObject"));
+    }
+
+    @Test
+    public void testRangedDownloadHeadDropped() throws Exception {
+        S3Client once = new S3Client(vertx, new S3ClientOptions().setEndpoint(server.getEndpoint())
+                                                                 .setPort(server.getPort())
+                                                                 .setCredentials(accessKey, secretKey)
+                                                                 .setRetryPolicy(S3RetryPolicy.NONE));
+        try {
+            server.resetNext(1);
+            CompletableFuture<Long> length = new CompletableFuture<>();
+            once.getRanged(bucket, "ranged", (position, chunk, written) -> Assert.fail("Nothing to write"),
+                           64 * 1024, 4, result -> complete(length, result));
+            try {
+                await(length);
+                Assert.fail("Download should have failed");
+            } catch (ExecutionException e) {
+                // The HEAD's connection was dropped
+            }
+            Assert.assertEquals(0, server.getRequestCount("GetObject"));
+        } finally {
+            once.close();
+        }
+    }
+
+    @Test
+    public void testRangedDownloadObjectChanged() throws Exception {
+        Buffer data = randomBuffer(256 * 1024);
+        put(client, "changing", data);
+
+        CompletableFuture<Long> length = new CompletableFuture<>();
+        client.getRanged(bucket, "changing", (position, chunk, written) -> {
+            // Replaced under the download: the next range no longer matches
+            server.getBackend().put(bucket, "changing", new LocalS3Object(Buffer.buffer("new"), "\"new\"", 0L, Collections.emptyMap()));
+            written.handle(io.vertx.core.Future.succeededFuture());
+        }, 64 * 1024, 1, result -> complete(length, result));
+        try {
+            await(length);
+            Assert.fail("Download should have failed");
+        } catch (ExecutionException e) {
+            Assert.assertEquals(412, ((S3Exception) e.getCause()).getStatusCode());
+        }
+        // Not retried
+        Assert.assertEquals(2, server.getRequestCount("GetObject"));
+    }
+
+    @Test
+    public void testRangedDownloadRetryPolicy() throws Exception {
+        Buffer data = randomBuffer(64 * 1024);
+        put(client, "stalled", data);
+        S3Client once = new S3Client(vertx, new S3ClientOptions().setEndpoint(server.getEndpoint())
+                                                                 .setPort(server.getPort())
+                                                                 .setCredentials(accessKey, secretKey)
+                                                                 .setRetryPolicy(S3RetryPolicy.NONE));
+        try {
+            // The HEAD and then the only range
+            server.stallNext(2, 500, TimeUnit.MILLISECONDS);
+            CompletableFuture<Long> length = new CompletableFuture<>();
+            once.createRangedDownload(bucket, "stalled")
+                .setRangeTimeout(150)
+                .start((position, chunk, written) -> written.handle(io.vertx.core.Future.succeededFuture()),
+                       result -> complete(length, result));
+            try {
+                await(length);
+                Assert.fail("Download should have failed");
+            } catch (ExecutionException e) {
+                // A second attempt would not have stalled
+                Assert.assertTrue(e.getCause() instanceof TimeoutException);
+            }
+        } finally {
+            once.close();
+        }
+    }
+
+    @Test
+    public void testRangedDownloadFailureCancelsRanges() throws Exception {
+        Buffer data = randomBuffer(1024 * 1024);
+        put(client, "cancelled", data);
+        // Slow enough that the other ranges are still coming in
+        server.setBandwidth(1024 * 1024);
+
+        AtomicInteger writes = new AtomicInteger();
+        CompletableFuture<Integer> failed = new CompletableFuture<>();
+        client.getRanged(bucket, "cancelled", (position, chunk, written) -> {
+            writes.incrementAndGet();
+            if (position == 0) {
+                written.handle(io.vertx.core.Future.failedFuture(new IOException("disk full")));
+            } else {
+                written.handle(io.vertx.core.Future.succeededFuture());
+            }
+        }, 256 * 1024, 4, result -> failed.complete(writes.get()));
+
+        int writesAtFailure = await(failed);
+        Thread.sleep(500);
+        // The other ranges write nothing more, and none is sent again
+        Assert.assertEquals(writesAtFailure, writes.get());
+        Assert.assertTrue(server.getRequestCount("GetObject") <= 4);
+    }
+
+    @Test
+    public void testMultipartUpload() throws Exception {
+        Buffer data = randomBuffer(11 * 1024 * 1024);
+        CompletableFuture<String> etag = new CompletableFuture<>();
+        S3MultipartUpload upload = client.createMultipartUpload(bucket, "multipart", S3MultipartUpload.MIN_PART_SIZE, 2);
+        upload.completionHandler(result -> complete(etag, result));
+        for (int offset = 0; offset < data.length(); offset += 1024 * 1024) {
+            upload.write(data.slice(offset, Math.min(data.length(), offset + 1024 * 1024)));
+        }
+        upload.end();
+
+        Assert.assertTrue(await(etag).endsWith("-3\""));
+        Assert.assertEquals(3, server.getRequestCount("UploadPart"));
+        Assert.assertEquals(data, get(client, "multipart").body);
+    }
+
+    @Test
+    public void testMultipartSourceFailure() throws Exception {
+        IOException broken = new IOException("source broke");
+        FailingStream source = new FailingStream();
+        CompletableFuture<String> etag = new CompletableFuture<>();
+        client.putMultipart(bucket, "broken", source, result -> complete(etag, result));
+        vertx.runOnContext(event -> source.fail(broken));
+
+        try {
+            await(etag);
+            Assert.fail("Upload should have failed");
+        } catch (ExecutionException e) {
+            Assert.assertSame(broken, e.getCause());
+        }
+    }
+
+    @Test
+    public void testFormUpload() throws Exception {
+        // More than one default part
+        Buffer data = randomBuffer(9 * 1024 * 1024);
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        CompletableFuture<String> etag = new CompletableFuture<>();
+        HttpServer form = vertx.createHttpServer(new HttpServerOptions().setHost("localhost").setPort(port));
+        form.requestHandler(request -> {
+            request.setExpectMultipart(true);
+            request.uploadHandler(upload -> client.put(bucket, "uploaded", upload, result -> complete(etag, result)));
+            request.endHandler(event -> request.response().end());
+        });
+        CompletableFuture<Void> listening = new CompletableFuture<>();
+        form.listen(listened -> listening.complete(null));
+        await(listening);
+        try {
+            String boundary = "form-boundary";
+            Buffer body = Buffer.buffer("--" + boundary + "\r\n"
+                                        + "Content-Disposition: form-data; name=\"file\"; filename=\"data.bin\"\r\n"
+                                        + "Content-Type: application/octet-stream\r\n\r\n")
+                                .appendBuffer(data)
+                                .appendString("\r\n--" + boundary + "--\r\n");
+            HttpClient http = vertx.createHttpClient();
+            http.post(port, "localhost", "/", response -> {
+            }).putHeader("Content-Type", "multipart/form-data; boundary=" + boundary)
+              .putHeader("Content-Length", String.valueOf(body.length()))
+              .end(body);
+
+            Assert.assertTrue(await(etag).endsWith("-2\""));
+            Assert.assertEquals(2, server.getRequestCount("UploadPart"));
+            Assert.assertEquals(data, get(client, "uploaded").body);
+            http.close();
+        } finally {
+            form.close();
+        }
+    }
+
+    @Test
+    public void testStreamingPayloadV4() throws Exception {
+        S3Client v4 = newClient(true, secretKey);
+        try {
+            Buffer data = randomBuffer(200000);
+            CompletableFuture<Integer> status = new CompletableFuture<>();
+            // Written on a context, as Vert.x expects of a request
+            vertx.runOnContext(event -> {
+                S3ClientRequest request = v4.createPutRequest(bucket, "streamed",
+                                                              response -> status.complete(response.statusCode()));
+                request.setStreamingPayload(data.length(), 16 * 1024);
+                for (int offset = 0; offset < data.length(); offset += 30000) {
+                    request.write(data.slice(offset, Math.min(data.length(), offset + 30000)));
+                }
+                request.end();
+            });
+
+            Assert.assertEquals(200, (int) await(status));
+            Assert.assertEquals(data, server.getBackend().get(bucket, "streamed").getData());
+        } finally {
+            v4.close();
+        }
+    }
+
+    @Test
+    public void testPutFile() throws Exception {
+        S3Client v4 = newClient(true, secretKey);
+        Path file = Files.createTempFile("put-file", ".bin");
+        try {
+            Buffer data = randomBuffer(3 * 1024 * 1024);
+            Files.write(file, data.getBytes());
+            // The retry reads the file again from the start
+            server.failNext(1, 503, "SlowDown");
+
+            CompletableFuture<Integer> status = new CompletableFuture<>();
+            v4.putFile(bucket, "from-disk", file.toString(),
+                       response -> status.complete(response.statusCode()), status::completeExceptionally);
+            Assert.assertEquals(200, (int) await(status));
+            Assert.assertEquals(2, server.getRequestCount("PutObject"));
+            Assert.assertEquals(data, server.getBackend().get(bucket, "from-disk").getData());
+        } finally {
+            v4.close();
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testInjectedFailures() throws Exception {
+        put(client, "flaky", Buffer.buffer("data"));
+        // Retries would hide the failures under test
+        S3Client once = new S3Client(vertx, new S3ClientOptions().setEndpoint(server.getEndpoint())
+                                                                 .setPort(server.getPort())
+                                                                 .setCredentials(accessKey, secretKey)
+                                                                 .setRetryPolicy(S3RetryPolicy.NONE));
+        client.close();
+        client = once;
+
+        server.failNext(1, 503, "SlowDown");
+        Response slowDown = get(client, "flaky");
+        Assert.assertEquals(503, slowDown.status);
+        Assert.assertTrue(slowDown.body.toString().contains("<Code>SlowDown</Code>"));
+        Assert.assertEquals(200, get(client, "flaky").status);
+
+        server.resetNext(1);
+        CompletableFuture<Integer> reset = new CompletableFuture<>();
+        S3ClientRequest request = client.createGetRequest(bucket, "flaky", response -> reset.complete(0));
+        request.exceptionHandler(reset::completeExceptionally);
+        request.end();
+        try {
+            await(reset);
+            Assert.fail("Connection should have been dropped");
+        } catch (Exception expected) {
+            // dropped
+        }
+        Assert.assertEquals(200, get(client, "flaky").status);
+    }
+
+    // Helpers
+    // -------
+
+    private static class Response {
+        final int status;
+        final Buffer body;
+
+        Response(int status, Buffer body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private static Response put(S3Client client, String key, Buffer data) throws Exception {
+        CompletableFuture<Response> response = new CompletableFuture<>();
+        client.put(bucket, key, data, handler(response));
+        return await(response);
+    }
+
+    private static Response get(S3Client client, String key) throws Exception {
+        CompletableFuture<Response> response = new CompletableFuture<>();
+        client.get(bucket, key, handler(response));
+        return await(response);
+    }
+
+    private static Handler<HttpClientResponse> handler(CompletableFuture<Response> future) {
+        return response -> response.bodyHandler(body -> future.complete(new Response(response.statusCode(), body)));
+    }
+
+    private static <T> void complete(CompletableFuture<T> future, AsyncResult<T> result) {
+        if (result.succeeded()) {
+            future.complete(result.result());
+        } else {
+            future.completeExceptionally(result.cause());
+        }
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws Exception {
+        return future.get(30, TimeUnit.SECONDS);
+    }
+
+    // A source that fails when told to
+    private static class FailingStream implements ReadStream<Buffer> {
+        private Handler<Throwable> exceptionHandler;
+
+        void fail(Throwable cause) {
+            exceptionHandler.handle(cause);
+        }
+
+        @Override public FailingStream exceptionHandler(Handler<Throwable> handler) {
+            this.exceptionHandler = handler;
+            return this;
+        }
+
+        @Override public FailingStream handler(Handler<Buffer> handler) {
+            return this;
+        }
+
+        @Override public FailingStream pause() {
+            return this;
+        }
+
+        @Override public FailingStream resume() {
+            return this;
+        }
+
+        @Override public FailingStream endHandler(Handler<Void> handler) {
+            return this;
+        }
+    }
+
+    private static Buffer randomBuffer(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return Buffer.buffer(bytes);
+    }
+}
@@ -0,0 +1,162 @@
+package com.perceptus.supers3t.test;
+
+import com.perceptus.supers3t.S3BatchDelete;
+import com.perceptus.supers3t.S3Client;
+import com.perceptus.supers3t.S3ObjectCache;
+import com.perceptus.supers3t.S3RetryPolicy;
+import com.perceptus.supers3t.test.local.LocalS3Object;
+import io.vertx.core.buffer.Buffer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests {@link S3Client#deleteAll} and {@link S3BatchDelete}.
+ *
+ * @author spartango
+ */
+public class TestS3BatchDelete extends LocalS3TestCase {
+    private static final String bucket = "cleanup";
+
+    private final List<S3BatchDelete.KeyError> errors = new CopyOnWriteArrayList<>();
+
+    @Test
+    public void testDeleteAllInBatches() throws Exception {
+        store("logs/", 2500);
+        store("keep/", 10);
+
+        S3BatchDelete.Result result = deleteAll(keys("logs/", 2500));
+        Assert.assertEquals(2500, result.getDeleted());
+        Assert.assertEquals(0, result.getFailed());
+        Assert.assertTrue(errors.isEmpty());
+        Assert.assertEquals(3, server.getRequestCount("DeleteObjects"));
+        Assert.assertEquals(10, server.getBackend().keys(bucket).size());
+    }
+
+    @Test
+    public void testDeleteAllSignatureV4() throws Exception {
+        client.useSignatureV4();
+        store("logs/", 1200);
+        S3BatchDelete.Result result = deleteAll(keys("logs/", 1200));
+        Assert.assertEquals(1200, result.getDeleted());
+        Assert.assertTrue(server.getBackend().keys(bucket).isEmpty());
+    }
+
+    @Test
+    public void testPerKeyErrors() throws Exception {
+        store("logs/", 5);
+        store("keep/", 3);
+        server.protectKeys("keep/");
+
+        List<String> keys = new ArrayList<>(server.getBackend().keys(bucket));
+        keys.add("logs/missing & <odd>");
+        S3BatchDelete.Result result = deleteAll(keys);
+        Assert.assertEquals(6, result.getDeleted());
+        Assert.assertEquals(3, result.getFailed());
+        Assert.assertEquals(3, errors.size());
+        for (S3BatchDelete.KeyError error : errors) {
+            Assert.assertTrue(error.getKey().startsWith("keep/"));
+            Assert.assertEquals("AccessDenied", error.getCode());
+        }
+        Assert.assertEquals(3, server.getBackend().keys(bucket).size());
+    }
+
+    @Test
+    public void testFailedBatchReportsItsKeys() throws Exception {
+        client.close();
+        client = createClient(options().setRetryPolicy(new S3RetryPolicy()));
+        store("logs/", 30);
+        // Every attempt at the first batch
+        server.failNext(S3RetryPolicy.DEFAULT_MAX_ATTEMPTS, 500, "InternalError");
+
+        CompletableFuture<S3BatchDelete.Result> done = new CompletableFuture<>();
+        vertx.runOnContext(event -> {
+            S3BatchDelete delete = client.createBatchDelete(bucket, 10, 1);
+            delete.errorHandler(errors::add).completionHandler(result -> done.complete(result.result()));
+            for (String key : keys("logs/", 30)) {
+                delete.write(key);
+            }
+            delete.end();
+        });
+        S3BatchDelete.Result result = done.get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(20, result.getDeleted());
+        Assert.assertEquals(10, result.getFailed());
+        Assert.assertEquals("InternalError", errors.get(0).getCode());
+        Assert.assertEquals(10, server.getBackend().keys(bucket).size());
+    }
+
+    @Test
+    public void testWritesFromAnotherThread() throws Exception {
+        store("logs/", 30);
+
+        // Written from this thread, not the batch delete's context
+        CompletableFuture<S3BatchDelete.Result> done = new CompletableFuture<>();
+        S3BatchDelete delete = client.createBatchDelete(bucket, 10, 2);
+        delete.errorHandler(errors::add).completionHandler(result -> done.complete(result.result()));
+        for (String key : keys("logs/", 30)) {
+            delete.write(key);
+        }
+        delete.end();
+        S3BatchDelete.Result result = done.get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(30, result.getDeleted());
+        Assert.assertEquals(3, server.getRequestCount("DeleteObjects"));
+        Assert.assertTrue(server.getBackend().keys(bucket).isEmpty());
+    }
+
+    @Test
+    public void testAbortFromAnotherThread() throws Exception {
+        CompletableFuture<Throwable> aborted = new CompletableFuture<>();
+        S3BatchDelete delete = client.createBatchDelete(bucket, 10, 1);
+        delete.completionHandler(result -> aborted.complete(result.cause()));
+        delete.write("logs/0");
+        IllegalStateException cause = new IllegalStateException("listing failed");
+        delete.abort(cause);
+        Assert.assertSame(cause, aborted.get(10, TimeUnit.SECONDS));
+        Assert.assertEquals(0, server.getRequestCount("DeleteObjects"));
+    }
+
+    @Test
+    public void testDeleteAllEvictsCache() throws Exception {
+        S3ObjectCache cache = new S3ObjectCache(10000);
+        client.setCache(cache);
+        cache.put(bucket, "logs/0", "\"e\"", Buffer.buffer("cached"));
+        store("logs/", 1);
+
+        deleteAll(Collections.singletonList("logs/0"));
+        Assert.assertNull(cache.get(bucket, "logs/0"));
+    }
+
+    private S3BatchDelete.Result deleteAll(Iterable<String> keys) throws Exception {
+        CompletableFuture<S3BatchDelete.Result> done = new CompletableFuture<>();
+        client.deleteAll(bucket, keys, errors::add, result -> complete(done, result));
+        return done.get(20, TimeUnit.SECONDS);
+    }
+
+    private void store(String prefix, int count) {
+        for (String key : keys(prefix, count)) {
+            server.getBackend().put(bucket, key, new LocalS3Object(Buffer.buffer(key), "\"0\"", 0L, Collections.emptyMap()));
+        }
+    }
+
+    // Generated as iterated, like a listing too big to hold
+    private static Iterable<String> keys(String prefix, int count) {
+        return () -> new Iterator<String>() {
+            private int next;
+
+            @Override public boolean hasNext() {
+                return next < count;
+            }
+
+            @Override public String next() {
+                return prefix + next++;
+            }
+        };
+    }
+}
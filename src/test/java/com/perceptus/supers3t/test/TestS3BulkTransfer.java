@@ -0,0 +1,161 @@
+package com.perceptus.supers3t.test;
+
+import com.perceptus.supers3t.S3BulkTransfer;
+import com.perceptus.supers3t.S3Client;
+import com.perceptus.supers3t.test.local.LocalS3Object;
+import io.vertx.core.buffer.Buffer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link S3Client#putAll}, {@link S3Client#getAll} and
+ * {@link S3BulkTransfer}.
+ *
+ * @author spartango
+ */
+public class TestS3BulkTransfer extends LocalS3TestCase {
+    private static final String bucket = "bulk";
+
+    private final List<S3BulkTransfer.Outcome> outcomes = new CopyOnWriteArrayList<>();
+
+    @Test
+    public void testPutAllThenGetAll() throws Exception {
+        List<S3BulkTransfer.Entry> entries = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            entries.add(new S3BulkTransfer.Entry("small/" + i, Buffer.buffer("object " + i)));
+            keys.add("small/" + i);
+        }
+
+        CompletableFuture<S3BulkTransfer.Result> put = new CompletableFuture<>();
+        client.putAll(bucket, entries, outcomes::add, result -> complete(put, result));
+        S3BulkTransfer.Result result = put.get(20, TimeUnit.SECONDS);
+        Assert.assertEquals(300, result.getSucceeded());
+        Assert.assertEquals(0, result.getFailed());
+        Assert.assertEquals(300, outcomes.size());
+        Assert.assertEquals(300, server.getBackend().keys(bucket).size());
+
+        outcomes.clear();
+        CompletableFuture<S3BulkTransfer.Result> get = new CompletableFuture<>();
+        client.getAll(bucket, keys, outcomes::add, got -> complete(get, got));
+        result = get.get(20, TimeUnit.SECONDS);
+        Assert.assertEquals(300, result.getSucceeded());
+        for (S3BulkTransfer.Outcome outcome : outcomes) {
+            Assert.assertEquals("object " + outcome.getKey().substring(6), outcome.getData().toString());
+            Assert.assertEquals(outcome.getBytes(), outcome.getData().length());
+        }
+        Assert.assertTrue(result.getBytes() > 0);
+    }
+
+    @Test
+    public void testWindowBounded() throws Exception {
+        server.setLatency(20, TimeUnit.MILLISECONDS);
+        AtomicInteger maxInFlight = new AtomicInteger();
+        CompletableFuture<S3BulkTransfer.Result> done = new CompletableFuture<>();
+        vertx.runOnContext(event -> {
+            S3BulkTransfer<S3BulkTransfer.Entry> transfer = client.createBulkPut(bucket, 4);
+            transfer.completionHandler(result -> complete(done, result));
+            for (int i = 0; i < 40; i++) {
+                transfer.write(new S3BulkTransfer.Entry("key" + i, Buffer.buffer("data")));
+                maxInFlight.accumulateAndGet(transfer.getInFlight(), Math::max);
+            }
+            transfer.end();
+        });
+        Assert.assertEquals(40, done.get(20, TimeUnit.SECONDS).getSucceeded());
+        Assert.assertEquals(4, maxInFlight.get());
+    }
+
+    @Test
+    public void testWritesFromAnotherThread() throws Exception {
+        // Written from this thread, not the transfer's context
+        CompletableFuture<S3BulkTransfer.Result> done = new CompletableFuture<>();
+        S3BulkTransfer<S3BulkTransfer.Entry> transfer = client.createBulkPut(bucket, 4);
+        transfer.handler(outcomes::add).completionHandler(result -> complete(done, result));
+        for (int i = 0; i < 40; i++) {
+            transfer.write(new S3BulkTransfer.Entry("key" + i, Buffer.buffer("data")));
+        }
+        transfer.end();
+        Assert.assertEquals(40, done.get(20, TimeUnit.SECONDS).getSucceeded());
+        Assert.assertEquals(40, outcomes.size());
+        Assert.assertEquals(40, server.getBackend().keys(bucket).size());
+    }
+
+    @Test
+    public void testAbortFromAnotherThread() throws Exception {
+        CompletableFuture<Throwable> aborted = new CompletableFuture<>();
+        S3BulkTransfer<String> transfer = client.createBulkGet(bucket, 1);
+        transfer.completionHandler(result -> aborted.complete(result.cause()));
+        IllegalStateException cause = new IllegalStateException("listing failed");
+        transfer.abort(cause);
+        transfer.write("key0");
+        Assert.assertSame(cause, aborted.get(10, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        Assert.assertEquals(0, server.getRequestCount("GetObject"));
+    }
+
+    @Test
+    public void testOrderedOutcomes() throws Exception {
+        // Bigger objects first, so they finish last unless held back
+        server.setBandwidth(2000000);
+        for (int i = 0; i < 20; i++) {
+            byte[] data = new byte[(20 - i) * 10000];
+            server.getBackend().put(bucket, "key" + i, new LocalS3Object(Buffer.buffer(data), "\"0\"", 0L,
+                                                                         Collections.emptyMap()));
+        }
+        CompletableFuture<S3BulkTransfer.Result> done = new CompletableFuture<>();
+        vertx.runOnContext(event -> {
+            S3BulkTransfer<String> transfer = client.createBulkGet(bucket, 8).setOrdered(true);
+            transfer.handler(outcomes::add).completionHandler(result -> complete(done, result));
+            for (int i = 0; i < 20; i++) {
+                transfer.write("key" + i);
+            }
+            transfer.end();
+        });
+        Assert.assertEquals(20, done.get(20, TimeUnit.SECONDS).getSucceeded());
+        for (int i = 0; i < 20; i++) {
+            Assert.assertEquals(i, outcomes.get(i).getIndex());
+            Assert.assertEquals("key" + i, outcomes.get(i).getKey());
+        }
+    }
+
+    @Test
+    public void testPausedOutcomesStopRequests() throws Exception {
+        CompletableFuture<Void> first = new CompletableFuture<>();
+        CompletableFuture<S3BulkTransfer.Result> done = new CompletableFuture<>();
+        List<S3BulkTransfer<String>> holder = new CopyOnWriteArrayList<>();
+        vertx.runOnContext(event -> {
+            S3BulkTransfer<String> transfer = client.createBulkGet(bucket, 2);
+            holder.add(transfer);
+            transfer.handler(outcome -> {
+                outcomes.add(outcome);
+                transfer.pause();
+                first.complete(null);
+            });
+            transfer.completionHandler(result -> complete(done, result));
+            for (int i = 0; i < 10; i++) {
+                transfer.write("missing" + i);
+            }
+            transfer.end();
+        });
+        first.get(10, TimeUnit.SECONDS);
+        Thread.sleep(200);
+        // One outcome was handed on before pausing; the next two hold the window
+        Assert.assertEquals(1, outcomes.size());
+        Assert.assertEquals(3, server.getRequestCount("GetObject"));
+
+        S3BulkTransfer<String> transfer = holder.get(0);
+        vertx.runOnContext(event -> transfer.handler(outcomes::add).resume());
+        S3BulkTransfer.Result result = done.get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(10, result.getFailed());
+        Assert.assertEquals(404, outcomes.get(0).getStatusCode());
+        Assert.assertEquals(10, server.getRequestCount("GetObject"));
+    }
+}
@@ -0,0 +1,174 @@
+package com.perceptus.supers3t.test;
+
+import com.perceptus.supers3t.S3Client;
+import com.perceptus.supers3t.S3ClientOptions;
+import com.perceptus.supers3t.S3ClientRequest;
+import com.perceptus.supers3t.S3Exception;
+import com.perceptus.supers3t.test.local.LocalS3Object;
+import io.vertx.core.buffer.Buffer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests checksums computed on upload and verified on download.
+ *
+ * @author spartango
+ */
+public class TestS3Checksums extends LocalS3TestCase {
+    private static final String bucket = "checked";
+    private static final String CRC32C = "x-amz-checksum-crc32c";
+
+    @Override
+    protected S3ClientOptions options() {
+        return super.options().setContentMd5(true)
+                              .setChecksumCrc32c(true)
+                              .setVerifyChecksums(true);
+    }
+
+    @Test
+    public void testChecksumHeaders() throws Exception {
+        CompletableFuture<Integer> status = new CompletableFuture<>();
+        client.put(bucket, "digits", Buffer.buffer("123456789"),
+                   response -> status.complete(response.statusCode()), status::completeExceptionally);
+        Assert.assertEquals(200, (int) status.get(10, TimeUnit.SECONDS));
+        // The standard check value, 0xE3069283
+        Assert.assertEquals("4waSgw==", server.getBackend().get(bucket, "digits").getMetadata().get(CRC32C));
+    }
+
+    @Test
+    public void testStreamedTrailerV4() throws Exception {
+        S3Client v4 = createClient(options().setSignatureV4(true));
+        try {
+            Buffer data = randomBuffer(100000);
+            CompletableFuture<Integer> status = new CompletableFuture<>();
+            // Written on a context, as Vert.x expects of a request
+            vertx.runOnContext(event -> {
+                S3ClientRequest request = v4.createPutRequest(bucket, "streamed",
+                                                              response -> status.complete(response.statusCode()));
+                request.exceptionHandler(status::completeExceptionally);
+                request.setStreamingPayload(data.length(), 16 * 1024);
+                for (int offset = 0; offset < data.length(); offset += 30000) {
+                    request.write(data.slice(offset, Math.min(data.length(), offset + 30000)));
+                }
+                request.end();
+            });
+
+            // The server checked the trailer before storing it
+            Assert.assertEquals(200, (int) status.get(10, TimeUnit.SECONDS));
+            LocalS3Object stored = server.getBackend().get(bucket, "streamed");
+            Assert.assertEquals(data, stored.getData());
+            Assert.assertNotNull(stored.getMetadata().get(CRC32C));
+        } finally {
+            v4.close();
+        }
+    }
+
+    @Test
+    public void testGetVerified() throws Exception {
+        Buffer data = randomBuffer(50000);
+        CompletableFuture<Integer> status = new CompletableFuture<>();
+        client.put(bucket, "object", data, response -> status.complete(response.statusCode()));
+        Assert.assertEquals(200, (int) status.get(10, TimeUnit.SECONDS));
+
+        Assert.assertEquals(data, get("object").get(10, TimeUnit.SECONDS));
+        server.corruptNext(1);
+        assertBadDigest(get("object"));
+    }
+
+    @Test
+    public void testGetVerifiedByEtag() throws Exception {
+        // No stored checksum, so the ETag's MD5 is all there is to go on
+        Buffer data = randomBuffer(50000);
+        server.getBackend().put(bucket, "plain", new LocalS3Object(data, etag(data), 0L, Collections.emptyMap()));
+
+        Assert.assertEquals(data, get("plain").get(10, TimeUnit.SECONDS));
+        server.corruptNext(1);
+        assertBadDigest(get("plain"));
+    }
+
+    @Test
+    public void testEncryptedEtagNotChecked() throws Exception {
+        // Under a bucket default of SSE-KMS the ETag S3 answers with isn't
+        // the MD5 of what was sent
+        server.setEncryption("aws:kms");
+        Buffer data = randomBuffer(100000);
+        CompletableFuture<Integer> status = new CompletableFuture<>();
+        vertx.runOnContext(event -> {
+            S3ClientRequest request = client.createPutRequest(bucket, "sealed",
+                                                              response -> status.complete(response.statusCode()));
+            request.exceptionHandler(status::completeExceptionally);
+            request.putHeader("Content-Length", String.valueOf(data.length()));
+            for (int offset = 0; offset < data.length(); offset += 30000) {
+                request.write(data.slice(offset, Math.min(data.length(), offset + 30000)));
+            }
+            request.end();
+        });
+        Assert.assertEquals(200, (int) status.get(10, TimeUnit.SECONDS));
+        Assert.assertNotEquals(etag(data), server.getBackend().get(bucket, "sealed").getEtag());
+
+        // Nor is it when read back, or under SSE-C
+        server.getBackend().put(bucket, "plain", new LocalS3Object(
+                data, etag(randomBuffer(10)), 0L,
+                Collections.singletonMap("x-amz-server-side-encryption-customer-algorithm", "AES256")));
+        Assert.assertEquals(data, get("plain").get(10, TimeUnit.SECONDS));
+        server.getBackend().put(bucket, "plain", new LocalS3Object(
+                data, etag(randomBuffer(10)), 0L,
+                Collections.singletonMap("x-amz-server-side-encryption", "aws:kms:dsse")));
+        Assert.assertEquals(data, get("plain").get(10, TimeUnit.SECONDS));
+
+        // SSE-S3 ETags still are
+        server.getBackend().put(bucket, "plain", new LocalS3Object(
+                data, etag(randomBuffer(10)), 0L,
+                Collections.singletonMap("x-amz-server-side-encryption", "AES256")));
+        assertBadDigest(get("plain"));
+    }
+
+    @Test
+    public void testCompositeChecksumSkipped() throws Exception {
+        // Assembled from parts: neither the checksum nor the ETag is of the body
+        Buffer data = randomBuffer(50000);
+        server.getBackend().put(bucket, "assembled", new LocalS3Object(
+                data, "\"" + etag(data).substring(1, 33) + "-3\"", 0L,
+                Collections.singletonMap(CRC32C, "AAAAAA==-3")));
+        Assert.assertEquals(data, get("assembled").get(10, TimeUnit.SECONDS));
+    }
+
+    private CompletableFuture<Buffer> get(String key) {
+        CompletableFuture<Buffer> body = new CompletableFuture<>();
+        client.get(bucket, key, response -> {
+            response.exceptionHandler(body::completeExceptionally);
+            response.bodyHandler(body::complete);
+        }, body::completeExceptionally);
+        return body;
+    }
+
+    private static void assertBadDigest(CompletableFuture<Buffer> body) throws Exception {
+        try {
+            body.get(10, TimeUnit.SECONDS);
+            Assert.fail("Corrupted body should have been caught");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof S3Exception);
+            Assert.assertEquals("BadDigest", ((S3Exception) e.getCause()).getErrorCode());
+        }
+    }
+
+    private static String etag(Buffer data) throws Exception {
+        byte[] md5 = java.security.MessageDigest.getInstance("MD5").digest(data.getBytes());
+        StringBuilder hex = new StringBuilder("\"");
+        for (byte b : md5) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.append('"').toString();
+    }
+
+    private static Buffer randomBuffer(int length) {
+        byte[] bytes = new byte[length];
+        new java.util.Random(length).nextBytes(bytes);
+        return Buffer.buffer(bytes);
+    }
+}
@@ -0,0 +1,210 @@
+package com.perceptus.supers3t.test;
+
+import com.perceptus.supers3t.S3Client;
+import com.perceptus.supers3t.S3ClientOptions;
+import com.perceptus.supers3t.S3RetryPolicy;
+import com.perceptus.supers3t.test.local.LocalS3Object;
+import com.perceptus.supers3t.test.local.LocalS3Server;
+import io.vertx.core.buffer.Buffer;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests that {@link S3ClientOptions} are copied, both by the copy
+ * constructor and by the {@link S3Client} given them, and applied to its
+ * connections, including those {@link S3Client#warmUp} opens.
+ *
+ * @author spartango
+ */
+public class TestS3ClientOptions extends LocalS3TestCase {
+    private static final String BUCKET = "options";
+
+    @Before
+    public void setUp() {
+        server.getBackend().put(BUCKET, "object",
+                                new LocalS3Object(Buffer.buffer("data"), "\"etag\"", 0L, Collections.emptyMap()));
+    }
+
+    @Test
+    public void testCopy() {
+        S3RetryPolicy listPolicy = new S3RetryPolicy(5, 10, 100);
+        S3ClientOptions original = new S3ClientOptions().setEndpoint("s3.example.com")
+                                                        .setPort(8080)
+                                                        .setCredentials("key", "secret", "token")
+                                                        .setSignatureV4(true)
+                                                        .setRegion("eu-west-1")
+                                                        .setRetryPolicy(S3RetryPolicy.NONE)
+                                                        .setRetryPolicy("ListObjectsV2", listPolicy)
+                                                        .setRequestTimeout(1234)
+                                                        .setHedging(true)
+                                                        .setHedgeDelay(77)
+                                                        .setCoalescing(true)
+                                                        .setCoalescingMaxSize(4096)
+                                                        .setContentMd5(true)
+                                                        .setVerifyChecksums(true)
+                                                        .setMultipartCopyThreshold(64 * 1024 * 1024)
+                                                        .setMaxPoolSize(9)
+                                                        .setContextAffinity(true)
+                                                        .setKeepAlive(false)
+                                                        .setIdleTimeout(11)
+                                                        .setConnectTimeout(2222);
+        S3ClientOptions copy = new S3ClientOptions(original);
+
+        // Changes to the original after copying don't reach the copy
+        original.setEndpoint("elsewhere.example.com")
+                .setRetryPolicy("ListObjectsV2", S3RetryPolicy.NONE)
+                .setRequestTimeout(1)
+                .setMaxPoolSize(1)
+                .setKeepAlive(true);
+
+        Assert.assertEquals("s3.example.com", copy.getEndpoint());
+        Assert.assertEquals(8080, copy.getPort());
+        Assert.assertEquals("s3.example.com:8080", copy.getHostHeader());
+        Assert.assertEquals("key", copy.getAwsAccessKey());
+        Assert.assertEquals("secret", copy.getAwsSecretKey());
+        Assert.assertEquals("token", copy.getAwsSessionToken());
+        Assert.assertTrue(copy.isSignatureV4());
+        Assert.assertEquals("eu-west-1", copy.getRegion());
+        Assert.assertSame(S3RetryPolicy.NONE, copy.getRetryPolicy());
+        Assert.assertSame(listPolicy, copy.getRetryPolicy("ListObjectsV2"));
+        Assert.assertSame(S3RetryPolicy.NONE, copy.getRetryPolicy("GetObject"));
+        Assert.assertEquals(1234, copy.getRequestTimeout());
+        Assert.assertTrue(copy.isHedging());
+        Assert.assertEquals(77, copy.getHedgeDelay());
+        Assert.assertTrue(copy.isCoalescing());
+        Assert.assertEquals(4096, copy.getCoalescingMaxSize());
+        Assert.assertTrue(copy.isContentMd5());
+        Assert.assertTrue(copy.isVerifyChecksums());
+        Assert.assertEquals(64 * 1024 * 1024, copy.getMultipartCopyThreshold());
+        Assert.assertEquals(9, copy.getMaxPoolSize());
+        Assert.assertTrue(copy.isContextAffinity());
+        Assert.assertFalse(copy.isKeepAlive());
+        Assert.assertEquals(11, copy.getIdleTimeout());
+        Assert.assertEquals(2222, copy.getConnectTimeout());
+    }
+
+    @Test
+    public void testClientKeepsOwnCopy() throws Exception {
+        S3ClientOptions options = options().setMaxPoolSize(3);
+        S3Client copied = createClient(options);
+        try {
+            options.setMaxPoolSize(1).setPort(1);
+            Assert.assertNotSame(options, copied.getOptions());
+            Assert.assertEquals(3, copied.getOptions().getMaxPoolSize());
+            Assert.assertEquals(server.getPort(), copied.getOptions().getPort());
+            Assert.assertEquals(200, get(copied));
+        } finally {
+            copied.close();
+        }
+    }
+
+    @Test
+    public void testPoolApplied() throws Exception {
+        S3Client single = createClient(options().setMaxPoolSize(1));
+        try {
+            // Queued behind each other on the one connection
+            await(getAll(single, 3));
+            Assert.assertEquals(1, server.getConnectionCount());
+        } finally {
+            single.close();
+        }
+
+        S3Client closing = createClient(options().setMaxPoolSize(1).setKeepAlive(false));
+        try {
+            await(getAll(closing, 3));
+            Assert.assertEquals(4, server.getConnectionCount());
+        } finally {
+            closing.close();
+        }
+    }
+
+    @Test
+    public void testWarmUp() throws Exception {
+        // Long enough that no HEAD is answered before the last is sent
+        server.setLatency(100, TimeUnit.MILLISECONDS);
+        CompletableFuture<Void> warm = new CompletableFuture<>();
+        client.warmUp(3, result -> complete(warm, result));
+        await(warm);
+        Assert.assertEquals(3, server.getConnectionCount());
+    }
+
+    @Test
+    public void testBurstTakesWarmConnections() throws Exception {
+        S3Client pooled = createClient(options().setMaxPoolSize(3));
+        try {
+            server.setLatency(100, TimeUnit.MILLISECONDS);
+            CompletableFuture<Void> warm = new CompletableFuture<>();
+            pooled.warmUp(3, result -> complete(warm, result));
+            // Sent while the warm-up is under way, so each waits for a warm
+            // connection instead of opening one
+            CompletableFuture<Void> burst = getAll(pooled, 3);
+            await(warm);
+            await(burst);
+            Assert.assertEquals(3, server.getConnectionCount());
+        } finally {
+            pooled.close();
+        }
+    }
+
+    @Test
+    public void testWarmUpWithinPool() throws Exception {
+        S3Client small = createClient(options().setMaxPoolSize(2));
+        try {
+            server.setLatency(100, TimeUnit.MILLISECONDS);
+            CompletableFuture<Void> warm = new CompletableFuture<>();
+            small.warmUp(5, result -> complete(warm, result));
+            await(warm);
+            Assert.assertEquals(2, server.getConnectionCount());
+        } finally {
+            small.close();
+        }
+    }
+
+    @Test
+    public void testWarmUpFailure() throws Exception {
+        int port = server.getPort();
+        server.close();
+        S3Client refused = createClient(options().setPort(port));
+        try {
+            CompletableFuture<Void> warm = new CompletableFuture<>();
+            refused.warmUp(2, result -> complete(warm, result));
+            try {
+                await(warm);
+                Assert.fail("Nothing to connect to");
+            } catch (ExecutionException expected) {
+                // refused
+            }
+        } finally {
+            refused.close();
+            // For tearDown to close
+            server = new LocalS3Server(vertx).start();
+        }
+    }
+
+    // GETs the object count times at once -> when all are answered
+    private static CompletableFuture<Void> getAll(S3Client client, int count) {
+        CompletableFuture<?>[] gets = new CompletableFuture<?>[count];
+        for (int i = 0; i < count; i++) {
+            CompletableFuture<Integer> status = new CompletableFuture<>();
+            client.get(BUCKET, "object", response -> response.bodyHandler(body -> status.complete(response.statusCode())));
+            gets[i] = status;
+        }
+        return CompletableFuture.allOf(gets);
+    }
+
+    private static int get(S3Client client) throws Exception {
+        CompletableFuture<Integer> status = new CompletableFuture<>();
+        client.get(BUCKET, "object", response -> response.bodyHandler(body -> status.complete(response.statusCode())));
+        return await(status);
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws Exception {
+        return future.get(30, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,216 @@
+package com.perceptus.supers3t.test;
+
+import com.perceptus.supers3t.S3Client;
+import com.perceptus.supers3t.S3Codec;
+import com.perceptus.supers3t.S3Codecs;
+import com.perceptus.supers3t.S3MultipartUpload;
+import com.perceptus.supers3t.test.local.LocalS3Object;
+import io.vertx.core.buffer.Buffer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Tests compressed uploads and decoded downloads with {@link S3Codecs}.
+ *
+ * @author spartango
+ */
+public class TestS3Compression extends LocalS3TestCase {
+    private static final String bucket = "logs";
+
+    private S3Client createClient(S3Codec codec, boolean decompress) {
+        return createClient(options().setContentMd5(true).setCodec(codec).setDecompress(decompress));
+    }
+
+    @Test
+    public void testPutGetGzip() throws Exception {
+        roundTrip(S3Codecs.GZIP);
+    }
+
+    @Test
+    public void testPutGetDeflate() throws Exception {
+        roundTrip(S3Codecs.DEFLATE);
+    }
+
+    private void roundTrip(S3Codec codec) throws Exception {
+        byte[] json = json(200000);
+        S3Client client = createClient(codec, true);
+        try {
+            CompletableFuture<Integer> put = new CompletableFuture<>();
+            client.put(bucket, "events.json", Buffer.buffer(json), response -> put.complete(response.statusCode()),
+                       put::completeExceptionally);
+            Assert.assertEquals(200, (int) put.get(10, TimeUnit.SECONDS));
+
+            LocalS3Object stored = server.getBackend().get(bucket, "events.json");
+            Assert.assertEquals(codec.getEncoding(), stored.getMetadata().get("Content-Encoding"));
+            Assert.assertTrue(stored.length() * 5 < json.length);
+            // Readable by anything else that speaks the format
+            InputStream in = codec == S3Codecs.GZIP
+                             ? new GZIPInputStream(new ByteArrayInputStream(stored.getData().getBytes()))
+                             : new InflaterInputStream(new ByteArrayInputStream(stored.getData().getBytes()));
+            Assert.assertArrayEquals(json, readAll(in));
+
+            Assert.assertArrayEquals(json, get(client, "events.json"));
+        } finally {
+            client.close();
+        }
+
+        // Without decompress the stored bytes come back as they are
+        S3Client raw = createClient(null, false);
+        try {
+            Assert.assertArrayEquals(server.getBackend().get(bucket, "events.json").getData().getBytes(),
+                                     get(raw, "events.json"));
+        } finally {
+            raw.close();
+        }
+    }
+
+    @Test
+    public void testMultipartStreamsCompressed() throws Exception {
+        // Hex text compresses to about half, so two parts' worth once coded
+        Random random = new Random(3);
+        StringBuilder text = new StringBuilder(14 * 1024 * 1024);
+        while (text.length() < 14 * 1024 * 1024) {
+            text.append(Long.toHexString(random.nextLong())).append('\n');
+        }
+        byte[] data = text.toString().getBytes(StandardCharsets.US_ASCII);
+
+        S3Client client = createClient(S3Codecs.gzip(1), true);
+        try {
+            S3MultipartUpload upload = client.createMultipartUpload(bucket, "hex.log",
+                                                                    S3MultipartUpload.MIN_PART_SIZE, 4);
+            CompletableFuture<String> done = new CompletableFuture<>();
+            upload.completionHandler(result -> complete(done, result));
+            Buffer whole = Buffer.buffer(data);
+            vertx.runOnContext(event -> {
+                for (int offset = 0; offset < data.length; offset += 64 * 1024) {
+                    upload.write(whole.getBuffer(offset, Math.min(data.length, offset + 64 * 1024)));
+                }
+                upload.end();
+            });
+            done.get(30, TimeUnit.SECONDS);
+
+            LocalS3Object stored = server.getBackend().get(bucket, "hex.log");
+            Assert.assertEquals("gzip", stored.getMetadata().get("Content-Encoding"));
+            Assert.assertTrue(stored.length() < data.length * 3 / 4);
+            Assert.assertEquals(2, server.getRequestCount("UploadPart"));
+            Assert.assertArrayEquals(data, get(client, "hex.log"));
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testGzipFromElsewhere() throws Exception {
+        // Two members, the first with a file name in its header, as gzip
+        // writes when files are concatenated
+        byte[] first = "first member\n".getBytes(StandardCharsets.US_ASCII);
+        byte[] second = json(5000);
+        ByteArrayOutputStream coded = new ByteArrayOutputStream();
+        coded.write(new byte[] { 0x1f, (byte) 0x8b, 8, 8, 0, 0, 0, 0, 0, 3 });
+        coded.write("a.txt\0".getBytes(StandardCharsets.US_ASCII));
+        byte[] member = gzip(first);
+        coded.write(member, 10, member.length - 10);
+        coded.write(gzip(second));
+        store("joined.gz", coded.toByteArray());
+
+        S3Client client = createClient(null, true);
+        try {
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            expected.write(first);
+            expected.write(second);
+            Assert.assertArrayEquals(expected.toByteArray(), get(client, "joined.gz"));
+
+            // Cut short: fails rather than handing back part of it
+            byte[] truncated = coded.toByteArray();
+            store("truncated.gz", Arrays.copyOf(truncated, truncated.length - 20));
+            try {
+                get(client, "truncated.gz");
+                Assert.fail("Truncated gzip should fail");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("gzip"));
+            }
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testChunkBoundaries() {
+        // Coded and decoded a few bytes at a time, splitting headers and
+        // trailers across chunks
+        byte[] data = json(20000);
+        for (S3Codec codec : new S3Codec[] { S3Codecs.GZIP, S3Codecs.DEFLATE }) {
+            Buffer coded = Buffer.buffer();
+            S3Codec.Transform encoder = codec.encoder();
+            for (int offset = 0; offset < data.length; offset += 7) {
+                coded.appendBuffer(encoder.write(Buffer.buffer(data).getBuffer(offset,
+                                                                              Math.min(data.length, offset + 7))));
+            }
+            coded.appendBuffer(encoder.end());
+
+            Buffer decoded = Buffer.buffer();
+            S3Codec.Transform decoder = codec.decoder();
+            for (int offset = 0; offset < coded.length(); offset += 3) {
+                decoded.appendBuffer(decoder.write(coded.getBuffer(offset, Math.min(coded.length(), offset + 3))));
+            }
+            decoded.appendBuffer(decoder.end());
+            Assert.assertArrayEquals(data, decoded.getBytes());
+        }
+    }
+
+    private byte[] get(S3Client client, String key) throws Exception {
+        CompletableFuture<byte[]> body = new CompletableFuture<>();
+        client.get(bucket, key, response -> {
+            response.exceptionHandler(body::completeExceptionally);
+            response.bodyHandler(data -> body.complete(data.getBytes()));
+        }, body::completeExceptionally);
+        return body.get(10, TimeUnit.SECONDS);
+    }
+
+    private void store(String key, byte[] data) {
+        server.getBackend().put(bucket, key, new LocalS3Object(Buffer.buffer(data), "\"" + key + "\"", 0L,
+                                                               Collections.singletonMap("Content-Encoding", "gzip")));
+    }
+
+    private static byte[] json(int length) {
+        StringBuilder json = new StringBuilder(length + 100);
+        Random random = new Random(length);
+        while (json.length() < length) {
+            json.append("{\"event\":\"click\",\"user\":").append(random.nextInt(1000))
+                .append(",\"page\":\"/products/").append(random.nextInt(50)).append("\"}\n");
+        }
+        return json.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(data);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int n; (n = in.read(buffer)) > 0; ) {
+            bytes.write(buffer, 0, n);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,155 @@
+package com.perceptus.supers3t.test;
+
+import com.perceptus.supers3t.S3Client;
+import com.perceptus.supers3t.S3ClientRequest;
+import com.perceptus.supers3t.S3ConcurrencyLimiter;
+import io.vertx.core.buffer.Buffer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests {@link S3ConcurrencyLimiter} in front of an {@link S3Client}.
+ *
+ * @author spartango
+ */
+public class TestS3ConcurrencyLimiter extends LocalS3TestCase {
+    private static final String bucket = "limited";
+
+    @Test
+    public void testQueuesOverLimit() throws Exception {
+        S3ConcurrencyLimiter limiter = new S3ConcurrencyLimiter(2, 1, 2);
+        client.setConcurrencyLimiter(limiter);
+        server.setLatency(100, TimeUnit.MILLISECONDS);
+
+        CountDownLatch done = new CountDownLatch(10);
+        for (int i = 0; i < 10; i++) {
+            client.head(bucket, "object", response -> done.countDown());
+        }
+        S3ConcurrencyLimiter.Limit limit = limiter.limit(bucket, "object");
+        Assert.assertEquals(2, limit.getInFlight());
+        Assert.assertEquals(8, limit.getQueueDepth());
+        Assert.assertEquals(8, limiter.getQueueDepth());
+
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        awaitIdle(limit);
+        Assert.assertEquals(0, limit.getQueueDepth());
+        // All of them got through, two at a time
+        Assert.assertEquals(10, server.getRequestCount("HeadObject"));
+    }
+
+    @Test
+    public void testSlowDownCutsLimit() throws Exception {
+        S3ConcurrencyLimiter limiter = new S3ConcurrencyLimiter(16, 1, 64);
+        client.setConcurrencyLimiter(limiter);
+        server.failNext(1, 503, "SlowDown");
+
+        CompletableFuture<Integer> status = new CompletableFuture<>();
+        client.get(bucket, "object", response -> response.bodyHandler(body -> status.complete(response.statusCode())));
+        Assert.assertEquals(503, (int) status.get(10, TimeUnit.SECONDS));
+
+        S3ConcurrencyLimiter.Limit limit = limiter.limit(bucket, "object");
+        awaitIdle(limit);
+        Assert.assertEquals(8, limit.getLimit());
+        Assert.assertEquals(1, limit.getThrottles());
+    }
+
+    @Test
+    public void testLimitGrowsWhenSaturated() throws Exception {
+        S3ConcurrencyLimiter limiter = new S3ConcurrencyLimiter(2, 1, 100);
+        client.setConcurrencyLimiter(limiter);
+        server.setLatency(10, TimeUnit.MILLISECONDS);
+
+        CountDownLatch done = new CountDownLatch(40);
+        for (int i = 0; i < 40; i++) {
+            client.head(bucket, "object", response -> done.countDown());
+        }
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        S3ConcurrencyLimiter.Limit limit = limiter.limit(bucket, "object");
+        awaitIdle(limit);
+        Assert.assertTrue(limit.getLimit() > 2);
+    }
+
+    @Test
+    public void testQueuedRequestDoesNotTimeOut() throws Exception {
+        S3ConcurrencyLimiter limiter = new S3ConcurrencyLimiter(1, 1, 1);
+        S3Client timed = createClient(options().setRequestTimeout(300));
+        timed.setConcurrencyLimiter(limiter);
+        Buffer data = Buffer.buffer(new byte[8 * 1024 * 1024]);
+        CompletableFuture<Integer> put = new CompletableFuture<>();
+        client.put(bucket, "object", data, response -> put.complete(response.statusCode()), put::completeExceptionally);
+        Assert.assertEquals(200, (int) put.get(10, TimeUnit.SECONDS));
+
+        // Holds the only permit well past the timeout, by not reading a body
+        // too large to sit in the socket buffers
+        CompletableFuture<Integer> first = new CompletableFuture<>();
+        timed.get(bucket, "object", response -> {
+            response.pause();
+            vertx.setTimer(800, timer -> {
+                response.bodyHandler(body -> first.complete(response.statusCode()));
+                response.resume();
+            });
+        }, first::completeExceptionally);
+        CompletableFuture<Integer> queued = new CompletableFuture<>();
+        timed.get(bucket, "object", response -> response.bodyHandler(body -> queued.complete(response.statusCode())),
+                  queued::completeExceptionally);
+        Assert.assertEquals(200, (int) first.get(10, TimeUnit.SECONDS));
+        // Its timeout only started once it was let through
+        Assert.assertEquals(200, (int) queued.get(10, TimeUnit.SECONDS));
+
+        CompletableFuture<Integer> after = new CompletableFuture<>();
+        timed.head(bucket, "object", response -> after.complete(response.statusCode()), after::completeExceptionally);
+        Assert.assertEquals(200, (int) after.get(10, TimeUnit.SECONDS));
+        awaitIdle(limiter.limit(bucket, "object"));
+        timed.close();
+    }
+
+    @Test
+    public void testStreamedBodyWaits() throws Exception {
+        S3ConcurrencyLimiter limiter = new S3ConcurrencyLimiter(1, 1, 1);
+        client.setConcurrencyLimiter(limiter);
+        server.setLatency(300, TimeUnit.MILLISECONDS);
+        CompletableFuture<Integer> first = new CompletableFuture<>();
+        client.head(bucket, "object", response -> first.complete(response.statusCode()), first::completeExceptionally);
+
+        // Written in pieces before ending, as through a Pump
+        Buffer data = Buffer.buffer(new byte[100000]);
+        CompletableFuture<Integer> put = new CompletableFuture<>();
+        S3ClientRequest request = client.createPutRequest(bucket, "streamed", response -> put.complete(response.statusCode()));
+        request.exceptionHandler(put::completeExceptionally);
+        request.putHeader("Content-Length", String.valueOf(data.length()));
+        request.write(data.slice(0, 50000));
+        Assert.assertTrue(request.writeQueueFull());
+        request.write(data.slice(50000, 100000));
+        request.end();
+
+        S3ConcurrencyLimiter.Limit limit = limiter.limit(bucket, "object");
+        Assert.assertEquals(1, limit.getInFlight());
+        Assert.assertEquals(1, limit.getQueueDepth());
+        Assert.assertEquals(404, (int) first.get(10, TimeUnit.SECONDS));
+        Assert.assertEquals(200, (int) put.get(10, TimeUnit.SECONDS));
+        Assert.assertEquals(data, server.getBackend().get(bucket, "streamed").getData());
+        awaitIdle(limit);
+    }
+
+    @Test
+    public void testPerPrefix() {
+        S3ConcurrencyLimiter limiter = new S3ConcurrencyLimiter().setPerPrefix(true);
+        Assert.assertEquals("b/logs/", limiter.limit("b", "logs/2015/a").getName());
+        Assert.assertNotSame(limiter.limit("b", "logs/a"), limiter.limit("b", "data/a"));
+        Assert.assertEquals("b/", limiter.limit("b", "top-level").getName());
+        Assert.assertEquals("b/", new S3ConcurrencyLimiter().limit("b", "logs/a").getName());
+    }
+
+    // Permits are given back as responses end, which can trail the handler
+    private static void awaitIdle(S3ConcurrencyLimiter.Limit limit) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (limit.getInFlight() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, limit.getInFlight());
+    }
+}
@@ -0,0 +1,131 @@
+package com.perceptus.supers3t.test;
+
+import com.perceptus.supers3t.S3Client;
+import com.perceptus.supers3t.S3Metrics;
+import com.perceptus.supers3t.S3RequestMetrics;
+import com.perceptus.supers3t.test.local.LocalS3Object;
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tests the per-context HttpClients of {@link S3Client} with context
+ * affinity, and the Vertx shared by clients created without one.
+ *
+ * @author spartango
+ */
+public class TestS3ContextAffinity extends LocalS3TestCase {
+    private static final String BUCKET = "affinity";
+
+    @Before
+    public void setUp() {
+        server.getBackend().put(BUCKET, "object",
+                                new LocalS3Object(Buffer.buffer("data"), "\"etag\"", 0L, Collections.emptyMap()));
+    }
+
+    @Test
+    public void testResponsesOnCallingContext() throws Exception {
+        client.close();
+        client = createClient(options().setContextAffinity(true));
+
+        AtomicBoolean strayed = new AtomicBoolean();
+        for (int i = 0; i < 2; i++) {
+            await(deploy(started -> getInTurn(5, strayed, started)));
+        }
+        Assert.assertFalse(strayed.get());
+    }
+
+    @Test
+    public void testUndeployedContextForgotten() throws Exception {
+        client.close();
+        client = createClient(options().setContextAffinity(true).setMaxPoolSize(1));
+        AtomicLong poolWait = new AtomicLong();
+        client.setMetrics(new S3Metrics() {
+            @Override public void requestCompleted(S3RequestMetrics request) {
+                poolWait.accumulateAndGet(request.getPoolWait(), Math::max);
+            }
+
+            @Override public void requestRetried(String operation, String bucket) {
+            }
+        });
+
+        // Each leaves a client behind on a context that is then closed
+        for (int i = 0; i < 3; i++) {
+            String id = await(deploy(started -> getInTurn(1, new AtomicBoolean(), started)));
+            CompletableFuture<Void> undeployed = new CompletableFuture<>();
+            vertx.undeploy(id, done -> undeployed.complete(null));
+            await(undeployed);
+        }
+
+        // Two at once through a pool of one: the second waits for the first,
+        // which only shows if the closed contexts' pools aren't counted
+        server.setLatency(200, TimeUnit.MILLISECONDS);
+        await(deploy(started -> {
+            CompletableFuture<Void> first = new CompletableFuture<>();
+            client.get(BUCKET, "object", response -> response.bodyHandler(body -> first.complete(null)));
+            client.get(BUCKET, "object", response -> response.bodyHandler(body -> first.thenRun(started::complete)));
+        }));
+        Assert.assertTrue(poolWait.get() >= TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    public void testSharedVertx() throws Exception {
+        S3Client first = new S3Client(options());
+        S3Client second = new S3Client(options());
+        try {
+            Assert.assertSame(S3Client.sharedVertx(), first.getVertx());
+            Assert.assertSame(first.getVertx(), second.getVertx());
+
+            // Closing one client leaves the Vertx to the other
+            first.close();
+            CompletableFuture<Integer> status = new CompletableFuture<>();
+            second.get(BUCKET, "object", response -> status.complete(response.statusCode()));
+            Assert.assertEquals(200, (int) await(status));
+        } finally {
+            second.close();
+        }
+    }
+
+    // GETs the object count times, one after another, noting any response
+    // that arrives off the calling context
+    private void getInTurn(int count, AtomicBoolean strayed, Future<Void> done) {
+        if (count == 0) {
+            done.complete();
+            return;
+        }
+        Context context = Vertx.currentContext();
+        client.get(BUCKET, "object", response -> response.bodyHandler(body -> {
+            if (Vertx.currentContext() != context) {
+                strayed.set(true);
+            }
+            getInTurn(count - 1, strayed, done);
+        }));
+    }
+
+    // Deploys a verticle running start -> its deployment id once started
+    private CompletableFuture<String> deploy(Handler<Future<Void>> start) {
+        CompletableFuture<String> id = new CompletableFuture<>();
+        vertx.deployVerticle(new AbstractVerticle() {
+            @Override public void start(Future<Void> started) {
+                start.handle(started);
+            }
+        }, deployed -> complete(id, deployed));
+        return id;
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws Exception {
+        return future.get(30, TimeUnit.SECONDS);
+    }
+}
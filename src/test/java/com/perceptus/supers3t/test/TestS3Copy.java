@@ -0,0 +1,155 @@
+package com.perceptus.supers3t.test;
+
+import com.perceptus.supers3t.S3Client;
+import com.perceptus.supers3t.S3MultipartCopy;
+import com.perceptus.supers3t.test.local.LocalS3Object;
+import io.vertx.core.buffer.Buffer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests server-side copies: {@link S3Client#copy}, {@link S3Client#copyObject}
+ * and {@link S3MultipartCopy}.
+ *
+ * @author spartango
+ */
+public class TestS3Copy extends LocalS3TestCase {
+    private static final String source = "originals";
+    private static final String bucket = "copies";
+    private static final int MB = 1024 * 1024;
+
+    @Test
+    public void testCopyV2() throws Exception {
+        copySmall("reports/2015-q3.csv");
+    }
+
+    @Test
+    public void testCopyV4() throws Exception {
+        client.useSignatureV4();
+        copySmall("reports/2015-q3+final.csv");
+    }
+
+    private void copySmall(String key) throws Exception {
+        byte[] data = store(key, 1000);
+        CompletableFuture<String> copied = new CompletableFuture<>();
+        client.copy(source, key, bucket, "archive/" + key, result -> complete(copied, result));
+        String etag = copied.get(10, TimeUnit.SECONDS);
+
+        LocalS3Object copy = server.getBackend().get(bucket, "archive/" + key);
+        Assert.assertArrayEquals(data, copy.getData().getBytes());
+        Assert.assertEquals(copy.getEtag(), etag);
+        Assert.assertEquals("text/csv", copy.getMetadata().get("Content-Type"));
+        Assert.assertEquals("finance", copy.getMetadata().get("x-amz-meta-owner"));
+        Assert.assertEquals(1, server.getRequestCount("CopyObject"));
+        Assert.assertEquals(0, server.getRequestCount("GetObject"));
+        Assert.assertEquals(0, server.getRequestCount("PutObject"));
+    }
+
+    @Test
+    public void testLargeCopyIsMultipart() throws Exception {
+        client.close();
+        client = createClient(options().setMultipartCopyThreshold(10 * MB));
+        byte[] data = store("large", 13 * MB);
+
+        CompletableFuture<String> copied = new CompletableFuture<>();
+        client.copy(source, "large", bucket, "large", result -> complete(copied, result));
+        Assert.assertTrue(copied.get(20, TimeUnit.SECONDS).endsWith("-1\""));
+        Assert.assertArrayEquals(data, server.getBackend().get(bucket, "large").getData().getBytes());
+        Assert.assertEquals(0, server.getRequestCount("CopyObject"));
+        Assert.assertEquals(1, server.getRequestCount("UploadPartCopy"));
+        Assert.assertEquals(0, server.getRequestCount("UploadPart"));
+    }
+
+    @Test
+    public void testParallelParts() throws Exception {
+        // Too big for one CopyObject here
+        server.setMaxCopySize(12 * MB);
+        byte[] data = store("video.mp4", 23 * MB + 17);
+        CompletableFuture<String> single = new CompletableFuture<>();
+        client.copyObject(source, "video.mp4", bucket, "video.mp4", result -> complete(single, result));
+        assertFails(single, "InvalidRequest");
+
+        S3MultipartCopy copy = client.createMultipartCopy(source, "video.mp4", bucket, "video.mp4")
+                                     .setPartSize(5 * MB)
+                                     .setConcurrency(3);
+        CompletableFuture<String> copied = new CompletableFuture<>();
+        copy.start(result -> complete(copied, result));
+        Assert.assertTrue(copied.get(20, TimeUnit.SECONDS).endsWith("-5\""));
+        Assert.assertEquals(5, copy.getParts());
+        Assert.assertEquals(5, copy.getCopiedParts());
+        Assert.assertEquals(5, server.getRequestCount("UploadPartCopy"));
+
+        LocalS3Object copied0 = server.getBackend().get(bucket, "video.mp4");
+        Assert.assertArrayEquals(data, copied0.getData().getBytes());
+        // Carried over from the source, as CopyObject would
+        Assert.assertEquals("text/csv", copied0.getMetadata().get("Content-Type"));
+        Assert.assertEquals("finance", copied0.getMetadata().get("x-amz-meta-owner"));
+    }
+
+    @Test
+    public void testEmptySource() throws Exception {
+        store("empty", 0);
+        S3MultipartCopy copy = client.createMultipartCopy(source, "empty", bucket, "empty");
+        CompletableFuture<String> copied = new CompletableFuture<>();
+        copy.start(result -> complete(copied, result));
+        String etag = copied.get(10, TimeUnit.SECONDS);
+
+        LocalS3Object empty = server.getBackend().get(bucket, "empty");
+        Assert.assertEquals(empty.getEtag(), etag);
+        Assert.assertEquals(0, empty.getData().length());
+        Assert.assertEquals("finance", empty.getMetadata().get("x-amz-meta-owner"));
+        // No ranges to copy, so no upload either
+        Assert.assertEquals(1, server.getRequestCount("CopyObject"));
+        Assert.assertEquals(0, server.getRequestCount("CreateMultipartUpload"));
+        Assert.assertEquals(0, server.getRequestCount("UploadPartCopy"));
+    }
+
+    @Test
+    public void testMissingSource() throws Exception {
+        CompletableFuture<String> copied = new CompletableFuture<>();
+        client.copy(source, "nothing", bucket, "nothing", result -> complete(copied, result));
+        assertFails(copied, "404");
+        Assert.assertNull(server.getBackend().get(bucket, "nothing"));
+    }
+
+    @Test
+    public void testChangedSourceRejected() throws Exception {
+        store("moving", 6 * MB);
+        CompletableFuture<String> initiated = new CompletableFuture<>();
+        client.initiateMultipartUpload(bucket, "moving", result -> complete(initiated, result));
+        String uploadId = initiated.get(10, TimeUnit.SECONDS);
+
+        CompletableFuture<String> part = new CompletableFuture<>();
+        client.uploadPartCopy(bucket, "moving", uploadId, 1, source, "moving", "\"stale\"", 0, MB - 1,
+                              result -> complete(part, result));
+        assertFails(part, "PreconditionFailed");
+    }
+
+    private byte[] store(String key, int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        Map<String, String> metadata = new LinkedHashMap<>();
+        metadata.put("Content-Type", "text/csv");
+        metadata.put("x-amz-meta-owner", "finance");
+        server.getBackend().put(source, key, new LocalS3Object(Buffer.buffer(data), "\"" + key.hashCode() + "\"",
+                                                               0L, Collections.unmodifiableMap(metadata)));
+        return data;
+    }
+
+    private static void assertFails(CompletableFuture<String> future, String message) throws Exception {
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            Assert.fail("Expected a failure mentioning " + message);
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause().toString(), e.getCause().getMessage().contains(message));
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.perceptus.supers3t.test;
+
+import com.perceptus.supers3t.S3Client;
+import com.perceptus.supers3t.S3ListEntry;
+import com.perceptus.supers3t.S3ListStream;
+import com.perceptus.supers3t.test.local.LocalS3Object;
+import io.vertx.core.buffer.Buffer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests {@link S3Client#list} and {@link S3ListStream}.
+ *
+ * @author spartango
+ */
+public class TestS3ListStream extends LocalS3TestCase {
+    private static final String bucket = "listing";
+
+    @Test
+    public void testListsEveryPage() throws Exception {
+        store("logs/", 2500);
+        store("other/", 5);
+
+        List<S3ListEntry> entries = readAll(client.list(bucket, "logs/", null));
+        Assert.assertEquals(2500, entries.size());
+        Assert.assertEquals(3, server.getRequestCount("ListObjectsV2"));
+        Assert.assertEquals("logs/0000", entries.get(0).getKey());
+        Assert.assertEquals("logs/2499", entries.get(2499).getKey());
+        Assert.assertEquals(9, entries.get(0).getSize());
+        Assert.assertEquals("\"0\"", entries.get(0).getEtag());
+        Assert.assertEquals(1000L, entries.get(0).getLastModified());
+    }
+
+    @Test
+    public void testEncodedPrefixSignatureV4() throws Exception {
+        client.useSignatureV4();
+        store("a b+c/", 30);
+        store("a b/", 3);
+
+        S3ListStream stream = client.list(bucket, "a b+c/", null).setPageSize(7);
+        Assert.assertEquals(30, readAll(stream).size());
+        Assert.assertEquals(5, stream.getPages());
+    }
+
+    @Test
+    public void testDelimiter() throws Exception {
+        store("2015/01/", 3);
+        store("2015/02/", 3);
+        store("2015/", 2);
+
+        List<S3ListEntry> entries = readAll(client.list(bucket, "2015/", "/"));
+        Assert.assertEquals(4, entries.size());
+        Assert.assertEquals("2015/0000", entries.get(0).getKey());
+        Assert.assertFalse(entries.get(0).isPrefix());
+        Assert.assertEquals("2015/01/", entries.get(2).getKey());
+        Assert.assertTrue(entries.get(2).isPrefix());
+    }
+
+    @Test
+    public void testPauseStopsFetching() throws Exception {
+        store("logs/", 100);
+        S3ListStream stream = client.list(bucket, "logs/", null).setPageSize(10);
+        List<S3ListEntry> entries = new CopyOnWriteArrayList<>();
+        CompletableFuture<Void> ended = new CompletableFuture<>();
+        stream.endHandler(ended::complete);
+        vertx.runOnContext(event -> stream.handler(entry -> {
+            entries.add(entry);
+            if (entries.size() == 1) {
+                stream.pause();
+            }
+        }));
+
+        Thread.sleep(300);
+        Assert.assertEquals(1, entries.size());
+        // The first page, and the one fetched ahead of it
+        Assert.assertEquals(2, server.getRequestCount("ListObjectsV2"));
+
+        vertx.runOnContext(event -> stream.resume());
+        ended.get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(100, entries.size());
+        Assert.assertEquals(10, server.getRequestCount("ListObjectsV2"));
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        server.failNext(1, 403, "AccessDenied");
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        S3ListStream stream = client.list(bucket, null, null);
+        stream.exceptionHandler(done::completeExceptionally);
+        stream.endHandler(done::complete);
+        stream.handler(entry -> {
+        });
+        try {
+            done.get(10, TimeUnit.SECONDS);
+            Assert.fail("Listing should have failed");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause().getMessage().contains("AccessDenied"));
+        }
+    }
+
+    private static List<S3ListEntry> readAll(S3ListStream stream) throws Exception {
+        List<S3ListEntry> entries = new CopyOnWriteArrayList<>();
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        stream.exceptionHandler(done::completeExceptionally);
+        stream.endHandler(done::complete);
+        stream.handler(entries::add);
+        done.get(20, TimeUnit.SECONDS);
+        return entries;
+    }
+
+    private void store(String prefix, int count) {
+        for (int i = 0; i < count; i++) {
+            String key = prefix + String.format("%04d", i);
+            server.getBackend().put(bucket, key, new LocalS3Object(Buffer.buffer(key), "\"" + i + "\"", 1000L,
+                                                                  Collections.emptyMap()));
+        }
+    }
+}
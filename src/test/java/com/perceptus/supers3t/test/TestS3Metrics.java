@@ -0,0 +1,116 @@
+package com.perceptus.supers3t.test;
+
+import com.perceptus.supers3t.S3ClientOptions;
+import com.perceptus.supers3t.S3Histogram;
+import com.perceptus.supers3t.S3MetricsRegistry;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests {@link S3MetricsRegistry} and {@link S3Histogram}.
+ *
+ * @author spartango
+ */
+public class TestS3Metrics extends LocalS3TestCase {
+    private static final String bucket = "metrics";
+
+    private S3MetricsRegistry registry;
+
+    @Override
+    protected S3ClientOptions options() {
+        return super.options().setMaxPoolSize(2);
+    }
+
+    @Before
+    public void setUp() {
+        registry = new S3MetricsRegistry();
+        client.setMetrics(registry);
+    }
+
+    @Test
+    public void testRequestsRecorded() throws Exception {
+        CompletableFuture<Integer> put = new CompletableFuture<>();
+        client.put(bucket, "a", Buffer.buffer(new byte[1000]), response -> put.complete(response.statusCode()));
+        Assert.assertEquals(200, (int) put.get(10, TimeUnit.SECONDS));
+
+        // Handlers that never read the body still count
+        CompletableFuture<Integer> missing = new CompletableFuture<>();
+        client.get(bucket, "missing", response -> missing.complete(response.statusCode()));
+        Assert.assertEquals(404, (int) missing.get(10, TimeUnit.SECONDS));
+
+        CompletableFuture<Buffer> got = new CompletableFuture<>();
+        client.get(bucket, "a", response -> response.bodyHandler(got::complete));
+        Assert.assertEquals(1000, got.get(10, TimeUnit.SECONDS).length());
+
+        S3MetricsRegistry.OperationMetrics puts = registry.operation("PutObject", bucket);
+        awaitCount(puts, 1);
+        Assert.assertEquals(1000, puts.getBytesSent());
+        Assert.assertEquals(1, puts.getStatusCount(200));
+
+        S3MetricsRegistry.OperationMetrics gets = registry.operation("GetObject", bucket);
+        awaitCount(gets, 2);
+        Assert.assertEquals(1, gets.getStatusCount(200));
+        Assert.assertEquals(1, gets.getStatusCount(404));
+        Assert.assertTrue(gets.getBytesReceived() >= 1000);
+        Assert.assertEquals(2, gets.getLatency().getCount());
+        Assert.assertTrue(gets.getTimeToFirstByte().getMax() <= gets.getLatency().getMax());
+        Assert.assertEquals(0, client.getInFlightRequests());
+
+        JsonObject snapshot = registry.snapshot();
+        Assert.assertEquals(2, snapshot.getJsonArray("operations").size());
+    }
+
+    @Test
+    public void testPoolWaitAndInFlight() throws Exception {
+        server.setLatency(50, TimeUnit.MILLISECONDS);
+        CountDownLatch done = new CountDownLatch(6);
+        for (int i = 0; i < 6; i++) {
+            client.head(bucket, "none", response -> done.countDown());
+        }
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        S3MetricsRegistry.OperationMetrics heads = registry.operation("HeadObject", bucket);
+        awaitCount(heads, 6);
+        // Two connections, six requests: four of them queued
+        Assert.assertTrue(heads.getPoolWait().getMax() >= TimeUnit.MILLISECONDS.toNanos(40));
+        Assert.assertEquals(0, client.getInFlightRequests());
+    }
+
+    @Test
+    public void testHistogramPercentiles() {
+        S3Histogram histogram = new S3Histogram();
+        for (long i = 1; i <= 10000; i++) {
+            histogram.record(i * 1000);
+        }
+        Assert.assertEquals(10000, histogram.getCount());
+        Assert.assertEquals(10000000, histogram.getMax());
+        assertWithin(5000000, histogram.getValueAtPercentile(50), 0.07);
+        assertWithin(9900000, histogram.getValueAtPercentile(99), 0.07);
+        assertWithin(5000500, (long) histogram.getMean(), 0.001);
+
+        histogram.record(3);
+        Assert.assertEquals(3, histogram.getValueAtPercentile(0));
+    }
+
+    private static void assertWithin(long expected, long actual, double tolerance) {
+        Assert.assertTrue(actual + " not within " + tolerance + " of " + expected,
+                          Math.abs(actual - expected) <= expected * tolerance);
+    }
+
+    // Completion is recorded as the response ends, which can trail the
+    // handler the test waited on
+    private static void awaitCount(S3MetricsRegistry.OperationMetrics metrics, long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (metrics.getRequests() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(count, metrics.getRequests());
+    }
+}
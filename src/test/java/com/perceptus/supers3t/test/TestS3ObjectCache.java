@@ -0,0 +1,138 @@
+package com.perceptus.supers3t.test;
+
+import com.perceptus.supers3t.S3Client;
+import com.perceptus.supers3t.S3ObjectCache;
+import com.perceptus.supers3t.test.local.LocalS3Object;
+import io.vertx.core.buffer.Buffer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests {@link S3Client#getCached} and {@link S3ObjectCache}.
+ *
+ * @author spartango
+ */
+public class TestS3ObjectCache extends LocalS3TestCase {
+    private static final String bucket = "cache";
+
+    private S3ObjectCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new S3ObjectCache(10000, 5000);
+        client.setCache(cache);
+    }
+
+    @After
+    public void tearDown() {
+        cache.clear();
+    }
+
+    @Test
+    public void testRevalidatedHit() throws Exception {
+        Buffer data = Buffer.buffer("config-v1");
+        put("config", data);
+
+        Assert.assertEquals(data, getCached("config"));
+        Assert.assertEquals(data, getCached("config"));
+
+        Assert.assertEquals(1, cache.getMisses());
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, cache.getRevalidations());
+        // Both went to the server, the second only for a 304
+        Assert.assertEquals(2, server.getRequestCount("GetObject"));
+    }
+
+    @Test
+    public void testFreshHitSkipsServer() throws Exception {
+        cache.setMaxAge(60000);
+        put("config", Buffer.buffer("config-v1"));
+
+        getCached("config");
+        getCached("config");
+        Assert.assertEquals(1, server.getRequestCount("GetObject"));
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(0, cache.getRevalidations());
+    }
+
+    @Test
+    public void testChangedBehindOurBack() throws Exception {
+        put("config", Buffer.buffer("config-v1"));
+        getCached("config");
+
+        Buffer changed = Buffer.buffer("config-v2");
+        server.getBackend().put(bucket, "config", new LocalS3Object(changed, "\"v2\"", 0L, Collections.emptyMap()));
+        Assert.assertEquals(changed, getCached("config"));
+        Assert.assertEquals(2, cache.getMisses());
+        Assert.assertEquals("\"v2\"", cache.get(bucket, "config").getEtag());
+    }
+
+    @Test
+    public void testWritesInvalidate() throws Exception {
+        put("config", Buffer.buffer("config-v1"));
+        getCached("config");
+        Assert.assertEquals(1, cache.getEntryCount());
+
+        put("config", Buffer.buffer("config-v2"));
+        Assert.assertEquals(0, cache.getEntryCount());
+        Assert.assertEquals(Buffer.buffer("config-v2"), getCached("config"));
+
+        CompletableFuture<Integer> deleted = new CompletableFuture<>();
+        client.delete(bucket, "config", response -> deleted.complete(response.statusCode()));
+        deleted.get(10, TimeUnit.SECONDS);
+        Assert.assertNull(cache.get(bucket, "config"));
+    }
+
+    @Test
+    public void testReadBeforeWriteNotCached() throws Exception {
+        cache.setMaxAge(60000);
+        put("config", Buffer.buffer(new byte[4000]));
+
+        // Read as it was, then slowly, while it is written over
+        server.setBandwidth(4000);
+        CompletableFuture<Buffer> before = new CompletableFuture<>();
+        client.getCached(bucket, "config", result -> before.complete(result.result()));
+        Thread.sleep(200);
+        put("config", Buffer.buffer("config-v2"));
+        Assert.assertEquals(4000, before.get(10, TimeUnit.SECONDS).length());
+
+        server.setBandwidth(0);
+        Assert.assertEquals(Buffer.buffer("config-v2"), getCached("config"));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() {
+        cache.put(bucket, "a", "\"a\"", Buffer.buffer(new byte[4000]));
+        cache.put(bucket, "b", "\"b\"", Buffer.buffer(new byte[4000]));
+        Assert.assertNotNull(cache.get(bucket, "a"));
+        cache.put(bucket, "c", "\"c\"", Buffer.buffer(new byte[4000]));
+
+        Assert.assertNotNull(cache.get(bucket, "a"));
+        Assert.assertNull(cache.get(bucket, "b"));
+        Assert.assertNotNull(cache.get(bucket, "c"));
+        Assert.assertEquals(1, cache.getEvictions());
+        Assert.assertEquals(8000, cache.getSize());
+
+        // Too big to cache at all
+        cache.put(bucket, "d", "\"d\"", Buffer.buffer(new byte[6000]));
+        Assert.assertNull(cache.get(bucket, "d"));
+    }
+
+    private void put(String key, Buffer data) throws Exception {
+        CompletableFuture<Integer> status = new CompletableFuture<>();
+        client.put(bucket, key, data, response -> status.complete(response.statusCode()));
+        Assert.assertEquals(200, (int) status.get(10, TimeUnit.SECONDS));
+    }
+
+    private Buffer getCached(String key) throws Exception {
+        CompletableFuture<Buffer> body = new CompletableFuture<>();
+        client.getCached(bucket, key, result -> complete(body, result));
+        return body.get(10, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,207 @@
+package com.perceptus.supers3t.test;
+
+import com.perceptus.supers3t.S3Exception;
+import com.perceptus.supers3t.S3MultipartUpload;
+import com.perceptus.supers3t.S3PackIndex;
+import com.perceptus.supers3t.S3PackReader;
+import com.perceptus.supers3t.S3PackWriter;
+import io.vertx.core.buffer.Buffer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests {@link S3PackWriter}, {@link S3PackReader} and {@link S3PackIndex}.
+ *
+ * @author spartango
+ */
+public class TestS3Pack extends LocalS3TestCase {
+    private static final String bucket = "thumbnails";
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        // About 4000 objects under 4KB, 8MB or so in all
+        Map<String, byte[]> entries = entries(4000, 11);
+        S3PackIndex index = write("2015/10/pack-0001", entries);
+        Assert.assertEquals(entries.size(), index.size());
+        Assert.assertEquals(1, server.getRequestCount("CreateMultipartUpload"));
+        Assert.assertEquals(2, server.getRequestCount("UploadPart"));
+        // The index alone
+        Assert.assertEquals(1, server.getRequestCount("PutObject"));
+
+        S3PackReader reader = open("2015/10/pack-0001");
+        Assert.assertEquals(index.getEtag(), reader.getIndex().getEtag());
+        for (String name : Arrays.asList("thumb-0000.jpg", "thumb-2047.jpg", "thumb-3999.jpg")) {
+            Assert.assertArrayEquals(entries.get(name), get(reader, name).getBytes());
+        }
+        Assert.assertEquals(3, reader.getRequests());
+
+        // Neighbours come back in one request
+        List<String> names = new ArrayList<>();
+        for (int i = 1000; i < 1500; i++) {
+            names.add(String.format("thumb-%04d.jpg", i));
+        }
+        names.add("missing.jpg");
+        Map<String, Buffer> bodies = getAll(reader, names);
+        Assert.assertEquals(500, bodies.size());
+        for (Map.Entry<String, Buffer> body : bodies.entrySet()) {
+            Assert.assertArrayEquals(entries.get(body.getKey()), body.getValue().getBytes());
+        }
+        Assert.assertEquals(4, reader.getRequests());
+    }
+
+    @Test
+    public void testMergeGapAndMaxRange() throws Exception {
+        Map<String, byte[]> entries = entries(200, 5);
+        write("small", entries);
+
+        // Every tenth entry: gaps of nine entries, well under 64KB
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 200; i += 10) {
+            names.add(String.format("thumb-%04d.jpg", i));
+        }
+        S3PackReader reader = open("small");
+        Assert.assertEquals(20, getAll(reader, names).size());
+        Assert.assertEquals(1, reader.getRequests());
+
+        // No gaps allowed: one request each
+        reader = open("small").setMergeGap(0);
+        Assert.assertEquals(20, getAll(reader, names).size());
+        Assert.assertEquals(20, reader.getRequests());
+
+        // Ranges capped at 100KB
+        reader = open("small").setMaxRange(100 * 1024);
+        Map<String, Buffer> bodies = getAll(reader, names);
+        for (String name : names) {
+            Assert.assertArrayEquals(entries.get(name), bodies.get(name).getBytes());
+        }
+        Assert.assertTrue(reader.getRequests() > 1 && reader.getRequests() < 20);
+    }
+
+    @Test
+    public void testRewrittenPackFails() throws Exception {
+        write("rewritten", entries(10, 3));
+        S3PackReader reader = open("rewritten");
+
+        CompletableFuture<Integer> put = new CompletableFuture<>();
+        client.put(bucket, "rewritten", Buffer.buffer(new byte[50000]), response -> put.complete(response.statusCode()),
+                   put::completeExceptionally);
+        Assert.assertEquals(200, (int) put.get(10, TimeUnit.SECONDS));
+
+        try {
+            get(reader, "thumb-0003.jpg");
+            Assert.fail("Entries of a replaced pack should not be read");
+        } catch (ExecutionException e) {
+            Assert.assertEquals("PreconditionFailed", ((S3Exception) e.getCause()).getErrorCode());
+        }
+    }
+
+    @Test
+    public void testMissingAndEmptyEntries() throws Exception {
+        Map<String, byte[]> entries = entries(3, 1);
+        entries.put("empty", new byte[0]);
+        write("sparse", entries);
+        S3PackReader reader = open("sparse");
+
+        Assert.assertEquals(0, get(reader, "empty").length());
+        try {
+            get(reader, "nothing-here");
+            Assert.fail("Missing entry should fail");
+        } catch (ExecutionException e) {
+            Assert.assertEquals("NoSuchKey", ((S3Exception) e.getCause()).getErrorCode());
+        }
+        Assert.assertEquals(0, reader.getRequests());
+
+        S3PackWriter writer = client.createPackWriter(bucket, "duplicates");
+        writer.add("a", Buffer.buffer("1"));
+        try {
+            writer.add("a", Buffer.buffer("2"));
+            Assert.fail("Duplicate entry should be refused");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        writer.abort();
+    }
+
+    @Test
+    public void testIndexEncoding() throws Exception {
+        // Shared prefixes, including ones that end inside a multi-byte character
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put("users/\u00e9mile/avatar.png", new byte[10]);
+        entries.put("users/\u00e8ve/avatar.png", new byte[20]);
+        entries.put("users/zo\u00eb/avatar.png", new byte[30]);
+        entries.put("users", new byte[5]);
+        S3PackIndex index = write("users", entries);
+
+        S3PackIndex decoded = S3PackIndex.decode(index.encode());
+        Assert.assertEquals(index.getEtag(), decoded.getEtag());
+        Assert.assertEquals(65, decoded.getPackLength());
+        Assert.assertEquals(4, decoded.size());
+        for (String name : entries.keySet()) {
+            int entry = decoded.find(name);
+            Assert.assertTrue(name, entry >= 0);
+            Assert.assertEquals(entries.get(name).length, decoded.getLength(entry));
+            Assert.assertEquals(index.getOffset(index.find(name)), decoded.getOffset(entry));
+        }
+        // Written order, not name order
+        Assert.assertEquals(60, decoded.getOffset(decoded.find("users")));
+
+        Buffer encoded = index.encode();
+        try {
+            S3PackIndex.decode(encoded.getBuffer(0, encoded.length() - 3));
+            Assert.fail("Truncated index should fail");
+        } catch (S3Exception e) {
+            Assert.assertTrue(e.getMessage().contains("truncated"));
+        }
+    }
+
+    private S3PackIndex write(String key, Map<String, byte[]> entries) throws Exception {
+        CompletableFuture<S3PackIndex> done = new CompletableFuture<>();
+        vertx.runOnContext(event -> {
+            S3PackWriter writer = client.createPackWriter(bucket, key, S3MultipartUpload.MIN_PART_SIZE, 4);
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                writer.add(entry.getKey(), Buffer.buffer(entry.getValue()));
+            }
+            writer.end(result -> complete(done, result));
+        });
+        return done.get(30, TimeUnit.SECONDS);
+    }
+
+    private S3PackReader open(String key) throws Exception {
+        CompletableFuture<S3PackReader> opened = new CompletableFuture<>();
+        client.openPack(bucket, key, result -> complete(opened, result));
+        return opened.get(10, TimeUnit.SECONDS);
+    }
+
+    private static Buffer get(S3PackReader reader, String name) throws Exception {
+        CompletableFuture<Buffer> body = new CompletableFuture<>();
+        reader.get(name, result -> complete(body, result));
+        return body.get(10, TimeUnit.SECONDS);
+    }
+
+    private static Map<String, Buffer> getAll(S3PackReader reader, List<String> names) throws Exception {
+        CompletableFuture<Map<String, Buffer>> bodies = new CompletableFuture<>();
+        reader.getAll(names, result -> complete(bodies, result));
+        return bodies.get(10, TimeUnit.SECONDS);
+    }
+
+    private static Map<String, byte[]> entries(int count, long seed) {
+        Random random = new Random(seed);
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            byte[] data = new byte[100 + random.nextInt(4000)];
+            random.nextBytes(data);
+            entries.put(String.format("thumb-%04d.jpg", i), data);
+        }
+        return entries;
+    }
+}
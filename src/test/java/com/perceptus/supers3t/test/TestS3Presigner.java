@@ -0,0 +1,141 @@
+package com.perceptus.supers3t.test;
+
+import com.perceptus.supers3t.S3Presigner;
+import com.perceptus.supers3t.test.local.LocalS3Object;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpMethod;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Tests presigned URLs from {@link S3Presigner}, used without the client,
+ * the way a browser would.
+ *
+ * @author spartango
+ */
+public class TestS3Presigner extends LocalS3TestCase {
+    private static final String bucket = "direct";
+
+    @Test
+    public void testPutGetDeleteV2() throws Exception {
+        roundTrip("uploads/photo 1.jpg");
+    }
+
+    @Test
+    public void testPutGetDeleteV4() throws Exception {
+        client.useSignatureV4();
+        roundTrip("uploads/\u0444\u043e\u0442\u043e \u00fc+1.jpg");
+    }
+
+    @Test
+    public void testSignerWithoutPresigning() {
+        client.setSigner(request -> {
+        });
+        try {
+            client.createPresigner();
+            Assert.fail("A plain signer can't presign");
+        } catch (IllegalArgumentException expected) {
+            // refused up front, not at the first URL
+        }
+    }
+
+    private void roundTrip(String key) throws Exception {
+        String put = client.createPresigner().putHeader("Content-Type", "image/jpeg")
+                           .presign(HttpMethod.PUT, bucket, key);
+        Assert.assertEquals(200, send("PUT", put, "image/jpeg", "pixels"));
+        LocalS3Object stored = server.getBackend().get(bucket, key);
+        Assert.assertEquals("pixels", stored.getData().toString());
+
+        // The signed Content-Type is binding
+        Assert.assertEquals(403, send("PUT", put, "text/html", "<script>"));
+
+        Assert.assertEquals("pixels", read(client.presign(HttpMethod.GET, bucket, key, 60)));
+        Assert.assertEquals(204, send("DELETE", client.presign(HttpMethod.DELETE, bucket, key, 60), null, null));
+        Assert.assertNull(server.getBackend().get(bucket, key));
+    }
+
+    @Test
+    public void testTamperedUrlRejected() throws Exception {
+        store("mine");
+        store("theirs");
+        client.useSignatureV4();
+        String url = client.presign(HttpMethod.GET, bucket, "mine", 60);
+        Assert.assertEquals(200, send("GET", url, null, null));
+        Assert.assertEquals(403, send("GET", url.replace("/mine?", "/theirs?"), null, null));
+        Assert.assertEquals(403, send("DELETE", url, null, null));
+    }
+
+    @Test
+    public void testExpired() throws Exception {
+        store("brief");
+        String url = client.presign(HttpMethod.GET, bucket, "brief", 1);
+        Thread.sleep(2100);
+        Assert.assertEquals(403, send("GET", url, null, null));
+    }
+
+    @Test
+    public void testPresignAll() throws Exception {
+        List<String> keys = Arrays.asList("a", "b", "c/d", "e f");
+        for (String key : keys) {
+            store(key);
+        }
+        client.useSignatureV4();
+        List<String> urls = client.createPresigner().setExpiry(600).presignAll(HttpMethod.GET, bucket, keys);
+        Assert.assertEquals(4, new HashSet<>(urls).size());
+        for (int i = 0; i < keys.size(); i++) {
+            Assert.assertEquals(keys.get(i), read(urls.get(i)));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testV4ExpiryCapped() {
+        client.useSignatureV4();
+        client.presign(HttpMethod.GET, bucket, "key", 8 * 24 * 3600);
+    }
+
+    private void store(String key) {
+        server.getBackend().put(bucket, key, new LocalS3Object(Buffer.buffer(key), "\"0\"", 0L, Collections.emptyMap()));
+    }
+
+    private static int send(String method, String url, String contentType, String body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        if (contentType != null) {
+            connection.setRequestProperty("Content-Type", contentType);
+        }
+        if (body != null) {
+            connection.setDoOutput(true);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        int status = connection.getResponseCode();
+        connection.disconnect();
+        return status;
+    }
+
+    private static String read(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        Assert.assertEquals(200, connection.getResponseCode());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (InputStream in = connection.getInputStream()) {
+            byte[] buffer = new byte[4096];
+            for (int n; (n = in.read(buffer)) > 0; ) {
+                bytes.write(buffer, 0, n);
+            }
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
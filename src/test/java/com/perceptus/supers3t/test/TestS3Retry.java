@@ -0,0 +1,240 @@
+package com.perceptus.supers3t.test;
+
+import com.perceptus.supers3t.S3Client;
+import com.perceptus.supers3t.S3ClientOptions;
+import com.perceptus.supers3t.S3ClientRequest;
+import com.perceptus.supers3t.S3MetricsRegistry;
+import com.perceptus.supers3t.S3RetryPolicy;
+import io.vertx.core.buffer.Buffer;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests retries, timeouts and hedged GETs in {@link S3Client}.
+ *
+ * @author spartango
+ */
+public class TestS3Retry extends LocalS3TestCase {
+    private static final String bucket = "retry";
+
+    private S3MetricsRegistry registry;
+
+    @Override
+    protected S3ClientOptions options() {
+        return super.options().setRetryPolicy(new S3RetryPolicy(3, 10, 100));
+    }
+
+    // Each client gets a registry of its own
+    @Override
+    protected S3Client createClient(S3ClientOptions options) {
+        S3Client client = super.createClient(options);
+        registry = new S3MetricsRegistry();
+        client.setMetrics(registry);
+        return client;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        put("object", Buffer.buffer("data"));
+        server.resetRequestCounts();
+    }
+
+    @Test
+    public void testSlowDownRetried() throws Exception {
+        server.failNext(2, 503, "SlowDown");
+        Assert.assertEquals(200, get("object"));
+        Assert.assertEquals(3, server.getRequestCount("GetObject"));
+        Assert.assertEquals(2, registry.operation("GetObject", bucket).getRetries());
+    }
+
+    @Test
+    public void testGivesUpAfterMaxAttempts() throws Exception {
+        server.failNext(5, 500, "InternalError");
+        Assert.assertEquals(500, get("object"));
+        Assert.assertEquals(3, server.getRequestCount("GetObject"));
+    }
+
+    @Test
+    public void testClientErrorsNotRetried() throws Exception {
+        Assert.assertEquals(404, get("missing"));
+        Assert.assertEquals(1, server.getRequestCount("GetObject"));
+    }
+
+    @Test
+    public void testResetRetried() throws Exception {
+        server.resetNext(1);
+        Assert.assertEquals(200, get("object"));
+        Assert.assertEquals(2, server.getRequestCount("GetObject"));
+    }
+
+    @Test
+    public void testPolicyPerOperation() throws Exception {
+        client.close();
+        client = createClient(options().setRetryPolicy("PutObject", S3RetryPolicy.NONE));
+        server.failNext(1, 503, "SlowDown");
+        Assert.assertEquals(503, put("object", Buffer.buffer("new")));
+        server.failNext(1, 503, "SlowDown");
+        Assert.assertEquals(200, get("object"));
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        client.close();
+        client = createClient(options().setRequestTimeout(100).setRetryPolicy(S3RetryPolicy.NONE));
+        server.stallNext(1, 1, TimeUnit.SECONDS);
+        try {
+            get("object");
+            Assert.fail("Request should have timed out");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof TimeoutException);
+        }
+
+        // A stalled attempt is retried like any other failure
+        client.close();
+        client = createClient(options().setRequestTimeout(100));
+        server.stallNext(1, 1, TimeUnit.SECONDS);
+        Assert.assertEquals(200, get("object"));
+    }
+
+    @Test
+    public void testTimeoutSparesSlowUpload() throws Exception {
+        // Written over about a second, five times the timeout, which only
+        // starts once the request is ended
+        Buffer data = Buffer.buffer(new byte[200 * 1024]);
+        CompletableFuture<Integer> status = new CompletableFuture<>();
+        int chunk = data.length() / 10;
+        AtomicInteger written = new AtomicInteger();
+        // The request and the timer writing it share one context
+        vertx.runOnContext(event -> {
+            S3ClientRequest request = client.createPutRequest(bucket, "large",
+                                                              response -> status.complete(response.statusCode()));
+            request.exceptionHandler(status::completeExceptionally);
+            request.setTimeout(200);
+            request.putHeader("Content-Length", String.valueOf(data.length()));
+            vertx.setPeriodic(100, timer -> {
+                int offset = written.getAndAdd(chunk);
+                request.write(data.slice(offset, offset + chunk));
+                if (offset + chunk == data.length()) {
+                    vertx.cancelTimer(timer);
+                    request.end();
+                }
+            });
+        });
+        Assert.assertEquals(200, (int) status.get(10, TimeUnit.SECONDS));
+        Assert.assertEquals(1, server.getRequestCount("PutObject"));
+    }
+
+    @Test
+    public void testUnansweredPutTimesOut() throws Exception {
+        client.close();
+        client = createClient(options().setRequestTimeout(200).setRetryPolicy(S3RetryPolicy.NONE));
+        server.hangNext(1);
+        try {
+            put("object", Buffer.buffer(new byte[50000]));
+            Assert.fail("Request should have timed out");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof TimeoutException);
+        }
+
+        // And is tried again like any other failure
+        client.close();
+        client = createClient(options().setRequestTimeout(200));
+        server.hangNext(1);
+        Assert.assertEquals(200, put("object", Buffer.buffer(new byte[50000])));
+        Assert.assertEquals(1, registry.operation("PutObject", bucket).getRetries());
+    }
+
+    @Test
+    public void testRetriedFileClosed() throws Exception {
+        Path file = Files.createTempFile("retried", ".bin");
+        try {
+            Files.write(file, new byte[4 * 1024 * 1024]);
+            // Turned away while most of the file is still to be sent
+            server.rejectNext(3, 503, "SlowDown");
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            client.putFile(bucket, "file", file.toString(), response -> done.complete(null),
+                           failure -> done.complete(null));
+            done.get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(2, registry.operation("PutObject", bucket).getRetries());
+            awaitClosed(file);
+
+            CompletableFuture<Integer> status = new CompletableFuture<>();
+            client.putFile(bucket, "file", file.toString(), response -> status.complete(response.statusCode()),
+                           status::completeExceptionally);
+            Assert.assertEquals(200, (int) status.get(10, TimeUnit.SECONDS));
+            awaitClosed(file);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    // Waits for no descriptor of this process to be open on file (Linux only)
+    private static void awaitClosed(Path file) throws Exception {
+        File descriptors = new File("/proc/self/fd");
+        Assume.assumeTrue(descriptors.isDirectory());
+        Path target = file.toRealPath();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (openOn(descriptors, target) > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, openOn(descriptors, target));
+    }
+
+    private static int openOn(File descriptors, Path target) {
+        int open = 0;
+        File[] fds = descriptors.listFiles();
+        for (File fd : fds == null ? new File[0] : fds) {
+            try {
+                if (target.equals(Files.readSymbolicLink(fd.toPath()))) {
+                    open++;
+                }
+            } catch (IOException e) {
+                // Closed as we looked
+            }
+        }
+        return open;
+    }
+
+    @Test
+    public void testHedgedGet() throws Exception {
+        client.close();
+        client = createClient(options().setHedging(true).setHedgeDelay(50));
+        server.stallNext(1, 2, TimeUnit.SECONDS);
+
+        long start = System.nanoTime();
+        Assert.assertEquals(200, get("object"));
+        Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+        Assert.assertEquals(1, registry.operation("GetObject", bucket).getHedges());
+
+        // Fast requests aren't hedged
+        Assert.assertEquals(200, get("object"));
+        Assert.assertEquals(1, registry.operation("GetObject", bucket).getHedges());
+    }
+
+    private int put(String key, Buffer data) throws Exception {
+        CompletableFuture<Integer> status = new CompletableFuture<>();
+        client.put(bucket, key, data, response -> status.complete(response.statusCode()), status::completeExceptionally);
+        return status.get(10, TimeUnit.SECONDS);
+    }
+
+    private int get(String key) throws Exception {
+        CompletableFuture<Integer> status = new CompletableFuture<>();
+        client.get(bucket,
+                   key,
+                   response -> response.bodyHandler(body -> status.complete(response.statusCode())),
+                   status::completeExceptionally);
+        return status.get(10, TimeUnit.SECONDS);
+    }
+}
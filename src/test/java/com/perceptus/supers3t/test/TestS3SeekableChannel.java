@@ -0,0 +1,139 @@
+package com.perceptus.supers3t.test;
+
+import com.perceptus.supers3t.S3Client;
+import com.perceptus.supers3t.S3SeekableChannel;
+import com.perceptus.supers3t.test.local.LocalS3Object;
+import io.vertx.core.buffer.Buffer;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests {@link S3SeekableChannel} and {@link S3Client#openChannel}.
+ *
+ * @author spartango
+ */
+public class TestS3SeekableChannel extends LocalS3TestCase {
+    private static final String bucket = "tables";
+    private static final int BLOCK = 64 * 1024;
+
+    private byte[] data;
+
+    @Before
+    public void setUp() {
+        // 20 blocks and a bit
+        data = new byte[20 * BLOCK + 1000];
+        new Random(7).nextBytes(data);
+        server.getBackend().put(bucket, "table.parquet", new LocalS3Object(Buffer.buffer(data), "\"v1\"", 0L,
+                                                                           Collections.emptyMap()));
+    }
+
+    private S3SeekableChannel open() throws Exception {
+        CompletableFuture<S3SeekableChannel> opened = new CompletableFuture<>();
+        client.openChannel(bucket, "table.parquet", result -> complete(opened, result));
+        return opened.get(10, TimeUnit.SECONDS).setBlockSize(BLOCK).setCacheBlocks(8);
+    }
+
+    @Test
+    public void testRandomReads() throws Exception {
+        S3SeekableChannel channel = open();
+        Assert.assertEquals(data.length, channel.size());
+        Random random = new Random(11);
+        for (int i = 0; i < 50; i++) {
+            int position = random.nextInt(data.length);
+            int length = Math.min(data.length - position, 1 + random.nextInt(3 * BLOCK));
+            assertRead(channel, position, length);
+        }
+        Assert.assertTrue(channel.getCachedBlocks() <= 8);
+
+        channel.position(data.length);
+        Assert.assertEquals(-1, channel.read(ByteBuffer.allocate(10)));
+    }
+
+    @Test
+    public void testFooterThenColumns() throws Exception {
+        S3SeekableChannel channel = open().setReadAhead(0);
+        // Footer length, then the footer, both in the last block
+        assertRead(channel, data.length - 8, 8);
+        assertRead(channel, data.length - 600, 592);
+        Assert.assertEquals(1, channel.getRequests());
+
+        // Column chunks a few blocks apart, with one-block gaps between
+        long[] positions = { 2 * BLOCK + 100, 4 * BLOCK + 5, 6 * BLOCK };
+        long[] lengths = { 1000, BLOCK, 2000 };
+        channel.prefetch(positions, lengths);
+        Assert.assertEquals(2, channel.getRequests());
+        for (int i = 0; i < positions.length; i++) {
+            assertRead(channel, positions[i], (int) lengths[i]);
+        }
+        Assert.assertEquals(2, channel.getRequests());
+        Assert.assertEquals(2, server.getRequestCount("GetObject"));
+    }
+
+    @Test
+    public void testSequentialReadAhead() throws Exception {
+        S3SeekableChannel channel = open().setReadAhead(4);
+        ByteBuffer buffer = ByteBuffer.allocate(16 * 1024);
+        int offset = 0;
+        int n;
+        while ((n = channel.read(buffer)) > 0) {
+            buffer.flip();
+            for (int i = 0; i < n; i++) {
+                Assert.assertEquals(data[offset + i], buffer.get(i));
+            }
+            offset += n;
+            buffer.clear();
+        }
+        Assert.assertEquals(data.length, offset);
+        // 21 blocks in a handful of requests, not one per block
+        Assert.assertTrue(channel.getRequests() <= 9);
+    }
+
+    @Test
+    public void testChangedObjectFails() throws Exception {
+        S3SeekableChannel channel = open();
+        server.getBackend().put(bucket, "table.parquet", new LocalS3Object(Buffer.buffer(data), "\"v2\"", 0L,
+                                                                           Collections.emptyMap()));
+        try {
+            channel.read(ByteBuffer.allocate(10));
+            Assert.fail("Read of a replaced object should fail");
+        } catch (IOException e) {
+            Assert.assertTrue(e.getCause().getMessage().contains("PreconditionFailed"));
+        }
+    }
+
+    @Test
+    public void testNotOnEventLoop() throws Exception {
+        S3SeekableChannel channel = open();
+        CompletableFuture<Throwable> thrown = new CompletableFuture<>();
+        vertx.runOnContext(event -> {
+            try {
+                channel.read(ByteBuffer.allocate(10));
+                thrown.complete(null);
+            } catch (Throwable e) {
+                thrown.complete(e);
+            }
+        });
+        Assert.assertTrue(thrown.get(10, TimeUnit.SECONDS) instanceof IllegalStateException);
+    }
+
+    private void assertRead(S3SeekableChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        channel.position(position);
+        while (buffer.hasRemaining() && channel.read(buffer) > 0) {
+            // Reads may come up short
+        }
+        Assert.assertEquals(length, buffer.position());
+        for (int i = 0; i < length; i++) {
+            Assert.assertEquals(data[(int) position + i], buffer.get(i));
+        }
+        Assert.assertEquals(position + length, channel.position());
+    }
+}
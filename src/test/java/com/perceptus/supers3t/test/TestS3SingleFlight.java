@@ -0,0 +1,170 @@
+package com.perceptus.supers3t.test;
+
+import com.perceptus.supers3t.S3Client;
+import com.perceptus.supers3t.S3ClientOptions;
+import com.perceptus.supers3t.S3MetricsRegistry;
+import com.perceptus.supers3t.test.local.LocalS3Object;
+import io.vertx.core.buffer.Buffer;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests coalescing of concurrent GETs in {@link S3Client}.
+ *
+ * @author spartango
+ */
+public class TestS3SingleFlight extends LocalS3TestCase {
+    private static final String bucket = "hot";
+
+    private S3MetricsRegistry registry;
+    private Buffer data;
+
+    @Override
+    protected S3ClientOptions options() {
+        return super.options().setCoalescing(true);
+    }
+
+    @Before
+    public void setUp() {
+        registry = new S3MetricsRegistry();
+        client.setMetrics(registry);
+
+        data = Buffer.buffer();
+        for (int i = 0; i < 20000; i++) {
+            data.appendByte((byte) i);
+        }
+        server.getBackend().put(bucket, "object", new LocalS3Object(data, "\"0\"", 0L, Collections.emptyMap()));
+    }
+
+    @Test
+    public void testConcurrentGetsShareOneRequest() throws Exception {
+        server.setLatency(200, TimeUnit.MILLISECONDS);
+        List<CompletableFuture<Buffer>> bodies = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            bodies.add(get("object", null));
+        }
+        Buffer first = bodies.get(0).get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(data, first);
+        for (CompletableFuture<Buffer> body : bodies) {
+            // Handed on, not copied
+            Assert.assertSame(first, body.get(10, TimeUnit.SECONDS));
+        }
+        Assert.assertEquals(1, server.getRequestCount("GetObject"));
+        Assert.assertEquals(19, registry.operation("GetObject", bucket).getCoalesced());
+
+        // Once it's over, the next GET goes out
+        Assert.assertEquals(data, get("object", null).get(10, TimeUnit.SECONDS));
+        Assert.assertEquals(2, server.getRequestCount("GetObject"));
+    }
+
+    @Test
+    public void testLateJoinerCatchesUp() throws Exception {
+        server.setBandwidth(50000);
+        CompletableFuture<Buffer> late = new CompletableFuture<>();
+        CompletableFuture<Buffer> early = new CompletableFuture<>();
+        Buffer received = Buffer.buffer();
+        client.get(bucket, "object", null, response -> {
+            response.handler(chunk -> {
+                if (received.length() == 0) {
+                    // Partway through the body
+                    late.complete(null);
+                }
+                received.appendBuffer(chunk);
+            });
+            response.endHandler(event -> early.complete(received));
+        }, early::completeExceptionally);
+
+        late.get(10, TimeUnit.SECONDS);
+        Buffer joined = get("object", null).get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(data, early.get(10, TimeUnit.SECONDS));
+        Assert.assertEquals(data, joined);
+        Assert.assertEquals(1, server.getRequestCount("GetObject"));
+        Assert.assertEquals(1, registry.operation("GetObject", bucket).getCoalesced());
+    }
+
+    @Test
+    public void testRangesCoalescedSeparately() throws Exception {
+        server.setLatency(100, TimeUnit.MILLISECONDS);
+        CompletableFuture<Buffer> whole = get("object", null);
+        CompletableFuture<Buffer> head = get("object", "bytes=0-9");
+        CompletableFuture<Buffer> head2 = get("object", "bytes=0-9");
+        Assert.assertEquals(data, whole.get(10, TimeUnit.SECONDS));
+        Assert.assertEquals(data.getBuffer(0, 10), head.get(10, TimeUnit.SECONDS));
+        Assert.assertEquals(data.getBuffer(0, 10), head2.get(10, TimeUnit.SECONDS));
+        Assert.assertEquals(2, server.getRequestCount("GetObject"));
+    }
+
+    @Test
+    public void testLargeBodiesNotShared() throws Exception {
+        client.close();
+        client = createClient(options().setCoalescingMaxSize(data.length() - 1));
+        client.setMetrics(registry);
+        server.setLatency(200, TimeUnit.MILLISECONDS);
+        List<CompletableFuture<Buffer>> bodies = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            bodies.add(get("object", null));
+        }
+        for (CompletableFuture<Buffer> body : bodies) {
+            Assert.assertEquals(data, body.get(10, TimeUnit.SECONDS));
+        }
+        // The first reads its own; the rest went again once the size was known
+        Assert.assertEquals(5, server.getRequestCount("GetObject"));
+        Assert.assertEquals(0, registry.operation("GetObject", bucket).getCoalesced());
+
+        // Small ones still are
+        server.getBackend().put(bucket, "small", new LocalS3Object(data.getBuffer(0, 100), "\"1\"", 0L,
+                                                                   Collections.emptyMap()));
+        CompletableFuture<Buffer> first = get("small", null);
+        CompletableFuture<Buffer> second = get("small", null);
+        Assert.assertSame(first.get(10, TimeUnit.SECONDS), second.get(10, TimeUnit.SECONDS));
+        Assert.assertEquals(6, server.getRequestCount("GetObject"));
+    }
+
+    @Test
+    public void testWriteEndsSharing() throws Exception {
+        // Read as it was, slowly, while it is written over
+        server.setBandwidth(20000);
+        CompletableFuture<Buffer> before = get("object", null);
+        Thread.sleep(200);
+        CompletableFuture<Integer> put = new CompletableFuture<>();
+        client.put(bucket, "object", Buffer.buffer("v2"), response -> put.complete(response.statusCode()),
+                   put::completeExceptionally);
+        Assert.assertEquals(200, (int) put.get(10, TimeUnit.SECONDS));
+
+        Assert.assertEquals(Buffer.buffer("v2"), get("object", null).get(10, TimeUnit.SECONDS));
+        Assert.assertEquals(data, before.get(10, TimeUnit.SECONDS));
+        Assert.assertEquals(2, server.getRequestCount("GetObject"));
+        Assert.assertEquals(0, registry.operation("GetObject", bucket).getCoalesced());
+    }
+
+    @Test
+    public void testErrorsShared() throws Exception {
+        server.setLatency(100, TimeUnit.MILLISECONDS);
+        server.failNext(1, 500, "InternalError");
+        List<CompletableFuture<Integer>> statuses = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            CompletableFuture<Integer> status = new CompletableFuture<>();
+            client.get(bucket, "object", null,
+                       response -> response.bodyHandler(body -> status.complete(response.statusCode())),
+                       status::completeExceptionally);
+            statuses.add(status);
+        }
+        for (CompletableFuture<Integer> status : statuses) {
+            Assert.assertEquals(500, (int) status.get(10, TimeUnit.SECONDS));
+        }
+        Assert.assertEquals(1, server.getRequestCount("GetObject"));
+    }
+
+    private CompletableFuture<Buffer> get(String key, String range) {
+        CompletableFuture<Buffer> body = new CompletableFuture<>();
+        client.get(bucket, key, range, response -> response.bodyHandler(body::complete), body::completeExceptionally);
+        return body;
+    }
+}
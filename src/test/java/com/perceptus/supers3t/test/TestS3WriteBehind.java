@@ -0,0 +1,227 @@
+package com.perceptus.supers3t.test;
+
+import com.perceptus.supers3t.S3Client;
+import com.perceptus.supers3t.S3WriteBehind;
+import com.perceptus.supers3t.test.local.LocalS3Object;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Tests {@link S3WriteBehind}: spooling, merged flushes and replay.
+ *
+ * @author spartango
+ */
+public class TestS3WriteBehind extends LocalS3TestCase {
+    private static final String bucket = "sessions";
+
+    private Path spool;
+
+    @Before
+    public void setUp() throws IOException {
+        spool = Files.createTempDirectory("write-behind");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        File[] files = spool.toFile().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Files.delete(file.toPath());
+            }
+        }
+        Files.delete(spool);
+    }
+
+    @Test
+    public void testPutsFlushInBackground() throws Exception {
+        S3WriteBehind spooler = start(client.createWriteBehind(spool.toString()).setFlushDelay(50).setSync(true));
+        List<CompletableFuture<Void>> puts = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            puts.add(put(spooler, "user-" + i, "state " + i));
+        }
+        for (CompletableFuture<Void> put : puts) {
+            put.get(10, TimeUnit.SECONDS);
+        }
+        Assert.assertEquals(200, spooler.getSpooled());
+
+        await(spooler::flush);
+        Assert.assertEquals(0, spooler.getPending());
+        Assert.assertEquals(200, spooler.getUploaded());
+        Assert.assertEquals(200, server.getRequestCount("PutObject"));
+        for (int i = 0; i < 200; i += 37) {
+            Assert.assertEquals("state " + i, stored("user-" + i));
+        }
+
+        await(spooler::close);
+        Assert.assertEquals(0, spool.toFile().list().length);
+    }
+
+    @Test
+    public void testRepeatedWritesMerge() throws Exception {
+        S3WriteBehind spooler = start(client.createWriteBehind(spool.toString()).setFlushDelay(60000));
+        CompletableFuture<Void> last = null;
+        for (int i = 0; i < 50; i++) {
+            last = put(spooler, "counter", "count " + i);
+        }
+        put(spooler, "other", "x").get(10, TimeUnit.SECONDS);
+        last.get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(2, spooler.getPending());
+        Assert.assertEquals(49, spooler.getMerged());
+        Assert.assertEquals(0, server.getRequestCount("PutObject"));
+
+        await(spooler::close);
+        Assert.assertEquals(2, server.getRequestCount("PutObject"));
+        Assert.assertEquals("count 49", stored("counter"));
+    }
+
+    @Test
+    public void testReplayAfterCrash() throws Exception {
+        // Spooled from another "process" that dies before flushing the rest
+        Vertx crashed = Vertx.vertx();
+        S3Client crashedClient = new S3Client(crashed, options());
+        S3WriteBehind before = start(crashedClient.createWriteBehind(spool.toString())
+                                                  .setFlushDelay(60000)
+                                                  .setSegmentSize(4096));
+        for (int i = 0; i < 10; i++) {
+            put(before, "uploaded-" + i, "early " + i).get(10, TimeUnit.SECONDS);
+        }
+        await(before::flush);
+        Assert.assertEquals(10, server.getRequestCount("PutObject"));
+        for (int i = 0; i < 100; i++) {
+            put(before, "spooled-" + (i % 40), "late " + i).get(10, TimeUnit.SECONDS);
+        }
+        CompletableFuture<Void> closed = new CompletableFuture<>();
+        crashed.close(result -> closed.complete(null));
+        closed.get(10, TimeUnit.SECONDS);
+        Assert.assertTrue(spool.toFile().list().length > 1);
+
+        // Torn last record
+        File newest = null;
+        for (File file : spool.toFile().listFiles()) {
+            if (newest == null || file.getName().compareTo(newest.getName()) > 0) {
+                newest = file;
+            }
+        }
+        Files.write(newest.toPath(), new byte[] { 0, 0, 1, 0, 1, 2, 3 }, StandardOpenOption.APPEND);
+
+        server.resetRequestCounts();
+        // Replayed puts are overdue, so they go up right away
+        S3WriteBehind after = start(client.createWriteBehind(spool.toString()).setFlushDelay(60000));
+        await(after::flush);
+        // Only what had not been uploaded, once per key
+        Assert.assertEquals(40, after.getUploaded());
+        Assert.assertEquals(40, server.getRequestCount("PutObject"));
+        for (int i = 60; i < 100; i++) {
+            Assert.assertEquals("late " + i, stored("spooled-" + (i % 40)));
+        }
+
+        await(after::close);
+        Assert.assertEquals(0, spool.toFile().list().length);
+    }
+
+    @Test
+    public void testReplayKeepsLaterWrite() throws Exception {
+        // Segments of exactly two puts (records are 25 bytes plus bucket,
+        // key and data), so b and a=v1 fill the first and everything after
+        // goes to later ones
+        Vertx crashed = Vertx.vertx();
+        S3Client crashedClient = new S3Client(crashed, options());
+        S3WriteBehind before = start(crashedClient.createWriteBehind(spool.toString())
+                                                  .setFlushDelay(0)
+                                                  .setRetryDelay(60000)
+                                                  .setSegmentSize(75));
+        // b stays spooled in the first segment, keeping it alive
+        server.failNext(1, 500, "InternalError");
+        put(before, "b", "stuck").get(10, TimeUnit.SECONDS);
+        waitFor(() -> server.getRequestCount("PutObject") == 1);
+        put(before, "a", "v1").get(10, TimeUnit.SECONDS);
+        waitFor(() -> "v1".equals(stored("a")) && before.getUploaded() == 1);
+        // a=v2 and the record of a=v1's upload land in the second segment,
+        // which then rolls over with nothing left to upload
+        put(before, "a", "v2").get(10, TimeUnit.SECONDS);
+        waitFor(() -> "v2".equals(stored("a")) && before.getUploaded() == 2);
+        put(before, "c", "x").get(10, TimeUnit.SECONDS);
+        waitFor(() -> before.getUploaded() == 3);
+        Thread.sleep(200);
+        CompletableFuture<Void> closed = new CompletableFuture<>();
+        crashed.close(result -> closed.complete(null));
+        closed.get(10, TimeUnit.SECONDS);
+
+        server.resetRequestCounts();
+        S3WriteBehind after = start(client.createWriteBehind(spool.toString()).setFlushDelay(60000));
+        await(after::flush);
+        Assert.assertEquals(1, after.getUploaded());
+        Assert.assertEquals(1, server.getRequestCount("PutObject"));
+        Assert.assertEquals("stuck", stored("b"));
+        Assert.assertEquals("v2", stored("a"));
+        await(after::close);
+        Assert.assertEquals(0, spool.toFile().list().length);
+    }
+
+    @Test
+    public void testFailedUploadsRetried() throws Exception {
+        List<Throwable> failures = new ArrayList<>();
+        S3WriteBehind spooler = start(client.createWriteBehind(spool.toString())
+                                            .setFlushDelay(0)
+                                            .setRetryDelay(100)
+                                            .exceptionHandler(failures::add));
+        server.failNext(2, 500, "InternalError");
+        put(spooler, "flaky", "eventually").get(10, TimeUnit.SECONDS);
+        await(spooler::flush);
+        Assert.assertEquals(2, failures.size());
+        Assert.assertEquals(3, server.getRequestCount("PutObject"));
+        Assert.assertEquals("eventually", stored("flaky"));
+        await(spooler::close);
+    }
+
+    private interface Call {
+        void call(Handler<AsyncResult<Void>> handler);
+    }
+
+    private static void await(Call call) throws Exception {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        call.call(result -> complete(done, result));
+        done.get(20, TimeUnit.SECONDS);
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean()) {
+            Assert.assertTrue("Timed out waiting", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static S3WriteBehind start(S3WriteBehind spooler) throws Exception {
+        await(spooler::start);
+        return spooler;
+    }
+
+    private static CompletableFuture<Void> put(S3WriteBehind spooler, String key, String data) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        spooler.put(bucket, key, Buffer.buffer(data), result -> complete(done, result));
+        return done;
+    }
+
+    private String stored(String key) {
+        LocalS3Object object = server.getBackend().get(bucket, key);
+        return object == null ? null : object.getData().toString();
+    }
+}
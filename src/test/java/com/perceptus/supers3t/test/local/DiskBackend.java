@@ -0,0 +1,140 @@
+package com.perceptus.supers3t.test.local;
+
+import io.vertx.core.buffer.Buffer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Properties;
+import java.util.TreeSet;
+
+/**
+ * Keeps objects as files under a root directory: one directory per bucket,
+ * with a data file and a properties file (ETag, metadata) per key. Keys are
+ * URL-encoded into flat file names. Writes go through a temporary file and
+ * a rename, so a reader never sees half an object.
+ */
+public class DiskBackend implements LocalS3Backend {
+    private static final String DATA_SUFFIX = ".data";
+    private static final String META_SUFFIX = ".meta";
+
+    private final Path root;
+
+    public DiskBackend(Path root) {
+        this.root = root;
+        try {
+            Files.createDirectories(root);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override public LocalS3Object get(String bucket, String key) {
+        Path data = file(bucket, key, DATA_SUFFIX);
+        Path meta = file(bucket, key, META_SUFFIX);
+        if (!Files.exists(data) || !Files.exists(meta)) {
+            return null;
+        }
+        try {
+            Properties properties = new Properties();
+            try (InputStream in = Files.newInputStream(meta)) {
+                properties.load(in);
+            }
+            Map<String, String> metadata = new LinkedHashMap<>();
+            for (String name : properties.stringPropertyNames()) {
+                if (name.startsWith("header.")) {
+                    metadata.put(name.substring("header.".length()), properties.getProperty(name));
+                }
+            }
+            return new LocalS3Object(Buffer.buffer(Files.readAllBytes(data)),
+                                     properties.getProperty("etag"),
+                                     Long.parseLong(properties.getProperty("lastModified")),
+                                     metadata);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override public void put(String bucket, String key, LocalS3Object object) {
+        try {
+            Files.createDirectories(root.resolve(encode(bucket)));
+            Properties properties = new Properties();
+            properties.setProperty("etag", object.getEtag());
+            properties.setProperty("lastModified", String.valueOf(object.getLastModified()));
+            for (Map.Entry<String, String> header : object.getMetadata().entrySet()) {
+                properties.setProperty("header." + header.getKey(), header.getValue());
+            }
+
+            Path data = file(bucket, key, DATA_SUFFIX);
+            Path meta = file(bucket, key, META_SUFFIX);
+            Path tmpData = data.resolveSibling(data.getFileName() + ".tmp");
+            Path tmpMeta = meta.resolveSibling(meta.getFileName() + ".tmp");
+            Files.write(tmpData, object.getData().getBytes());
+            try (OutputStream out = Files.newOutputStream(tmpMeta)) {
+                properties.store(out, null);
+            }
+            Files.move(tmpData, data, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(tmpMeta, meta, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override public boolean delete(String bucket, String key) {
+        try {
+            boolean existed = Files.deleteIfExists(file(bucket, key, DATA_SUFFIX));
+            Files.deleteIfExists(file(bucket, key, META_SUFFIX));
+            return existed;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override public NavigableSet<String> keys(String bucket) {
+        NavigableSet<String> keys = new TreeSet<>();
+        Path directory = root.resolve(encode(bucket));
+        if (!Files.isDirectory(directory)) {
+            return keys;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + DATA_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                keys.add(decode(name.substring(0, name.length() - DATA_SUFFIX.length())));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return keys;
+    }
+
+    private Path file(String bucket, String key, String suffix) {
+        return root.resolve(encode(bucket)).resolve(encode(key) + suffix);
+    }
+
+    private static String encode(String name) {
+        try {
+            return URLEncoder.encode(name, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String decode(String name) {
+        try {
+            return URLDecoder.decode(name, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,557 @@
+package com.perceptus.supers3t.test.local;
+
+import io.vertx.core.MultiMap;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerRequest;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Checks request signatures the way S3 does, written from the AWS
+ * documentation rather than from the client's signers so that it actually
+ * catches their mistakes. Handles V2 ("AWS key:signature"), V4 header
+ * signing, V4 aws-chunked streaming payloads (with or without a signed
+ * checksum trailer), and presigned URLs of either version.
+ */
+final class LocalS3Auth {
+    static final String UNSIGNED_PAYLOAD = "UNSIGNED-PAYLOAD";
+    static final String STREAMING_PAYLOAD = "STREAMING-AWS4-HMAC-SHA256-PAYLOAD";
+    static final String STREAMING_PAYLOAD_TRAILER = "STREAMING-AWS4-HMAC-SHA256-PAYLOAD-TRAILER";
+    private static final DateTimeFormatter AMZ_DATE = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'");
+    private static final String EMPTY_HASH = "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+
+    // Sub-resources that take part in the V2 canonicalized resource
+    private static final Set<String> V2_SUB_RESOURCES = new HashSet<>(Arrays.asList(
+            "acl", "delete", "lifecycle", "location", "logging", "notification", "partNumber",
+            "policy", "requestPayment", "tagging", "torrent", "uploadId", "uploads", "versionId",
+            "versioning", "versions", "website", "response-cache-control", "response-content-disposition",
+            "response-content-encoding", "response-content-language", "response-content-type",
+            "response-expires"));
+
+    /**
+     * Authentication failure, carrying the S3 error code to answer with.
+     */
+    static final class AuthException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final String code;
+
+        AuthException(String code, String message) {
+            super(message);
+            this.code = code;
+        }
+    }
+
+    private final Map<String, String> credentials;
+
+    // access key -> secret key; null or empty accepts anything
+    LocalS3Auth(Map<String, String> credentials) {
+        this.credentials = credentials;
+    }
+
+    /**
+     * Verifies the request and returns its payload, with aws-chunked framing
+     * removed and every chunk signature checked. Trailing headers, if any,
+     * are put in trailers.
+     */
+    Buffer authenticate(HttpServerRequest request, Buffer body, Map<String, String> trailers) throws AuthException {
+        String authorization = request.headers().get("Authorization");
+        String payloadHash = request.headers().get("x-amz-content-sha256");
+        boolean chunked = STREAMING_PAYLOAD.equals(payloadHash) || STREAMING_PAYLOAD_TRAILER.equals(payloadHash);
+        if (credentials == null || credentials.isEmpty()) {
+            return chunked ? decodeChunks(body, null, null, null, null, trailers) : body;
+        }
+        if (authorization == null) {
+            Map<String, String> params = new TreeMap<>();
+            for (String[] param : queryParams(request.query())) {
+                params.put(param[0], param[1]);
+            }
+            if (params.containsKey("X-Amz-Signature")) {
+                verifyPresignedV4(request, params);
+                return body;
+            }
+            if (params.containsKey("Signature")) {
+                verifyPresignedV2(request, params);
+                return body;
+            }
+            throw new AuthException("AccessDenied", "Anonymous access is not allowed");
+        }
+        if (authorization.startsWith("AWS4-HMAC-SHA256 ")) {
+            return verifyV4(request, authorization, body, trailers);
+        }
+        if (authorization.startsWith("AWS ")) {
+            verifyV2(request, authorization);
+            return body;
+        }
+        throw new AuthException("InvalidArgument", "Unsupported authorization type");
+    }
+
+    // V2
+    // --
+
+    private void verifyV2(HttpServerRequest request, String authorization) throws AuthException {
+        String credential = authorization.substring("AWS ".length());
+        int colon = credential.lastIndexOf(':');
+        if (colon < 0) {
+            throw new AuthException("InvalidArgument", "Malformed V2 authorization");
+        }
+        String secret = secretFor(credential.substring(0, colon));
+        String signature = credential.substring(colon + 1);
+
+        MultiMap headers = request.headers();
+        StringBuilder toSign = new StringBuilder();
+        toSign.append(request.method().name()).append('\n');
+        toSign.append(nullToEmpty(headers.get("Content-MD5"))).append('\n');
+        toSign.append(nullToEmpty(headers.get("Content-Type"))).append('\n');
+        toSign.append(headers.contains("x-amz-date") ? "" : nullToEmpty(headers.get("Date"))).append('\n');
+
+        TreeMap<String, String> amzHeaders = new TreeMap<>();
+        for (String name : headers.names()) {
+            String lower = name.toLowerCase();
+            if (lower.startsWith("x-amz-")) {
+                amzHeaders.put(lower, joinValues(headers.getAll(name)));
+            }
+        }
+        for (Map.Entry<String, String> header : amzHeaders.entrySet()) {
+            toSign.append(header.getKey()).append(':').append(header.getValue()).append('\n');
+        }
+
+        toSign.append(request.path());
+        TreeMap<String, String> subResources = new TreeMap<>();
+        for (String[] param : queryParams(request.query())) {
+            if (V2_SUB_RESOURCES.contains(param[0])) {
+                subResources.put(param[0], param[1]);
+            }
+        }
+        char separator = '?';
+        for (Map.Entry<String, String> subResource : subResources.entrySet()) {
+            toSign.append(separator).append(subResource.getKey());
+            if (!subResource.getValue().isEmpty()) {
+                toSign.append('=').append(subResource.getValue());
+            }
+            separator = '&';
+        }
+
+        String expected = Base64.getEncoder().encodeToString(hmac("HmacSHA1",
+                secret.getBytes(StandardCharsets.UTF_8), toSign.toString()));
+        if (!expected.equals(signature)) {
+            throw new AuthException("SignatureDoesNotMatch", "Expected string to sign: " + toSign);
+        }
+    }
+
+    // Query-string V2: Expires (epoch seconds) in place of the date, and
+    // x-amz-* parameters signed as if they were headers
+    private void verifyPresignedV2(HttpServerRequest request, Map<String, String> params) throws AuthException {
+        String secret = secretFor(params.get("AWSAccessKeyId"));
+        long expires = Long.parseLong(params.getOrDefault("Expires", "0"));
+        if (expires < System.currentTimeMillis() / 1000) {
+            throw new AuthException("AccessDenied", "Request has expired");
+        }
+
+        MultiMap headers = request.headers();
+        StringBuilder toSign = new StringBuilder();
+        toSign.append(request.method().name()).append('\n');
+        toSign.append(nullToEmpty(headers.get("Content-MD5"))).append('\n');
+        toSign.append(nullToEmpty(headers.get("Content-Type"))).append('\n');
+        toSign.append(expires).append('\n');
+        TreeMap<String, String> amzHeaders = new TreeMap<>();
+        for (String name : headers.names()) {
+            if (name.toLowerCase().startsWith("x-amz-")) {
+                amzHeaders.put(name.toLowerCase(), joinValues(headers.getAll(name)));
+            }
+        }
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            if (param.getKey().toLowerCase().startsWith("x-amz-")) {
+                amzHeaders.put(param.getKey().toLowerCase(), param.getValue());
+            }
+        }
+        for (Map.Entry<String, String> header : amzHeaders.entrySet()) {
+            toSign.append(header.getKey()).append(':').append(header.getValue()).append('\n');
+        }
+        toSign.append(request.path());
+
+        String expected = Base64.getEncoder().encodeToString(hmac("HmacSHA1",
+                secret.getBytes(StandardCharsets.UTF_8), toSign.toString()));
+        if (!expected.equals(params.get("Signature"))) {
+            throw new AuthException("SignatureDoesNotMatch", "Expected string to sign: " + toSign);
+        }
+    }
+
+    // V4
+    // --
+
+    // Query-string V4: the Authorization fields as X-Amz-* parameters, with
+    // everything but the signature in the canonical query
+    private void verifyPresignedV4(HttpServerRequest request, Map<String, String> params) throws AuthException {
+        String credential = params.get("X-Amz-Credential");
+        String amzDate = params.get("X-Amz-Date");
+        String signedHeaders = params.get("X-Amz-SignedHeaders");
+        String expiresIn = params.get("X-Amz-Expires");
+        if (!"AWS4-HMAC-SHA256".equals(params.get("X-Amz-Algorithm")) || credential == null || amzDate == null
+            || signedHeaders == null || expiresIn == null) {
+            throw new AuthException("AuthorizationQueryParametersError", "Missing query authentication parameters");
+        }
+        long seconds = Long.parseLong(expiresIn);
+        if (seconds > 7 * 24 * 3600) {
+            throw new AuthException("AuthorizationQueryParametersError", "X-Amz-Expires must be at most a week");
+        }
+        long signedAt = LocalDateTime.parse(amzDate, AMZ_DATE).toEpochSecond(ZoneOffset.UTC);
+        if (signedAt + seconds < System.currentTimeMillis() / 1000) {
+            throw new AuthException("AccessDenied", "Request has expired");
+        }
+        String[] credentialParts = credential.split("/", 2);
+        String secret = secretFor(credentialParts[0]);
+        String scope = credentialParts.length > 1 ? credentialParts[1] : "";
+        String[] scopeParts = scope.split("/");
+        if (scopeParts.length != 4 || !"s3".equals(scopeParts[2]) || !"aws4_request".equals(scopeParts[3])) {
+            throw new AuthException("AuthorizationQueryParametersError", "Bad credential scope " + scope);
+        }
+        if (!signedHeaders.contains("host")) {
+            throw new AuthException("AuthorizationQueryParametersError", "Host must be signed");
+        }
+
+        TreeMap<String, String> sorted = new TreeMap<>();
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            if (!param.getKey().equals("X-Amz-Signature")) {
+                sorted.put(uriEncode(param.getKey(), true), uriEncode(param.getValue(), true));
+            }
+        }
+        StringBuilder query = new StringBuilder();
+        for (Map.Entry<String, String> param : sorted.entrySet()) {
+            if (query.length() > 0) {
+                query.append('&');
+            }
+            query.append(param.getKey()).append('=').append(param.getValue());
+        }
+
+        MultiMap headers = request.headers();
+        StringBuilder canonical = new StringBuilder();
+        canonical.append(request.method().name()).append('\n');
+        canonical.append(uriEncode(percentDecode(request.path()), false)).append('\n');
+        canonical.append(query).append('\n');
+        for (String name : signedHeaders.split(";")) {
+            canonical.append(name).append(':').append(joinValues(headers.getAll(name))).append('\n');
+        }
+        canonical.append('\n').append(signedHeaders).append('\n').append(UNSIGNED_PAYLOAD);
+
+        byte[] signingKey = signingKey(secret, scopeParts[0], scopeParts[1]);
+        String toSign = "AWS4-HMAC-SHA256\n" + amzDate + "\n" + scope + "\n" + sha256Hex(canonical.toString());
+        if (!hex(hmac("HmacSHA256", signingKey, toSign)).equals(params.get("X-Amz-Signature"))) {
+            throw new AuthException("SignatureDoesNotMatch", "Expected canonical request: " + canonical);
+        }
+    }
+
+    private Buffer verifyV4(HttpServerRequest request,
+                            String authorization,
+                            Buffer body,
+                            Map<String, String> trailers) throws AuthException {
+        Map<String, String> fields = new TreeMap<>();
+        for (String part : authorization.substring("AWS4-HMAC-SHA256 ".length()).split(",")) {
+            int equals = part.indexOf('=');
+            if (equals > 0) {
+                fields.put(part.substring(0, equals).trim(), part.substring(equals + 1).trim());
+            }
+        }
+        String credential = fields.get("Credential");
+        String signedHeaders = fields.get("SignedHeaders");
+        String signature = fields.get("Signature");
+        if (credential == null || signedHeaders == null || signature == null) {
+            throw new AuthException("InvalidArgument", "Malformed V4 authorization");
+        }
+        String[] credentialParts = credential.split("/", 2);
+        String secret = secretFor(credentialParts[0]);
+        String scope = credentialParts.length > 1 ? credentialParts[1] : "";
+        String[] scopeParts = scope.split("/");
+        if (scopeParts.length != 4 || !"s3".equals(scopeParts[2]) || !"aws4_request".equals(scopeParts[3])) {
+            throw new AuthException("AuthorizationHeaderMalformed", "Bad credential scope " + scope);
+        }
+
+        MultiMap headers = request.headers();
+        String amzDate = headers.get("x-amz-date");
+        String payloadHash = headers.get("x-amz-content-sha256");
+        if (amzDate == null || payloadHash == null) {
+            throw new AuthException("InvalidRequest", "Missing x-amz-date or x-amz-content-sha256");
+        }
+        if (!signedHeaders.contains("host")) {
+            throw new AuthException("AuthorizationHeaderMalformed", "Host must be signed");
+        }
+
+        StringBuilder canonical = new StringBuilder();
+        canonical.append(request.method().name()).append('\n');
+        canonical.append(uriEncode(percentDecode(request.path()), false)).append('\n');
+        canonical.append(canonicalQuery(request.query())).append('\n');
+        for (String name : signedHeaders.split(";")) {
+            canonical.append(name).append(':').append(joinValues(headers.getAll(name))).append('\n');
+        }
+        canonical.append('\n').append(signedHeaders).append('\n').append(payloadHash);
+
+        byte[] signingKey = signingKey(secret, scopeParts[0], scopeParts[1]);
+        String toSign = "AWS4-HMAC-SHA256\n" + amzDate + "\n" + scope + "\n" + sha256Hex(canonical.toString());
+        String expected = hex(hmac("HmacSHA256", signingKey, toSign));
+        if (!expected.equals(signature)) {
+            throw new AuthException("SignatureDoesNotMatch", "Expected canonical request: " + canonical);
+        }
+
+        if (STREAMING_PAYLOAD.equals(payloadHash) || STREAMING_PAYLOAD_TRAILER.equals(payloadHash)) {
+            return decodeChunks(body, signingKey, amzDate, scope, signature, trailers);
+        }
+        if (!UNSIGNED_PAYLOAD.equals(payloadHash) && !payloadHash.equals(sha256Hex(body.getBytes()))) {
+            throw new AuthException("XAmzContentSHA256Mismatch", "Payload hash does not match");
+        }
+        return body;
+    }
+
+    // Strips aws-chunked framing; checks the chained chunk signatures (and
+    // the trailer's) when a signing key is given
+    static Buffer decodeChunks(Buffer body,
+                               byte[] signingKey,
+                               String amzDate,
+                               String scope,
+                               String seedSignature,
+                               Map<String, String> trailers) throws AuthException {
+        Buffer decoded = Buffer.buffer(body.length());
+        String previous = seedSignature;
+        int position = 0;
+        while (true) {
+            int lineEnd = indexOfCrlf(body, position);
+            if (lineEnd < 0) {
+                throw new AuthException("IncompleteBody", "Truncated chunk header");
+            }
+            String header = body.getString(position, lineEnd, "US-ASCII");
+            int semicolon = header.indexOf(';');
+            int size = Integer.parseInt(semicolon < 0 ? header : header.substring(0, semicolon), 16);
+            String chunkSignature = semicolon < 0 ? null
+                    : header.substring(header.indexOf("chunk-signature=") + "chunk-signature=".length());
+            int dataStart = lineEnd + 2;
+            if (size == 0 && !body.getString(dataStart, Math.min(body.length(), dataStart + 2), "US-ASCII").equals("\r\n")) {
+                verifyChunk(signingKey, amzDate, scope, previous, Buffer.buffer(), chunkSignature, position);
+                readTrailers(body, dataStart, signingKey, amzDate, scope, chunkSignature, trailers);
+                return decoded;
+            }
+            if (dataStart + size + 2 > body.length()) {
+                throw new AuthException("IncompleteBody", "Truncated chunk");
+            }
+            Buffer chunk = body.slice(dataStart, dataStart + size);
+            verifyChunk(signingKey, amzDate, scope, previous, chunk, chunkSignature, position);
+            previous = chunkSignature;
+            decoded.appendBuffer(chunk);
+            position = dataStart + size + 2;
+            if (size == 0) {
+                return decoded;
+            }
+        }
+    }
+
+    private static void verifyChunk(byte[] signingKey,
+                                    String amzDate,
+                                    String scope,
+                                    String previous,
+                                    Buffer chunk,
+                                    String chunkSignature,
+                                    int position) throws AuthException {
+        if (signingKey == null) {
+            return;
+        }
+        String toSign = "AWS4-HMAC-SHA256-PAYLOAD\n" + amzDate + "\n" + scope + "\n" + previous
+                        + "\n" + EMPTY_HASH + "\n" + sha256Hex(chunk.getBytes());
+        String expected = hex(hmac("HmacSHA256", signingKey, toSign));
+        if (!expected.equals(chunkSignature)) {
+            throw new AuthException("SignatureDoesNotMatch", "Bad signature on chunk at " + position);
+        }
+    }
+
+    // Header lines after the last chunk, up to a blank line; the signature
+    // covers the others, each ending in a bare newline
+    private static void readTrailers(Buffer body,
+                                     int position,
+                                     byte[] signingKey,
+                                     String amzDate,
+                                     String scope,
+                                     String previous,
+                                     Map<String, String> trailers) throws AuthException {
+        StringBuilder signed = new StringBuilder();
+        String trailerSignature = null;
+        while (true) {
+            int lineEnd = indexOfCrlf(body, position);
+            if (lineEnd < 0) {
+                throw new AuthException("IncompleteBody", "Truncated trailer");
+            }
+            String line = body.getString(position, lineEnd, "US-ASCII");
+            position = lineEnd + 2;
+            if (line.isEmpty()) {
+                break;
+            }
+            int colon = line.indexOf(':');
+            if (colon < 0) {
+                throw new AuthException("IncompleteBody", "Malformed trailer " + line);
+            }
+            String name = line.substring(0, colon).trim().toLowerCase();
+            String value = line.substring(colon + 1).trim();
+            if (name.equals("x-amz-trailer-signature")) {
+                trailerSignature = value;
+            } else {
+                signed.append(name).append(':').append(value).append('\n');
+                trailers.put(name, value);
+            }
+        }
+        if (signingKey != null) {
+            String toSign = "AWS4-HMAC-SHA256-TRAILER\n" + amzDate + "\n" + scope + "\n" + previous
+                            + "\n" + sha256Hex(signed.toString());
+            if (!hex(hmac("HmacSHA256", signingKey, toSign)).equals(trailerSignature)) {
+                throw new AuthException("SignatureDoesNotMatch", "Bad trailer signature");
+            }
+        }
+    }
+
+    private String secretFor(String accessKey) throws AuthException {
+        String secret = credentials.get(accessKey);
+        if (secret == null) {
+            throw new AuthException("InvalidAccessKeyId", "Unknown access key " + accessKey);
+        }
+        return secret;
+    }
+
+    // Helpers
+    // -------
+
+    static List<String[]> queryParams(String query) {
+        List<String[]> params = new ArrayList<>();
+        if (query == null || query.isEmpty()) {
+            return params;
+        }
+        for (String pair : query.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            int equals = pair.indexOf('=');
+            String name = equals < 0 ? pair : pair.substring(0, equals);
+            String value = equals < 0 ? "" : pair.substring(equals + 1);
+            params.add(new String[] { percentDecode(name), percentDecode(value) });
+        }
+        return params;
+    }
+
+    private static String canonicalQuery(String query) {
+        TreeMap<String, String> sorted = new TreeMap<>();
+        for (String[] param : queryParams(query)) {
+            sorted.put(uriEncode(param[0], true), uriEncode(param[1], true));
+        }
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, String> param : sorted.entrySet()) {
+            if (builder.length() > 0) {
+                builder.append('&');
+            }
+            builder.append(param.getKey()).append('=').append(param.getValue());
+        }
+        return builder.toString();
+    }
+
+    static String percentDecode(String value) {
+        if (value.indexOf('%') < 0) {
+            return value;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '%' && i + 2 < value.length()) {
+                bytes.write(Integer.parseInt(value.substring(i + 1, i + 3), 16));
+                i += 2;
+            } else {
+                byte[] encoded = String.valueOf(c).getBytes(StandardCharsets.UTF_8);
+                bytes.write(encoded, 0, encoded.length);
+            }
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static String uriEncode(String value, boolean encodeSlash) {
+        StringBuilder builder = new StringBuilder();
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xff);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                || c == '-' || c == '_' || c == '.' || c == '~' || (c == '/' && !encodeSlash)) {
+                builder.append(c);
+            } else {
+                builder.append(String.format("%%%02X", b & 0xff));
+            }
+        }
+        return builder.toString();
+    }
+
+    private static String joinValues(List<String> values) {
+        StringBuilder builder = new StringBuilder();
+        for (String value : values) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append(value.trim());
+        }
+        return builder.toString();
+    }
+
+    private static int indexOfCrlf(Buffer buffer, int from) {
+        for (int i = from; i < buffer.length() - 1; i++) {
+            if (buffer.getByte(i) == '\r' && buffer.getByte(i + 1) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] signingKey(String secret, String date, String region) throws AuthException {
+        byte[] key = hmac("HmacSHA256", ("AWS4" + secret).getBytes(StandardCharsets.UTF_8), date);
+        key = hmac("HmacSHA256", key, region);
+        key = hmac("HmacSHA256", key, "s3");
+        return hmac("HmacSHA256", key, "aws4_request");
+    }
+
+    private static byte[] hmac(String algorithm, byte[] key, String data) {
+        try {
+            Mac mac = Mac.getInstance(algorithm);
+            mac.init(new SecretKeySpec(key, algorithm));
+            return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String sha256Hex(String data) {
+        return sha256Hex(data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String sha256Hex(byte[] data) {
+        try {
+            return hex(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String hex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(String.format("%02x", b & 0xff));
+        }
+        return builder.toString();
+    }
+
+    private static String nullToEmpty(String value) {
+        return value == null ? "" : value;
+    }
+}
@@ -0,0 +1,21 @@
+package com.perceptus.supers3t.test.local;
+
+import java.util.NavigableSet;
+
+/**
+ * Storage behind a {@link LocalS3Server}. Buckets spring into existence on
+ * first write. Calls come from the server's event loop and are expected to
+ * be quick.
+ */
+public interface LocalS3Backend {
+    // null if absent
+    LocalS3Object get(String bucket, String key);
+
+    void put(String bucket, String key, LocalS3Object object);
+
+    // true if the key existed
+    boolean delete(String bucket, String key);
+
+    // All keys of a bucket, in S3 (lexicographic) order
+    NavigableSet<String> keys(String bucket);
+}
@@ -0,0 +1,47 @@
+package com.perceptus.supers3t.test.local;
+
+import io.vertx.core.buffer.Buffer;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An object as stored by a {@link LocalS3Backend}: its bytes, ETag, and the
+ * headers S3 would hand back on GET (Content-Type, Content-Encoding,
+ * x-amz-meta-*).
+ */
+public class LocalS3Object {
+    private final Buffer data;
+    private final String etag;
+    private final long lastModified;
+    private final Map<String, String> metadata;
+
+    public LocalS3Object(Buffer data, String etag, long lastModified, Map<String, String> metadata) {
+        this.data = data;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.metadata = Collections.unmodifiableMap(new LinkedHashMap<>(metadata));
+    }
+
+    public Buffer getData() {
+        return data;
+    }
+
+    public int length() {
+        return data.length();
+    }
+
+    // Quoted, as S3 sends it
+    public String getEtag() {
+        return etag;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public Map<String, String> getMetadata() {
+        return metadata;
+    }
+}
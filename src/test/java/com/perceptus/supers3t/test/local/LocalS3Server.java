@@ -0,0 +1,1126 @@
+package com.perceptus.supers3t.test.local;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.MultiMap;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerOptions;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An in-process stand-in for S3, good enough to run the client against
+ * without a network or an account. It speaks path-style requests
+ * (/bucket/key) and covers GET (with Range, If-Match, If-None-Match), HEAD,
+ * PUT, DELETE, DeleteObjects, multipart uploads and ListObjectsV2.
+ *
+ * Given credentials it checks every V2, V4 and aws-chunked signature
+ * independently of the client's signers. It can also play a slow or
+ * unreliable S3: fixed latency, a bandwidth cap in each direction, random
+ * or scripted 503 SlowDown and other errors, and dropped connections.
+ *
+ * Object storage is pluggable through {@link LocalS3Backend}.
+ *
+ * @author spartango
+ */
+public class LocalS3Server {
+    private static final Logger logger = LoggerFactory.getLogger(LocalS3Server.class);
+
+    private static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+    // S3 copies at most 5GB in one CopyObject or UploadPartCopy
+    public static final long MAX_COPY_SIZE = 5L * 1024 * 1024 * 1024;
+    private static final long PACING_INTERVAL = 10; // ms
+    private static final Pattern PART = Pattern.compile(
+            "<Part>\\s*<PartNumber>(\\d+)</PartNumber>\\s*<ETag>([^<]*)</ETag>\\s*</Part>");
+    private static final Pattern DELETE_KEY = Pattern.compile("<Object>\\s*<Key>([^<]*)</Key>");
+    private static final int MAX_DELETE_KEYS = 1000;
+    private static final String CRC32C = "x-amz-checksum-crc32c";
+    private static final String SSE = "x-amz-server-side-encryption";
+    private static final DateTimeFormatter ISO_DATE =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC);
+
+    private final Vertx vertx;
+    private final LocalS3Backend backend;
+    private final Map<String, String> credentials = new ConcurrentHashMap<>();
+    private final LocalS3Auth auth = new LocalS3Auth(credentials);
+    private final ConcurrentHashMap<String, Upload> uploads = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AtomicLong> requestCounts = new ConcurrentHashMap<>();
+    private final AtomicLong requestIds = new AtomicLong();
+    // Client address and port of each connection a request came in on
+    private final Set<String> connections = ConcurrentHashMap.newKeySet();
+
+    // Simulated conditions
+    private volatile long latency;            // ms before each response
+    private volatile long bandwidth;          // bytes/s each way, 0 for unlimited
+    private volatile double slowDownRate;     // share of requests answered 503 SlowDown
+    private volatile double resetRate;        // share of requests whose connection is dropped
+    private final AtomicInteger failNext = new AtomicInteger();
+    private volatile int failStatus;
+    private volatile String failCode;
+    private final AtomicInteger resetNext = new AtomicInteger();
+    private final AtomicInteger stallNext = new AtomicInteger();
+    private final AtomicInteger hangNext = new AtomicInteger();
+    private final AtomicInteger rejectNext = new AtomicInteger();
+    private final AtomicInteger corruptNext = new AtomicInteger();
+    private volatile long stall;              // ms added to each stalled request
+    private volatile String protectedPrefix;
+    private volatile long maxCopySize = MAX_COPY_SIZE;
+    private volatile String encryption;       // default server-side encryption, null for none
+
+    private HttpServer server;
+    private int port;
+
+    public LocalS3Server(Vertx vertx) {
+        this(vertx, new MemoryBackend());
+    }
+
+    public LocalS3Server(Vertx vertx, LocalS3Backend backend) {
+        this.vertx = vertx;
+        this.backend = backend;
+    }
+
+    // Lifecycle
+    // ---------
+
+    public void start(Handler<AsyncResult<Void>> handler) {
+        port = freePort();
+        server = vertx.createHttpServer(new HttpServerOptions().setHost("localhost").setPort(port));
+        server.requestHandler(this::accept);
+        server.listen(listened -> {
+            if (listened.failed()) {
+                handler.handle(Future.failedFuture(listened.cause()));
+            } else {
+                logger.debug("Local S3 listening on port {}", port);
+                handler.handle(Future.succeededFuture());
+            }
+        });
+    }
+
+    // Blocking variant, for tests and benchmark setup (not on an event loop)
+    public LocalS3Server start() {
+        CompletableFuture<Void> started = new CompletableFuture<>();
+        start(result -> complete(started, result));
+        await(started);
+        return this;
+    }
+
+    public void close(Handler<AsyncResult<Void>> handler) {
+        if (server == null) {
+            handler.handle(Future.succeededFuture());
+            return;
+        }
+        server.close(handler);
+        server = null;
+    }
+
+    public void close() {
+        CompletableFuture<Void> closed = new CompletableFuture<>();
+        close(result -> complete(closed, result));
+        await(closed);
+    }
+
+    public String getEndpoint() {
+        return "localhost";
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public LocalS3Backend getBackend() {
+        return backend;
+    }
+
+    // Configuration
+    // -------------
+
+    // Requests must be signed by one of the registered key pairs; with none
+    // registered, anything goes
+    public LocalS3Server addCredentials(String accessKey, String secretKey) {
+        credentials.put(accessKey, secretKey);
+        return this;
+    }
+
+    public LocalS3Server setLatency(long latency, TimeUnit unit) {
+        this.latency = unit.toMillis(latency);
+        return this;
+    }
+
+    public LocalS3Server setBandwidth(long bytesPerSecond) {
+        this.bandwidth = bytesPerSecond;
+        return this;
+    }
+
+    public LocalS3Server setSlowDownRate(double slowDownRate) {
+        this.slowDownRate = slowDownRate;
+        return this;
+    }
+
+    public LocalS3Server setResetRate(double resetRate) {
+        this.resetRate = resetRate;
+        return this;
+    }
+
+    // The next count requests fail with the given status and S3 error code
+    public LocalS3Server failNext(int count, int status, String code) {
+        this.failStatus = status;
+        this.failCode = code;
+        failNext.set(count);
+        return this;
+    }
+
+    // The next count requests have their connection dropped
+    public LocalS3Server resetNext(int count) {
+        resetNext.set(count);
+        return this;
+    }
+
+    // The next count requests are answered only after an extra delay, like
+    // the odd slow node behind S3's front end
+    public LocalS3Server stallNext(int count, long delay, TimeUnit unit) {
+        this.stall = unit.toMillis(delay);
+        stallNext.set(count);
+        return this;
+    }
+
+    // The next count requests are answered with the given status and S3
+    // error code from their headers alone, and their connection closed
+    // without reading the body, as S3 does with requests it turns away
+    public LocalS3Server rejectNext(int count, int status, String code) {
+        this.failStatus = status;
+        this.failCode = code;
+        rejectNext.set(count);
+        return this;
+    }
+
+    // The next count requests are read in full and never answered
+    public LocalS3Server hangNext(int count) {
+        hangNext.set(count);
+        return this;
+    }
+
+    // The next count GETs have a byte of their body flipped on the way out,
+    // headers untouched, like a bad NIC or proxy
+    public LocalS3Server corruptNext(int count) {
+        corruptNext.set(count);
+        return this;
+    }
+
+    // Keys under this prefix can't be deleted: DeleteObject answers 403
+    // AccessDenied and DeleteObjects reports them as failed; null for none
+    public LocalS3Server protectKeys(String prefix) {
+        this.protectedPrefix = prefix;
+        return this;
+    }
+
+    // Largest source CopyObject and UploadPartCopy accept, lowered so a test
+    // can exercise the multipart path without gigabytes of data
+    public LocalS3Server setMaxCopySize(long maxCopySize) {
+        this.maxCopySize = maxCopySize;
+        return this;
+    }
+
+    // New PutObjects are stored under this server-side encryption, like a
+    // bucket default (AES256, aws:kms...), and say so in their responses.
+    // Under aws:kms the ETag is no longer the MD5 of the body.
+    public LocalS3Server setEncryption(String encryption) {
+        this.encryption = encryption;
+        return this;
+    }
+
+    // Statistics
+    // ----------
+
+    // Requests seen for an operation, by its S3 API name (GetObject, UploadPart...)
+    public long getRequestCount(String operation) {
+        AtomicLong count = requestCounts.get(operation);
+        return count == null ? 0 : count.get();
+    }
+
+    public long getRequestCount() {
+        long total = 0;
+        for (AtomicLong count : requestCounts.values()) {
+            total += count.get();
+        }
+        return total;
+    }
+
+    public void resetRequestCounts() {
+        requestCounts.clear();
+    }
+
+    // Connections requests have come in on so far
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    // Request handling
+    // ----------------
+
+    private void accept(HttpServerRequest request) {
+        connections.add(request.remoteAddress().host() + ":" + request.remoteAddress().port());
+        if (decrementIfPositive(rejectNext)) {
+            logger.debug("Rejecting {} {}", request.method(), request.path());
+            error(request, failStatus, failCode, "Injected failure");
+            request.response().close();
+            return;
+        }
+        Buffer body = Buffer.buffer();
+        request.handler(data -> {
+            body.appendBuffer(data);
+            long cap = bandwidth;
+            if (cap > 0) {
+                // Throttle the upload by not reading for as long as the data
+                // would have taken to arrive
+                request.pause();
+                vertx.setTimer(Math.max(1, data.length() * 1000L / cap), timer -> request.resume());
+            }
+        });
+        request.endHandler(end -> {
+            if (decrementIfPositive(hangNext)) {
+                logger.debug("Not answering {} {}", request.method(), request.path());
+                return;
+            }
+            long delay = latency + (decrementIfPositive(stallNext) ? stall : 0);
+            if (delay > 0) {
+                vertx.setTimer(delay, timer -> respond(request, body));
+            } else {
+                respond(request, body);
+            }
+        });
+    }
+
+    private void respond(HttpServerRequest request, Buffer body) {
+        String path = LocalS3Auth.percentDecode(request.path());
+        int slash = path.indexOf('/', 1);
+        String bucket = slash < 0 ? path.substring(1) : path.substring(1, slash);
+        String key = slash < 0 ? "" : path.substring(slash + 1);
+        Map<String, String> params = new HashMap<>();
+        for (String[] param : LocalS3Auth.queryParams(request.query())) {
+            params.put(param[0], param[1]);
+        }
+
+        String operation = operation(request.method(), bucket, key, params,
+                                     request.headers().contains("x-amz-copy-source"));
+        requestCounts.computeIfAbsent(operation, o -> new AtomicLong()).incrementAndGet();
+        if (logger.isDebugEnabled()) {
+            logger.debug("{} {}/{} {}", new Object[] { operation, bucket, key, request.headers().get("Range") });
+        }
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (decrementIfPositive(resetNext) || random.nextDouble() < resetRate) {
+            logger.debug("Dropping connection for {}", operation);
+            request.response().close();
+            return;
+        }
+        if (decrementIfPositive(failNext)) {
+            error(request, failStatus, failCode, "Injected failure");
+            return;
+        }
+        if (random.nextDouble() < slowDownRate) {
+            error(request, 503, "SlowDown", "Please reduce your request rate.");
+            return;
+        }
+
+        Buffer payload;
+        Map<String, String> trailers = new HashMap<>();
+        try {
+            payload = auth.authenticate(request, body, trailers);
+        } catch (LocalS3Auth.AuthException e) {
+            logger.debug("Rejected {}: {}", operation, e.getMessage());
+            error(request, 403, e.code, e.getMessage());
+            return;
+        }
+
+        switch (operation) {
+            case "ListBuckets":
+            case "HeadBucket":
+                request.response().end();
+                break;
+            case "ListObjectsV2":
+                listObjects(request, bucket, params);
+                break;
+            case "GetObject":
+            case "HeadObject":
+                getObject(request, bucket, key);
+                break;
+            case "PutObject":
+                putObject(request, bucket, key, payload, trailers);
+                break;
+            case "CopyObject":
+                copyObject(request, bucket, key);
+                break;
+            case "DeleteObject":
+                if (isProtected(key)) {
+                    error(request, 403, "AccessDenied", "Access Denied");
+                    break;
+                }
+                backend.delete(bucket, key);
+                request.response().setStatusCode(204).end();
+                break;
+            case "DeleteObjects":
+                deleteObjects(request, bucket, payload);
+                break;
+            case "CreateMultipartUpload":
+                createMultipartUpload(request, bucket, key);
+                break;
+            case "UploadPart":
+                uploadPart(request, bucket, key, params, payload);
+                break;
+            case "UploadPartCopy":
+                uploadPartCopy(request, bucket, key, params);
+                break;
+            case "CompleteMultipartUpload":
+                completeMultipartUpload(request, bucket, key, params.get("uploadId"), payload);
+                break;
+            case "AbortMultipartUpload":
+                if (uploads.remove(params.get("uploadId")) == null) {
+                    error(request, 404, "NoSuchUpload", "The specified upload does not exist.");
+                } else {
+                    request.response().setStatusCode(204).end();
+                }
+                break;
+            default:
+                error(request, 501, "NotImplemented", operation + " is not implemented");
+        }
+    }
+
+    private static String operation(HttpMethod method,
+                                    String bucket,
+                                    String key,
+                                    Map<String, String> params,
+                                    boolean copy) {
+        if (bucket.isEmpty()) {
+            return "ListBuckets";
+        }
+        if (key.isEmpty()) {
+            switch (method) {
+                case GET:
+                    return "ListObjectsV2";
+                case HEAD:
+                    return "HeadBucket";
+                case POST:
+                    return params.containsKey("delete") ? "DeleteObjects" : "POSTBucket";
+                default:
+                    return method.name() + "Bucket";
+            }
+        }
+        switch (method) {
+            case GET:
+                return "GetObject";
+            case HEAD:
+                return "HeadObject";
+            case PUT:
+                if (params.containsKey("uploadId")) {
+                    return copy ? "UploadPartCopy" : "UploadPart";
+                }
+                return copy ? "CopyObject" : "PutObject";
+            case POST:
+                if (params.containsKey("uploads")) {
+                    return "CreateMultipartUpload";
+                }
+                return params.containsKey("uploadId") ? "CompleteMultipartUpload" : "PostObject";
+            case DELETE:
+                return params.containsKey("uploadId") ? "AbortMultipartUpload" : "DeleteObject";
+            default:
+                return method.name() + "Object";
+        }
+    }
+
+    // Objects
+    // -------
+
+    private void getObject(HttpServerRequest request, String bucket, String key) {
+        LocalS3Object object = backend.get(bucket, key);
+        if (object == null) {
+            error(request, 404, "NoSuchKey", "The specified key does not exist.");
+            return;
+        }
+        MultiMap headers = request.headers();
+        String ifMatch = headers.get("If-Match");
+        if (ifMatch != null && !etagMatches(ifMatch, object.getEtag())) {
+            error(request, 412, "PreconditionFailed", "At least one of the preconditions you specified did not hold.");
+            return;
+        }
+        String ifNoneMatch = headers.get("If-None-Match");
+        if (ifNoneMatch != null && etagMatches(ifNoneMatch, object.getEtag())) {
+            objectHeaders(request.response(), object).setStatusCode(304).end();
+            return;
+        }
+
+        HttpServerResponse response = objectHeaders(request.response(), object);
+        String checksum = object.getMetadata().get(CRC32C);
+        if (checksum != null && !"ENABLED".equals(headers.get("x-amz-checksum-mode"))) {
+            // Only sent when asked for
+            response.headers().remove(CRC32C);
+        }
+        long start = 0;
+        long end = object.length() - 1;
+        String range = headers.get("Range");
+        if (range != null && range.startsWith("bytes=") && range.indexOf(',') < 0) {
+            String spec = range.substring("bytes=".length()).trim();
+            int dash = spec.indexOf('-');
+            try {
+                if (dash == 0) {
+                    start = Math.max(0, object.length() - Long.parseLong(spec.substring(1)));
+                } else {
+                    start = Long.parseLong(spec.substring(0, dash));
+                    if (dash < spec.length() - 1) {
+                        end = Math.min(end, Long.parseLong(spec.substring(dash + 1)));
+                    }
+                }
+            } catch (NumberFormatException e) {
+                start = 0; // S3 ignores a malformed range
+            }
+            if (start >= object.length()) {
+                error(request, 416, "InvalidRange", "The requested range is not satisfiable");
+                return;
+            }
+            response.setStatusCode(206);
+            response.putHeader("Content-Range", "bytes " + start + "-" + end + "/" + object.length());
+        }
+
+        response.putHeader("Content-Length", String.valueOf(end - start + 1));
+        if (request.method() == HttpMethod.HEAD) {
+            response.end();
+        } else if (decrementIfPositive(corruptNext)) {
+            Buffer corrupted = object.getData().getBuffer((int) start, (int) end + 1);
+            corrupted.setByte(0, (byte) ~corrupted.getByte(0));
+            send(response, corrupted);
+        } else {
+            send(response, object.getData().slice((int) start, (int) end + 1));
+        }
+    }
+
+    private static HttpServerResponse objectHeaders(HttpServerResponse response, LocalS3Object object) {
+        response.putHeader("ETag", object.getEtag());
+        response.putHeader("Last-Modified", DateTimeFormatter.RFC_1123_DATE_TIME.format(
+                Instant.ofEpochMilli(object.getLastModified()).atZone(ZoneOffset.UTC)));
+        response.putHeader("Accept-Ranges", "bytes");
+        for (Map.Entry<String, String> header : object.getMetadata().entrySet()) {
+            response.putHeader(header.getKey(), header.getValue());
+        }
+        return response;
+    }
+
+    private static boolean etagMatches(String condition, String etag) {
+        for (String candidate : condition.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*") || candidate.equals(etag) || ('"' + candidate + '"').equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void putObject(HttpServerRequest request,
+                           String bucket,
+                           String key,
+                           Buffer payload,
+                           Map<String, String> trailers) {
+        byte[] md5 = md5(payload.getBytes());
+        String contentMd5 = request.headers().get("Content-MD5");
+        if (contentMd5 != null && !contentMd5.equals(Base64.getEncoder().encodeToString(md5))) {
+            error(request, 400, "BadDigest", "The Content-MD5 you specified did not match what we received.");
+            return;
+        }
+        String checksum = trailers.containsKey(CRC32C) ? trailers.get(CRC32C) : request.headers().get(CRC32C);
+        if (checksum != null && !checksum.equals(crc32c(payload.getBytes()))) {
+            error(request, 400, "BadDigest", "The CRC32C you specified did not match the calculated checksum.");
+            return;
+        }
+        Map<String, String> metadata = storedHeaders(request.headers());
+        if (checksum != null) {
+            metadata.put(CRC32C, checksum);
+        }
+        String sse = encryption;
+        byte[] etag = md5;
+        if (sse != null) {
+            metadata.put(SSE, sse);
+            if (sse.startsWith("aws:kms")) {
+                etag = md5(md5);
+            }
+        }
+        LocalS3Object object = new LocalS3Object(payload,
+                                                 '"' + LocalS3Auth.hex(etag) + '"',
+                                                 System.currentTimeMillis(),
+                                                 metadata);
+        backend.put(bucket, key, object);
+        if (sse != null) {
+            request.response().putHeader(SSE, sse);
+        }
+        request.response().putHeader("ETag", object.getEtag()).end();
+    }
+
+    // The request headers S3 keeps with an object and returns on GET
+    private static Map<String, String> storedHeaders(MultiMap headers) {
+        Map<String, String> stored = new LinkedHashMap<>();
+        for (Map.Entry<String, String> header : headers) {
+            String name = header.getKey().toLowerCase();
+            if (name.startsWith("x-amz-meta-")
+                || name.equals("content-type")
+                || name.equals("content-disposition")
+                || name.equals("cache-control")
+                || (name.equals("content-encoding") && !header.getValue().equals("aws-chunked"))) {
+                stored.put(header.getKey(), header.getValue());
+            }
+        }
+        return stored;
+    }
+
+    private void copyObject(HttpServerRequest request, String bucket, String key) {
+        LocalS3Object source = copySource(request);
+        if (source == null) {
+            return;
+        }
+        if (source.length() > maxCopySize) {
+            error(request, 400, "InvalidRequest",
+                  "The specified copy source is larger than the maximum allowable size for a copy source: "
+                  + maxCopySize);
+            return;
+        }
+        Map<String, String> metadata;
+        if ("REPLACE".equals(request.headers().get("x-amz-metadata-directive"))) {
+            metadata = storedHeaders(request.headers());
+        } else {
+            metadata = new LinkedHashMap<>(source.getMetadata());
+        }
+        LocalS3Object object = new LocalS3Object(source.getData(),
+                                                 source.getEtag(),
+                                                 System.currentTimeMillis(),
+                                                 metadata);
+        backend.put(bucket, key, object);
+
+        StringBuilder xml = new StringBuilder(256);
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<CopyObjectResult>");
+        element(xml, "LastModified", ISO_DATE.format(Instant.ofEpochMilli(object.getLastModified())));
+        element(xml, "ETag", object.getEtag());
+        xml.append("</CopyObjectResult>");
+        sendXml(request.response(), 200, xml);
+    }
+
+    // The object x-amz-copy-source names, or null once an error is sent
+    private LocalS3Object copySource(HttpServerRequest request) {
+        MultiMap headers = request.headers();
+        String source = LocalS3Auth.percentDecode(headers.get("x-amz-copy-source"));
+        if (source.startsWith("/")) {
+            source = source.substring(1);
+        }
+        int slash = source.indexOf('/');
+        if (slash <= 0 || slash == source.length() - 1) {
+            error(request, 400, "InvalidArgument", "Copy Source must mention the source bucket and key");
+            return null;
+        }
+        LocalS3Object object = backend.get(source.substring(0, slash), source.substring(slash + 1));
+        if (object == null) {
+            error(request, 404, "NoSuchKey", "The specified key does not exist.");
+            return null;
+        }
+        String ifMatch = headers.get("x-amz-copy-source-if-match");
+        if (ifMatch != null && !etagMatches(ifMatch, object.getEtag())) {
+            error(request, 412, "PreconditionFailed", "At least one of the preconditions you specified did not hold.");
+            return null;
+        }
+        return object;
+    }
+
+    private void deleteObjects(HttpServerRequest request, String bucket, Buffer payload) {
+        String contentMd5 = request.headers().get("Content-MD5");
+        if (contentMd5 == null) {
+            error(request, 400, "InvalidRequest", "Missing required header for this request: Content-MD5");
+            return;
+        }
+        if (!contentMd5.equals(Base64.getEncoder().encodeToString(md5(payload.getBytes())))) {
+            error(request, 400, "BadDigest", "The Content-MD5 you specified did not match what we received.");
+            return;
+        }
+        String document = payload.toString("UTF-8");
+        List<String> keys = new ArrayList<>();
+        Matcher matcher = DELETE_KEY.matcher(document);
+        while (matcher.find()) {
+            keys.add(unescape(matcher.group(1)));
+        }
+        if (keys.isEmpty() || keys.size() > MAX_DELETE_KEYS) {
+            error(request, 400, "MalformedXML", "The XML you provided was not well-formed.");
+            return;
+        }
+        boolean quiet = document.contains("<Quiet>true</Quiet>");
+
+        StringBuilder xml = new StringBuilder(128 + (quiet ? 0 : keys.size() * 48));
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+           .append("<DeleteResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">");
+        for (String key : keys) {
+            if (isProtected(key)) {
+                xml.append("<Error>");
+                element(xml, "Key", key);
+                element(xml, "Code", "AccessDenied");
+                element(xml, "Message", "Access Denied");
+                xml.append("</Error>");
+                continue;
+            }
+            // Deleting a missing key counts as deleted
+            backend.delete(bucket, key);
+            if (!quiet) {
+                xml.append("<Deleted>");
+                element(xml, "Key", key);
+                xml.append("</Deleted>");
+            }
+        }
+        xml.append("</DeleteResult>");
+        sendXml(request.response(), 200, xml);
+    }
+
+    private boolean isProtected(String key) {
+        String prefix = protectedPrefix;
+        return prefix != null && key.startsWith(prefix);
+    }
+
+    // Listing
+    // -------
+
+    private void listObjects(HttpServerRequest request, String bucket, Map<String, String> params) {
+        String prefix = params.getOrDefault("prefix", "");
+        String delimiter = params.get("delimiter");
+        int maxKeys = Integer.parseInt(params.getOrDefault("max-keys", "1000"));
+        String token = params.get("continuation-token");
+        String after = token != null ? new String(Base64.getDecoder().decode(token)) : params.get("start-after");
+
+        NavigableSet<String> keys = backend.keys(bucket);
+        NavigableSet<String> candidates = after != null ? keys.tailSet(after, false) : keys;
+        List<String> contents = new ArrayList<>();
+        TreeSet<String> commonPrefixes = new TreeSet<>();
+        String last = null;
+        boolean truncated = false;
+        for (String key : candidates) {
+            if (!key.startsWith(prefix)) {
+                if (key.compareTo(prefix) > 0) {
+                    break;
+                }
+                continue;
+            }
+            String commonPrefix = null;
+            if (delimiter != null && !delimiter.isEmpty()) {
+                int index = key.indexOf(delimiter, prefix.length());
+                if (index >= 0) {
+                    commonPrefix = key.substring(0, index + delimiter.length());
+                }
+            }
+            if (commonPrefix != null && commonPrefixes.contains(commonPrefix)) {
+                last = key;
+                continue;
+            }
+            if (contents.size() + commonPrefixes.size() >= maxKeys) {
+                truncated = true;
+                break;
+            }
+            if (commonPrefix != null) {
+                commonPrefixes.add(commonPrefix);
+            } else {
+                contents.add(key);
+            }
+            last = key;
+        }
+
+        StringBuilder xml = new StringBuilder(256 + contents.size() * 256);
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+           .append("<ListBucketResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">");
+        element(xml, "Name", bucket);
+        element(xml, "Prefix", prefix);
+        if (delimiter != null) {
+            element(xml, "Delimiter", delimiter);
+        }
+        element(xml, "MaxKeys", String.valueOf(maxKeys));
+        element(xml, "KeyCount", String.valueOf(contents.size() + commonPrefixes.size()));
+        element(xml, "IsTruncated", String.valueOf(truncated));
+        if (token != null) {
+            element(xml, "ContinuationToken", token);
+        }
+        if (truncated && last != null) {
+            element(xml, "NextContinuationToken", Base64.getEncoder().encodeToString(last.getBytes()));
+        }
+        for (String key : contents) {
+            LocalS3Object object = backend.get(bucket, key);
+            if (object == null) {
+                continue; // deleted while listing
+            }
+            xml.append("<Contents>");
+            element(xml, "Key", key);
+            element(xml, "LastModified", ISO_DATE.format(Instant.ofEpochMilli(object.getLastModified())));
+            element(xml, "ETag", object.getEtag());
+            element(xml, "Size", String.valueOf(object.length()));
+            element(xml, "StorageClass", "STANDARD");
+            xml.append("</Contents>");
+        }
+        for (String commonPrefix : commonPrefixes) {
+            xml.append("<CommonPrefixes>");
+            element(xml, "Prefix", commonPrefix);
+            xml.append("</CommonPrefixes>");
+        }
+        xml.append("</ListBucketResult>");
+        sendXml(request.response(), 200, xml);
+    }
+
+    // Multipart
+    // ---------
+
+    private static class Upload {
+        final String bucket;
+        final String key;
+        final Map<String, String> headers;
+        final ConcurrentSkipListMap<Integer, LocalS3Object> parts = new ConcurrentSkipListMap<>();
+
+        Upload(String bucket, String key, Map<String, String> headers) {
+            this.bucket = bucket;
+            this.key = key;
+            this.headers = headers;
+        }
+    }
+
+    private void createMultipartUpload(HttpServerRequest request, String bucket, String key) {
+        String uploadId = UUID.randomUUID().toString().replace("-", "");
+        uploads.put(uploadId, new Upload(bucket, key, storedHeaders(request.headers())));
+        StringBuilder xml = new StringBuilder(256);
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+           .append("<InitiateMultipartUploadResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">");
+        element(xml, "Bucket", bucket);
+        element(xml, "Key", key);
+        element(xml, "UploadId", uploadId);
+        xml.append("</InitiateMultipartUploadResult>");
+        sendXml(request.response(), 200, xml);
+    }
+
+    private void uploadPart(HttpServerRequest request,
+                            String bucket,
+                            String key,
+                            Map<String, String> params,
+                            Buffer payload) {
+        Upload upload = uploads.get(params.get("uploadId"));
+        if (upload == null || !upload.bucket.equals(bucket) || !upload.key.equals(key)) {
+            error(request, 404, "NoSuchUpload", "The specified upload does not exist.");
+            return;
+        }
+        int partNumber;
+        try {
+            partNumber = Integer.parseInt(params.get("partNumber"));
+        } catch (NumberFormatException e) {
+            partNumber = 0;
+        }
+        if (partNumber < 1 || partNumber > 10000) {
+            error(request, 400, "InvalidArgument", "Part number must be an integer between 1 and 10000.");
+            return;
+        }
+        String etag = '"' + LocalS3Auth.hex(md5(payload.getBytes())) + '"';
+        upload.parts.put(partNumber, new LocalS3Object(payload, etag, System.currentTimeMillis(), upload.headers));
+        request.response().putHeader("ETag", etag).end();
+    }
+
+    private void uploadPartCopy(HttpServerRequest request,
+                                String bucket,
+                                String key,
+                                Map<String, String> params) {
+        Upload upload = uploads.get(params.get("uploadId"));
+        if (upload == null || !upload.bucket.equals(bucket) || !upload.key.equals(key)) {
+            error(request, 404, "NoSuchUpload", "The specified upload does not exist.");
+            return;
+        }
+        int partNumber;
+        try {
+            partNumber = Integer.parseInt(params.get("partNumber"));
+        } catch (NumberFormatException e) {
+            partNumber = 0;
+        }
+        if (partNumber < 1 || partNumber > 10000) {
+            error(request, 400, "InvalidArgument", "Part number must be an integer between 1 and 10000.");
+            return;
+        }
+        LocalS3Object source = copySource(request);
+        if (source == null) {
+            return;
+        }
+
+        long start = 0;
+        long end = source.length() - 1;
+        String range = request.headers().get("x-amz-copy-source-range");
+        if (range != null) {
+            int dash = range.indexOf('-');
+            try {
+                if (!range.startsWith("bytes=") || dash < 0) {
+                    throw new NumberFormatException(range);
+                }
+                start = Long.parseLong(range.substring("bytes=".length(), dash).trim());
+                end = Long.parseLong(range.substring(dash + 1).trim());
+            } catch (NumberFormatException e) {
+                error(request, 400, "InvalidArgument", "The x-amz-copy-source-range value must be of the form "
+                                                       + "bytes=first-last where first and last are the zero-based "
+                                                       + "offsets of the first and last bytes to copy");
+                return;
+            }
+            if (start > end || end >= source.length()) {
+                error(request, 400, "InvalidRange", "The requested range is not satisfiable");
+                return;
+            }
+        }
+        if (end - start + 1 > maxCopySize) {
+            error(request, 400, "InvalidRequest",
+                  "The specified copy range is larger than the maximum allowable size: " + maxCopySize);
+            return;
+        }
+
+        Buffer data = source.getData().getBuffer((int) start, (int) end + 1);
+        String etag = '"' + LocalS3Auth.hex(md5(data.getBytes())) + '"';
+        LocalS3Object part = new LocalS3Object(data, etag, System.currentTimeMillis(), upload.headers);
+        upload.parts.put(partNumber, part);
+
+        StringBuilder xml = new StringBuilder(256);
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<CopyPartResult>");
+        element(xml, "LastModified", ISO_DATE.format(Instant.ofEpochMilli(part.getLastModified())));
+        element(xml, "ETag", etag);
+        xml.append("</CopyPartResult>");
+        sendXml(request.response(), 200, xml);
+    }
+
+    private void completeMultipartUpload(HttpServerRequest request,
+                                         String bucket,
+                                         String key,
+                                         String uploadId,
+                                         Buffer payload) {
+        Upload upload = uploads.get(uploadId);
+        if (upload == null || !upload.bucket.equals(bucket) || !upload.key.equals(key)) {
+            error(request, 404, "NoSuchUpload", "The specified upload does not exist.");
+            return;
+        }
+
+        List<LocalS3Object> parts = new ArrayList<>();
+        int previous = 0;
+        Matcher matcher = PART.matcher(payload.toString("UTF-8"));
+        while (matcher.find()) {
+            int partNumber = Integer.parseInt(matcher.group(1));
+            String etag = matcher.group(2).replace("&quot;", "\"").trim();
+            if (partNumber <= previous) {
+                error(request, 400, "InvalidPartOrder", "The list of parts was not in ascending order.");
+                return;
+            }
+            LocalS3Object part = upload.parts.get(partNumber);
+            if (part == null || !etagMatches(etag, part.getEtag())) {
+                error(request, 400, "InvalidPart", "One or more of the specified parts could not be found.");
+                return;
+            }
+            parts.add(part);
+            previous = partNumber;
+        }
+        if (parts.isEmpty()) {
+            error(request, 400, "MalformedXML", "The XML you provided was not well-formed.");
+            return;
+        }
+
+        Buffer data = Buffer.buffer();
+        byte[] etags = new byte[parts.size() * 16];
+        for (int i = 0; i < parts.size(); i++) {
+            LocalS3Object part = parts.get(i);
+            if (i < parts.size() - 1 && part.length() < MIN_PART_SIZE) {
+                error(request, 400, "EntityTooSmall", "Your proposed upload is smaller than the minimum allowed size");
+                return;
+            }
+            data.appendBuffer(part.getData());
+            System.arraycopy(md5(part.getData().getBytes()), 0, etags, i * 16, 16);
+        }
+        String etag = '"' + LocalS3Auth.hex(md5(etags)) + "-" + parts.size() + '"';
+        uploads.remove(uploadId);
+        backend.put(bucket, key, new LocalS3Object(data, etag, System.currentTimeMillis(), upload.headers));
+
+        StringBuilder xml = new StringBuilder(256);
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+           .append("<CompleteMultipartUploadResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">");
+        element(xml, "Location", "http://" + getEndpoint() + ":" + port + "/" + bucket + "/" + key);
+        element(xml, "Bucket", bucket);
+        element(xml, "Key", key);
+        element(xml, "ETag", etag);
+        xml.append("</CompleteMultipartUploadResult>");
+        sendXml(request.response(), 200, xml);
+    }
+
+    // Responses
+    // ---------
+
+    private void error(HttpServerRequest request, int status, String code, String message) {
+        HttpServerResponse response = request.response();
+        if (request.method() == HttpMethod.HEAD) {
+            response.setStatusCode(status).end();
+            return;
+        }
+        StringBuilder xml = new StringBuilder(256);
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<Error>");
+        element(xml, "Code", code);
+        element(xml, "Message", message);
+        element(xml, "RequestId", Long.toHexString(requestIds.incrementAndGet()));
+        xml.append("</Error>");
+        sendXml(response, status, xml);
+    }
+
+    private void sendXml(HttpServerResponse response, int status, CharSequence xml) {
+        response.setStatusCode(status).putHeader("Content-Type", "application/xml");
+        Buffer body = Buffer.buffer(xml.toString(), "UTF-8");
+        response.putHeader("Content-Length", String.valueOf(body.length()));
+        send(response, body);
+    }
+
+    // Writes the body, paced to the bandwidth cap if there is one
+    private void send(HttpServerResponse response, Buffer body) {
+        long cap = bandwidth;
+        if (cap <= 0 || body.length() == 0) {
+            response.end(body);
+            return;
+        }
+        int slice = (int) Math.max(1, cap * PACING_INTERVAL / 1000);
+        AtomicInteger position = new AtomicInteger();
+        AtomicInteger closed = new AtomicInteger();
+        response.closeHandler(event -> closed.set(1));
+        vertx.setPeriodic(PACING_INTERVAL, timer -> {
+            if (closed.get() != 0) {
+                vertx.cancelTimer(timer);
+                return;
+            }
+            int start = position.get();
+            int end = Math.min(body.length(), start + slice);
+            position.set(end);
+            if (end == body.length()) {
+                vertx.cancelTimer(timer);
+                response.end(body.slice(start, end));
+            } else {
+                response.write(body.slice(start, end));
+            }
+        });
+    }
+
+    private static void element(StringBuilder xml, String name, String value) {
+        xml.append('<').append(name).append('>');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '<':
+                    xml.append("&lt;");
+                    break;
+                case '>':
+                    xml.append("&gt;");
+                    break;
+                case '&':
+                    xml.append("&amp;");
+                    break;
+                case '"':
+                    xml.append("&quot;");
+                    break;
+                case '\'':
+                    xml.append("&apos;");
+                    break;
+                default:
+                    xml.append(c);
+            }
+        }
+        xml.append("</").append(name).append('>');
+    }
+
+    // Helpers
+    // -------
+
+    private static String unescape(String text) {
+        return text.replace("&lt;", "<")
+                   .replace("&gt;", ">")
+                   .replace("&quot;", "\"")
+                   .replace("&apos;", "'")
+                   .replace("&amp;", "&");
+    }
+
+    private static boolean decrementIfPositive(AtomicInteger counter) {
+        while (true) {
+            int current = counter.get();
+            if (current <= 0) {
+                return false;
+            }
+            if (counter.compareAndSet(current, current - 1)) {
+                return true;
+            }
+        }
+    }
+
+    private static byte[] md5(byte[] data) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(data);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Base64 of the big-endian CRC32C, bit by bit straight from the definition
+    private static String crc32c(byte[] data) {
+        int crc = 0xFFFFFFFF;
+        for (byte b : data) {
+            crc ^= b & 0xFF;
+            for (int k = 0; k < 8; k++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0x82F63B78 : crc >>> 1;
+            }
+        }
+        crc = ~crc;
+        byte[] bytes = { (byte) (crc >>> 24), (byte) (crc >>> 16), (byte) (crc >>> 8), (byte) crc };
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+
+    private static int freePort() {
+        // Vert.x 3.0 cannot report the port it bound to, so pick one first
+        try (ServerSocket socket = new ServerSocket(0)) {
+            socket.setReuseAddress(true);
+            return socket.getLocalPort();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static <T> void complete(CompletableFuture<T> future, AsyncResult<T> result) {
+        if (result.succeeded()) {
+            future.complete(result.result());
+        } else {
+            future.completeExceptionally(result.cause());
+        }
+    }
+
+    private static void await(CompletableFuture<?> future) {
+        try {
+            future.get(10, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            throw new IllegalStateException("Local S3 server did not respond", e);
+        }
+    }
+}
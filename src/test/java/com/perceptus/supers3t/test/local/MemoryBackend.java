@@ -0,0 +1,33 @@
+package com.perceptus.supers3t.test.local;
+
+import java.util.Collections;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Keeps every object on the heap.
+ */
+public class MemoryBackend implements LocalS3Backend {
+    private final ConcurrentHashMap<String, ConcurrentSkipListMap<String, LocalS3Object>> buckets =
+            new ConcurrentHashMap<>();
+
+    @Override public LocalS3Object get(String bucket, String key) {
+        ConcurrentSkipListMap<String, LocalS3Object> objects = buckets.get(bucket);
+        return objects == null ? null : objects.get(key);
+    }
+
+    @Override public void put(String bucket, String key, LocalS3Object object) {
+        buckets.computeIfAbsent(bucket, b -> new ConcurrentSkipListMap<>()).put(key, object);
+    }
+
+    @Override public boolean delete(String bucket, String key) {
+        ConcurrentSkipListMap<String, LocalS3Object> objects = buckets.get(bucket);
+        return objects != null && objects.remove(key) != null;
+    }
+
+    @Override public NavigableSet<String> keys(String bucket) {
+        ConcurrentSkipListMap<String, LocalS3Object> objects = buckets.get(bucket);
+        return objects == null ? Collections.emptyNavigableSet() : objects.keySet();
+    }
+}